@@ -0,0 +1,201 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.oscim.core.Tile;
+import org.oscim.generator.TileGenerator;
+import org.oscim.renderer.MapTile;
+import org.oscim.renderer.layer.TextItem;
+import org.oscim.theme.RenderTheme;
+import org.oscim.utils.OBB2D;
+import org.oscim.utils.SpatialGrid;
+import org.oscim.view.DebugSettings;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Collision detection of label placement as done by TextOverlay, on the
+ * labels of the fixture tiles laid out side by side:
+ * <ul>
+ * <li>linear: test each label against all placed labels</li>
+ * <li>grid: test each label against the placed labels found in a
+ * SpatialGrid</li>
+ * </ul>
+ * Both return the number of placed labels, which must be equal.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LabelBenchmark {
+
+	@Param({ "oscimap" })
+	public String format;
+
+	@Param({ "" })
+	public String fixture;
+
+	@Param({ "16" })
+	public byte zoom;
+
+	// as in TextOverlay
+	private static final int GRID_CELL = 64;
+
+	static final class Candidate {
+		final OBB2D bbox = new OBB2D();
+		float x1, y1, x2, y2;
+	}
+
+	private Candidate[] mCandidates;
+	private float mExtent;
+
+	private final ArrayList<Candidate> mPlaced = new ArrayList<Candidate>();
+	private final SpatialGrid<Candidate> mGrid = new SpatialGrid<Candidate>(GRID_CELL);
+
+	@Setup
+	public void setup() throws IOException {
+		RenderTheme theme = TileFixture.loadTheme();
+		TileGenerator.setRenderTheme(theme);
+		TileGenerator.setDebugSettings(new DebugSettings());
+
+		TileRecord[] records;
+		TileFixture f = TileFixture.open(format, fixture, zoom);
+		try {
+			records = f.record();
+		} finally {
+			f.close();
+		}
+
+		TileGenerator generator = new TileGenerator();
+		generator.setMapDatabase(new ReplayDatabase(records));
+
+		// lay out the tiles in a square around 0,0 like the view
+		int cols = (int) Math.ceil(Math.sqrt(records.length));
+		mExtent = cols * Tile.TILE_SIZE / 2f;
+
+		ArrayList<Candidate> candidates = new ArrayList<Candidate>();
+
+		for (int i = 0; i < records.length; i++) {
+			MapTile tile = records[i].tile;
+			if (!generator.executeJob(tile))
+				throw new IllegalStateException("loading failed: " + tile);
+
+			float dx = (i % cols) * Tile.TILE_SIZE - mExtent;
+			float dy = (i / cols) * Tile.TILE_SIZE - mExtent;
+
+			for (TextItem ti = tile.labels; ti != null; ti = ti.next) {
+				Candidate c = candidate(ti, dx, dy);
+				// TextOverlay only places labels within the view
+				if (c.x1 >= -mExtent && c.x2 <= mExtent
+						&& c.y1 >= -mExtent && c.y2 <= mExtent)
+					candidates.add(c);
+			}
+
+			if (tile.layers != null) {
+				tile.layers.clear();
+				tile.layers = null;
+			}
+			TextItem.release(tile.labels);
+			tile.labels = null;
+			tile.state = 0;
+		}
+		mCandidates = candidates.toArray(new Candidate[candidates.size()]);
+	}
+
+	private static Candidate candidate(TextItem ti, float dx, float dy) {
+		Candidate c = new Candidate();
+		float x = ti.x + dx;
+		float y = ti.y + dy;
+		float h = ti.text.fontHeight;
+
+		if (ti.text.caption) {
+			c.bbox.setNormalized(x, y, 1, 0, ti.width + 6, h + 6);
+		} else {
+			c.bbox.set(x, y, ti.x1 + dx, ti.y1 + dy, ti.width + 5, h + 5);
+		}
+
+		float[] cr = c.bbox.corner;
+		c.x1 = c.x2 = cr[0];
+		c.y1 = c.y2 = cr[1];
+		for (int i = 2; i < 8; i += 2) {
+			c.x1 = Math.min(c.x1, cr[i]);
+			c.x2 = Math.max(c.x2, cr[i]);
+			c.y1 = Math.min(c.y1, cr[i + 1]);
+			c.y2 = Math.max(c.y2, cr[i + 1]);
+		}
+		return c;
+	}
+
+	private static boolean overlaps(Candidate a, Candidate b) {
+		return a.x1 < b.x2 && b.x1 < a.x2
+				&& a.y1 < b.y2 && b.y1 < a.y2
+				&& a.bbox.overlaps(b.bbox);
+	}
+
+	@Benchmark
+	public int linear() {
+		ArrayList<Candidate> placed = mPlaced;
+		placed.clear();
+
+		for (Candidate c : mCandidates) {
+			boolean overlaps = false;
+			for (int i = 0, n = placed.size(); i < n; i++) {
+				if (overlaps(c, placed.get(i))) {
+					overlaps = true;
+					break;
+				}
+			}
+			if (!overlaps)
+				placed.add(c);
+		}
+		return placed.size();
+	}
+
+	@Benchmark
+	public int grid() {
+		SpatialGrid<Candidate> grid = mGrid;
+		grid.init(-mExtent, -mExtent, mExtent, mExtent);
+
+		for (Candidate c : mCandidates) {
+			ArrayList<Candidate> found = grid.query(c.x1, c.y1, c.x2, c.y2);
+
+			boolean overlaps = false;
+			for (int i = 0, n = found.size(); i < n; i++) {
+				if (overlaps(c, found.get(i))) {
+					overlaps = true;
+					break;
+				}
+			}
+			if (!overlaps)
+				grid.insert(c, c.x1, c.y1, c.x2, c.y2);
+		}
+		return grid.size();
+	}
+}
@@ -0,0 +1,545 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.oscim.core.Tag;
+import org.oscim.database.oscimap.Tags;
+
+/**
+ * Frozen copy of the oscimap tile decoder before it was moved to
+ * ProtobufDecoder, for comparison. Logging was removed, otherwise the
+ * code is unchanged.
+ */
+class LegacyTileDecoder {
+	private final static float REF_TILE_SIZE = 4096.0f;
+	private final static int TILE_SIZE = 256;
+
+	private final int BUFFER_SIZE = 65536;
+
+	byte[] buffer = new byte[BUFFER_SIZE];
+	// position in buffer
+	int bufferPos;
+
+	// bytes available in buffer
+	int bufferFill;
+
+	// overall bytes of content read
+	private int mReadPos;
+
+	private long mContentLenth;
+	private InputStream mInputStream;
+
+	private final int MAX_TILE_TAGS = 100;
+	private Tag[] curTags = new Tag[MAX_TILE_TAGS];
+	private int mCurTagCnt;
+
+	private TileSink mSink;
+	private final float mScaleFactor = REF_TILE_SIZE / TILE_SIZE;
+
+	private final int MAX_WAY_COORDS = 16384;
+
+	// overall bytes of content processed
+	private int mBytesProcessed;
+
+	private static final int TAG_TILE_NUM_TAGS = 1;
+	private static final int TAG_TILE_TAG_KEYS = 2;
+	private static final int TAG_TILE_TAG_VALUES = 3;
+
+	private static final int TAG_TILE_LINE = 11;
+	private static final int TAG_TILE_POLY = 12;
+	private static final int TAG_TILE_POINT = 13;
+
+	private static final int TAG_ELEM_NUM_INDICES = 1;
+	private static final int TAG_ELEM_TAGS = 11;
+	private static final int TAG_ELEM_INDEX = 12;
+	private static final int TAG_ELEM_COORDS = 13;
+	private static final int TAG_ELEM_LAYER = 21;
+	private static final int TAG_ELEM_PRIORITY = 31;
+
+	private short[] mTmpKeys = new short[100];
+	private short[] mIndices = new short[10];
+	private final Tag[] mTmpTags = new Tag[20];
+
+	private float[] mTmpCoords;
+
+	private Tag[][] mElementTags;
+
+	LegacyTileDecoder() {
+		// reusable tag set
+		Tag[][] tags = new Tag[10][];
+		for (int i = 0; i < 10; i++)
+			tags[i] = new Tag[i + 1];
+		mElementTags = tags;
+
+		mTmpCoords = new float[MAX_WAY_COORDS];
+	}
+
+	boolean decode(InputStream is, int contentLength, TileSink sink) throws IOException {
+		bufferFill = 0;
+		bufferPos = 0;
+		mReadPos = 0;
+		mContentLenth = contentLength;
+		mInputStream = is;
+		mSink = sink;
+
+		mCurTagCnt = 0;
+
+		mBytesProcessed = 0;
+		int val;
+		int numTags = 0;
+
+		while (mBytesProcessed < mContentLenth && (val = decodeVarint32()) > 0) {
+			// read tag and wire type
+			int tag = (val >> 3);
+
+			switch (tag) {
+				case TAG_TILE_NUM_TAGS:
+					numTags = decodeVarint32();
+					if (numTags > curTags.length)
+						curTags = new Tag[numTags];
+					break;
+
+				case TAG_TILE_TAG_KEYS:
+					mTmpKeys = decodeShortArray(numTags, mTmpKeys);
+					break;
+
+				case TAG_TILE_TAG_VALUES:
+					// this wastes one byte, as there is no packed string...
+					decodeTileTags(mCurTagCnt++);
+					break;
+
+				case TAG_TILE_LINE:
+				case TAG_TILE_POLY:
+				case TAG_TILE_POINT:
+					decodeTileElement(tag);
+					break;
+
+				default:
+					return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean decodeTileTags(int curTag) throws IOException {
+		String tagString = decodeString();
+
+		String key = Tags.keys[mTmpKeys[curTag]];
+		Tag tag;
+
+		if (key == Tag.TAG_KEY_NAME)
+			tag = new Tag(key, tagString, false);
+		else
+			tag = new Tag(key, tagString, true);
+
+		curTags[curTag] = tag;
+
+		return true;
+	}
+
+	private boolean decodeTileElement(int type) throws IOException {
+		int bytes = decodeVarint32();
+
+		int end = mBytesProcessed + bytes;
+		int indexCnt = 1;
+		int coordCnt = 0;
+		int layer = 5;
+
+		Tag[] tags = null;
+		short[] index = null;
+
+		boolean skip = false;
+		boolean fail = false;
+
+		if (type == TAG_TILE_POINT)
+			coordCnt = 2;
+
+		while (mBytesProcessed < end) {
+			// read tag and wire type
+			int val = decodeVarint32();
+			if (val == 0)
+				break;
+
+			int tag = (val >> 3);
+
+			switch (tag) {
+				case TAG_ELEM_TAGS:
+					tags = decodeWayTags();
+					break;
+
+				case TAG_ELEM_NUM_INDICES:
+					indexCnt = decodeVarint32();
+					break;
+
+				case TAG_ELEM_INDEX:
+					index = decodeShortArray(indexCnt, mIndices);
+					if (index != null) {
+						mIndices = index;
+
+						for (int i = 0; i < indexCnt; i++) {
+							int len = index[i] * 2;
+							coordCnt += len;
+							index[i] = (short) len;
+						}
+						// set end marker
+						if (indexCnt < index.length)
+							index[indexCnt] = -1;
+					}
+					break;
+
+				case TAG_ELEM_COORDS:
+					if (coordCnt == 0) {
+						skip = true;
+					}
+					int cnt = decodeWayCoordinates(skip, coordCnt);
+
+					if (cnt != coordCnt) {
+						fail = true;
+					}
+					break;
+
+				case TAG_ELEM_LAYER:
+					layer = decodeVarint32();
+					break;
+
+				case TAG_ELEM_PRIORITY:
+					decodeVarint32();
+					break;
+
+				default:
+			}
+		}
+
+		if (fail || tags == null || indexCnt == 0)
+			return false;
+
+		float[] coords = mTmpCoords;
+
+		if (type == TAG_TILE_POINT)
+			mSink.point(layer, tags, coords[1], coords[0]);
+		else
+			mSink.way(layer, tags, coords, index);
+
+		return true;
+	}
+
+	private Tag[] decodeWayTags() throws IOException {
+		int bytes = decodeVarint32();
+
+		Tag[] tmp = mTmpTags;
+
+		int cnt = 0;
+		int end = mBytesProcessed + bytes;
+		int max = mCurTagCnt;
+
+		while (mBytesProcessed < end) {
+			int tagNum = decodeVarint32();
+
+			if (tagNum >= 0) {
+				if (tagNum < Tags.MAX)
+					tmp[cnt++] = Tags.tags[tagNum];
+				else {
+					tagNum -= Tags.LIMIT;
+
+					if (tagNum >= 0 && tagNum < max)
+						tmp[cnt++] = curTags[tagNum];
+				}
+			}
+		}
+
+		Tag[] tags;
+
+		if (cnt < 11)
+			tags = mElementTags[cnt - 1];
+		else
+			tags = new Tag[cnt];
+
+		for (int i = 0; i < cnt; i++)
+			tags[i] = tmp[i];
+
+		return tags;
+	}
+
+	private int decodeWayCoordinates(boolean skip, int nodes) throws IOException {
+		int bytes = decodeVarint32();
+
+		readBuffer(bytes);
+
+		if (skip) {
+			bufferPos += bytes;
+			return nodes;
+		}
+
+		int pos = bufferPos;
+		int end = pos + bytes;
+		float[] coords = mTmpCoords;
+		byte[] buf = buffer;
+		int cnt = 0;
+		int result;
+
+		int lastX = 0;
+		int lastY = 0;
+		boolean even = true;
+
+		float scale = mScaleFactor;
+
+		if (nodes * 2 > coords.length) {
+			float[] tmp = new float[nodes * 2];
+			mTmpCoords = coords = tmp;
+		}
+
+		// read repeated sint32
+		while (pos < end) {
+			if (buf[pos] >= 0) {
+				result = buf[pos++];
+			} else if (buf[pos + 1] >= 0) {
+				result = (buf[pos++] & 0x7f)
+						| buf[pos++] << 7;
+			} else if (buf[pos + 2] >= 0) {
+				result = (buf[pos++] & 0x7f)
+						| (buf[pos++] & 0x7f) << 7
+						| (buf[pos++]) << 14;
+			} else if (buf[pos + 3] >= 0) {
+				result = (buf[pos++] & 0x7f)
+						| (buf[pos++] & 0x7f) << 7
+						| (buf[pos++] & 0x7f) << 14
+						| (buf[pos++]) << 21;
+			} else {
+				result = (buf[pos] & 0x7f)
+						| (buf[pos + 1] & 0x7f) << 7
+						| (buf[pos + 2] & 0x7f) << 14
+						| (buf[pos + 3] & 0x7f) << 21
+						| (buf[pos + 4]) << 28;
+				pos += 4;
+				int i = 0;
+
+				while (buf[pos++] < 0 && i < 10)
+					i++;
+
+				if (i == 10)
+					throw new IOException("X malformed VarInt32");
+
+			}
+
+			// zigzag decoding
+			int s = ((result >>> 1) ^ -(result & 1));
+
+			if (even) {
+				lastX = lastX + s;
+				coords[cnt++] = lastX / scale;
+				even = false;
+			} else {
+				lastY = lastY + s;
+				coords[cnt++] = lastY / scale;
+				even = true;
+			}
+		}
+
+		bufferPos = pos;
+		mBytesProcessed += bytes;
+
+		return cnt;
+	}
+
+	private short[] decodeShortArray(int num, short[] array) throws IOException {
+		int bytes = decodeVarint32();
+
+		short[] index = array;
+		if (index.length < num) {
+			index = new short[num];
+		}
+
+		readBuffer(bytes);
+
+		int cnt = 0;
+
+		int pos = bufferPos;
+		int end = pos + bytes;
+		byte[] buf = buffer;
+		int result;
+
+		while (pos < end) {
+
+			if (buf[pos] >= 0) {
+				result = buf[pos++];
+			} else if (buf[pos + 1] >= 0) {
+				result = (buf[pos] & 0x7f)
+						| buf[pos + 1] << 7;
+				pos += 2;
+			} else if (buf[pos + 2] >= 0) {
+				result = (buf[pos] & 0x7f)
+						| (buf[pos + 1] & 0x7f) << 7
+						| (buf[pos + 2]) << 14;
+				pos += 3;
+			} else if (buf[pos + 3] >= 0) {
+				result = (buf[pos] & 0x7f)
+						| (buf[pos + 1] & 0x7f) << 7
+						| (buf[pos + 2] & 0x7f) << 14
+						| (buf[pos + 3]) << 21;
+				pos += 4;
+			} else {
+				result = (buf[pos] & 0x7f)
+						| (buf[pos + 1] & 0x7f) << 7
+						| (buf[pos + 2] & 0x7f) << 14
+						| (buf[pos + 3] & 0x7f) << 21
+						| (buf[pos + 4]) << 28;
+
+				pos += 4;
+				int i = 0;
+
+				while (buf[pos++] < 0 && i < 10)
+					i++;
+
+				if (i == 10)
+					throw new IOException("X malformed VarInt32");
+
+			}
+
+			index[cnt++] = (short) result;
+		}
+
+		bufferPos = pos;
+		mBytesProcessed += bytes;
+
+		return index;
+	}
+
+	private int decodeVarint32() throws IOException {
+		int pos = bufferPos;
+
+		if (pos + 10 > bufferFill) {
+			readBuffer(4096);
+			pos = bufferPos;
+		}
+
+		byte[] buf = buffer;
+
+		if (buf[pos] >= 0) {
+			bufferPos += 1;
+			mBytesProcessed += 1;
+			return buf[pos];
+		} else if (buf[pos + 1] >= 0) {
+			bufferPos += 2;
+			mBytesProcessed += 2;
+			return (buf[pos] & 0x7f)
+					| (buf[pos + 1]) << 7;
+
+		} else if (buf[pos + 2] >= 0) {
+			bufferPos += 3;
+			mBytesProcessed += 3;
+			return (buf[pos] & 0x7f)
+					| (buf[pos + 1] & 0x7f) << 7
+					| (buf[pos + 2]) << 14;
+		} else if (buf[pos + 3] >= 0) {
+			bufferPos += 4;
+			mBytesProcessed += 4;
+			return (buf[pos] & 0x7f)
+					| (buf[pos + 1] & 0x7f) << 7
+					| (buf[pos + 2] & 0x7f) << 14
+					| (buf[pos + 3]) << 21;
+		}
+
+		int result = (buf[pos] & 0x7f)
+				| (buf[pos + 1] & 0x7f) << 7
+				| (buf[pos + 2] & 0x7f) << 14
+				| (buf[pos + 3] & 0x7f) << 21
+				| (buf[pos + 4]) << 28;
+
+		int read = 5;
+		pos += 4;
+
+		while (buf[pos++] < 0 && read < 10)
+			read++;
+
+		if (read == 10)
+			throw new IOException("X malformed VarInt32");
+
+		bufferPos += read;
+		mBytesProcessed += read;
+
+		return result;
+	}
+
+	private String decodeString() throws IOException {
+		final int size = decodeVarint32();
+		readBuffer(size);
+		final String result = new String(buffer, bufferPos, size, "UTF-8");
+
+		bufferPos += size;
+		mBytesProcessed += size;
+		return result;
+
+	}
+
+	void readBuffer(int size) throws IOException {
+
+		// check if buffer already contains the request bytes
+		if (bufferPos + size < bufferFill)
+			return;
+
+		// check if inputstream is read to the end
+		if (mReadPos == mContentLenth)
+			return;
+		int maxSize = buffer.length;
+
+		if (size > maxSize) {
+			maxSize = size;
+			byte[] tmp = new byte[maxSize];
+
+			bufferFill -= bufferPos;
+			System.arraycopy(buffer, bufferPos, tmp, 0, bufferFill);
+			bufferPos = 0;
+			buffer = tmp;
+		}
+
+		if (bufferFill == bufferPos) {
+			bufferPos = 0;
+			bufferFill = 0;
+		} else if (bufferPos + size > maxSize) {
+			// copy bytes left to the beginning of buffer
+			bufferFill -= bufferPos;
+			System.arraycopy(buffer, bufferPos, buffer, 0, bufferFill);
+			bufferPos = 0;
+		}
+
+		int max = maxSize - bufferFill;
+
+		while ((bufferFill - bufferPos) < size && max > 0) {
+
+			max = maxSize - bufferFill;
+			if (max > mContentLenth - mReadPos)
+				max = (int) (mContentLenth - mReadPos);
+
+			// read until requested size is available in buffer
+			int len = mInputStream.read(buffer, bufferFill, max);
+
+			if (len < 0) {
+				// finished reading, mark end
+				buffer[bufferFill] = 0;
+				break;
+			}
+
+			mReadPos += len;
+
+			if (mReadPos == mContentLenth)
+				break;
+
+			bufferFill += len;
+		}
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.benchmark;
+
+import java.io.IOException;
+
+import org.oscim.database.IMapDatabase;
+import org.oscim.database.MapDatabases;
+import org.oscim.database.MapOptions;
+import org.oscim.database.OpenResult;
+import org.oscim.database.QueryResult;
+import org.oscim.renderer.MapTile;
+
+/**
+ * Checks the pipelined requests of the oscimap reader against a
+ * {@link StubTileServer} that injects latency:
+ * <ul>
+ * <li>pipeline: WORKERS threads, each with its own MapDatabase like the
+ * MapWorkers, load tiles with 'latency' per response. All tiles must load
+ * and the time is compared to loading them one after another.</li>
+ * <li>stall: one response never arrives. The requests queued behind it on
+ * the same connection must fail within the response timeout instead of
+ * blocking their workers, and must succeed when retried.</li>
+ * </ul>
+ * Not a JMH benchmark, run with:
+ *
+ * <pre>
+ * mvn compile exec:java -Dexec.mainClass=org.oscim.benchmark.LwHttpCheck [-Dexec.args=latency]
+ * </pre>
+ *
+ * Exits with status 1 when a check fails.
+ */
+public final class LwHttpCheck {
+	private static final int WORKERS = 4;
+	private static final int TILES_PER_WORKER = 25;
+
+	// LwHttp.RESPONSE_TIMEOUT and some slack
+	private static final long STALL_LIMIT = 25000;
+
+	private static final byte ZOOM = 14;
+
+	private LwHttpCheck() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int latency = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+
+		StubTileServer server = new StubTileServer(TileData.generate(16, 400));
+		boolean ok;
+		try {
+			ok = checkPipeline(server, latency) & checkStall(server);
+		} finally {
+			server.close();
+		}
+
+		System.out.println(ok ? "OK" : "FAILED");
+		System.exit(ok ? 0 : 1);
+	}
+
+	private static boolean checkPipeline(StubTileServer server, int latency)
+			throws Exception {
+		server.latency = latency;
+
+		Worker[] workers = new Worker[WORKERS];
+		for (int i = 0; i < WORKERS; i++) {
+			MapTile[] tiles = new MapTile[TILES_PER_WORKER];
+			for (int j = 0; j < TILES_PER_WORKER; j++)
+				tiles[j] = new MapTile(i * TILES_PER_WORKER + j, 100, ZOOM);
+			workers[i] = new Worker(server.getUrl(), tiles);
+		}
+
+		long time = run(workers);
+
+		int loaded = 0;
+		for (Worker w : workers)
+			loaded += w.count(QueryResult.SUCCESS);
+
+		int tiles = WORKERS * TILES_PER_WORKER;
+		System.out.println("pipeline: " + loaded + "/" + tiles + " tiles in " + time
+				+ "ms on " + server.connections + " connections, "
+				+ (tiles * latency) + "ms one after another");
+
+		return loaded == tiles;
+	}
+
+	private static boolean checkStall(StubTileServer server) throws Exception {
+		// keep the other connection busy, so that requests queue behind
+		// the stalled one
+		server.latency = 2000;
+		server.stallX = 1000;
+
+		Worker[] workers = new Worker[WORKERS];
+		workers[0] = new Worker(server.getUrl(), new MapTile[] {
+				new MapTile(server.stallX, 100, ZOOM) });
+		for (int i = 1; i < WORKERS; i++)
+			workers[i] = new Worker(server.getUrl(), new MapTile[] {
+					new MapTile(2000 + i, 100, ZOOM) });
+
+		// the stalled request is sent first
+		workers[0].start();
+		Thread.sleep(200);
+		long time = run(workers);
+
+		int failed = 0;
+		for (int i = 1; i < WORKERS; i++)
+			failed += workers[i].count(QueryResult.FAILED);
+
+		System.out.println("stall: stalled request " + workers[0].results[0]
+				+ ", " + failed + " queued requests failed after " + time + "ms");
+
+		boolean ok = workers[0].results[0] == QueryResult.FAILED
+				&& failed > 0 && time < STALL_LIMIT;
+
+		// retry the failed requests
+		server.stallX = -1;
+		server.latency = 0;
+		for (int i = 1; i < WORKERS; i++)
+			if (workers[i].results[0] != QueryResult.SUCCESS)
+				workers[i] = new Worker(server.getUrl(), workers[i].tiles);
+			else
+				workers[i] = new Worker(server.getUrl(), new MapTile[0]);
+		workers[0] = new Worker(server.getUrl(), new MapTile[0]);
+		run(workers);
+
+		int retried = 0;
+		for (int i = 1; i < WORKERS; i++)
+			retried += workers[i].count(QueryResult.FAILED);
+
+		System.out.println("stall: " + retried + " requests failed on retry");
+		return ok && retried == 0;
+	}
+
+	// starts the workers that are not running yet and waits for all
+	private static long run(Worker[] workers) throws InterruptedException {
+		long start = System.currentTimeMillis();
+		for (Worker w : workers)
+			if (w.getState() == Thread.State.NEW)
+				w.start();
+		for (Worker w : workers)
+			w.join();
+		return System.currentTimeMillis() - start;
+	}
+
+	static final class Worker extends Thread {
+		final MapTile[] tiles;
+		final QueryResult[] results;
+		private final IMapDatabase mDatabase;
+
+		Worker(String url, MapTile[] tiles) throws IOException {
+			this.tiles = tiles;
+			this.results = new QueryResult[tiles.length];
+
+			mDatabase = new org.oscim.database.oscimap.MapDatabase();
+			MapOptions options = new MapOptions(MapDatabases.OSCIMAP_READER);
+			options.put("url", url);
+			OpenResult result = mDatabase.open(options);
+			if (!result.isSuccess())
+				throw new IOException(result.getErrorMessage());
+		}
+
+		@Override
+		public void run() {
+			for (int i = 0; i < tiles.length; i++)
+				results[i] = mDatabase.executeQuery(tiles[i], TileRecord.DISCARD);
+			mDatabase.close();
+		}
+
+		int count(QueryResult result) {
+			int n = 0;
+			for (QueryResult r : results)
+				if (r == result)
+					n++;
+			return n;
+		}
+	}
+}
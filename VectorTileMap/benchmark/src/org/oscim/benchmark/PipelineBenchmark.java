@@ -0,0 +1,200 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.oscim.generator.TileGenerator;
+import org.oscim.renderer.MapTile;
+import org.oscim.renderer.layer.Layers;
+import org.oscim.renderer.layer.TextItem;
+import org.oscim.theme.RenderTheme;
+import org.oscim.view.DebugSettings;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loads tiles the way MapWorker does, without GL context: decode, match
+ * with the theme, add lines and polygons to the Layers of the tile and
+ * compile them into the buffer GLRenderer uploads.
+ * <p>
+ * Each benchmark processes one tile, the stages are measured separately:
+ * <ul>
+ * <li>decode: MapDatabase.executeQuery() only</li>
+ * <li>match: RenderTheme.matchWay()/matchNode() of the recorded elements</li>
+ * <li>build: TileGenerator on recorded elements, i.e. match and
+ * LineLayer.addLine()/PolygonLayer.addPolygon()</li>
+ * <li>compile: Layers.compile() of a built tile</li>
+ * <li>pipeline: all of the above from the MapDatabase</li>
+ * </ul>
+ * Run with '-prof gc' for the bytes allocated per tile (gc.alloc.rate.norm).
+ * See TileFixture for the 'format' and 'fixture' parameters.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark {
+
+	@Param({ "oscimap" })
+	public String format;
+
+	@Param({ "" })
+	public String fixture;
+
+	@Param({ "14" })
+	public byte zoom;
+
+	private TileFixture mFixture;
+	private TileRecord[] mRecords;
+	private RenderTheme mTheme;
+
+	// TileGenerator on the MapDatabase and on recorded elements
+	private TileGenerator mGenerator;
+	private TileGenerator mReplayGenerator;
+
+	private ShortBuffer mBuffer;
+
+	private int mTile;
+
+	@Setup
+	public void setup() throws IOException {
+		mTheme = TileFixture.loadTheme();
+		TileGenerator.setRenderTheme(mTheme);
+		TileGenerator.setDebugSettings(new DebugSettings());
+
+		mFixture = TileFixture.open(format, fixture, zoom);
+		mRecords = mFixture.record();
+
+		mGenerator = new TileGenerator();
+		mGenerator.setMapDatabase(mFixture.database);
+
+		mReplayGenerator = new TileGenerator();
+		mReplayGenerator.setMapDatabase(new ReplayDatabase(mRecords));
+
+		// size the buffer for the largest tile
+		int size = 0;
+		for (TileRecord r : mRecords) {
+			build(mReplayGenerator, r.tile);
+			size = Math.max(size, r.tile.layers.getSize());
+			clear(r.tile);
+		}
+		mBuffer = ByteBuffer.allocateDirect((size + 8) * 2)
+				.order(ByteOrder.nativeOrder())
+				.asShortBuffer();
+	}
+
+	@TearDown
+	public void tearDown() {
+		mFixture.close();
+	}
+
+	private int nextTile() {
+		int t = mTile;
+		mTile = (mTile + 1) % mRecords.length;
+		return t;
+	}
+
+	private static void build(TileGenerator generator, MapTile tile) {
+		if (!generator.executeJob(tile))
+			throw new IllegalStateException("loading failed: " + tile);
+	}
+
+	/**
+	 * Releases the data loaded by TileGenerator so that the tile can be
+	 * loaded again.
+	 */
+	private static void clear(MapTile tile) {
+		if (tile.layers != null) {
+			tile.layers.clear();
+			tile.layers = null;
+		}
+		TextItem.release(tile.labels);
+		tile.labels = null;
+		tile.state = 0;
+	}
+
+	private int compileTile(MapTile tile) {
+		Layers layers = tile.layers;
+		mBuffer.clear();
+		layers.compile(mBuffer, true);
+		int size = mBuffer.position();
+		clear(tile);
+		return size;
+	}
+
+	@Benchmark
+	public int decode() {
+		MapTile tile = mRecords[nextTile()].tile;
+		return mFixture.database.executeQuery(tile, TileRecord.DISCARD).ordinal();
+	}
+
+	@Benchmark
+	public int match() {
+		return mRecords[nextTile()].match(mTheme);
+	}
+
+	@Benchmark
+	public int build() {
+		MapTile tile = mRecords[nextTile()].tile;
+		build(mReplayGenerator, tile);
+		int size = tile.layers.getSize();
+		clear(tile);
+		return size;
+	}
+
+	/**
+	 * Tile built before each invocation of compile().
+	 */
+	@State(Scope.Thread)
+	public static class BuiltTile {
+		MapTile tile;
+
+		@Setup(Level.Invocation)
+		public void build(PipelineBenchmark benchmark) {
+			tile = benchmark.mRecords[benchmark.nextTile()].tile;
+			PipelineBenchmark.build(benchmark.mReplayGenerator, tile);
+		}
+	}
+
+	@Benchmark
+	public int compile(BuiltTile built) {
+		return compileTile(built.tile);
+	}
+
+	@Benchmark
+	public int pipeline() {
+		MapTile tile = mRecords[nextTile()].tile;
+		build(mGenerator, tile);
+		return compileTile(tile);
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.oscim.core.MercatorProjection;
+import org.oscim.core.Tile;
+import org.oscim.database.mapfile.TileProjection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Projection of way node latitudes as done by the mapfile MapDatabase,
+ * for tiles from 80 degrees south to 80 degrees north:
+ * <ul>
+ * <li>exact: Math.sin() and Math.log() per node</li>
+ * <li>kernel: TileProjection, set up once per tile</li>
+ * </ul>
+ * Setup checks that TileProjection is within TileProjection.MAX_ERROR of
+ * MercatorProjection for all nodes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProjectionBenchmark {
+
+	@Param({ "8", "14", "17" })
+	public byte zoom;
+
+	@Param({ "1000" })
+	public int nodes;
+
+	private static final int TILES = 64;
+
+	// share of nodes outside of the tile and its neighbours
+	private static final float OUTSIDE = 0.05f;
+
+	private Tile[] mTiles;
+	private int[][] mLatitudes;
+	private int mTile;
+
+	private final TileProjection mProjection = new TileProjection();
+
+	@Setup
+	public void setup() {
+		Random random = new Random(zoom);
+
+		mTiles = new Tile[TILES];
+		mLatitudes = new int[TILES][nodes];
+
+		long n = 1L << zoom;
+		long north = MercatorProjection.latitudeToTileY(80, zoom);
+		long south = MercatorProjection.latitudeToTileY(-80, zoom);
+
+		for (int i = 0; i < TILES; i++) {
+			long tileY = north + (south - north) * i / (TILES - 1);
+			Tile tile = new Tile((int) (n / 2), (int) tileY, zoom);
+			mTiles[i] = tile;
+
+			double top = MercatorProjection.tileYToLatitude(tileY, zoom);
+			double bottom = MercatorProjection.tileYToLatitude(tileY + 1, zoom);
+			double height = top - bottom;
+
+			for (int j = 0; j < nodes; j++) {
+				double lat;
+				if (random.nextFloat() < OUTSIDE)
+					lat = bottom - 4 * height + random.nextDouble() * 9 * height;
+				else
+					lat = bottom + random.nextDouble() * height;
+
+				lat = Math.max(-MercatorProjection.LATITUDE_MAX,
+						Math.min(MercatorProjection.LATITUDE_MAX, lat));
+
+				// MapDatabase passes latitudes as float
+				mLatitudes[i][j] = (int) (float) (lat * 1000000);
+			}
+		}
+
+		// validate against MercatorProjection
+		double z = Tile.TILE_SIZE << zoom;
+		for (int i = 0; i < TILES; i++) {
+			mProjection.setTile(mTiles[i]);
+
+			for (int lat : mLatitudes[i]) {
+				double expected = MercatorProjection.latitudeToPixelY(lat / 1000000.0, zoom);
+				double y = z / 2 - mProjection.project(lat);
+
+				if (Math.abs(y - expected) > TileProjection.MAX_ERROR)
+					throw new IllegalStateException("projection error " + (y - expected)
+							+ " at " + lat + " " + mTiles[i]);
+			}
+		}
+	}
+
+	private int nextTile() {
+		int t = mTile;
+		mTile = (mTile + 1) % TILES;
+		return t;
+	}
+
+	@Benchmark
+	public double exact() {
+		int t = nextTile();
+		TileProjection p = mProjection;
+		double sum = 0;
+		for (int lat : mLatitudes[t])
+			sum += p.exact(lat);
+
+		return sum;
+	}
+
+	@Benchmark
+	public double kernel() {
+		int t = nextTile();
+		TileProjection p = mProjection;
+		p.setTile(mTiles[t]);
+
+		double sum = 0;
+		for (int lat : mLatitudes[t])
+			sum += p.project(lat);
+
+		return sum;
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.benchmark;
+
+import java.util.IdentityHashMap;
+
+import org.oscim.database.IMapDatabase;
+import org.oscim.database.IMapDatabaseCallback;
+import org.oscim.database.MapInfo;
+import org.oscim.database.MapOptions;
+import org.oscim.database.OpenResult;
+import org.oscim.database.QueryResult;
+import org.oscim.generator.JobTile;
+
+/**
+ * IMapDatabase that passes the recorded elements of its tiles, for running
+ * TileGenerator without decoding.
+ */
+final class ReplayDatabase implements IMapDatabase {
+	private final IdentityHashMap<JobTile, TileRecord> mRecords =
+			new IdentityHashMap<JobTile, TileRecord>();
+
+	ReplayDatabase(TileRecord[] records) {
+		for (TileRecord r : records)
+			mRecords.put(r.tile, r);
+	}
+
+	@Override
+	public QueryResult executeQuery(JobTile tile,
+			IMapDatabaseCallback mapDatabaseCallback) {
+		TileRecord r = mRecords.get(tile);
+		if (r == null)
+			return QueryResult.FAILED;
+
+		r.replay(mapDatabaseCallback);
+		return QueryResult.SUCCESS;
+	}
+
+	@Override
+	public MapInfo getMapInfo() {
+		return null;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return true;
+	}
+
+	@Override
+	public OpenResult open(MapOptions options) {
+		return OpenResult.SUCCESS;
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public String getMapProjection() {
+		return null;
+	}
+
+	@Override
+	public void cancel() {
+	}
+}
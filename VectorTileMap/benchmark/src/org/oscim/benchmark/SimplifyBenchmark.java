@@ -0,0 +1,201 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.oscim.core.Tag;
+import org.oscim.core.Tile;
+import org.oscim.database.IMapDatabaseCallback;
+import org.oscim.generator.TileGenerator;
+import org.oscim.renderer.MapTile;
+import org.oscim.renderer.layer.TextItem;
+import org.oscim.view.DebugSettings;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Builds the layers of tiles with way simplification, on 'zoom' 11 to 14.
+ * <p>
+ * Lower zoom levels are made from the 8x8 synthetic zoom 14 tiles: each
+ * tile gets the elements of the 2^(14 - zoom) tiles it covers, scaled
+ * down. Like an unsimplified source, the ways of a tile have four times
+ * the points per pixel on the next lower zoom level.
+ * <p>
+ * The score is the time to build one tile, the vertex data of a tile is
+ * printed on setup to compare the tolerances.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SimplifyBenchmark {
+
+	// tiles of the synthetic fixture along each axis
+	private static final int TILES = 8;
+	private static final int MIN_ZOOM = 14 - 3;
+
+	@Param({ "11", "12", "13", "14" })
+	public byte zoom;
+
+	@Param({ "0", "0.5", "1" })
+	public float tolerance;
+
+	private TileFixture mFixture;
+	private TileRecord[] mRecords;
+	private TileGenerator mGenerator;
+	private int mTile;
+
+	@Setup
+	public void setup() throws IOException {
+		if (zoom < MIN_ZOOM || zoom > 14)
+			throw new IllegalArgumentException("zoom must be within 11-14");
+
+		TileGenerator.setRenderTheme(TileFixture.loadTheme());
+		TileGenerator.setDebugSettings(new DebugSettings());
+		TileGenerator.setSimplifyTolerance(tolerance, Byte.MAX_VALUE);
+
+		mFixture = TileFixture.open("oscimap", "", (byte) 14);
+		mRecords = merge(mFixture.record(), 14 - zoom);
+
+		mGenerator = new TileGenerator();
+		mGenerator.setMapDatabase(new ReplayDatabase(mRecords));
+
+		int size = 0;
+		for (TileRecord r : mRecords)
+			size += build(r.tile);
+
+		System.out.println("\nzoom " + zoom + ", tolerance " + tolerance
+				+ ": " + (size / mRecords.length) + " shorts per tile");
+	}
+
+	@TearDown
+	public void tearDown() {
+		mFixture.close();
+		TileGenerator.setSimplifyTolerance(TileGenerator.SIMPLIFY_TOLERANCE,
+				TileGenerator.SIMPLIFY_MAX_ZOOM);
+	}
+
+	@Benchmark
+	public int build() {
+		MapTile tile = mRecords[mTile].tile;
+		mTile = (mTile + 1) % mRecords.length;
+		return build(tile);
+	}
+
+	private int build(MapTile tile) {
+		if (!mGenerator.executeJob(tile))
+			throw new IllegalStateException("loading failed: " + tile);
+
+		int size = tile.layers.getSize();
+
+		tile.layers.clear();
+		tile.layers = null;
+		TextItem.release(tile.labels);
+		tile.setLabels(null);
+		tile.state = 0;
+
+		return size;
+	}
+
+	/**
+	 * @return tiles 'shift' zoom levels below the TILES x TILES block of
+	 *         records, with the scaled elements of the records they cover
+	 */
+	private static TileRecord[] merge(TileRecord[] records, int shift) {
+		int n = 1 << shift;
+		int cnt = TILES / n;
+		TileRecord[] merged = new TileRecord[cnt * cnt];
+
+		for (int y = 0; y < cnt; y++) {
+			for (int x = 0; x < cnt; x++) {
+				MapTile first = records[y * n * TILES + x * n].tile;
+				TileRecord r = new TileRecord(new MapTile(first.tileX >> shift,
+						first.tileY >> shift, (byte) (first.zoomLevel - shift)));
+
+				for (int j = 0; j < n; j++)
+					for (int i = 0; i < n; i++)
+						records[(y * n + j) * TILES + x * n + i].replay(
+								new Scale(r, n, i, j));
+
+				r.finish();
+				merged[y * cnt + x] = r;
+			}
+		}
+		return merged;
+	}
+
+	/**
+	 * Passes elements of a tile to a record of the tile 'scale' times its
+	 * size, at the sub-tile x, y.
+	 */
+	private static final class Scale implements IMapDatabaseCallback {
+		private final TileRecord mRecord;
+		private final float mScale;
+		private final float mDx;
+		private final float mDy;
+
+		Scale(TileRecord record, int scale, int x, int y) {
+			mRecord = record;
+			mScale = 1f / scale;
+			mDx = x * Tile.TILE_SIZE * mScale;
+			mDy = y * Tile.TILE_SIZE * mScale;
+		}
+
+		@Override
+		public void renderPointOfInterest(byte layer, Tag[] tags, float latitude,
+				float longitude) {
+			// points of interest are passed in tile pixels
+			mRecord.renderPointOfInterest(layer, tags, latitude * mScale + mDy,
+					longitude * mScale + mDx);
+		}
+
+		@Override
+		public void renderWaterBackground() {
+		}
+
+		@Override
+		public void renderWay(byte layer, Tag[] tags, float[] wayNodes,
+				short[] wayLength, boolean closed, int prio) {
+			int numCoords = 0;
+			for (int i = 0; i < wayLength.length && wayLength[i] >= 0; i++)
+				numCoords += wayLength[i];
+
+			for (int i = 0; i < numCoords; i += 2) {
+				wayNodes[i] = wayNodes[i] * mScale + mDx;
+				wayNodes[i + 1] = wayNodes[i + 1] * mScale + mDy;
+			}
+			mRecord.renderWay(layer, tags, wayNodes, wayLength, closed, prio);
+		}
+
+		@Override
+		public boolean checkWay(Tag[] tags, boolean closed) {
+			return true;
+		}
+	}
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+
+/**
+ * Local tile server for the oscimap reader. Requests of a connection are
+ * answered in order, each after 'latency' milliseconds, like a server that
+ * handles pipelined requests one after another.
+ * <p>
+ * Requests for tiles with tileX == stallX are never answered: the
+ * connection is held open without sending anything until the client closes
+ * it.
+ */
+final class StubTileServer {
+	private final byte[][] mTiles;
+	private final ServerSocket mServerSocket;
+	private final ArrayList<Socket> mSockets = new ArrayList<Socket>();
+
+	volatile int latency;
+	volatile int stallX = -1;
+
+	// number of connections accepted
+	volatile int connections;
+
+	StubTileServer(byte[][] tiles) throws IOException {
+		mTiles = tiles;
+		mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+		Thread t = new Thread("stub server") {
+			@Override
+			public void run() {
+				accept();
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	String getUrl() {
+		return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/tiles/";
+	}
+
+	void close() {
+		try {
+			mServerSocket.close();
+		} catch (IOException e) {
+			// ignore
+		}
+		synchronized (mSockets) {
+			for (Socket s : mSockets)
+				closeQuietly(s);
+			mSockets.clear();
+		}
+	}
+
+	private void accept() {
+		while (!mServerSocket.isClosed()) {
+			final Socket socket;
+			try {
+				socket = mServerSocket.accept();
+			} catch (IOException e) {
+				return;
+			}
+			connections++;
+			synchronized (mSockets) {
+				mSockets.add(socket);
+			}
+
+			Thread t = new Thread("stub connection") {
+				@Override
+				public void run() {
+					try {
+						serve(socket);
+					} catch (IOException e) {
+						// closed by the client
+					} catch (InterruptedException e) {
+						// ignore
+					}
+					closeQuietly(socket);
+				}
+			};
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	private void serve(Socket socket) throws IOException, InterruptedException {
+		InputStream in = socket.getInputStream();
+		OutputStream out = socket.getOutputStream();
+
+		String line;
+		while ((line = readLine(in)) != null) {
+			if (!line.startsWith("GET "))
+				continue;
+
+			// GET /tiles/z/x/y.osmtile HTTP/1.1
+			String path = line.substring(4, line.indexOf(' ', 4));
+			String[] zxy = path.substring(0, path.lastIndexOf('.')).split("/");
+			int x = Integer.parseInt(zxy[zxy.length - 2]);
+			int y = Integer.parseInt(zxy[zxy.length - 1]);
+
+			// skip the remaining header lines
+			while ((line = readLine(in)) != null && line.length() > 0)
+				;
+
+			if (x == stallX) {
+				// hold the connection until the client gives up
+				while (in.read() >= 0)
+					;
+				return;
+			}
+
+			if (latency > 0)
+				Thread.sleep(latency);
+
+			byte[] data = mTiles[(x * 31 + y) % mTiles.length];
+
+			ByteArrayOutputStream response = new ByteArrayOutputStream(data.length + 128);
+			response.write(("HTTP/1.1 200 OK\r\n"
+					+ "Content-Length: " + (data.length + 4) + "\r\n"
+					+ "ETag: \"" + x + "-" + y + "\"\r\n"
+					+ "\r\n").getBytes("ISO-8859-1"));
+			response.write(data.length >> 24);
+			response.write(data.length >> 16);
+			response.write(data.length >> 8);
+			response.write(data.length);
+			response.write(data);
+			response.writeTo(out);
+			out.flush();
+		}
+	}
+
+	// request lines end with '\n', '\r' is dropped
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = in.read()) >= 0 && c != '\n') {
+			if (c != '\r')
+				sb.append((char) c);
+		}
+		if (c < 0 && sb.length() == 0)
+			return null;
+		return sb.toString();
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+}
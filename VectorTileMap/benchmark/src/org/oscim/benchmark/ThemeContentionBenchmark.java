@@ -0,0 +1,113 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.oscim.theme.RenderTheme;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of RenderTheme matching when several MapWorkers share one
+ * theme. With matching free of locks, tiles/ms should scale with the
+ * number of threads up to the number of cores.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThemeContentionBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Shared {
+		@Param({ "oscimap" })
+		public String format;
+
+		@Param({ "" })
+		public String fixture;
+
+		@Param({ "14" })
+		public byte zoom;
+
+		RenderTheme theme;
+		TileRecord[] records;
+
+		@Setup
+		public void setup() throws IOException {
+			theme = TileFixture.loadTheme();
+
+			TileFixture f = TileFixture.open(format, fixture, zoom);
+			try {
+				records = f.record();
+			} finally {
+				f.close();
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Worker {
+		int tile;
+
+		@Setup
+		public void setup(Shared shared) {
+			// start at different tiles like MapWorkers do
+			tile = (int) (Thread.currentThread().getId() % shared.records.length);
+		}
+
+		int match(Shared shared) {
+			int t = tile;
+			tile = (t + 1) % shared.records.length;
+			return shared.records[t].match(shared.theme);
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public int threads1(Shared shared, Worker worker) {
+		return worker.match(shared);
+	}
+
+	@Benchmark
+	@Threads(2)
+	public int threads2(Shared shared, Worker worker) {
+		return worker.match(shared);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public int threads4(Shared shared, Worker worker) {
+		return worker.match(shared);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public int threads8(Shared shared, Worker worker) {
+		return worker.match(shared);
+	}
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.oscim.core.Tag;
+import org.oscim.database.oscimap.Tags;
+
+/**
+ * Provides the content of oscimap tiles for benchmarks: either recorded
+ * responses of a tile server or synthetic tiles.
+ */
+final class TileData {
+	private TileData() {
+	}
+
+	/**
+	 * Loads recorded tiles. Files may contain the HTTP response body, i.e.
+	 * the content prefixed by its length, or the content only.
+	 *
+	 * @param dir
+	 *            directory containing *.osmtile files
+	 * @return the content of the tiles
+	 */
+	static byte[][] load(File dir) throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null)
+			throw new IOException("not a directory: " + dir);
+
+		Arrays.sort(files);
+
+		ArrayList<byte[]> tiles = new ArrayList<byte[]>();
+		for (File f : files) {
+			if (!f.getName().endsWith(".osmtile"))
+				continue;
+
+			byte[] data = readFile(f);
+			if (data.length >= 4 && decodeInt(data, 0) == data.length - 4)
+				data = Arrays.copyOfRange(data, 4, data.length);
+
+			tiles.add(data);
+		}
+
+		if (tiles.isEmpty())
+			throw new IOException("no tiles in " + dir);
+
+		return tiles.toArray(new byte[tiles.size()][]);
+	}
+
+	/**
+	 * @param count
+	 *            number of tiles
+	 * @param elements
+	 *            number of elements per tile
+	 * @return synthetic tiles of similar structure as the ones served for
+	 *         zoomlevel 14-16
+	 */
+	static byte[][] generate(int count, int elements) {
+		Random rnd = new Random(42);
+		byte[][] tiles = new byte[count][];
+		for (int i = 0; i < count; i++)
+			tiles[i] = generateTile(rnd, elements);
+		return tiles;
+	}
+
+	private static byte[] generateTile(Random rnd, int elements) {
+		Writer w = new Writer();
+
+		// variable tags: names, known values and some unknown ones
+		int numTags = 20 + rnd.nextInt(40);
+		int nameKey = indexOf(Tags.keys, Tag.TAG_KEY_NAME);
+		int[] keys = new int[numTags];
+		String[] values = new String[numTags];
+
+		for (int i = 0; i < numTags; i++) {
+			int r = rnd.nextInt(3);
+			if (r == 0) {
+				keys[i] = nameKey;
+				values[i] = "Straße " + rnd.nextInt(10000);
+			} else if (r == 1) {
+				Tag t = Tags.tags[rnd.nextInt(Tags.MAX)];
+				keys[i] = indexOf(Tags.keys, t.key);
+				values[i] = t.value;
+			} else {
+				keys[i] = rnd.nextInt(Tags.keys.length);
+				values[i] = String.valueOf(rnd.nextInt(50));
+			}
+		}
+
+		w.varintField(1, numTags);
+		w.packedField(2, keys, keys.length);
+		for (int i = 0; i < numTags; i++)
+			w.stringField(3, values[i]);
+
+		Writer e = new Writer();
+		int[] tags = new int[4];
+		int[] index = new int[4];
+		int[] coords = new int[2 * 4 * 200];
+
+		for (int i = 0; i < elements; i++) {
+			e.reset();
+
+			int type = 11 + rnd.nextInt(3);
+
+			int numElementTags = 1 + rnd.nextInt(3);
+			for (int t = 0; t < numElementTags; t++) {
+				if (rnd.nextBoolean())
+					tags[t] = rnd.nextInt(Tags.MAX);
+				else
+					tags[t] = Tags.LIMIT + rnd.nextInt(numTags);
+			}
+
+			int numIndices = 1;
+			int numCoords = 2;
+			if (type != 13) {
+				numIndices = 1 + (type == 12 ? rnd.nextInt(3) : 0);
+				numCoords = 0;
+				for (int k = 0; k < numIndices; k++) {
+					index[k] = 2 + rnd.nextInt(rnd.nextInt(10) == 0 ? 200 : 20);
+					numCoords += index[k] * 2;
+				}
+			}
+
+			// small deltas like simplified way geometries
+			for (int k = 0; k < numCoords; k++) {
+				int delta = rnd.nextInt(rnd.nextInt(8) == 0 ? 20000 : 200) - 100;
+				coords[k] = (delta << 1) ^ (delta >> 31);
+			}
+
+			if (type != 13) {
+				e.varintField(1, numIndices);
+				e.packedField(12, index, numIndices);
+			}
+			e.packedField(11, tags, numElementTags);
+			e.packedField(13, coords, numCoords);
+			e.varintField(21, rnd.nextInt(10));
+
+			w.bytesField(type, e);
+		}
+
+		return w.toByteArray();
+	}
+
+	private static int indexOf(String[] strings, String s) {
+		for (int i = 0; i < strings.length; i++)
+			if (strings[i] == s)
+				return i;
+		return 0;
+	}
+
+	static int decodeInt(byte[] buffer, int offset) {
+		return buffer[offset] << 24 | (buffer[offset + 1] & 0xff) << 16
+				| (buffer[offset + 2] & 0xff) << 8
+				| (buffer[offset + 3] & 0xff);
+	}
+
+	static byte[] readFile(File f) throws IOException {
+		InputStream is = new FileInputStream(f);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream((int) f.length());
+			byte[] buf = new byte[8192];
+			int len;
+			while ((len = is.read(buf)) >= 0)
+				out.write(buf, 0, len);
+			return out.toByteArray();
+		} finally {
+			is.close();
+		}
+	}
+
+	static final class Writer extends ByteArrayOutputStream {
+		void varint(int value) {
+			while ((value & ~0x7f) != 0) {
+				write((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			write(value);
+		}
+
+		void varintField(int tag, int value) {
+			varint(tag << 3);
+			varint(value);
+		}
+
+		void packedField(int tag, int[] values, int length) {
+			Writer tmp = new Writer();
+			for (int i = 0; i < length; i++)
+				tmp.varint(values[i]);
+			bytesField(tag, tmp);
+		}
+
+		void bytesField(int tag, ByteArrayOutputStream bytes) {
+			varint(tag << 3 | 2);
+			varint(bytes.size());
+			write(bytes.toByteArray(), 0, bytes.size());
+		}
+
+		void stringField(int tag, String s) {
+			byte[] bytes;
+			try {
+				bytes = s.getBytes("UTF-8");
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			varint(tag << 3 | 2);
+			varint(bytes.length);
+			write(bytes, 0, bytes.length);
+		}
+	}
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.oscim.core.Tag;
+import org.oscim.database.common.ProtobufDecoder;
+import org.oscim.database.common.StringTable;
+import org.oscim.database.oscimap.Tags;
+
+/**
+ * The oscimap tile decoder on top of ProtobufDecoder, as in
+ * oscimap.MapDatabase without logging and the android dependencies.
+ */
+class TileDecoder {
+	private final static float REF_TILE_SIZE = 4096.0f;
+	private final static int TILE_SIZE = 256;
+
+	private static final int MAX_STRINGS = 4096;
+	private final int MAX_WAY_COORDS = 16384;
+
+	private static final int TAG_TILE_NUM_TAGS = 1;
+	private static final int TAG_TILE_TAG_KEYS = 2;
+	private static final int TAG_TILE_TAG_VALUES = 3;
+
+	private static final int TAG_TILE_LINE = 11;
+	private static final int TAG_TILE_POLY = 12;
+	private static final int TAG_TILE_POINT = 13;
+
+	private static final int TAG_ELEM_NUM_INDICES = 1;
+	private static final int TAG_ELEM_TAGS = 11;
+	private static final int TAG_ELEM_INDEX = 12;
+	private static final int TAG_ELEM_COORDS = 13;
+	private static final int TAG_ELEM_LAYER = 21;
+	private static final int TAG_ELEM_PRIORITY = 31;
+
+	private final ProtobufDecoder mDecoder = new ProtobufDecoder();
+	private final StringTable mStrings;
+
+	private Tag[] curTags = new Tag[100];
+	private int mCurTagCnt;
+
+	private short[] mTmpKeys = new short[100];
+	private short[] mIndices = new short[10];
+	private final Tag[] mTmpTags = new Tag[20];
+
+	private float[] mTmpCoords = new float[MAX_WAY_COORDS];
+	private final Tag[][] mElementTags;
+
+	private final float mScaleFactor = REF_TILE_SIZE / TILE_SIZE;
+	private TileSink mSink;
+
+	TileDecoder() {
+		Tag[][] tags = new Tag[10][];
+		for (int i = 0; i < 10; i++)
+			tags[i] = new Tag[i + 1];
+		mElementTags = tags;
+
+		StringTable strings = new StringTable(MAX_STRINGS);
+		strings.addAll(Tags.keys);
+		for (Tag t : Tags.tags)
+			strings.add(t.value);
+		mStrings = strings;
+	}
+
+	boolean decode(InputStream is, int contentLength, TileSink sink) throws IOException {
+		ProtobufDecoder d = mDecoder;
+		d.setInput(is, contentLength, 0, 0);
+		mSink = sink;
+		mCurTagCnt = 0;
+
+		int val;
+		int numTags = 0;
+
+		while (d.hasData() && (val = d.decodeVarint32()) > 0) {
+			int tag = (val >> 3);
+
+			switch (tag) {
+				case TAG_TILE_NUM_TAGS:
+					numTags = d.decodeVarint32();
+					if (numTags > curTags.length)
+						curTags = new Tag[numTags];
+					break;
+
+				case TAG_TILE_TAG_KEYS:
+					mTmpKeys = d.decodeShortArray(numTags, mTmpKeys);
+					break;
+
+				case TAG_TILE_TAG_VALUES:
+					decodeTileTags(mCurTagCnt++);
+					break;
+
+				case TAG_TILE_LINE:
+				case TAG_TILE_POLY:
+				case TAG_TILE_POINT:
+					decodeTileElement(tag);
+					break;
+
+				default:
+					return false;
+			}
+		}
+		return true;
+	}
+
+	private void decodeTileTags(int curTag) throws IOException {
+		String key = Tags.keys[mTmpKeys[curTag]];
+
+		if (key == Tag.TAG_KEY_NAME)
+			curTags[curTag] = new Tag(key, mDecoder.decodeString(), false);
+		else
+			curTags[curTag] = Tag.interned(key, mDecoder.decodeString(mStrings));
+	}
+
+	private boolean decodeTileElement(int type) throws IOException {
+		ProtobufDecoder d = mDecoder;
+		int bytes = d.decodeVarint32();
+
+		int end = d.position() + bytes;
+		int indexCnt = 1;
+		int coordCnt = 0;
+		int layer = 5;
+
+		Tag[] tags = null;
+		short[] index = null;
+		boolean fail = false;
+
+		if (type == TAG_TILE_POINT)
+			coordCnt = 2;
+
+		while (d.position() < end) {
+			int val = d.decodeVarint32();
+			if (val == 0)
+				break;
+
+			switch (val >> 3) {
+				case TAG_ELEM_TAGS:
+					tags = decodeWayTags();
+					break;
+
+				case TAG_ELEM_NUM_INDICES:
+					indexCnt = d.decodeVarint32();
+					break;
+
+				case TAG_ELEM_INDEX:
+					index = d.decodeShortArray(indexCnt, mIndices);
+					mIndices = index;
+
+					for (int i = 0; i < indexCnt; i++) {
+						int len = index[i] * 2;
+						coordCnt += len;
+						index[i] = (short) len;
+					}
+					index[indexCnt] = -1;
+					break;
+
+				case TAG_ELEM_COORDS:
+					if (coordCnt == 0) {
+						d.skipField();
+						break;
+					}
+					if (coordCnt > mTmpCoords.length)
+						mTmpCoords = new float[coordCnt];
+
+					if (d.decodeCoordinates(mTmpCoords, mScaleFactor) != coordCnt)
+						fail = true;
+					break;
+
+				case TAG_ELEM_LAYER:
+					layer = d.decodeVarint32();
+					break;
+
+				case TAG_ELEM_PRIORITY:
+					d.decodeVarint32();
+					break;
+
+				default:
+			}
+		}
+
+		if (fail || tags == null || indexCnt == 0)
+			return false;
+
+		float[] coords = mTmpCoords;
+
+		if (type == TAG_TILE_POINT)
+			mSink.point(layer, tags, coords[1], coords[0]);
+		else
+			mSink.way(layer, tags, coords, index);
+
+		return true;
+	}
+
+	private Tag[] decodeWayTags() throws IOException {
+		ProtobufDecoder d = mDecoder;
+		int bytes = d.decodeVarint32();
+
+		Tag[] tmp = mTmpTags;
+
+		int cnt = 0;
+		int end = d.position() + bytes;
+		int max = mCurTagCnt;
+
+		while (d.position() < end) {
+			int tagNum = d.decodeVarint32();
+
+			if (tagNum >= 0) {
+				if (tagNum < Tags.MAX)
+					tmp[cnt++] = Tags.tags[tagNum];
+				else {
+					tagNum -= Tags.LIMIT;
+
+					if (tagNum >= 0 && tagNum < max)
+						tmp[cnt++] = curTags[tagNum];
+				}
+			}
+		}
+
+		Tag[] tags;
+
+		if (cnt < 11)
+			tags = mElementTags[cnt - 1];
+		else
+			tags = new Tag[cnt];
+
+		for (int i = 0; i < cnt; i++)
+			tags[i] = tmp[i];
+
+		return tags;
+	}
+}
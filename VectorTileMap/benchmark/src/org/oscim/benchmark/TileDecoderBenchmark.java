@@ -0,0 +1,149 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decodes oscimap tiles with the old decoder and with ProtobufDecoder.
+ * <p>
+ * Run with -p tiles=/path/to/dir to decode recorded *.osmtile responses,
+ * by default synthetic tiles are used. 'chunk' limits the bytes returned
+ * by one read() to mimic reading from a socket.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TileDecoderBenchmark {
+
+	@Param({ "" })
+	public String tiles;
+
+	@Param({ "1460", "65536" })
+	public int chunk;
+
+	private byte[][] mTiles;
+	private int mTile;
+
+	private final ChunkedInputStream mInput = new ChunkedInputStream();
+	private final TileSink mSink = new TileSink();
+
+	private LegacyTileDecoder mLegacy;
+	private TileDecoder mDecoder;
+
+	@Setup
+	public void setup() throws IOException {
+		if (tiles.length() > 0)
+			mTiles = TileData.load(new File(tiles));
+		else
+			mTiles = TileData.generate(64, 400);
+
+		mLegacy = new LegacyTileDecoder();
+		mDecoder = new TileDecoder();
+
+		// both must see the same tiles
+		for (byte[] t : mTiles) {
+			mInput.set(t, chunk);
+			mSink.reset();
+			mLegacy.decode(mInput, t.length, mSink);
+			int elements = mSink.elements;
+			int checksum = mSink.checksum;
+
+			mInput.set(t, chunk);
+			mSink.reset();
+			mDecoder.decode(mInput, t.length, mSink);
+
+			if (elements != mSink.elements || checksum != mSink.checksum)
+				throw new IllegalStateException("decoders differ: "
+						+ elements + " " + mSink.elements);
+		}
+	}
+
+	private byte[] nextTile() {
+		byte[] t = mTiles[mTile];
+		mTile = (mTile + 1) % mTiles.length;
+		return t;
+	}
+
+	@Benchmark
+	public int legacyDecoder() throws IOException {
+		byte[] t = nextTile();
+		mInput.set(t, chunk);
+		mSink.reset();
+		mLegacy.decode(mInput, t.length, mSink);
+		return mSink.checksum;
+	}
+
+	@Benchmark
+	public int protobufDecoder() throws IOException {
+		byte[] t = nextTile();
+		mInput.set(t, chunk);
+		mSink.reset();
+		mDecoder.decode(mInput, t.length, mSink);
+		return mSink.checksum;
+	}
+
+	/**
+	 * Unsynchronized replacement for ByteArrayInputStream that returns at
+	 * most 'chunk' bytes per read.
+	 */
+	static final class ChunkedInputStream extends InputStream {
+		private byte[] mData;
+		private int mPos;
+		private int mChunk;
+
+		void set(byte[] data, int chunk) {
+			mData = data;
+			mPos = 0;
+			mChunk = chunk;
+		}
+
+		@Override
+		public int read() {
+			if (mPos == mData.length)
+				return -1;
+			return mData[mPos++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] buf, int offset, int length) {
+			if (mPos == mData.length)
+				return -1;
+
+			int len = Math.min(Math.min(length, mChunk), mData.length - mPos);
+			System.arraycopy(mData, mPos, buf, offset, len);
+			mPos += len;
+			return len;
+		}
+	}
+}
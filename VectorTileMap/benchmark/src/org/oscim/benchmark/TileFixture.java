@@ -0,0 +1,291 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.oscim.cache.CacheManager;
+import org.oscim.core.BoundingBox;
+import org.oscim.core.MercatorProjection;
+import org.oscim.database.IMapDatabase;
+import org.oscim.database.MapDatabases;
+import org.oscim.database.MapOptions;
+import org.oscim.database.OpenResult;
+import org.oscim.database.QueryResult;
+import org.oscim.renderer.MapTile;
+import org.oscim.theme.InternalRenderTheme;
+import org.oscim.theme.RenderTheme;
+import org.oscim.theme.RenderThemeHandler;
+
+/**
+ * A MapDatabase opened on recorded data and the tiles to load from it.
+ * <p>
+ * Formats:
+ * <ul>
+ * <li>'oscimap' and 'pbmap': directory of tile server responses stored as
+ * z/x/y.osmtile. The tiles are put into a temporary tile cache, so the
+ * MapDatabase decodes them without network access. Without a directory
+ * synthetic oscimap tiles are used.</li>
+ * <li>'mapfile': a mapsforge .map file, tiles of 'zoom' around the center of
+ * the map are loaded.</li>
+ * </ul>
+ */
+final class TileFixture {
+	// file names used by the MapDatabases in their cache directory
+	private static final String OSCIMAP_CACHE_FILE = "oscimap.cache";
+	private static final String PBMAP_CACHE_FILE = "pbmap.cache";
+
+	private static final long CACHE_SIZE = 1L << 30;
+
+	// no connection is made as all tiles are cached
+	private static final String UNUSED_URL = "http://127.0.0.1:9/";
+
+	// number of tiles loaded along each axis from a map file
+	private static final int MAPFILE_TILES = 8;
+	private static final int SYNTHETIC_TILES = 64;
+	private static final int SYNTHETIC_ELEMENTS = 400;
+
+	final IMapDatabase database;
+	final MapTile[] tiles;
+
+	private final File mCacheDir;
+
+	private TileFixture(IMapDatabase database, MapTile[] tiles, File cacheDir) {
+		this.database = database;
+		this.tiles = tiles;
+		mCacheDir = cacheDir;
+	}
+
+	/**
+	 * @param format
+	 *            'oscimap', 'pbmap' or 'mapfile'
+	 * @param path
+	 *            directory of recorded tiles or map file, may be empty for
+	 *            synthetic oscimap tiles
+	 * @param zoom
+	 *            zoomlevel of the tiles loaded from a map file
+	 */
+	static TileFixture open(String format, String path, byte zoom) throws IOException {
+		if ("mapfile".equals(format)) {
+			if (path.length() == 0)
+				throw new IllegalArgumentException("mapfile needs -p fixture=<file.map>");
+
+			return openMapFile(new File(path), zoom);
+		}
+
+		String cacheFile;
+		IMapDatabase db;
+		MapOptions options;
+
+		if ("oscimap".equals(format)) {
+			cacheFile = OSCIMAP_CACHE_FILE;
+			db = new org.oscim.database.oscimap.MapDatabase();
+			options = new MapOptions(MapDatabases.OSCIMAP_READER);
+		} else if ("pbmap".equals(format)) {
+			if (path.length() == 0)
+				throw new IllegalArgumentException("pbmap needs -p fixture=<dir>");
+
+			cacheFile = PBMAP_CACHE_FILE;
+			db = new org.oscim.database.pbmap.MapDatabase();
+			options = new MapOptions(MapDatabases.PBMAP_READER);
+		} else {
+			throw new IllegalArgumentException("unknown format: " + format);
+		}
+
+		File cacheDir = File.createTempFile("vtm-benchmark", "");
+		if (!cacheDir.delete() || !cacheDir.mkdir())
+			throw new IOException("could not create " + cacheDir);
+
+		CacheManager cache = CacheManager.open(new File(cacheDir, cacheFile), CACHE_SIZE);
+		MapTile[] tiles;
+		try {
+			if (path.length() == 0)
+				tiles = putSynthetic(cache);
+			else
+				tiles = putRecorded(cache, new File(path), "oscimap".equals(format));
+
+			options.put("url", UNUSED_URL);
+			options.put("cache", cacheDir.getAbsolutePath());
+
+			OpenResult result = db.open(options);
+			if (!result.isSuccess())
+				throw new IOException(result.getErrorMessage());
+		} finally {
+			// the MapDatabase holds its own reference
+			cache.release();
+		}
+
+		return new TileFixture(db, tiles, cacheDir);
+	}
+
+	private static TileFixture openMapFile(File file, byte zoom) throws IOException {
+		IMapDatabase db = new org.oscim.database.mapfile.MapDatabase();
+		MapOptions options = new MapOptions(MapDatabases.MAP_READER);
+		options.put("file", file.getAbsolutePath());
+
+		OpenResult result = db.open(options);
+		if (!result.isSuccess())
+			throw new IOException(result.getErrorMessage());
+
+		BoundingBox bbox = db.getMapInfo().boundingBox;
+
+		int minX = (int) MercatorProjection.longitudeToTileX(bbox.getMinLongitude(), zoom);
+		int maxX = (int) MercatorProjection.longitudeToTileX(bbox.getMaxLongitude(), zoom);
+		int minY = (int) MercatorProjection.latitudeToTileY(bbox.getMaxLatitude(), zoom);
+		int maxY = (int) MercatorProjection.latitudeToTileY(bbox.getMinLatitude(), zoom);
+
+		// block of tiles around the center, within the map
+		int x0 = Math.max(minX, (minX + maxX - MAPFILE_TILES) / 2);
+		int y0 = Math.max(minY, (minY + maxY - MAPFILE_TILES) / 2);
+		int x1 = Math.min(maxX, x0 + MAPFILE_TILES - 1);
+		int y1 = Math.min(maxY, y0 + MAPFILE_TILES - 1);
+
+		ArrayList<MapTile> tiles = new ArrayList<MapTile>();
+		for (int y = y0; y <= y1; y++)
+			for (int x = x0; x <= x1; x++)
+				tiles.add(new MapTile(x, y, zoom));
+
+		return new TileFixture(db, tiles.toArray(new MapTile[tiles.size()]), null);
+	}
+
+	private static MapTile[] putSynthetic(CacheManager cache) {
+		byte[][] data = TileData.generate(SYNTHETIC_TILES, SYNTHETIC_ELEMENTS);
+		MapTile[] tiles = new MapTile[data.length];
+
+		// somewhere in europe at zoomlevel 14
+		for (int i = 0; i < data.length; i++) {
+			tiles[i] = new MapTile(8800 + (i & 7), 5370 + (i >> 3), (byte) 14);
+			put(cache, tiles[i], data[i], 0, data[i].length);
+		}
+		return tiles;
+	}
+
+	private static MapTile[] putRecorded(CacheManager cache, File dir,
+			boolean lengthPrefix) throws IOException {
+		ArrayList<File> files = new ArrayList<File>();
+		listTiles(dir, files);
+		if (files.isEmpty())
+			throw new IOException("no tiles in " + dir);
+
+		MapTile[] tiles = new MapTile[files.size()];
+		for (int i = 0; i < tiles.length; i++) {
+			File f = files.get(i);
+			String name = f.getName();
+			File xDir = f.getParentFile();
+			File zDir = xDir.getParentFile();
+
+			int x, y, z;
+			try {
+				y = Integer.parseInt(name.substring(0, name.length() - ".osmtile".length()));
+				x = Integer.parseInt(xDir.getName());
+				z = Integer.parseInt(zDir.getName());
+			} catch (NumberFormatException e) {
+				throw new IOException("not a z/x/y.osmtile path: " + f);
+			}
+
+			tiles[i] = new MapTile(x, y, (byte) z);
+
+			byte[] data = TileData.readFile(f);
+			int offset = 0;
+			// oscimap responses start with the content length
+			if (lengthPrefix && data.length >= 4
+					&& TileData.decodeInt(data, 0) == data.length - 4)
+				offset = 4;
+
+			put(cache, tiles[i], data, offset, data.length - offset);
+		}
+		return tiles;
+	}
+
+	private static void listTiles(File dir, ArrayList<File> files) {
+		File[] list = dir.listFiles();
+		if (list == null)
+			return;
+
+		Arrays.sort(list);
+		for (File f : list) {
+			if (f.isDirectory())
+				listTiles(f, files);
+			else if (f.getName().endsWith(".osmtile"))
+				files.add(f);
+		}
+	}
+
+	private static void put(CacheManager cache, MapTile tile, byte[] data, int offset,
+			int length) {
+		CacheManager.TileWriter writer = new CacheManager.TileWriter();
+		writer.begin(tile);
+		writer.write(data, offset, length);
+		// never stale
+		writer.expires = 0;
+		if (!cache.put(writer))
+			throw new IllegalStateException("could not cache " + tile);
+	}
+
+	/**
+	 * Loads every tile once and records its elements.
+	 */
+	TileRecord[] record() throws IOException {
+		TileRecord[] records = new TileRecord[tiles.length];
+		int elements = 0;
+
+		for (int i = 0; i < tiles.length; i++) {
+			records[i] = new TileRecord(tiles[i]);
+			if (database.executeQuery(tiles[i], records[i]) != QueryResult.SUCCESS)
+				throw new IOException("loading failed: " + tiles[i]);
+
+			records[i].finish();
+			elements += records[i].size();
+		}
+
+		if (elements == 0)
+			throw new IOException("fixture contains no elements");
+
+		return records;
+	}
+
+	void close() {
+		database.close();
+
+		if (mCacheDir != null) {
+			File[] files = mCacheDir.listFiles();
+			if (files != null)
+				for (File f : files)
+					f.delete();
+			mCacheDir.delete();
+		}
+	}
+
+	/**
+	 * @return the theme used by the app
+	 */
+	static RenderTheme loadTheme() throws IOException {
+		InputStream is = InternalRenderTheme.DEFAULT.getRenderThemeAsStream();
+		if (is == null)
+			throw new IOException("theme not found on classpath");
+
+		try {
+			return RenderThemeHandler.getRenderTheme(is);
+		} catch (Exception e) {
+			throw new IOException("could not load theme: " + e);
+		} finally {
+			is.close();
+		}
+	}
+}
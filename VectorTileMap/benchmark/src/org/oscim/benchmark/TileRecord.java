@@ -0,0 +1,276 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.oscim.core.Tag;
+import org.oscim.database.IMapDatabaseCallback;
+import org.oscim.renderer.MapTile;
+import org.oscim.theme.IRenderCallback;
+import org.oscim.theme.RenderTheme;
+import org.oscim.theme.renderinstruction.Area;
+import org.oscim.theme.renderinstruction.Circle;
+import org.oscim.theme.renderinstruction.Line;
+import org.oscim.theme.renderinstruction.LineSymbol;
+import org.oscim.theme.renderinstruction.Symbol;
+import org.oscim.theme.renderinstruction.Text;
+
+/**
+ * Elements of one tile as passed by a MapDatabase to IMapDatabaseCallback,
+ * so that the later stages of the tile pipeline can run without decoding.
+ * <p>
+ * MapDatabases reuse their tag, coordinate and index arrays, and tags of
+ * the mapfile reader decode their value on request, so everything is
+ * copied while recording.
+ */
+final class TileRecord implements IMapDatabaseCallback {
+
+	/**
+	 * IMapDatabaseCallback that drops all elements, for measuring only the
+	 * decoder.
+	 */
+	static final IMapDatabaseCallback DISCARD = new IMapDatabaseCallback() {
+		@Override
+		public void renderPointOfInterest(byte layer, Tag[] tags, float latitude,
+				float longitude) {
+		}
+
+		@Override
+		public void renderWaterBackground() {
+		}
+
+		@Override
+		public void renderWay(byte layer, Tag[] tags, float[] wayNodes,
+				short[] wayLength, boolean closed, int prio) {
+		}
+
+		@Override
+		public boolean checkWay(Tag[] tags, boolean closed) {
+			return true;
+		}
+	};
+
+	/**
+	 * IRenderCallback that ignores all matched render instructions.
+	 */
+	static final IRenderCallback IGNORE = new IRenderCallback() {
+		@Override
+		public void renderArea(Area area, int level) {
+		}
+
+		@Override
+		public void renderAreaSymbol(Symbol symbol) {
+		}
+
+		@Override
+		public void renderPointOfInterestCircle(Circle circle, int level) {
+		}
+
+		@Override
+		public void renderPointOfInterestSymbol(Symbol symbol) {
+		}
+
+		@Override
+		public void renderWay(Line line, int level) {
+		}
+
+		@Override
+		public void renderWaySymbol(LineSymbol symbol) {
+		}
+
+		@Override
+		public void renderWayText(Text text) {
+		}
+
+		@Override
+		public void renderAreaCaption(Text text) {
+		}
+
+		@Override
+		public void renderPointOfInterestCaption(Text text) {
+		}
+	};
+
+	// same replacement as TileGenerator.filterTags() does for matching
+	private static final Tag EMPTY_NAME = new Tag(Tag.TAG_KEY_NAME, null, false);
+	private static final Tag EMPTY_HOUSE_NR = new Tag(Tag.TAG_KEY_HOUSE_NUMBER, null, false);
+
+	static final class Element {
+		byte layer;
+		Tag[] tags;
+		// tags passed to the callback, which may replace some of them
+		Tag[] passTags;
+		// tags as TileGenerator passes them to RenderTheme
+		Tag[] matchTags;
+
+		// way, or null for a point of interest
+		float[] coords;
+		short[] indices;
+		boolean closed;
+		int prio;
+
+		float latitude;
+		float longitude;
+	}
+
+	final MapTile tile;
+
+	private final ArrayList<Element> mRecording = new ArrayList<Element>();
+	private Element[] mElements;
+
+	// passed to the callback, which may modify them like the buffers of
+	// a MapDatabase, e.g. to simplify ways
+	private float[] mPassCoords = new float[0];
+	private short[] mPassIndices = new short[0];
+
+	TileRecord(MapTile tile) {
+		this.tile = tile;
+	}
+
+	/**
+	 * Must be called after the MapDatabase passed all elements.
+	 */
+	void finish() {
+		mElements = mRecording.toArray(new Element[mRecording.size()]);
+		mRecording.clear();
+	}
+
+	int size() {
+		return mElements.length;
+	}
+
+	/**
+	 * Passes the recorded elements to 'callback' in the original order.
+	 */
+	void replay(IMapDatabaseCallback callback) {
+		for (Element e : mElements) {
+			// the callback may replace tags, e.g. names
+			System.arraycopy(e.tags, 0, e.passTags, 0, e.tags.length);
+
+			if (e.coords == null)
+				callback.renderPointOfInterest(e.layer, e.passTags, e.latitude, e.longitude);
+			else {
+				if (mPassCoords.length < e.coords.length)
+					mPassCoords = new float[e.coords.length];
+				if (mPassIndices.length < e.indices.length)
+					mPassIndices = new short[e.indices.length];
+
+				System.arraycopy(e.coords, 0, mPassCoords, 0, e.coords.length);
+				System.arraycopy(e.indices, 0, mPassIndices, 0, e.indices.length);
+				if (mPassIndices.length > e.indices.length)
+					mPassIndices[e.indices.length] = -1;
+
+				callback.renderWay(e.layer, e.passTags, mPassCoords, mPassIndices,
+						e.closed, e.prio);
+			}
+		}
+	}
+
+	/**
+	 * Matches the recorded elements against 'theme' the way TileGenerator
+	 * does, without building layers.
+	 *
+	 * @return number of matched elements
+	 */
+	int match(RenderTheme theme) {
+		byte zoomLevel = tile.zoomLevel;
+		int matched = 0;
+
+		for (Element e : mElements) {
+			if (e.coords == null) {
+				if (theme.matchNode(IGNORE, e.matchTags, zoomLevel) != null)
+					matched++;
+			} else if (theme.matchWay(IGNORE, e.matchTags, zoomLevel, e.closed,
+					true) != null) {
+				matched++;
+			}
+		}
+		return matched;
+	}
+
+	private static Tag[] copyTags(Tag[] tags) {
+		Tag[] copy = new Tag[tags.length];
+		for (int i = 0; i < tags.length; i++) {
+			Tag t = tags[i];
+			// materialize tags of the mapfile reader which are reused
+			if (t.getClass() != Tag.class)
+				t = new Tag(t.key, t.getValue(), false);
+			copy[i] = t;
+		}
+		return copy;
+	}
+
+	private static Tag[] filterTags(Tag[] tags) {
+		Tag[] filtered = tags.clone();
+		for (int i = 0; i < filtered.length; i++) {
+			if (filtered[i].key == Tag.TAG_KEY_NAME)
+				filtered[i] = EMPTY_NAME;
+			else if (filtered[i].key == Tag.TAG_KEY_HOUSE_NUMBER)
+				filtered[i] = EMPTY_HOUSE_NR;
+		}
+		return filtered;
+	}
+
+	private Element add(byte layer, Tag[] tags) {
+		Element e = new Element();
+		e.layer = layer;
+		e.tags = copyTags(tags);
+		e.passTags = new Tag[tags.length];
+		e.matchTags = filterTags(e.tags);
+		mRecording.add(e);
+		return e;
+	}
+
+	// ---------------- MapDatabaseCallback -----------------
+	@Override
+	public void renderPointOfInterest(byte layer, Tag[] tags, float latitude,
+			float longitude) {
+		Element e = add(layer, tags);
+		e.latitude = latitude;
+		e.longitude = longitude;
+	}
+
+	@Override
+	public void renderWaterBackground() {
+	}
+
+	@Override
+	public void renderWay(byte layer, Tag[] tags, float[] wayNodes,
+			short[] wayLength, boolean closed, int prio) {
+		Element e = add(layer, tags);
+
+		// copy indices including the -1 end marker
+		int numIndices = 0;
+		int numCoords = 0;
+		while (numIndices < wayLength.length) {
+			int length = wayLength[numIndices++];
+			if (length < 0)
+				break;
+			numCoords += length;
+		}
+
+		e.indices = Arrays.copyOf(wayLength, numIndices);
+		e.coords = Arrays.copyOf(wayNodes, numCoords);
+		e.closed = closed;
+		e.prio = prio;
+	}
+
+	@Override
+	public boolean checkWay(Tag[] tags, boolean closed) {
+		return true;
+	}
+}
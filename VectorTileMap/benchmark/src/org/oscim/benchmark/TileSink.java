@@ -0,0 +1,60 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.benchmark;
+
+import org.oscim.core.Tag;
+
+/**
+ * Consumes decoded elements, sums up what it sees so that decoders
+ * can be compared and their work is not optimized away.
+ */
+class TileSink {
+	int elements;
+	int checksum;
+
+	void reset() {
+		elements = 0;
+		checksum = 0;
+	}
+
+	void way(int layer, Tag[] tags, float[] coords, short[] index) {
+		int h = layer;
+		for (int i = 0; i < tags.length && tags[i] != null; i++)
+			h = 31 * h + tags[i].hashCode();
+
+		int n = 0;
+		for (int i = 0; i < index.length && index[i] >= 0; i++) {
+			h = 31 * h + index[i];
+			n += index[i];
+		}
+		for (int i = 0; i < n; i++)
+			h = 31 * h + Float.floatToIntBits(coords[i]);
+
+		checksum = 31 * checksum + h;
+		elements++;
+	}
+
+	void point(int layer, Tag[] tags, float x, float y) {
+		int h = layer;
+		for (int i = 0; i < tags.length && tags[i] != null; i++)
+			h = 31 * h + tags[i].hashCode();
+
+		h = 31 * h + Float.floatToIntBits(x);
+		h = 31 * h + Float.floatToIntBits(y);
+
+		checksum = 31 * checksum + h;
+		elements++;
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.backend;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.oscim.theme.renderinstruction.FontFamily;
+import org.oscim.theme.renderinstruction.FontStyle;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Paint;
+import android.graphics.Paint.Align;
+import android.graphics.Paint.FontMetrics;
+import android.graphics.Paint.Style;
+import android.graphics.Typeface;
+
+/**
+ * CanvasAdapter using the fonts and bitmaps of Android. Only loaded on
+ * Android.
+ */
+final class AndroidCanvasAdapter extends CanvasAdapter {
+	private final Typeface mTypefaceNormal = Typeface.create(
+			FontFamily.DEFAULT.toTypeface(), FontStyle.NORMAL.toInt());
+
+	private final Typeface mTypefaceBold = Typeface.create(
+			FontFamily.DEFAULT.toTypeface(), FontStyle.BOLD.toInt());
+
+	@Override
+	public Paint getTextPaint(FontFamily family, FontStyle style, float fontSize,
+			int color, float strokeWidth) {
+		Typeface typeface = null;
+		if (family == FontFamily.DEFAULT) {
+			if (style == FontStyle.NORMAL)
+				typeface = mTypefaceNormal;
+			else if (style == FontStyle.BOLD)
+				typeface = mTypefaceBold;
+		}
+
+		if (typeface == null)
+			typeface = Typeface.create(family.toTypeface(), style.toInt());
+
+		Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+		if (strokeWidth > 0) {
+			paint.setStyle(Style.STROKE);
+			paint.setStrokeWidth(strokeWidth);
+		}
+		paint.setTextAlign(Align.CENTER);
+		paint.setTypeface(typeface);
+		paint.setColor(color);
+		paint.setTextSize(fontSize);
+		return paint;
+	}
+
+	@Override
+	public float measureText(Paint paint, float fontSize, String text) {
+		return paint.measureText(text);
+	}
+
+	@Override
+	public float getFontHeight(Paint paint, float fontSize) {
+		FontMetrics fm = paint.getFontMetrics();
+		return (float) Math.ceil(Math.abs(fm.bottom) + Math.abs(fm.top));
+	}
+
+	@Override
+	public float getFontDescent(Paint paint, float fontSize) {
+		FontMetrics fm = paint.getFontMetrics();
+		return Math.abs(fm.bottom);
+	}
+
+	@Override
+	public Bitmap decodeBitmap(InputStream inputStream) throws IOException {
+		return BitmapFactory.decodeStream(inputStream);
+	}
+}
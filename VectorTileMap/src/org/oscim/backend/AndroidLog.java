@@ -0,0 +1,40 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.backend;
+
+/**
+ * Passes messages to android.util.Log. Only loaded on Android.
+ */
+final class AndroidLog implements Log.Logger {
+	@Override
+	public void d(String tag, String msg) {
+		android.util.Log.d(tag, msg);
+	}
+
+	@Override
+	public void i(String tag, String msg) {
+		android.util.Log.i(tag, msg);
+	}
+
+	@Override
+	public void w(String tag, String msg) {
+		android.util.Log.w(tag, msg);
+	}
+
+	@Override
+	public void e(String tag, String msg) {
+		android.util.Log.e(tag, msg);
+	}
+}
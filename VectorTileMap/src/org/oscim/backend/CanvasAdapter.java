@@ -0,0 +1,118 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.backend;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.oscim.theme.renderinstruction.FontFamily;
+import org.oscim.theme.renderinstruction.FontStyle;
+
+import android.graphics.Bitmap;
+import android.graphics.Paint;
+
+/**
+ * Fonts and bitmaps used by the theme and by TileGenerator to place
+ * labels.
+ * <p>
+ * This implementation is used when generating tiles headless: it creates
+ * no Paints and Bitmaps and measures texts with fixed font metrics, which
+ * are close to the default font of Android. Paint parameters may be null
+ * for this reason.
+ */
+public class CanvasAdapter {
+	// metrics relative to the font size
+	private static final float GLYPH_WIDTH = 0.55f;
+	private static final float FONT_TOP = 1.06f;
+	private static final float FONT_BOTTOM = 0.27f;
+
+	private static volatile CanvasAdapter adapter = Platform.isAndroid() ?
+			new AndroidCanvasAdapter() : new CanvasAdapter();
+
+	/**
+	 * @return the CanvasAdapter of the current platform
+	 */
+	public static CanvasAdapter get() {
+		return adapter;
+	}
+
+	/**
+	 * Replaces the CanvasAdapter, must be set before the theme is loaded.
+	 *
+	 * @param a
+	 *            the new CanvasAdapter
+	 */
+	public static void set(CanvasAdapter a) {
+		adapter = a;
+	}
+
+	/**
+	 * @param family
+	 *            the font family
+	 * @param style
+	 *            the font style
+	 * @param fontSize
+	 *            the text size
+	 * @param color
+	 *            fill color or stroke color when strokeWidth is larger than
+	 *            zero
+	 * @param strokeWidth
+	 *            width of the stroke or 0 to fill the text
+	 * @return the Paint to draw texts or null
+	 */
+	public Paint getTextPaint(FontFamily family, FontStyle style, float fontSize,
+			int color, float strokeWidth) {
+		return null;
+	}
+
+	/**
+	 * @param paint
+	 *            Paint returned by getTextPaint(), may be null
+	 * @param fontSize
+	 *            the current text size of paint
+	 * @param text
+	 *            the text
+	 * @return the width of text
+	 */
+	public float measureText(Paint paint, float fontSize, String text) {
+		return text.length() * GLYPH_WIDTH * fontSize;
+	}
+
+	/**
+	 * @return the line height of the font of paint
+	 */
+	public float getFontHeight(Paint paint, float fontSize) {
+		return (float) Math.ceil((FONT_TOP + FONT_BOTTOM) * fontSize);
+	}
+
+	/**
+	 * @return the distance from the baseline to the bottom of the font of
+	 *         paint
+	 */
+	public float getFontDescent(Paint paint, float fontSize) {
+		return FONT_BOTTOM * fontSize;
+	}
+
+	/**
+	 * @param inputStream
+	 *            the encoded image
+	 * @return the decoded Bitmap or null
+	 * @throws IOException
+	 *             if reading the image failed
+	 */
+	public Bitmap decodeBitmap(InputStream inputStream) throws IOException {
+		return null;
+	}
+}
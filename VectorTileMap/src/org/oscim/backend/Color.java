@@ -0,0 +1,90 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.backend;
+
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Colors of the theme as ARGB integers, same as android.graphics.Color.
+ */
+public final class Color {
+	public static final int BLACK = 0xFF000000;
+	public static final int DKGRAY = 0xFF444444;
+	public static final int GRAY = 0xFF888888;
+	public static final int LTGRAY = 0xFFCCCCCC;
+	public static final int WHITE = 0xFFFFFFFF;
+	public static final int RED = 0xFFFF0000;
+	public static final int GREEN = 0xFF00FF00;
+	public static final int BLUE = 0xFF0000FF;
+	public static final int YELLOW = 0xFFFFFF00;
+	public static final int CYAN = 0xFF00FFFF;
+	public static final int MAGENTA = 0xFFFF00FF;
+	public static final int TRANSPARENT = 0;
+
+	private static final HashMap<String, Integer> sColorNames = new HashMap<String, Integer>();
+
+	static {
+		sColorNames.put("black", Integer.valueOf(BLACK));
+		sColorNames.put("darkgray", Integer.valueOf(DKGRAY));
+		sColorNames.put("gray", Integer.valueOf(GRAY));
+		sColorNames.put("lightgray", Integer.valueOf(LTGRAY));
+		sColorNames.put("white", Integer.valueOf(WHITE));
+		sColorNames.put("red", Integer.valueOf(RED));
+		sColorNames.put("green", Integer.valueOf(GREEN));
+		sColorNames.put("blue", Integer.valueOf(BLUE));
+		sColorNames.put("yellow", Integer.valueOf(YELLOW));
+		sColorNames.put("cyan", Integer.valueOf(CYAN));
+		sColorNames.put("magenta", Integer.valueOf(MAGENTA));
+	}
+
+	private Color() {
+	}
+
+	/**
+	 * Parses '#RRGGBB', '#AARRGGBB' or one of the color names.
+	 *
+	 * @param colorString
+	 *            the color
+	 * @return the color as ARGB
+	 * @throws IllegalArgumentException
+	 *             if the color could not be parsed
+	 */
+	public static int parseColor(String colorString) {
+		if (colorString.length() > 0 && colorString.charAt(0) == '#') {
+			int length = colorString.length();
+			if (length != 7 && length != 9)
+				throw new IllegalArgumentException("Unknown color: " + colorString);
+
+			long color;
+			try {
+				color = Long.parseLong(colorString.substring(1), 16);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Unknown color: " + colorString);
+			}
+			// set alpha for #RRGGBB
+			if (length == 7)
+				color |= 0xff000000L;
+
+			return (int) color;
+		}
+
+		Integer color = sColorNames.get(colorString.toLowerCase(Locale.ENGLISH));
+		if (color == null)
+			throw new IllegalArgumentException("Unknown color: " + colorString);
+
+		return color.intValue();
+	}
+}
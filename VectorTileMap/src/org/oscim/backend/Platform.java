@@ -0,0 +1,39 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.backend;
+
+/**
+ * Selects the platform hooks of the map library.
+ * <p>
+ * On Android the hooks use the android classes for logging, fonts and
+ * bitmaps. On other JVMs tiles can be generated headless: messages go to
+ * System.err, texts are measured with estimated font metrics and bitmaps
+ * of the theme are not loaded. The android classes only need to be on the
+ * classpath as types, none of their code runs.
+ */
+public final class Platform {
+	private static final boolean ANDROID =
+			"Dalvik".equals(System.getProperty("java.vm.name"));
+
+	private Platform() {
+	}
+
+	/**
+	 * @return true when running on an Android device
+	 */
+	public static boolean isAndroid() {
+		return ANDROID;
+	}
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2012 Hannes Janetzek
+ * Copyright 2012, 2013 Hannes Janetzek
  *
  * This program is free software: you can redistribute it and/or modify it under the
  * terms of the GNU Lesser General Public License as published by the Free Software
@@ -14,6 +14,713 @@
  */
 package org.oscim.cache;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.zip.CRC32;
+
+import org.oscim.backend.Log;
+import org.oscim.core.Tile;
+
+/**
+ * Tile cache storing all tiles in one append-only file.
+ * <p>
+ * Each record consists of a header (key, expiry time, ETag, length and CRC)
+ * followed by the tile data. Removed and evicted tiles are marked by a
+ * record of only a header. The index of records is kept in memory and is
+ * rebuilt by scanning the file on open, without removed and expired tiles.
+ * A record that was not completely written, e.g. when the app was killed,
+ * fails the CRC check and the file is truncated before it.
+ * <p>
+ * When the tiles exceed the size budget the least recently used are
+ * evicted. The access order is not stored, on open it is rebuilt from the
+ * expiry time, i.e. the time a tile was written. The file is compacted by
+ * copying the remaining records to a new file once more than half of it is
+ * unused.
+ * <p>
+ * Tiles are read without locking through positional reads on the file
+ * channel. Compaction copies the records without holding the lock and
+ * keeps the replaced file open until the next compaction, so that reads
+ * started before it can complete.
+ */
 public class CacheManager {
+	private static final String TAG = CacheManager.class.getName();
+
+	private static final int MAGIC = 0x4f534354; // "OSCT"
+	// a record without etag and data that marks a tile as removed
+	private static final int MAGIC_REMOVED = 0x4f534352; // "OSCR"
+
+	// magic, key, expires, etag length, data length, crc
+	private static final int HEADER_SIZE = 4 + 8 + 8 + 2 + 4 + 4;
+
+	private static final int MAX_ETAG_LENGTH = 256;
+
+	// do not compact files smaller than this
+	private static final long COMPACT_MIN_SIZE = 1 << 20;
+
+	private static final String CHARSET_UTF8 = "UTF-8";
+
+	private static final HashMap<File, CacheManager> sCaches =
+			new HashMap<File, CacheManager>();
+
+	/**
+	 * Returns the shared cache for a file, opening it if necessary. Each call
+	 * must be matched by a call to {@link #release()}.
+	 *
+	 * @param file
+	 *            the cache file, created if it does not exist
+	 * @param maxSize
+	 *            size budget of the cache in bytes
+	 * @return the cache or null if the file could not be opened
+	 */
+	public static CacheManager open(File file, long maxSize) {
+		synchronized (sCaches) {
+			CacheManager cache = sCaches.get(file);
+			if (cache == null) {
+				cache = new CacheManager(file, maxSize);
+				try {
+					cache.load();
+				} catch (IOException e) {
+					Log.w(TAG, "could not open cache " + file + ": " + e.getMessage());
+					cache.closeFile();
+					return null;
+				}
+				sCaches.put(file, cache);
+			}
+			cache.mRefs++;
+			return cache;
+		}
+	}
+
+	/**
+	 * An entry of the cache index.
+	 */
+	public static final class Entry {
+		final long key;
+		final long position;
+
+		/**
+		 * Length of the tile data in bytes.
+		 */
+		public final int length;
+
+		/**
+		 * Time in milliseconds after which the entry is stale, 0 for never.
+		 */
+		public final long expires;
+
+		/**
+		 * ETag of the response, may be null.
+		 */
+		public final String etag;
+
+		// size of header, etag and data
+		final int size;
+
+		Entry(long key, long position, int length, long expires, String etag,
+				int etagLength) {
+			this.key = key;
+			this.position = position;
+			this.length = length;
+			this.expires = expires;
+			this.etag = etag;
+			this.size = HEADER_SIZE + etagLength + length;
+		}
+
+		Entry moveTo(long newPosition) {
+			return new Entry(key, newPosition, length, expires, etag,
+					size - HEADER_SIZE - length);
+		}
+	}
+
+	// oldest first, in the order they were written
+	private static final Comparator<Entry> EXPIRY_ORDER = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry a, Entry b) {
+			if (a.expires != b.expires)
+				return a.expires < b.expires ? -1 : 1;
+			if (a.position != b.position)
+				return a.position < b.position ? -1 : 1;
+			return 0;
+		}
+	};
+
+	/**
+	 * Buffer for a tile that is being loaded. Data written to it is added to
+	 * the cache by {@link CacheManager#put(TileWriter)}. A TileWriter can be
+	 * reused after {@link #begin(Tile)}.
+	 */
+	public static final class TileWriter extends ByteArrayOutputStream {
+		Tile tile;
+
+		/**
+		 * Time in milliseconds after which the tile is stale, 0 for never.
+		 */
+		public long expires;
+
+		/**
+		 * ETag of the response, may be null.
+		 */
+		public String etag;
+
+		public TileWriter() {
+			super(32 * 1024);
+		}
+
+		/**
+		 * Starts writing the data of a tile.
+		 *
+		 * @param t
+		 *            the tile
+		 */
+		public void begin(Tile t) {
+			reset();
+			tile = t;
+			expires = 0;
+			etag = null;
+		}
+
+		byte[] getBuffer() {
+			return buf;
+		}
+	}
+
+	/**
+	 * Buffer for the data of a tile read by
+	 * {@link CacheManager#read(Entry, TileReader)}. A TileReader can be
+	 * reused for the next read.
+	 */
+	public static final class TileReader extends ByteArrayInputStream {
+
+		public TileReader() {
+			super(new byte[32 * 1024]);
+		}
+
+		byte[] getBuffer(int size) {
+			if (buf.length < size)
+				buf = new byte[size];
+			return buf;
+		}
+
+		void setRange(int offset, int length) {
+			pos = offset;
+			mark = offset;
+			count = offset + length;
+		}
+	}
+
+	private final File mFile;
+	private final long mMaxSize;
+
+	private RandomAccessFile mRandomAccessFile;
+	private volatile FileChannel mChannel;
+
+	// the file replaced by the last compaction, kept open for reads that
+	// were started before it
+	private RandomAccessFile mReplacedFile;
+	private boolean mCompacting;
+
+	// size of the file, records are appended here
+	private long mFileSize;
+	// size of the records in the index
+	private long mUsedSize;
+
+	private int mRefs;
+
+	private final LinkedHashMap<Long, Entry> mIndex =
+			new LinkedHashMap<Long, Entry>(1024, 0.75f, true);
+
+	private final CRC32 mCRC = new CRC32();
+	private final ByteBuffer mHeader = ByteBuffer.allocate(HEADER_SIZE + MAX_ETAG_LENGTH);
+
+	private CacheManager(File file, long maxSize) {
+		mFile = file;
+		mMaxSize = maxSize;
+	}
+
+	/**
+	 * Releases a cache obtained by {@link #open(File, long)}, the file is
+	 * closed when it is not used anymore.
+	 */
+	public void release() {
+		synchronized (sCaches) {
+			if (--mRefs > 0)
+				return;
+
+			sCaches.remove(mFile);
+		}
+		synchronized (this) {
+			closeFile();
+		}
+	}
+
+	/**
+	 * @param tile
+	 *            the tile
+	 * @return the entry of the tile or null if the tile is not cached or
+	 *         stale.
+	 */
+	public synchronized Entry get(Tile tile) {
+		Long key = Long.valueOf(getKey(tile));
+		Entry e = mIndex.get(key);
+		if (e == null)
+			return null;
+
+		if (e.expires != 0 && e.expires < System.currentTimeMillis()) {
+			// load() skips expired records, no need to mark it as removed
+			mIndex.remove(key);
+			mUsedSize -= e.size;
+			return null;
+		}
+		return e;
+	}
+
+	/**
+	 * Reads the data of an entry and verifies its checksum. A corrupt entry
+	 * is removed from the cache.
+	 *
+	 * @param entry
+	 *            an entry returned by {@link #get(Tile)}
+	 * @param reader
+	 *            receives entry.length bytes of tile data
+	 * @return true on success, false when the entry was removed in the
+	 *         meantime or is corrupt.
+	 * @throws IOException
+	 *             when the file could not be read
+	 */
+	public boolean read(Entry entry, TileReader reader) throws IOException {
+		FileChannel channel;
+		synchronized (this) {
+			// positions change when the file is compacted
+			if (mChannel == null || mIndex.get(Long.valueOf(entry.key)) != entry)
+				return false;
+			channel = mChannel;
+		}
+
+		byte[] buf = reader.getBuffer(entry.size);
+		if (!readFully(channel, ByteBuffer.wrap(buf, 0, entry.size), entry.position))
+			throw new IOException("cache truncated");
+
+		ByteBuffer header = ByteBuffer.wrap(buf, 0, HEADER_SIZE);
+		int etagLength = entry.size - HEADER_SIZE - entry.length;
+
+		CRC32 crc = new CRC32();
+		crc.update(buf, 0, HEADER_SIZE - 4);
+		crc.update(buf, HEADER_SIZE, etagLength + entry.length);
+
+		if (header.getInt(0) != MAGIC || header.getLong(4) != entry.key
+				|| header.getInt(26) != (int) crc.getValue()) {
+			Log.w(TAG, "corrupt cache entry at " + entry.position);
+			remove(entry);
+			return false;
+		}
+
+		reader.setRange(HEADER_SIZE + etagLength, entry.length);
+		return true;
+	}
+
+	/**
+	 * Appends the data of a TileWriter to the cache. When more than half of
+	 * the file is unused it is compacted by the calling thread, without
+	 * blocking other readers and writers.
+	 *
+	 * @param writer
+	 *            the completely written tile
+	 * @return true on success
+	 */
+	public boolean put(TileWriter writer) {
+		boolean compact;
+		synchronized (this) {
+			if (!append(writer))
+				return false;
+
+			trim();
+			compact = startCompaction();
+		}
+
+		if (compact)
+			compact();
+
+		return true;
+	}
+
+	private boolean append(TileWriter writer) {
+		if (mChannel == null || writer.tile == null)
+			return false;
+
+		byte[] etag = null;
+		if (writer.etag != null) {
+			etag = getBytes(writer.etag);
+			if (etag.length > MAX_ETAG_LENGTH)
+				etag = null;
+		}
+
+		long key = getKey(writer.tile);
+		Entry e = new Entry(key, mFileSize, writer.size(), writer.expires,
+				(etag == null ? null : writer.etag), (etag == null ? 0 : etag.length));
+
+		ByteBuffer header = writeHeader(MAGIC, e, etag, writer.getBuffer());
+		if (!write(header, ByteBuffer.wrap(writer.getBuffer(), 0, e.length)))
+			return false;
+
+		Entry prev = mIndex.put(Long.valueOf(key), e);
+		if (prev != null)
+			mUsedSize -= prev.size;
+
+		mUsedSize += e.size;
+		return true;
+	}
+
+	/**
+	 * Removes a tile from the cache, e.g. when its data could not be decoded.
+	 *
+	 * @param tile
+	 *            the tile
+	 */
+	public synchronized void remove(Tile tile) {
+		Entry e = mIndex.remove(Long.valueOf(getKey(tile)));
+		if (e != null) {
+			mUsedSize -= e.size;
+			writeRemoved(e.key);
+		}
+	}
+
+	private synchronized void remove(Entry entry) {
+		Long key = Long.valueOf(entry.key);
+		if (mIndex.get(key) != entry)
+			return;
+
+		mIndex.remove(key);
+		mUsedSize -= entry.size;
+		writeRemoved(entry.key);
+	}
+
+	// mark a tile as removed for load()
+	private void writeRemoved(long key) {
+		if (mChannel == null)
+			return;
+
+		Entry e = new Entry(key, mFileSize, 0, 0, null, 0);
+		write(writeHeader(MAGIC_REMOVED, e, null, null), null);
+	}
+
+	// append a record at the end of the file
+	private boolean write(ByteBuffer header, ByteBuffer data) {
+		long pos = mFileSize;
+		try {
+			while (header.hasRemaining())
+				pos += mChannel.write(header, pos);
+			while (data != null && data.hasRemaining())
+				pos += mChannel.write(data, pos);
+		} catch (IOException ex) {
+			Log.w(TAG, "could not write cache: " + ex.getMessage());
+			// drop what was written of the record
+			try {
+				mChannel.truncate(mFileSize);
+			} catch (IOException ex2) {
+				// ignore
+			}
+			return false;
+		}
+
+		mFileSize = pos;
+		return true;
+	}
+
+	private static long getKey(Tile tile) {
+		return ((long) tile.zoomLevel << 58)
+				| ((long) tile.tileX << 29)
+				| tile.tileY;
+	}
+
+	private static byte[] getBytes(String etag) {
+		try {
+			return etag.getBytes(CHARSET_UTF8);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private ByteBuffer writeHeader(int magic, Entry e, byte[] etag, byte[] data) {
+		int etagLength = (etag == null ? 0 : etag.length);
+		int length = e.length;
+
+		ByteBuffer header = mHeader;
+		header.clear();
+		header.putInt(magic);
+		header.putLong(e.key);
+		header.putLong(e.expires);
+		header.putShort((short) etagLength);
+		header.putInt(length);
+
+		int crcPos = header.position();
+		header.putInt(0);
+		if (etag != null)
+			header.put(etag);
+
+		CRC32 crc = mCRC;
+		crc.reset();
+		crc.update(header.array(), 0, crcPos);
+		crc.update(header.array(), crcPos + 4, etagLength);
+		if (data != null)
+			crc.update(data, 0, length);
+		header.putInt(crcPos, (int) crc.getValue());
+
+		header.flip();
+		return header;
+	}
+
+	// read the index from the file, truncate the file at the first
+	// incomplete or corrupt record. the LRU order is rebuilt from the
+	// expiry time of the tiles.
+	private void load() throws IOException {
+		File parent = mFile.getParentFile();
+		if (parent != null && !parent.exists() && !parent.mkdirs())
+			throw new IOException("could not create directory: " + parent);
+
+		mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+		FileChannel channel = mRandomAccessFile.getChannel();
+
+		long fileSize = channel.size();
+		long pos = 0;
+		byte[] data = new byte[0];
+		ByteBuffer header = mHeader;
+		CRC32 crc = mCRC;
+
+		long now = System.currentTimeMillis();
+		HashMap<Long, Entry> index = new HashMap<Long, Entry>(1024);
+
+		while (pos + HEADER_SIZE <= fileSize) {
+			header.clear();
+			header.limit(HEADER_SIZE);
+			if (!readFully(channel, header, pos))
+				break;
+
+			int magic = header.getInt(0);
+			if (magic != MAGIC && magic != MAGIC_REMOVED)
+				break;
+
+			long key = header.getLong(4);
+			long expires = header.getLong(12);
+			int etagLength = header.getShort(20) & 0xffff;
+			int length = header.getInt(22);
+			int checksum = header.getInt(26);
+
+			if (etagLength > MAX_ETAG_LENGTH || length < 0
+					|| pos + HEADER_SIZE + etagLength + length > fileSize)
+				break;
+
+			if (magic == MAGIC_REMOVED && (etagLength != 0 || length != 0))
+				break;
+
+			header.limit(HEADER_SIZE + etagLength);
+			if (!readFully(channel, header, pos + HEADER_SIZE))
+				break;
+
+			if (data.length < length)
+				data = new byte[length];
+
+			if (!readFully(channel, ByteBuffer.wrap(data, 0, length),
+					pos + HEADER_SIZE + etagLength))
+				break;
+
+			crc.reset();
+			crc.update(header.array(), 0, HEADER_SIZE - 4);
+			crc.update(header.array(), HEADER_SIZE, etagLength);
+			crc.update(data, 0, length);
+			if ((int) crc.getValue() != checksum)
+				break;
+
+			String etag = null;
+			if (etagLength > 0)
+				etag = new String(header.array(), HEADER_SIZE, etagLength, CHARSET_UTF8);
+
+			Entry e = new Entry(key, pos, length, expires, etag, etagLength);
+			Entry prev = index.remove(Long.valueOf(key));
+			if (prev != null)
+				mUsedSize -= prev.size;
+
+			if (magic == MAGIC && (expires == 0 || expires >= now)) {
+				index.put(Long.valueOf(key), e);
+				mUsedSize += e.size;
+			}
+
+			pos += e.size;
+		}
+
+		ArrayList<Entry> entries = new ArrayList<Entry>(index.values());
+		Collections.sort(entries, EXPIRY_ORDER);
+		for (Entry e : entries)
+			mIndex.put(Long.valueOf(e.key), e);
+
+		if (pos < fileSize) {
+			Log.w(TAG, "truncate cache " + mFile + " at " + pos + " of " + fileSize);
+			channel.truncate(pos);
+		}
+
+		mFileSize = pos;
+		mChannel = channel;
+
+		Log.d(TAG, "cache " + mFile + ": " + mIndex.size() + " tiles, "
+				+ mUsedSize + " of " + mFileSize + " bytes used");
+
+		trim();
+	}
+
+	private static boolean readFully(FileChannel channel, ByteBuffer buf, long pos)
+			throws IOException {
+		while (buf.hasRemaining()) {
+			int len = channel.read(buf, pos);
+			if (len < 0)
+				return false;
+			pos += len;
+		}
+		return true;
+	}
+
+	// evict least recently used tiles to fit the size budget
+	private void trim() {
+		Iterator<Entry> it = mIndex.values().iterator();
+		while (mUsedSize > mMaxSize && it.hasNext()) {
+			Entry e = it.next();
+			it.remove();
+			mUsedSize -= e.size;
+			writeRemoved(e.key);
+		}
+	}
+
+	// returns true when the calling thread should compact the file, i.e.
+	// when more than half of it is unused.
+	private boolean startCompaction() {
+		if (mCompacting || mChannel == null || mFileSize <= COMPACT_MIN_SIZE
+				|| mUsedSize >= mFileSize / 2)
+			return false;
+
+		mCompacting = true;
+		return true;
+	}
+
+	// copy the records in the index, in LRU order, to a new file which
+	// then replaces the old file. the records are copied without holding
+	// the lock, records that were appended meanwhile are copied afterwards
+	// with the lock held.
+	private void compact() {
+		File tmpFile = new File(mFile.getPath() + ".tmp");
+		RandomAccessFile tmp = null;
+		boolean replaced = false;
+
+		try {
+			FileChannel in;
+			Entry[] entries;
+			long end;
+			synchronized (this) {
+				in = mChannel;
+				entries = mIndex.values().toArray(new Entry[mIndex.size()]);
+				end = mFileSize;
+			}
+			if (in == null)
+				return;
+
+			tmp = new RandomAccessFile(tmpFile, "rw");
+			FileChannel out = tmp.getChannel();
+			out.truncate(0);
+
+			HashMap<Entry, Entry> copied = new HashMap<Entry, Entry>(entries.length * 2);
+			long pos = 0;
+			for (Entry e : entries) {
+				transfer(in, e.position, e.size, out);
+				copied.put(e, e.moveTo(pos));
+				pos += e.size;
+			}
+
+			synchronized (this) {
+				// closed in the meantime
+				if (mChannel != in)
+					return;
+
+				// new tiles and markers of removed tiles
+				long appended = mFileSize - end;
+				transfer(in, end, appended, out);
+				out.force(false);
+
+				if (!tmpFile.renameTo(mFile)) {
+					Log.w(TAG, "could not replace cache " + mFile);
+					return;
+				}
+				replaced = true;
+
+				LinkedHashMap<Long, Entry> index = new LinkedHashMap<Long, Entry>(
+						mIndex.size() * 2, 0.75f, true);
+				for (Entry e : mIndex.values()) {
+					Entry moved = copied.get(e);
+					if (moved == null)
+						moved = e.moveTo(e.position - end + pos);
+					index.put(Long.valueOf(e.key), moved);
+				}
+				mIndex.clear();
+				mIndex.putAll(index);
+
+				if (mReplacedFile != null)
+					closeQuietly(mReplacedFile);
+
+				mReplacedFile = mRandomAccessFile;
+				mRandomAccessFile = tmp;
+				mChannel = out;
+				mFileSize = pos + appended;
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "could not compact cache: " + e.getMessage());
+		} finally {
+			if (!replaced && tmp != null) {
+				closeQuietly(tmp);
+				tmpFile.delete();
+			}
+			synchronized (this) {
+				mCompacting = false;
+			}
+		}
+	}
+
+	private static void transfer(FileChannel in, long position, long size,
+			FileChannel out) throws IOException {
+		long copied = 0;
+		while (copied < size) {
+			long len = in.transferTo(position + copied, size - copied, out);
+			if (len <= 0)
+				throw new IOException("cache truncated");
+			copied += len;
+		}
+	}
+
+	private static void closeQuietly(RandomAccessFile file) {
+		try {
+			file.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
 
+	private void closeFile() {
+		mChannel = null;
+		mIndex.clear();
+		if (mRandomAccessFile != null) {
+			closeQuietly(mRandomAccessFile);
+			mRandomAccessFile = null;
+		}
+		if (mReplacedFile != null) {
+			closeQuietly(mReplacedFile);
+			mReplacedFile = null;
+		}
+	}
 }
@@ -58,7 +58,7 @@ public class Tag {
 	public String value;
 
 	private int hashCodeValue = 0;
-	private final boolean intern;
+	private boolean intern;
 
 	/**
 	 * @param tag
@@ -107,6 +107,29 @@ public class Tag {
 		this.intern = intern;
 	}
 
+	/**
+	 * @param key
+	 *            the intern()alized key of the tag.
+	 * @param value
+	 *            the intern()alized value of the tag.
+	 * @return a tag which compares by identity like tags created with
+	 *         intern == true, without calling intern() again.
+	 */
+	public static Tag interned(String key, String value) {
+		Tag tag = new Tag(key, value, false);
+		tag.intern = true;
+		return tag;
+	}
+
+	/**
+	 * @return the value of this tag. Tags passed to IMapDatabaseCallback may
+	 *         decode their value only when it is requested, so text values
+	 *         should be read by this method.
+	 */
+	public String getValue() {
+		return this.value;
+	}
+
 	@Override
 	public boolean equals(Object obj) {
 		if (this == obj) {
@@ -21,7 +21,9 @@ import org.oscim.database.mapfile.MapDatabase;
  * Callback methods which can be triggered from the {@link MapDatabase}.
  * ____
  * NOTE: All parameters passed belong to the caller! i.e. dont hold
- * references to any arrays after callback function returns.
+ * references to any arrays after callback function returns. Arrays and
+ * tags are reused for the next element, text values of tags may be decoded
+ * only when requested by Tag.getValue().
  */
 public interface IMapDatabaseCallback {
 	/**
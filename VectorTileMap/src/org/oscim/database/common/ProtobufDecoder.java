@@ -0,0 +1,473 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.database.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Streaming decoder for protocol buffers messages of a known length.
+ * <p>
+ * The content is read from an InputStream into one reusable buffer, which
+ * is refilled only when the next field is not available completely. Packed
+ * fields are decoded in bulk into arrays owned by the caller, strings can be
+ * looked up in a {@link StringTable} without creating a String.
+ */
+public class ProtobufDecoder {
+	private static final int BUFFER_SIZE = 65536;
+
+	// longest varint
+	private static final int VARINT_MAX_BYTES = 10;
+
+	private static final String CHARSET_UTF8 = "UTF-8";
+
+	private byte[] mBuffer = new byte[BUFFER_SIZE];
+
+	// position in buffer
+	private int mBufferPos;
+
+	// bytes available in buffer
+	private int mBufferFill;
+
+	private InputStream mInputStream;
+
+	// overall bytes of content
+	private int mContentLength;
+
+	// overall bytes of content read into buffer
+	private int mReadPos;
+
+	// overall bytes of content processed
+	private int mBytesProcessed;
+
+	// receives a copy of all content, e.g. for caching
+	private OutputStream mCopy;
+
+	/**
+	 * @return the read buffer. Bytes of the content that were read before
+	 *         calling {@link #setInput(InputStream, int, int, int)} must be
+	 *         in this buffer.
+	 */
+	public byte[] getBuffer() {
+		return mBuffer;
+	}
+
+	/**
+	 * @param is
+	 *            stream to read the remaining content from
+	 * @param contentLength
+	 *            length of the content in bytes
+	 * @param offset
+	 *            position of the content in the read buffer
+	 * @param available
+	 *            bytes of content that were already read into the buffer
+	 * @throws IOException
+	 *             if writing to the copy output failed
+	 */
+	public void setInput(InputStream is, int contentLength, int offset, int available)
+			throws IOException {
+		mInputStream = is;
+		mContentLength = contentLength;
+		mBufferPos = offset;
+		mBufferFill = offset + available;
+		mReadPos = available;
+		mBytesProcessed = 0;
+
+		if (mCopy != null && available > 0)
+			mCopy.write(mBuffer, offset, available);
+	}
+
+	/**
+	 * @param out
+	 *            stream receiving a copy of all content read after the next
+	 *            call to {@link #setInput(InputStream, int, int, int)}, or
+	 *            null.
+	 */
+	public void setCopyOutput(OutputStream out) {
+		mCopy = out;
+	}
+
+	/**
+	 * @return true if not all content was processed
+	 */
+	public boolean hasData() {
+		return mBytesProcessed < mContentLength;
+	}
+
+	/**
+	 * @return overall bytes of content processed
+	 */
+	public int position() {
+		return mBytesProcessed;
+	}
+
+	/**
+	 * @return true if all content was read from the input stream
+	 */
+	public boolean isComplete() {
+		return mReadPos == mContentLength;
+	}
+
+	/*
+	 * The varint decoding below is taken from or based on Google's Protocol Buffers
+	 * implementation:
+	 */
+
+	// Protocol Buffers - Google's data interchange format
+	// Copyright 2008 Google Inc. All rights reserved.
+	// http://code.google.com/p/protobuf/
+	//
+	// Redistribution and use in source and binary forms, with or without
+	// modification, are permitted provided that the following conditions are
+	// met:
+	//
+	// * Redistributions of source code must retain the above copyright
+	// notice, this list of conditions and the following disclaimer.
+	// * Redistributions in binary form must reproduce the above
+	// copyright notice, this list of conditions and the following disclaimer
+	// in the documentation and/or other materials provided with the
+	// distribution.
+	// * Neither the name of Google Inc. nor the names of its
+	// contributors may be used to endorse or promote products derived from
+	// this software without specific prior written permission.
+	//
+	// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+	// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+	// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+	// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+	// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+	// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+	// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+	// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+	// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+	// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+	// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+	/**
+	 * Decodes a varint, e.g. a field key or a length.
+	 */
+	public int decodeVarint32() throws IOException {
+		if (mBufferPos + VARINT_MAX_BYTES > mBufferFill)
+			fillBuffer(VARINT_MAX_BYTES);
+
+		byte[] buf = mBuffer;
+		int pos = mBufferPos;
+		int result;
+
+		if (buf[pos] >= 0) {
+			result = buf[pos++];
+		} else if (buf[pos + 1] >= 0) {
+			result = (buf[pos] & 0x7f)
+					| buf[pos + 1] << 7;
+			pos += 2;
+		} else if (buf[pos + 2] >= 0) {
+			result = (buf[pos] & 0x7f)
+					| (buf[pos + 1] & 0x7f) << 7
+					| (buf[pos + 2]) << 14;
+			pos += 3;
+		} else if (buf[pos + 3] >= 0) {
+			result = (buf[pos] & 0x7f)
+					| (buf[pos + 1] & 0x7f) << 7
+					| (buf[pos + 2] & 0x7f) << 14
+					| (buf[pos + 3]) << 21;
+			pos += 4;
+		} else {
+			result = (buf[pos] & 0x7f)
+					| (buf[pos + 1] & 0x7f) << 7
+					| (buf[pos + 2] & 0x7f) << 14
+					| (buf[pos + 3] & 0x7f) << 21
+					| (buf[pos + 4]) << 28;
+			pos = skipVarintTail(buf, pos + 4);
+		}
+
+		mBytesProcessed += pos - mBufferPos;
+		mBufferPos = pos;
+
+		return result;
+	}
+
+	/**
+	 * Decodes a packed field of varints.
+	 *
+	 * @param num
+	 *            expected number of values
+	 * @param array
+	 *            array for the values, reused when large enough
+	 * @return 'array' or a new array of at least num + 1 values
+	 */
+	public short[] decodeShortArray(int num, short[] array) throws IOException {
+		int bytes = decodeVarint32();
+
+		short[] values = array;
+		if (values.length < num + 1)
+			values = new short[num + 1];
+
+		requireBytes(bytes);
+
+		byte[] buf = mBuffer;
+		int pos = mBufferPos;
+		int end = pos + bytes;
+		int cnt = 0;
+		int result;
+
+		while (pos < end && cnt < num) {
+			if (buf[pos] >= 0) {
+				result = buf[pos++];
+			} else if (buf[pos + 1] >= 0) {
+				result = (buf[pos] & 0x7f)
+						| buf[pos + 1] << 7;
+				pos += 2;
+			} else if (buf[pos + 2] >= 0) {
+				result = (buf[pos] & 0x7f)
+						| (buf[pos + 1] & 0x7f) << 7
+						| (buf[pos + 2]) << 14;
+				pos += 3;
+			} else if (buf[pos + 3] >= 0) {
+				result = (buf[pos] & 0x7f)
+						| (buf[pos + 1] & 0x7f) << 7
+						| (buf[pos + 2] & 0x7f) << 14
+						| (buf[pos + 3]) << 21;
+				pos += 4;
+			} else {
+				result = (buf[pos] & 0x7f)
+						| (buf[pos + 1] & 0x7f) << 7
+						| (buf[pos + 2] & 0x7f) << 14
+						| (buf[pos + 3] & 0x7f) << 21
+						| (buf[pos + 4]) << 28;
+				pos = skipVarintTail(buf, pos + 4);
+			}
+
+			values[cnt++] = (short) result;
+		}
+
+		if (pos != end)
+			throw new IOException("wrong number of values");
+
+		mBufferPos = end;
+		mBytesProcessed += bytes;
+
+		return values;
+	}
+
+	/**
+	 * Decodes a packed field of delta and zigzag encoded x/y coordinates.
+	 *
+	 * @param coords
+	 *            array receiving the coordinates divided by 'scale'
+	 * @param scale
+	 *            divisor for the coordinates
+	 * @return the number of decoded values or -1 when 'coords' is too small.
+	 */
+	public int decodeCoordinates(float[] coords, float scale) throws IOException {
+		int bytes = decodeVarint32();
+
+		requireBytes(bytes);
+
+		byte[] buf = mBuffer;
+		int pos = mBufferPos;
+		int end = pos + bytes;
+		int max = coords.length;
+		int cnt = 0;
+		int result;
+
+		int lastX = 0;
+		int lastY = 0;
+		boolean even = true;
+
+		while (pos < end) {
+			if (buf[pos] >= 0) {
+				result = buf[pos++];
+			} else if (buf[pos + 1] >= 0) {
+				result = (buf[pos] & 0x7f)
+						| buf[pos + 1] << 7;
+				pos += 2;
+			} else if (buf[pos + 2] >= 0) {
+				result = (buf[pos] & 0x7f)
+						| (buf[pos + 1] & 0x7f) << 7
+						| (buf[pos + 2]) << 14;
+				pos += 3;
+			} else if (buf[pos + 3] >= 0) {
+				result = (buf[pos] & 0x7f)
+						| (buf[pos + 1] & 0x7f) << 7
+						| (buf[pos + 2] & 0x7f) << 14
+						| (buf[pos + 3]) << 21;
+				pos += 4;
+			} else {
+				result = (buf[pos] & 0x7f)
+						| (buf[pos + 1] & 0x7f) << 7
+						| (buf[pos + 2] & 0x7f) << 14
+						| (buf[pos + 3] & 0x7f) << 21
+						| (buf[pos + 4]) << 28;
+				pos = skipVarintTail(buf, pos + 4);
+			}
+
+			if (cnt == max) {
+				cnt = -1;
+				break;
+			}
+
+			// zigzag decoding
+			int s = ((result >>> 1) ^ -(result & 1));
+
+			if (even) {
+				lastX = lastX + s;
+				coords[cnt++] = lastX / scale;
+				even = false;
+			} else {
+				lastY = lastY + s;
+				coords[cnt++] = lastY / scale;
+				even = true;
+			}
+		}
+
+		mBufferPos = end;
+		mBytesProcessed += bytes;
+
+		return cnt;
+	}
+
+	/**
+	 * Skips a length delimited field.
+	 */
+	public void skipField() throws IOException {
+		skipBytes(decodeVarint32());
+	}
+
+	/**
+	 * @param bytes
+	 *            number of bytes to skip
+	 */
+	public void skipBytes(int bytes) throws IOException {
+		requireBytes(bytes);
+		mBufferPos += bytes;
+		mBytesProcessed += bytes;
+	}
+
+	/**
+	 * Decodes a string field.
+	 */
+	public String decodeString() throws IOException {
+		int size = decodeVarint32();
+		requireBytes(size);
+
+		String result = new String(mBuffer, mBufferPos, size, CHARSET_UTF8);
+
+		mBufferPos += size;
+		mBytesProcessed += size;
+
+		return result;
+	}
+
+	/**
+	 * Decodes a string field, returning the equal string contained in
+	 * 'table'. Strings not found are intern()alized and added to the table,
+	 * so the result can always be compared by identity.
+	 *
+	 * @param table
+	 *            table of known strings
+	 * @return the decoded string
+	 */
+	public String decodeString(StringTable table) throws IOException {
+		int size = decodeVarint32();
+		requireBytes(size);
+
+		String result = table.get(mBuffer, mBufferPos, size);
+		if (result == null) {
+			result = new String(mBuffer, mBufferPos, size, CHARSET_UTF8).intern();
+			table.add(result);
+		}
+
+		mBufferPos += size;
+		mBytesProcessed += size;
+
+		return result;
+	}
+
+	/**
+	 * Decodes a 32 bit big endian integer.
+	 */
+	public static int decodeInt(byte[] buffer, int offset) {
+		return buffer[offset] << 24 | (buffer[offset + 1] & 0xff) << 16
+				| (buffer[offset + 2] & 0xff) << 8
+				| (buffer[offset + 3] & 0xff);
+	}
+
+	/**
+	 * Decodes a zigzag encoded signed value.
+	 */
+	public static int decodeZigZag32(final int n) {
+		return (n >>> 1) ^ -(n & 1);
+	}
+
+	private static int skipVarintTail(byte[] buf, int pos) throws IOException {
+		// discard upper 32 bits
+		int read = 5;
+		while (buf[pos++] < 0 && read < VARINT_MAX_BYTES)
+			read++;
+
+		if (read == VARINT_MAX_BYTES)
+			throw new IOException("malformed VarInt32");
+
+		return pos;
+	}
+
+	// ensure that 'size' bytes are available in buffer, or the remaining
+	// content when it is less than 'size'.
+	private void fillBuffer(int size) throws IOException {
+		if (mBufferPos + size <= mBufferFill || mReadPos == mContentLength)
+			return;
+
+		int avail = mBufferFill - mBufferPos;
+
+		if (size + VARINT_MAX_BYTES > mBuffer.length) {
+			// keep space for reading a varint beyond the end
+			byte[] tmp = new byte[size + VARINT_MAX_BYTES];
+			System.arraycopy(mBuffer, mBufferPos, tmp, 0, avail);
+			mBuffer = tmp;
+			mBufferPos = 0;
+			mBufferFill = avail;
+		} else if (mBufferPos + size + VARINT_MAX_BYTES > mBuffer.length) {
+			// copy bytes left to read to the beginning of buffer
+			System.arraycopy(mBuffer, mBufferPos, mBuffer, 0, avail);
+			mBufferPos = 0;
+			mBufferFill = avail;
+		}
+
+		while (mBufferFill - mBufferPos < size && mReadPos < mContentLength) {
+			int max = mBuffer.length - mBufferFill - VARINT_MAX_BYTES;
+			if (max > mContentLength - mReadPos)
+				max = mContentLength - mReadPos;
+
+			int len = mInputStream.read(mBuffer, mBufferFill, max);
+			if (len < 0)
+				throw new IOException("unexpected end of content");
+
+			if (mCopy != null)
+				mCopy.write(mBuffer, mBufferFill, len);
+
+			mReadPos += len;
+			mBufferFill += len;
+		}
+	}
+
+	// ensure that 'size' bytes are available in buffer
+	private void requireBytes(int size) throws IOException {
+		fillBuffer(size);
+
+		if (mBufferPos + size > mBufferFill)
+			throw new IOException("unexpected end of content");
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.database.common;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Table of strings that can be looked up by their UTF-8 encoding, i.e.
+ * directly from a read buffer. Used to map tag keys and values of decoded
+ * tiles to the interned strings of the tag tables without creating a
+ * String for each tag.
+ * <p>
+ * The table is not synchronized and has a fixed capacity, add() does
+ * nothing when the table is full.
+ */
+public class StringTable {
+	private final byte[][] mBytes;
+	private final String[] mStrings;
+	private final int mMask;
+	private final int mMaxSize;
+	private int mSize;
+
+	/**
+	 * @param capacity
+	 *            maximum number of strings in the table
+	 */
+	public StringTable(int capacity) {
+		int size = 1;
+		while (size < capacity * 2)
+			size <<= 1;
+
+		mBytes = new byte[size][];
+		mStrings = new String[size];
+		mMask = size - 1;
+		mMaxSize = capacity;
+	}
+
+	/**
+	 * @param strings
+	 *            strings to add, null entries are skipped.
+	 */
+	public void addAll(String[] strings) {
+		for (String s : strings)
+			if (s != null)
+				add(s);
+	}
+
+	/**
+	 * @param s
+	 *            string to add
+	 * @return false if the table is full
+	 */
+	public boolean add(String s) {
+		if (mSize == mMaxSize)
+			return false;
+
+		byte[] bytes;
+		try {
+			bytes = s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+
+		int i = hash(bytes, 0, bytes.length) & mMask;
+		while (mBytes[i] != null) {
+			if (equals(mBytes[i], bytes, 0, bytes.length))
+				return true;
+			i = (i + 1) & mMask;
+		}
+
+		mBytes[i] = bytes;
+		mStrings[i] = s;
+		mSize++;
+		return true;
+	}
+
+	/**
+	 * @param buffer
+	 *            buffer containing the UTF-8 encoded string
+	 * @param offset
+	 *            position of the string in buffer
+	 * @param length
+	 *            length of the encoded string in bytes
+	 * @return the string or null if not in the table
+	 */
+	public String get(byte[] buffer, int offset, int length) {
+		int i = hash(buffer, offset, length) & mMask;
+
+		byte[] bytes;
+		while ((bytes = mBytes[i]) != null) {
+			if (equals(bytes, buffer, offset, length))
+				return mStrings[i];
+			i = (i + 1) & mMask;
+		}
+		return null;
+	}
+
+	/**
+	 * @return number of strings in the table
+	 */
+	public int size() {
+		return mSize;
+	}
+
+	private static int hash(byte[] buffer, int offset, int length) {
+		int h = length;
+		for (int i = offset, end = offset + length; i < end; i++)
+			h = 31 * h + buffer[i];
+
+		return h ^ (h >>> 16);
+	}
+
+	private static boolean equals(byte[] bytes, byte[] buffer, int offset, int length) {
+		if (bytes.length != length)
+			return false;
+
+		for (int i = 0; i < length; i++)
+			if (bytes[i] != buffer[offset + i])
+				return false;
+
+		return true;
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.database.mapfile;
+
+import org.oscim.core.Tag;
+
+/**
+ * Flyweight tag for text values (e.g. name) of the element currently passed
+ * to IMapDatabaseCallback. Only the offset of the string in the block buffer
+ * is stored, the string is decoded when getValue() is called. The tag is
+ * reused for the next element, so it must not be referenced after the
+ * callback returns.
+ */
+final class LazyTag extends Tag {
+	private ReadBuffer mReadBuffer;
+	private int mPosition;
+
+	LazyTag(String key) {
+		super(key, null, false);
+	}
+
+	/**
+	 * @param readBuffer
+	 *            the buffer containing the current block
+	 * @param position
+	 *            position of the length prefixed string in readBuffer
+	 */
+	void set(ReadBuffer readBuffer, int position) {
+		mReadBuffer = readBuffer;
+		mPosition = position;
+		value = null;
+	}
+
+	@Override
+	public String getValue() {
+		if (value == null && mReadBuffer != null) {
+			value = mReadBuffer.readUTF8EncodedStringAt(mPosition);
+			mReadBuffer = null;
+		}
+		return value;
+	}
+}
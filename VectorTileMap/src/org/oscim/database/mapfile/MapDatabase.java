@@ -18,6 +18,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 
+import org.oscim.backend.Log;
 import org.oscim.core.MercatorProjection;
 import org.oscim.core.Tag;
 import org.oscim.core.Tile;
@@ -31,8 +32,6 @@ import org.oscim.database.mapfile.header.MapFileInfo;
 import org.oscim.database.mapfile.header.SubFileParameter;
 import org.oscim.generator.JobTile;
 
-import android.util.Log;
-
 /**
  * A class for reading binary map files.
  * <p>
@@ -182,7 +181,13 @@ public class MapDatabase implements IMapDatabase {
 	 */
 	private static final int WAY_NUMBER_OF_TAGS_BITMASK = 0x0f;
 
+	/**
+	 * Maximum number of tags of a POI or way.
+	 */
+	private static final int MAXIMUM_NUMBER_OF_TAGS = 0x0f;
+
 	private static IndexCache sDatabaseIndexCache;
+	private static MappedFile sMappedFile;
 	private static MapFileHeader sMapFileHeader;
 	private static int instances = 0;
 
@@ -200,8 +205,18 @@ public class MapDatabase implements IMapDatabase {
 	private final float[] mWayNodes = new float[100000];
 	private int mWayNodePosition;
 
+	// arrays passed to IMapDatabaseCallback are reused for each element,
+	// indexed by number of tags
+	private final Tag[][] mElementTags = new Tag[MAXIMUM_NUMBER_OF_TAGS + 1][];
+	private final Tag[][] mElementTagsWithName = new Tag[MAXIMUM_NUMBER_OF_TAGS + 2][];
+	private final LazyTag mTagName = new LazyTag(Tag.TAG_KEY_NAME);
+	private short[] mWayLengths = new short[4];
+
 	private int minLat, minLon;
-	private Tile mTile;
+	private JobTile mTile;
+
+	// projects latitudes of the current tile
+	private final TileProjection mProjection = new TileProjection();
 
 	private static boolean sMapExperimental;
 
@@ -223,6 +238,7 @@ public class MapDatabase implements IMapDatabase {
 
 		try {
 			mTile = tile;
+			mProjection.setTile(tile);
 
 			QueryParameters queryParameters = new QueryParameters();
 			queryParameters.queryZoomLevel = sMapFileHeader
@@ -319,6 +335,14 @@ public class MapDatabase implements IMapDatabase {
 				return openResult;
 			}
 
+			try {
+				// read blocks and index directly from the mapped file
+				sMappedFile = new MappedFile(file);
+			} catch (IOException e) {
+				Log.w(TAG, "could not map file, using RandomAccessFile: " + e.getMessage());
+				sMappedFile = null;
+			}
+
 			sDatabaseIndexCache = new IndexCache(mInputFile, INDEX_CACHE_SIZE);
 			sMapExperimental = sMapFileHeader.getMapFileInfo().fileVersion == 4;
 
@@ -357,6 +381,11 @@ public class MapDatabase implements IMapDatabase {
 				sDatabaseIndexCache = null;
 			}
 
+			if (sMappedFile != null) {
+				sMappedFile.close();
+				sMappedFile = null;
+			}
+
 			if (mInputFile != null) {
 				mInputFile.close();
 				mInputFile = null;
@@ -454,14 +483,16 @@ public class MapDatabase implements IMapDatabase {
 		// read and process all blocks from top to bottom and from left to right
 		for (long row = queryParameters.fromBlockY; row <= queryParameters.toBlockY; ++row) {
 			for (long column = queryParameters.fromBlockX; column <= queryParameters.toBlockX; ++column) {
+				// tile left the visible area
+				if (mTile.canceled)
+					return;
 
 				// calculate the actual block number of the needed block in the
 				// file
 				long blockNumber = row * subFileParameter.blocksWidth + column;
 
 				// get the current index entry
-				long currentBlockIndexEntry = sDatabaseIndexCache.getIndexEntry(
-						subFileParameter, blockNumber);
+				long currentBlockIndexEntry = getIndexEntry(subFileParameter, blockNumber);
 
 				// check if the current query would still return a water tile
 				if (queryIsWater) {
@@ -487,8 +518,7 @@ public class MapDatabase implements IMapDatabase {
 					nextBlockPointer = subFileParameter.subFileSize;
 				} else {
 					// get and check the next block pointer
-					nextBlockPointer = sDatabaseIndexCache.getIndexEntry(
-							subFileParameter, blockNumber + 1)
+					nextBlockPointer = getIndexEntry(subFileParameter, blockNumber + 1)
 							& BITMASK_INDEX_OFFSET;
 					if (nextBlockPointer < 1
 							|| nextBlockPointer > subFileParameter.subFileSize) {
@@ -518,14 +548,22 @@ public class MapDatabase implements IMapDatabase {
 					return;
 				}
 
-				// seek to the current block in the map file
-				mInputFile.seek(subFileParameter.startAddress + currentBlockPointer);
+				long blockPosition = subFileParameter.startAddress + currentBlockPointer;
 
-				// read the current block into the buffer
-				if (!mReadBuffer.readFromFile(currentBlockSize)) {
-					// skip the current block
-					Log.w(TAG, "reading current block has failed: " + currentBlockSize);
-					return;
+				if (sMappedFile != null) {
+					// decode the block directly from the mapped file
+					mReadBuffer.setMappedBuffer(sMappedFile.getChunk(blockPosition),
+							MappedFile.getOffset(blockPosition), currentBlockSize);
+				} else {
+					// seek to the current block in the map file
+					mInputFile.seek(blockPosition);
+
+					// read the current block into the buffer
+					if (!mReadBuffer.readFromFile(currentBlockSize)) {
+						// skip the current block
+						Log.w(TAG, "reading current block has failed: " + currentBlockSize);
+						return;
+					}
 				}
 
 				// calculate the top-left coordinates of the underlying tile
@@ -559,6 +597,14 @@ public class MapDatabase implements IMapDatabase {
 
 	}
 
+	private static long getIndexEntry(SubFileParameter subFileParameter, long blockNumber)
+			throws IOException {
+		if (sMappedFile != null)
+			return sMappedFile.getIndexEntry(subFileParameter, blockNumber);
+
+		return sDatabaseIndexCache.getIndexEntry(subFileParameter, blockNumber);
+	}
+
 	/**
 	 * Processes the block signature, if present.
 	 *
@@ -601,7 +647,8 @@ public class MapDatabase implements IMapDatabase {
 		long dy = (y - (z >> 1));
 
 		double divx = 180000000.0 / (z >> 1);
-		double divy = z / PIx4;
+
+		TileProjection projection = mProjection;
 
 		for (int elementCounter = numberOfPois; elementCounter != 0; --elementCounter) {
 			if (mDebugFile) {
@@ -629,7 +676,7 @@ public class MapDatabase implements IMapDatabase {
 			byte numberOfTags = (byte) (specialByte & POI_NUMBER_OF_TAGS_BITMASK);
 
 			if (numberOfTags != 0) {
-				tags = mReadBuffer.readTags(poiTags, numberOfTags);
+				tags = mReadBuffer.readTags(poiTags, getElementTags(numberOfTags), numberOfTags);
 			}
 
 			if (tags == null)
@@ -642,20 +689,12 @@ public class MapDatabase implements IMapDatabase {
 
 			// bit 1-3 enable optional features
 			// check if the POI has a name
-			if ((featureByte & WAY_FEATURE_NAME) != 0) {
-				String str = mReadBuffer.readUTF8EncodedString();
-
-				curTags = new Tag[tags.length + 1];
-				System.arraycopy(tags, 0, curTags, 0, tags.length);
-				curTags[tags.length] = new Tag(Tag.TAG_KEY_NAME, str, false);
-			}
+			if ((featureByte & WAY_FEATURE_NAME) != 0)
+				curTags = addNameTag(tags, mReadBuffer.getPositionAndSkip());
 
 			// check if the POI has a house number
-			if ((featureByte & POI_FEATURE_HOUSE_NUMBER) != 0) {
-				// mReadBuffer.getPositionAndSkip();
-				// String str =
-				mReadBuffer.readUTF8EncodedString();
-			}
+			if ((featureByte & POI_FEATURE_HOUSE_NUMBER) != 0)
+				mReadBuffer.getPositionAndSkip();
 
 			// check if the POI has an elevation
 			if ((featureByte & POI_FEATURE_ELEVATION) != 0) {
@@ -666,8 +705,7 @@ public class MapDatabase implements IMapDatabase {
 			}
 
 			longitude = (int) (longitude / divx - dx);
-			double sinLat = Math.sin(latitude * PI180);
-			latitude = (int) (Math.log((1.0 + sinLat) / (1.0 - sinLat)) * divy + dy);
+			latitude = (int) (projection.project(latitude) + dy);
 
 			mapDatabaseCallback.renderPointOfInterest(layer, curTags, latitude, longitude);
 
@@ -684,7 +722,12 @@ public class MapDatabase implements IMapDatabase {
 			return null;
 		}
 
-		short[] wayLengths = new short[numBlocks];
+		// terminate the lengths with -1 as the array is reused
+		if (mWayLengths.length <= numBlocks)
+			mWayLengths = new short[numBlocks + 1];
+
+		short[] wayLengths = mWayLengths;
+		wayLengths[numBlocks] = -1;
 
 		mWayNodePosition = 0;
 
@@ -863,7 +906,8 @@ public class MapDatabase implements IMapDatabase {
 
 					byte numberOfTags = (byte) (mReadBuffer.readByte() & WAY_NUMBER_OF_TAGS_BITMASK);
 
-					tags = mReadBuffer.readTags(wayTags, numberOfTags);
+					tags = mReadBuffer.readTags(wayTags, getElementTags(numberOfTags),
+							numberOfTags);
 					if (tags == null)
 						return false;
 
@@ -893,7 +937,7 @@ public class MapDatabase implements IMapDatabase {
 			byte numberOfTags = (byte) (specialByte & WAY_NUMBER_OF_TAGS_BITMASK);
 
 			if (numberOfTags != 0)
-				tags = mReadBuffer.readTags(wayTags, numberOfTags);
+				tags = mReadBuffer.readTags(wayTags, getElementTags(numberOfTags), numberOfTags);
 
 			if (tags == null)
 				return false;
@@ -910,11 +954,7 @@ public class MapDatabase implements IMapDatabase {
 				// check if the way has a name
 				if ((featureByte & WAY_FEATURE_NAME) != 0) {
 					int textPos = mReadBuffer.readUnsignedInt();
-					String str = mReadBuffer.readUTF8EncodedStringAt(stringOffset + textPos);
-
-					curTags = new Tag[tags.length + 1];
-					System.arraycopy(tags, 0, curTags, 0, tags.length);
-					curTags[tags.length] = new Tag(Tag.TAG_KEY_NAME, str, false);
+					curTags = addNameTag(tags, stringOffset + textPos);
 				}
 
 				// check if the way has a house number
@@ -929,27 +969,20 @@ public class MapDatabase implements IMapDatabase {
 					mReadBuffer.readUnsignedInt();
 				}
 			} else {
-				if ((featureByte & WAY_FEATURE_NAME) != 0) {
-					String str = mReadBuffer.readUTF8EncodedString();
-
-					curTags = new Tag[tags.length + 1];
-					System.arraycopy(tags, 0, curTags, 0, tags.length);
-					curTags[tags.length] = new Tag(Tag.TAG_KEY_NAME, str, false);
-				}
+				if ((featureByte & WAY_FEATURE_NAME) != 0)
+					curTags = addNameTag(tags, mReadBuffer.getPositionAndSkip());
 
 				// check if the way has a house number
-				if ((featureByte & WAY_FEATURE_HOUSE_NUMBER) != 0) {
-					String str = mReadBuffer.readUTF8EncodedString();
-				}
+				if ((featureByte & WAY_FEATURE_HOUSE_NUMBER) != 0)
+					mReadBuffer.getPositionAndSkip();
 
 				// check if the way has a reference
-				if ((featureByte & WAY_FEATURE_REF) != 0) {
-					String str = mReadBuffer.readUTF8EncodedString();
-				}
+				if ((featureByte & WAY_FEATURE_REF) != 0)
+					mReadBuffer.getPositionAndSkip();
 			}
 			if ((featureByte & WAY_FEATURE_LABEL_POSITION) != 0)
-				// labelPosition =
-				readOptionalLabelPosition();
+				// label position is not used
+				skipOptionalLabelPosition();
 
 			if ((featureByte & WAY_FEATURE_DATA_BLOCKS_BYTE) != 0) {
 				wayDataBlocks = mReadBuffer.readUnsignedInt();
@@ -982,16 +1015,43 @@ public class MapDatabase implements IMapDatabase {
 		return true;
 	}
 
-	private float[] readOptionalLabelPosition() {
-		float[] labelPosition = new float[2];
+	private void skipOptionalLabelPosition() {
+		// skip the label position latitude offset (VBE-S)
+		mReadBuffer.readSignedInt();
 
-		// get the label position latitude offset (VBE-S)
-		labelPosition[1] = mTileLatitude + mReadBuffer.readSignedInt();
+		// skip the label position longitude offset (VBE-S)
+		mReadBuffer.readSignedInt();
+	}
 
-		// get the label position longitude offset (VBE-S)
-		labelPosition[0] = mTileLongitude + mReadBuffer.readSignedInt();
+	private Tag[] getElementTags(int numberOfTags) {
+		Tag[] tags = mElementTags[numberOfTags];
+		if (tags == null)
+			tags = mElementTags[numberOfTags] = new Tag[numberOfTags];
 
-		return labelPosition;
+		return tags;
+	}
+
+	/**
+	 * @param tags
+	 *            the tags of the current element
+	 * @param position
+	 *            buffer position of the name string, which is decoded when
+	 *            the name is used
+	 * @return tags with the name tag added
+	 */
+	private Tag[] addNameTag(Tag[] tags, int position) {
+		int length = tags.length;
+
+		Tag[] curTags = mElementTagsWithName[length + 1];
+		if (curTags == null)
+			curTags = mElementTagsWithName[length + 1] = new Tag[length + 1];
+
+		System.arraycopy(tags, 0, curTags, 0, length);
+
+		mTagName.set(mReadBuffer, position);
+		curTags[length] = mTagName;
+
+		return curTags;
 	}
 
 	// private int readOptionalWayDataBlocksByte(boolean
@@ -1046,21 +1106,19 @@ public class MapDatabase implements IMapDatabase {
 
 	}
 
-	private static final double PI180 = (Math.PI / 180) / 1000000.0;
-	private static final double PIx4 = Math.PI * 4;
-
 	private boolean projectToTile(float[] coords, short[] indices) {
 
 		long x = mTile.pixelX;
 		long y = mTile.pixelY + Tile.TILE_SIZE;
 		long z = Tile.TILE_SIZE << mTile.zoomLevel;
 
-		double divx, divy = 0;
+		double divx;
 		long dx = (x - (z >> 1));
 		long dy = (y - (z >> 1));
 
 		divx = 180000000.0 / (z >> 1);
-		divy = z / PIx4;
+
+		TileProjection projection = mProjection;
 
 		for (int pos = 0, outPos = 0, i = 0, m = indices.length; i < m; i++) {
 			int len = indices[i];
@@ -1076,8 +1134,7 @@ public class MapDatabase implements IMapDatabase {
 			for (int end = pos + len; pos < end; pos += 2) {
 
 				lon = (float) ((coords[pos]) / divx - dx);
-				double sinLat = Math.sin(coords[pos + 1] * PI180);
-				lat = (float) (Tile.TILE_SIZE - (Math.log((1.0 + sinLat) / (1.0 - sinLat)) * divy + dy));
+				lat = (float) (Tile.TILE_SIZE - (projection.project((int) coords[pos + 1]) + dy));
 
 				if (cnt != 0) {
 					// drop small distance intermediate nodes
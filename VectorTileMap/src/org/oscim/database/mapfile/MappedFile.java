@@ -0,0 +1,138 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.database.mapfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.oscim.database.mapfile.header.SubFileParameter;
+
+/**
+ * Read-only memory mapping of a map file, shared by all MapDatabase
+ * instances.
+ * <p>
+ * The file is mapped in chunks of CHUNK_STEP bytes which overlap by the
+ * maximum block size, so that every block and index entry lies within one
+ * chunk. Chunks are mapped on first access. Only absolute get() is used on
+ * the chunks, so readers do not need to lock.
+ */
+class MappedFile {
+	// distance between the start of two chunks
+	private static final int CHUNK_STEP = 1 << 25;
+	// overlap of chunks, must be at least the maximum block size
+	private static final int CHUNK_OVERLAP = ReadBuffer.MAXIMUM_BUFFER_SIZE;
+
+	private final RandomAccessFile mFile;
+	private final FileChannel mChannel;
+	private final long mFileSize;
+	private final AtomicReferenceArray<ByteBuffer> mChunks;
+
+	/**
+	 * @param file
+	 *            the map file
+	 * @throws IOException
+	 *             if the file could not be opened
+	 */
+	MappedFile(File file) throws IOException {
+		mFile = new RandomAccessFile(file, "r");
+		mChannel = mFile.getChannel();
+		mFileSize = mFile.length();
+		mChunks = new AtomicReferenceArray<ByteBuffer>(
+				(int) ((mFileSize + CHUNK_STEP - 1) / CHUNK_STEP));
+	}
+
+	/**
+	 * Closes the file. Mapped chunks stay valid until they are garbage
+	 * collected.
+	 */
+	void close() {
+		try {
+			mFile.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+
+	/**
+	 * @param position
+	 *            position in the file
+	 * @return the chunk containing position
+	 * @throws IOException
+	 *             if mapping the chunk failed
+	 */
+	ByteBuffer getChunk(long position) throws IOException {
+		int chunk = (int) (position / CHUNK_STEP);
+
+		ByteBuffer buffer = mChunks.get(chunk);
+		if (buffer != null)
+			return buffer;
+
+		long start = (long) chunk * CHUNK_STEP;
+		long size = Math.min(mFileSize - start, CHUNK_STEP + CHUNK_OVERLAP);
+
+		buffer = mChannel.map(FileChannel.MapMode.READ_ONLY, start, size);
+
+		// another thread might have mapped the same chunk
+		if (!mChunks.compareAndSet(chunk, null, buffer))
+			buffer = mChunks.get(chunk);
+
+		return buffer;
+	}
+
+	/**
+	 * @param position
+	 *            position in the file
+	 * @return offset of position in its chunk
+	 */
+	static int getOffset(long position) {
+		return (int) (position % CHUNK_STEP);
+	}
+
+	/**
+	 * Returns the index entry of a block, read directly from the mapped
+	 * index.
+	 *
+	 * @param subFileParameter
+	 *            the parameters of the map file for which the index entry is
+	 *            needed.
+	 * @param blockNumber
+	 *            the number of the block in the map file.
+	 * @return the index entry or -1 if the block number is invalid.
+	 * @throws IOException
+	 *             if mapping the index failed
+	 */
+	long getIndexEntry(SubFileParameter subFileParameter, long blockNumber)
+			throws IOException {
+		// check if the block number is out of bounds
+		if (blockNumber >= subFileParameter.numberOfBlocks)
+			return -1;
+
+		long position = subFileParameter.indexStartAddress
+				+ blockNumber * SubFileParameter.BYTES_PER_INDEX_ENTRY;
+
+		ByteBuffer buffer = getChunk(position);
+		int pos = getOffset(position);
+
+		return (buffer.get(pos) & 0xffL) << 32
+				| (buffer.get(pos + 1) & 0xffL) << 24
+				| (buffer.get(pos + 2) & 0xffL) << 16
+				| (buffer.get(pos + 3) & 0xffL) << 8
+				| (buffer.get(pos + 4) & 0xffL);
+	}
+}
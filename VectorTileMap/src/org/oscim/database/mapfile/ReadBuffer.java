@@ -17,12 +17,15 @@ package org.oscim.database.mapfile;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.logging.Logger;
 
 import org.oscim.core.Tag;
 
 /**
  * Reads from a {@link RandomAccessFile} into a buffer and decodes the data.
+ * Blocks of a memory-mapped file are decoded directly from the mapping, see
+ * {@link #setMappedBuffer(ByteBuffer, int, int)}.
  */
 public class ReadBuffer {
 	private static final String CHARSET_UTF8 = "UTF-8";
@@ -34,9 +37,15 @@ public class ReadBuffer {
 	static final int MAXIMUM_BUFFER_SIZE = 8000000;
 
 	private byte[] mBufferData;
+	private ByteBuffer mBufferDataWrap;
+	private ByteBuffer mBuffer;
 	private int mBufferPosition;
+	private int mBufferSize;
 	private final RandomAccessFile mInputFile;
 
+	// temporary bytes for strings decoded from a mapped buffer
+	private byte[] mStringBytes = new byte[256];
+
 	ReadBuffer(RandomAccessFile inputFile) {
 		mInputFile = inputFile;
 	}
@@ -47,7 +56,7 @@ public class ReadBuffer {
 	 * @return the byte value.
 	 */
 	public byte readByte() {
-		return mBufferData[mBufferPosition++];
+		return mBuffer.get(mBufferPosition++);
 	}
 
 	/**
@@ -71,15 +80,36 @@ public class ReadBuffer {
 				return false;
 			}
 			mBufferData = new byte[length];
+			mBufferDataWrap = ByteBuffer.wrap(mBufferData);
 		}
 
+		mBuffer = mBufferDataWrap;
 		mBufferPosition = 0;
+		mBufferSize = mBufferData.length;
 
 		// reset the buffer position and read the data into the buffer
 		// bufferPosition = 0;
 		return mInputFile.read(mBufferData, 0, length) == length;
 	}
 
+	/**
+	 * Decode from a region of 'buffer' instead of reading into the own
+	 * buffer. Only absolute get() are used, so the same buffer may be shared
+	 * by other threads.
+	 *
+	 * @param buffer
+	 *            the (mapped) buffer
+	 * @param offset
+	 *            start of the data in buffer
+	 * @param length
+	 *            length of the data
+	 */
+	void setMappedBuffer(ByteBuffer buffer, int offset, int length) {
+		mBuffer = buffer;
+		mBufferPosition = offset;
+		mBufferSize = offset + length;
+	}
+
 	/**
 	 * Converts four bytes from the read buffer to a signed int.
 	 * <p>
@@ -89,13 +119,13 @@ public class ReadBuffer {
 	 */
 	public int readInt() {
 		int pos = mBufferPosition;
-		byte[] data = mBufferData;
+		ByteBuffer data = mBuffer;
 		mBufferPosition += 4;
 
-		return data[pos] << 24
-				| (data[pos + 1] & 0xff) << 16
-				| (data[pos + 2] & 0xff) << 8
-				| (data[pos + 3] & 0xff);
+		return data.get(pos) << 24
+				| (data.get(pos + 1) & 0xff) << 16
+				| (data.get(pos + 2) & 0xff) << 8
+				| (data.get(pos + 3) & 0xff);
 	}
 
 	/**
@@ -107,17 +137,17 @@ public class ReadBuffer {
 	 */
 	public long readLong() {
 		int pos = mBufferPosition;
-		byte[] data = mBufferData;
+		ByteBuffer data = mBuffer;
 		mBufferPosition += 8;
 
-		return (data[pos] & 0xffL) << 56
-				| (data[pos + 1] & 0xffL) << 48
-				| (data[pos + 2] & 0xffL) << 40
-				| (data[pos + 3] & 0xffL) << 32
-				| (data[pos + 4] & 0xffL) << 24
-				| (data[pos + 5] & 0xffL) << 16
-				| (data[pos + 6] & 0xffL) << 8
-				| (data[pos + 7] & 0xffL);
+		return (data.get(pos) & 0xffL) << 56
+				| (data.get(pos + 1) & 0xffL) << 48
+				| (data.get(pos + 2) & 0xffL) << 40
+				| (data.get(pos + 3) & 0xffL) << 32
+				| (data.get(pos + 4) & 0xffL) << 24
+				| (data.get(pos + 5) & 0xffL) << 16
+				| (data.get(pos + 6) & 0xffL) << 8
+				| (data.get(pos + 7) & 0xffL);
 
 	}
 
@@ -130,7 +160,7 @@ public class ReadBuffer {
 	 */
 	public int readShort() {
 		mBufferPosition += 2;
-		return mBufferData[mBufferPosition - 2] << 8 | (mBufferData[mBufferPosition - 1] & 0xff);
+		return mBuffer.get(mBufferPosition - 2) << 8 | (mBuffer.get(mBufferPosition - 1) & 0xff);
 	}
 
 	/**
@@ -144,53 +174,53 @@ public class ReadBuffer {
 	 */
 	public int readSignedInt() {
 		int pos = mBufferPosition;
-		byte[] data = mBufferData;
+		ByteBuffer data = mBuffer;
 		int flag;
 
-		if ((data[pos] & 0x80) == 0) {
+		if ((data.get(pos) & 0x80) == 0) {
 			mBufferPosition += 1;
-			flag = ((data[pos] & 0x40) >> 6);
+			flag = ((data.get(pos) & 0x40) >> 6);
 
-			return ((data[pos] & 0x3f) ^ -flag) + flag;
+			return ((data.get(pos) & 0x3f) ^ -flag) + flag;
 		}
 
-		if ((data[pos + 1] & 0x80) == 0) {
+		if ((data.get(pos + 1) & 0x80) == 0) {
 			mBufferPosition += 2;
-			flag = ((data[pos + 1] & 0x40) >> 6);
+			flag = ((data.get(pos + 1) & 0x40) >> 6);
 
-			return (((data[pos] & 0x7f)
-					| (data[pos + 1] & 0x3f) << 7) ^ -flag) + flag;
+			return (((data.get(pos) & 0x7f)
+					| (data.get(pos + 1) & 0x3f) << 7) ^ -flag) + flag;
 
 		}
 
-		if ((data[pos + 2] & 0x80) == 0) {
+		if ((data.get(pos + 2) & 0x80) == 0) {
 			mBufferPosition += 3;
-			flag = ((data[pos + 2] & 0x40) >> 6);
+			flag = ((data.get(pos + 2) & 0x40) >> 6);
 
-			return (((data[pos] & 0x7f)
-					| (data[pos + 1] & 0x7f) << 7
-					| (data[pos + 2] & 0x3f) << 14) ^ -flag) + flag;
+			return (((data.get(pos) & 0x7f)
+					| (data.get(pos + 1) & 0x7f) << 7
+					| (data.get(pos + 2) & 0x3f) << 14) ^ -flag) + flag;
 
 		}
 
-		if ((data[pos + 3] & 0x80) == 0) {
+		if ((data.get(pos + 3) & 0x80) == 0) {
 			mBufferPosition += 4;
-			flag = ((data[pos + 3] & 0x40) >> 6);
+			flag = ((data.get(pos + 3) & 0x40) >> 6);
 
-			return (((data[pos] & 0x7f)
-					| ((data[pos + 1] & 0x7f) << 7)
-					| ((data[pos + 2] & 0x7f) << 14)
-					| ((data[pos + 3] & 0x3f) << 21)) ^ -flag) + flag;
+			return (((data.get(pos) & 0x7f)
+					| ((data.get(pos + 1) & 0x7f) << 7)
+					| ((data.get(pos + 2) & 0x7f) << 14)
+					| ((data.get(pos + 3) & 0x3f) << 21)) ^ -flag) + flag;
 		}
 
 		mBufferPosition += 5;
-		flag = ((data[pos + 4] & 0x40) >> 6);
+		flag = ((data.get(pos + 4) & 0x40) >> 6);
 
-		return ((((data[pos] & 0x7f)
-				| (data[pos + 1] & 0x7f) << 7
-				| (data[pos + 2] & 0x7f) << 14
-				| (data[pos + 3] & 0x7f) << 21
-				| (data[pos + 4] & 0x3f) << 28)) ^ -flag) + flag;
+		return ((((data.get(pos) & 0x7f)
+				| (data.get(pos + 1) & 0x7f) << 7
+				| (data.get(pos + 2) & 0x7f) << 14
+				| (data.get(pos + 3) & 0x7f) << 21
+				| (data.get(pos + 4) & 0x3f) << 28)) ^ -flag) + flag;
 
 	}
 
@@ -209,53 +239,53 @@ public class ReadBuffer {
 	 */
 	public void readSignedInt(int[] values, int length) {
 		int pos = mBufferPosition;
-		byte[] data = mBufferData;
+		ByteBuffer data = mBuffer;
 		int flag;
 
 		for (int i = 0; i < length; i++) {
 
-			if ((data[pos] & 0x80) == 0) {
+			if ((data.get(pos) & 0x80) == 0) {
 
-				flag = ((data[pos] & 0x40) >> 6);
+				flag = ((data.get(pos) & 0x40) >> 6);
 
-				values[i] = ((data[pos] & 0x3f) ^ -flag) + flag;
+				values[i] = ((data.get(pos) & 0x3f) ^ -flag) + flag;
 				pos += 1;
 
-			} else if ((data[pos + 1] & 0x80) == 0) {
+			} else if ((data.get(pos + 1) & 0x80) == 0) {
 
-				flag = ((data[pos + 1] & 0x40) >> 6);
+				flag = ((data.get(pos + 1) & 0x40) >> 6);
 
-				values[i] = (((data[pos] & 0x7f)
-						| ((data[pos + 1] & 0x3f) << 7)) ^ -flag) + flag;
+				values[i] = (((data.get(pos) & 0x7f)
+						| ((data.get(pos + 1) & 0x3f) << 7)) ^ -flag) + flag;
 				pos += 2;
 
-			} else if ((data[pos + 2] & 0x80) == 0) {
+			} else if ((data.get(pos + 2) & 0x80) == 0) {
 
-				flag = ((data[pos + 2] & 0x40) >> 6);
+				flag = ((data.get(pos + 2) & 0x40) >> 6);
 
-				values[i] = (((data[pos] & 0x7f)
-						| ((data[pos + 1] & 0x7f) << 7)
-						| ((data[pos + 2] & 0x3f) << 14)) ^ -flag) + flag;
+				values[i] = (((data.get(pos) & 0x7f)
+						| ((data.get(pos + 1) & 0x7f) << 7)
+						| ((data.get(pos + 2) & 0x3f) << 14)) ^ -flag) + flag;
 				pos += 3;
 
-			} else if ((data[pos + 3] & 0x80) == 0) {
+			} else if ((data.get(pos + 3) & 0x80) == 0) {
 
-				flag = ((data[pos + 3] & 0x40) >> 6);
+				flag = ((data.get(pos + 3) & 0x40) >> 6);
 
-				values[i] = (((data[pos] & 0x7f)
-						| ((data[pos + 1] & 0x7f) << 7)
-						| ((data[pos + 2] & 0x7f) << 14)
-						| ((data[pos + 3] & 0x3f) << 21)) ^ -flag) + flag;
+				values[i] = (((data.get(pos) & 0x7f)
+						| ((data.get(pos + 1) & 0x7f) << 7)
+						| ((data.get(pos + 2) & 0x7f) << 14)
+						| ((data.get(pos + 3) & 0x3f) << 21)) ^ -flag) + flag;
 
 				pos += 4;
 			} else {
-				flag = ((data[pos + 4] & 0x40) >> 6);
+				flag = ((data.get(pos + 4) & 0x40) >> 6);
 
-				values[i] = ((((data[pos] & 0x7f)
-						| ((data[pos + 1] & 0x7f) << 7)
-						| ((data[pos + 2] & 0x7f) << 14)
-						| ((data[pos + 3] & 0x7f) << 21)
-						| ((data[pos + 4] & 0x3f) << 28))) ^ -flag) + flag;
+				values[i] = ((((data.get(pos) & 0x7f)
+						| ((data.get(pos + 1) & 0x7f) << 7)
+						| ((data.get(pos + 2) & 0x7f) << 14)
+						| ((data.get(pos + 3) & 0x7f) << 21)
+						| ((data.get(pos + 4) & 0x3f) << 28))) ^ -flag) + flag;
 
 				pos += 5;
 			}
@@ -275,40 +305,40 @@ public class ReadBuffer {
 	 */
 	public int readUnsignedInt() {
 		int pos = mBufferPosition;
-		byte[] data = mBufferData;
+		ByteBuffer data = mBuffer;
 
-		if ((data[pos] & 0x80) == 0) {
+		if ((data.get(pos) & 0x80) == 0) {
 			mBufferPosition += 1;
-			return (data[pos] & 0x7f);
+			return (data.get(pos) & 0x7f);
 		}
 
-		if ((data[pos + 1] & 0x80) == 0) {
+		if ((data.get(pos + 1) & 0x80) == 0) {
 			mBufferPosition += 2;
-			return (data[pos] & 0x7f)
-					| (data[pos + 1] & 0x7f) << 7;
+			return (data.get(pos) & 0x7f)
+					| (data.get(pos + 1) & 0x7f) << 7;
 		}
 
-		if ((data[pos + 2] & 0x80) == 0) {
+		if ((data.get(pos + 2) & 0x80) == 0) {
 			mBufferPosition += 3;
-			return (data[pos] & 0x7f)
-					| ((data[pos + 1] & 0x7f) << 7)
-					| ((data[pos + 2] & 0x7f) << 14);
+			return (data.get(pos) & 0x7f)
+					| ((data.get(pos + 1) & 0x7f) << 7)
+					| ((data.get(pos + 2) & 0x7f) << 14);
 		}
 
-		if ((data[pos + 3] & 0x80) == 0) {
+		if ((data.get(pos + 3) & 0x80) == 0) {
 			mBufferPosition += 4;
-			return (data[pos] & 0x7f)
-					| ((data[pos + 1] & 0x7f) << 7)
-					| ((data[pos + 2] & 0x7f) << 14)
-					| ((data[pos + 3] & 0x7f) << 21);
+			return (data.get(pos) & 0x7f)
+					| ((data.get(pos + 1) & 0x7f) << 7)
+					| ((data.get(pos + 2) & 0x7f) << 14)
+					| ((data.get(pos + 3) & 0x7f) << 21);
 		}
 
 		mBufferPosition += 5;
-		return (data[pos] & 0x7f)
-				| ((data[pos + 1] & 0x7f) << 7)
-				| ((data[pos + 2] & 0x7f) << 14)
-				| ((data[pos + 3] & 0x7f) << 21)
-				| ((data[pos + 4] & 0x7f) << 28);
+		return (data.get(pos) & 0x7f)
+				| ((data.get(pos + 1) & 0x7f) << 7)
+				| ((data.get(pos + 2) & 0x7f) << 14)
+				| ((data.get(pos + 3) & 0x7f) << 21)
+				| ((data.get(pos + 4) & 0x7f) << 28);
 	}
 
 	/**
@@ -338,11 +368,20 @@ public class ReadBuffer {
 	 * @return the UTF-8 decoded string (may be null).
 	 */
 	public String readUTF8EncodedString(int stringLength) {
-		if (stringLength > 0 && mBufferPosition + stringLength <= mBufferData.length) {
+		if (stringLength > 0 && mBufferPosition + stringLength <= mBufferSize) {
+			int pos = mBufferPosition;
 			mBufferPosition += stringLength;
 			try {
-				return new String(mBufferData, mBufferPosition - stringLength, stringLength,
-						CHARSET_UTF8);
+				if (mBuffer.hasArray())
+					return new String(mBuffer.array(), pos, stringLength, CHARSET_UTF8);
+
+				if (mStringBytes.length < stringLength)
+					mStringBytes = new byte[stringLength];
+
+				for (int i = 0; i < stringLength; i++)
+					mStringBytes[i] = mBuffer.get(pos + i);
+
+				return new String(mStringBytes, 0, stringLength, CHARSET_UTF8);
 			} catch (UnsupportedEncodingException e) {
 				throw new IllegalStateException(e);
 			}
@@ -377,7 +416,7 @@ public class ReadBuffer {
 	 * @return the current size of the read buffer.
 	 */
 	int getBufferSize() {
-		return mBufferData.length;
+		return mBufferSize;
 	}
 
 	/**
@@ -400,9 +439,18 @@ public class ReadBuffer {
 		mBufferPosition += bytes;
 	}
 
-	Tag[] readTags(Tag[] wayTags, byte numberOfTags) {
-		Tag[] tags = new Tag[numberOfTags];
-
+	/**
+	 * Reads tag IDs into 'tags'.
+	 *
+	 * @param wayTags
+	 *            the tags of the map file, indexed by tag ID.
+	 * @param tags
+	 *            array receiving the tags, reused by the caller.
+	 * @param numberOfTags
+	 *            the number of tag IDs to read.
+	 * @return 'tags' or null if a tag ID was invalid.
+	 */
+	Tag[] readTags(Tag[] wayTags, Tag[] tags, byte numberOfTags) {
 		int maxTag = wayTags.length;
 
 		for (byte i = 0; i < numberOfTags; i++) {
@@ -421,7 +469,7 @@ public class ReadBuffer {
 
 	int skipWays(int queryTileBitmask, int elements) {
 		int pos = mBufferPosition;
-		byte[] data = mBufferData;
+		ByteBuffer data = mBuffer;
 		int cnt = elements;
 		int skip;
 
@@ -429,30 +477,30 @@ public class ReadBuffer {
 
 		while (cnt > 0) {
 			// read way size (unsigned int)
-			if ((data[pos] & 0x80) == 0) {
-				skip = (data[pos] & 0x7f);
+			if ((data.get(pos) & 0x80) == 0) {
+				skip = (data.get(pos) & 0x7f);
 				pos += 1;
-			} else if ((data[pos + 1] & 0x80) == 0) {
-				skip = (data[pos] & 0x7f)
-						| (data[pos + 1] & 0x7f) << 7;
+			} else if ((data.get(pos + 1) & 0x80) == 0) {
+				skip = (data.get(pos) & 0x7f)
+						| (data.get(pos + 1) & 0x7f) << 7;
 				pos += 2;
-			} else if ((data[pos + 2] & 0x80) == 0) {
-				skip = (data[pos] & 0x7f)
-						| ((data[pos + 1] & 0x7f) << 7)
-						| ((data[pos + 2] & 0x7f) << 14);
+			} else if ((data.get(pos + 2) & 0x80) == 0) {
+				skip = (data.get(pos) & 0x7f)
+						| ((data.get(pos + 1) & 0x7f) << 7)
+						| ((data.get(pos + 2) & 0x7f) << 14);
 				pos += 3;
-			} else if ((data[pos + 3] & 0x80) == 0) {
-				skip = (data[pos] & 0x7f)
-						| ((data[pos + 1] & 0x7f) << 7)
-						| ((data[pos + 2] & 0x7f) << 14)
-						| ((data[pos + 3] & 0x7f) << 21);
+			} else if ((data.get(pos + 3) & 0x80) == 0) {
+				skip = (data.get(pos) & 0x7f)
+						| ((data.get(pos + 1) & 0x7f) << 7)
+						| ((data.get(pos + 2) & 0x7f) << 14)
+						| ((data.get(pos + 3) & 0x7f) << 21);
 				pos += 4;
 			} else {
-				skip = (data[pos] & 0x7f)
-						| ((data[pos + 1] & 0x7f) << 7)
-						| ((data[pos + 2] & 0x7f) << 14)
-						| ((data[pos + 3] & 0x7f) << 21)
-						| ((data[pos + 4] & 0x7f) << 28);
+				skip = (data.get(pos) & 0x7f)
+						| ((data.get(pos + 1) & 0x7f) << 7)
+						| ((data.get(pos + 2) & 0x7f) << 14)
+						| ((data.get(pos + 3) & 0x7f) << 21)
+						| ((data.get(pos + 4) & 0x7f) << 28);
 				pos += 5;
 			}
 			// invalid way size
@@ -462,10 +510,10 @@ public class ReadBuffer {
 			}
 
 			// check if way matches queryTileBitmask
-			if ((((data[pos] << 8) | (data[pos + 1] & 0xff)) & queryTileBitmask) == 0) {
+			if ((((data.get(pos) << 8) | (data.get(pos + 1) & 0xff)) & queryTileBitmask) == 0) {
 
 				// remember last tags position
-				if ((data[pos + 2] & WAY_NUMBER_OF_TAGS_BITMASK) != 0)
+				if ((data.get(pos + 2) & WAY_NUMBER_OF_TAGS_BITMASK) != 0)
 					lastTagPosition = pos + 2;
 
 				pos += skip;
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.database.mapfile;
+
+import org.oscim.core.MercatorProjection;
+import org.oscim.core.Tile;
+
+/**
+ * Mercator projection of latitudes in microdegrees for the elements of
+ * one tile, without Math.sin() and Math.log() for each node.
+ * <p>
+ * setTile() samples the projection over the latitudes of the tile and of
+ * its neighbours above and below, and stores cubic Hermite segments.
+ * The number of segments is chosen so that the interpolation error stays
+ * below MAX_ERROR pixel. Latitudes outside of this range, e.g. of long
+ * ways, are projected exactly. When too many segments would be needed
+ * (low zoom levels near the poles) all latitudes are projected exactly.
+ */
+public final class TileProjection {
+
+	/** maximal error of projected latitudes in pixel */
+	public static final double MAX_ERROR = 1 / 64.0;
+
+	private static final int MAX_SEGMENTS = 256;
+
+	private static final double PI180 = (Math.PI / 180) / 1000000.0;
+	private static final double PIx4 = Math.PI * 4;
+
+	private static final int LATITUDE_MAX = (int) (MercatorProjection.LATITUDE_MAX * 1000000);
+
+	private double mDivY;
+
+	// range covered by segments, in microdegrees
+	private int mMinLat;
+	private int mMaxLat;
+
+	private double mStep;
+	private double mInvStep;
+	private int mSegments;
+
+	// four coefficients per segment
+	private double[] mCoef = new double[4 * 8];
+
+	/**
+	 * Set the tile whose elements will be projected.
+	 *
+	 * @param tile
+	 *            the tile
+	 */
+	public void setTile(Tile tile) {
+		long z = Tile.TILE_SIZE << tile.zoomLevel;
+		mDivY = z / PIx4;
+
+		// latitudes of the tile and its neighbours
+		double north = MercatorProjection.pixelYToLatitude(
+				Math.max(0, tile.pixelY - Tile.TILE_SIZE), tile.zoomLevel);
+		double south = MercatorProjection.pixelYToLatitude(
+				Math.min(z, tile.pixelY + 2 * Tile.TILE_SIZE), tile.zoomLevel);
+
+		int maxLat = Math.min(LATITUDE_MAX, (int) Math.ceil(north * 1000000));
+		int minLat = Math.max(-LATITUDE_MAX, (int) Math.floor(south * 1000000));
+
+		// error of cubic Hermite interpolation is h^4 / 384 * max|y''''|.
+		// y = 2 * divy * atanh(sin(lat)), y' = 2 * divy / cos(lat), with
+		// |y''''| increasing towards the poles.
+		double lat = Math.max(Math.abs(minLat), Math.abs(maxLat)) * PI180;
+		double sec = 1 / Math.cos(lat);
+		double tan = Math.tan(lat);
+		double d4 = 2 * mDivY * sec * tan * (tan * tan + 5 * sec * sec);
+
+		double range = (maxLat - minLat) * PI180;
+		double h = Math.pow(MAX_ERROR * 384 / Math.max(d4, 1e-9), 0.25);
+
+		int segments = Math.max(1, (int) Math.ceil(range / h));
+
+		if (segments > MAX_SEGMENTS || maxLat <= minLat) {
+			// project exactly
+			mMinLat = 1;
+			mMaxLat = 0;
+			mSegments = 0;
+			return;
+		}
+
+		if (mCoef.length < segments * 4)
+			mCoef = new double[segments * 4];
+
+		mMinLat = minLat;
+		mMaxLat = maxLat;
+		mSegments = segments;
+		mStep = (double) (maxLat - minLat) / segments;
+		mInvStep = 1 / mStep;
+
+		double[] coef = mCoef;
+		double step = mStep;
+
+		double lat0 = minLat;
+		double y0 = exact(lat0);
+		double d0 = derivative(lat0);
+
+		for (int i = 0; i < segments; i++) {
+			double lat1 = minLat + (i + 1) * step;
+			double y1 = exact(lat1);
+			double d1 = derivative(lat1);
+
+			// y = a + u * (b + u * (c + u * d)), u in [0, step]
+			double m = (y1 - y0) / step;
+			coef[i * 4 + 0] = y0;
+			coef[i * 4 + 1] = d0;
+			coef[i * 4 + 2] = (3 * m - 2 * d0 - d1) / step;
+			coef[i * 4 + 3] = (d0 + d1 - 2 * m) / (step * step);
+
+			y0 = y1;
+			d0 = d1;
+		}
+	}
+
+	/**
+	 * @param latitude
+	 *            in microdegrees
+	 * @return log((1 + sin(lat)) / (1 - sin(lat))) scaled to the zoomlevel
+	 *         of the tile, i.e. the distance in pixel to the equator,
+	 *         positive towards the north.
+	 */
+	public double project(int latitude) {
+		if (latitude < mMinLat || latitude > mMaxLat)
+			return exact(latitude);
+
+		double u = latitude - mMinLat;
+		int i = (int) (u * mInvStep);
+		if (i >= mSegments)
+			i = mSegments - 1;
+
+		u -= i * mStep;
+
+		double[] c = mCoef;
+		i <<= 2;
+		return c[i] + u * (c[i + 1] + u * (c[i + 2] + u * c[i + 3]));
+	}
+
+	/**
+	 * @param latitude
+	 *            in microdegrees
+	 * @return same as project() without interpolation
+	 */
+	public double exact(double latitude) {
+		double sinLat = Math.sin(latitude * PI180);
+		return Math.log((1.0 + sinLat) / (1.0 - sinLat)) * mDivY;
+	}
+
+	private double derivative(double latitude) {
+		return 2 * mDivY * PI180 / Math.cos(latitude * PI180);
+	}
+}
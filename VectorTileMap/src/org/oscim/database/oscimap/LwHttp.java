@@ -14,60 +14,67 @@
  */
 package org.oscim.database.oscimap;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.Socket;
-import java.net.SocketAddress;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
 
+import org.oscim.backend.Log;
+import org.oscim.cache.CacheManager;
 import org.oscim.core.Tile;
-
-import android.os.SystemClock;
-import android.util.Log;
-
+import org.oscim.database.common.ProtobufDecoder;
+
+/**
+ * Lightweight HTTP client for loading tiles.
+ * <p>
+ * All LwHttp instances for a server share a small pool of keep-alive
+ * connections. Requests of several MapWorkers are pipelined on one
+ * connection: a request is sent as soon as the tile is requested and the
+ * responses are read in the order the requests were sent, each by the
+ * LwHttp instance that sent the request.
+ * <p>
+ * A response that stalls for RESPONSE_TIMEOUT closes its connection and
+ * fails the requests queued on it, so that they can be retried.
+ */
 public class LwHttp {
 	private static final String TAG = LwHttp.class.getName();
 
-	private String mHost;
-	private int mPort;
-	private long mContentLenth;
-	private InputStream mInputStream;
-
-	private final int BUFFER_SIZE = 65536;
-
-	byte[] buffer = new byte[BUFFER_SIZE];
-	// position in buffer
-	int bufferPos;
+	// reads the content of responses
+	private final ProtobufDecoder mDecoder;
 
-	// bytes available in buffer
-	int bufferFill;
-
-	// overall bytes of content read
-	private int mReadPos;
-
-	private int mMaxReq = 0;
-	private Socket mSocket;
-	private OutputStream mCommandStream;
-	private InputStream mResponseStream;
-	long mLastRequest = 0;
-	private SocketAddress mSockAddr;
+	private Pool mPool;
+	// connection of the current request
+	private Connection mConnection;
 
 	private final static byte[] RESPONSE_HTTP_OK = "HTTP/1.1 200 OK".getBytes();
+	private final static byte[] RESPONSE_ETAG = "ETag: ".getBytes();
 	private final static int RESPONSE_EXPECTED_LIVES = 100;
 	private final static int RESPONSE_EXPECTED_TIMEOUT = 10000;
 
+	// time to wait for the next bytes of a response, or for the responses
+	// queued before a request on a connection to make progress
+	private final static int RESPONSE_TIMEOUT = 15000;
+
+	// number of connections per server
+	private final static int POOL_SIZE = 2;
+
 	private byte[] REQUEST_GET_START;
 	private byte[] REQUEST_GET_END;
 
 	private byte[] mRequestBuffer;
 
+	// ETag of the last response
+	private String mETag;
+
+	LwHttp(ProtobufDecoder decoder) {
+		mDecoder = decoder;
+	}
+
 	boolean setServer(String urlString) {
 		URL url;
 		try {
@@ -92,8 +99,7 @@ public class LwHttp {
 				"Host: " + host + "\n" +
 				"Connection: Keep-Alive\n\n").getBytes();
 
-		mHost = host;
-		mPort = port;
+		mPool = Pool.get(host, port);
 
 		mRequestBuffer = new byte[1024];
 		System.arraycopy(REQUEST_GET_START, 0,
@@ -102,29 +108,32 @@ public class LwHttp {
 	}
 
 	void close() {
-		if (mSocket != null) {
-			try {
-				mSocket.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			} finally {
-				mSocket = null;
-			}
+		if (mConnection != null)
+			finishRequest(false);
+
+		if (mPool != null) {
+			mPool.release();
+			mPool = null;
 		}
 	}
 
 	int readHeader() throws IOException {
-		InputStream is = mResponseStream;
+		// wait until the responses to earlier requests on the
+		// connection were read
+		InputStream is = mConnection.awaitResponse(this);
 
-		byte[] buf = buffer;
+		byte[] buf = mDecoder.getBuffer();
+		int bufferSize = buf.length;
 		boolean first = true;
 		int read = 0;
+
+		mETag = null;
 		int pos = 0;
 		int end = 0;
 		int len = 0;
 
-		// header cannot be larger than BUFFER_SIZE for this to work
-		for (; pos < read || (len = is.read(buf, read, BUFFER_SIZE - read)) >= 0; len = 0) {
+		// header cannot be larger than the buffer for this to work
+		for (; pos < read || (len = is.read(buf, read, bufferSize - read)) >= 0; len = 0) {
 			read += len;
 			while (end < read && (buf[end] != '\n'))
 				end++;
@@ -140,6 +149,9 @@ public class LwHttp {
 					// check empty line (header end)
 					end += 1;
 					break;
+				} else if (compareBytes(buf, pos, end, RESPONSE_ETAG, 6)) {
+					// keep ETag for the tile cache, without '\r'
+					mETag = new String(buf, pos + 6, end - pos - 7);
 				}
 
 				// String line = new String(buf, pos, end - pos - 1);
@@ -151,61 +163,33 @@ public class LwHttp {
 		}
 
 		// check 4 bytes available..
-		while ((read - end) < 4 && (len = is.read(buf, read, BUFFER_SIZE - read)) >= 0)
+		while ((read - end) < 4 && (len = is.read(buf, read, bufferSize - read)) >= 0)
 			read += len;
 
-		if (read - len < 4)
+		if (read - end < 4)
 			return -1;
 
-		int contentLength = decodeInt(buf, end);
-		mContentLenth = contentLength;
+		int contentLength = ProtobufDecoder.decodeInt(buf, end);
 
-		// buffer fill
-		bufferFill = read;
-		// start of content
-		bufferPos = end + 4;
-		// bytes of content already read into buffer
-		mReadPos = read - bufferPos;
+		// bytes read beyond this response belong to the next
+		// pipelined response
+		int responseEnd = end + 4 + contentLength;
+		if (contentLength >= 0 && read > responseEnd) {
+			mConnection.unread(buf, responseEnd, read - responseEnd);
+			read = responseEnd;
+		}
 
-		mInputStream = mResponseStream;
+		if (contentLength < 0)
+			return -1;
+
+		// content already read into buffer starts after the length
+		mDecoder.setInput(is, contentLength, end + 4, read - (end + 4));
 
 		return contentLength;
 	}
 
 	boolean sendRequest(Tile tile) throws IOException {
 
-		bufferFill = 0;
-		bufferPos = 0;
-		mReadPos = 0;
-		mCacheFile = null;
-
-		if (mSocket != null && ((mMaxReq-- <= 0)
-				|| (SystemClock.elapsedRealtime() - mLastRequest
-				> RESPONSE_EXPECTED_TIMEOUT))) {
-			try {
-				mSocket.close();
-			} catch (IOException e) {
-
-			}
-
-			// Log.d(TAG, "not alive  - recreate connection " + mMaxReq);
-			mSocket = null;
-		}
-
-		if (mSocket == null) {
-			lwHttpConnect();
-			// we know our server
-			mMaxReq = RESPONSE_EXPECTED_LIVES;
-			// Log.d(TAG, "create connection");
-		} else {
-			// should not be needed
-			int avail = mResponseStream.available();
-			if (avail > 0) {
-				Log.d(TAG, "Consume left-over bytes: " + avail);
-				mResponseStream.read(buffer, 0, avail);
-			}
-		}
-
 		byte[] request = mRequestBuffer;
 		int pos = REQUEST_GET_START.length;
 
@@ -225,33 +209,293 @@ public class LwHttp {
 		// Integer.valueOf(tile.tileX), Integer.valueOf(tile.tileY)).getBytes();
 
 		try {
-			mCommandStream.write(request, 0, len);
-			mCommandStream.flush();
+			mConnection = mPool.send(this, request, len);
 			return true;
 		} catch (IOException e) {
 			Log.d(TAG, "recreate connection");
 		}
 
-		lwHttpConnect();
-
-		mCommandStream.write(request, 0, len);
-		mCommandStream.flush();
+		// the connection was closed by the server, try once more
+		// on a new connection
+		mConnection = mPool.send(this, request, len);
 
 		return true;
 	}
 
-	private boolean lwHttpConnect() throws IOException {
-		if (mSockAddr == null)
-			mSockAddr = new InetSocketAddress(mHost, mPort);
+	/**
+	 * Must be called after each request. The connection is closed when the
+	 * response was not read completely, which also fails the requests sent
+	 * after this one on the same connection.
+	 *
+	 * @param success
+	 *            true if the response was read completely.
+	 */
+	void finishRequest(boolean success) {
+		Connection c = mConnection;
+		if (c == null)
+			return;
 
-		mSocket = new Socket();
-		mSocket.connect(mSockAddr, 30000);
-		mSocket.setTcpNoDelay(true);
+		mConnection = null;
+		c.finish(this, success && mDecoder.isComplete());
+	}
 
-		mCommandStream = mSocket.getOutputStream(); //new BufferedOutputStream();
-		mResponseStream = mSocket.getInputStream();
+	/**
+	 * Connections shared by the LwHttp instances of one server.
+	 */
+	static final class Pool {
+		private static final HashMap<String, Pool> sPools = new HashMap<String, Pool>();
+
+		private final String mKey;
+		private final String mHost;
+		private final int mPort;
+		private final Connection[] mConnections = new Connection[POOL_SIZE];
+		private int mRefs;
+
+		private Pool(String key, String host, int port) {
+			mKey = key;
+			mHost = host;
+			mPort = port;
+		}
 
-		return true;
+		static Pool get(String host, int port) {
+			String key = host + ":" + port;
+			synchronized (sPools) {
+				Pool p = sPools.get(key);
+				if (p == null) {
+					p = new Pool(key, host, port);
+					sPools.put(key, p);
+				}
+				p.mRefs++;
+				return p;
+			}
+		}
+
+		void release() {
+			synchronized (sPools) {
+				if (--mRefs > 0)
+					return;
+				sPools.remove(mKey);
+			}
+			synchronized (this) {
+				for (int i = 0; i < POOL_SIZE; i++) {
+					if (mConnections[i] != null) {
+						mConnections[i].retire();
+						mConnections[i] = null;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Sends the request on the connection with the least pending
+		 * requests.
+		 *
+		 * @return the connection
+		 */
+		Connection send(LwHttp http, byte[] request, int length) throws IOException {
+			Connection best = null;
+			long now = System.nanoTime() / 1000000;
+
+			synchronized (this) {
+				for (int i = 0; i < POOL_SIZE; i++) {
+					Connection c = mConnections[i];
+					if (c == null || !c.isUsable(now)) {
+						// let the old connection finish its pending
+						// responses
+						if (c != null)
+							c.retire();
+
+						c = mConnections[i] = new Connection(mHost, mPort);
+					}
+					if (best == null || c.pending() < best.pending())
+						best = c;
+				}
+			}
+
+			best.send(http, request, length);
+			return best;
+		}
+	}
+
+	/**
+	 * One keep-alive connection with the queue of requests whose responses
+	 * were not read yet.
+	 */
+	static final class Connection {
+		private final String mHost;
+		private final int mPort;
+
+		private Socket mSocket;
+		private OutputStream mCommandStream;
+		private InputStream mResponseStream;
+
+		// requests in the order they were sent
+		private final ArrayList<LwHttp> mPending = new ArrayList<LwHttp>(8);
+
+		private int mLives = RESPONSE_EXPECTED_LIVES;
+		private long mLastRequest = System.nanoTime() / 1000000;
+		// time bytes of a response were last read, written by the thread
+		// reading the current response
+		private volatile long mLastProgress;
+		private boolean mRetired;
+		private boolean mClosed;
+
+		// bytes read by the previous response which belong to
+		// the next response
+		private byte[] mUnread = new byte[1024];
+		private int mUnreadPos;
+		private int mUnreadEnd;
+
+		private final InputStream mInputStream = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				if (mUnreadPos < mUnreadEnd)
+					return mUnread[mUnreadPos++] & 0xff;
+
+				return mResponseStream.read();
+			}
+
+			@Override
+			public int read(byte[] buf, int offset, int length) throws IOException {
+				if (mUnreadPos < mUnreadEnd) {
+					int len = Math.min(length, mUnreadEnd - mUnreadPos);
+					System.arraycopy(mUnread, mUnreadPos, buf, offset, len);
+					mUnreadPos += len;
+					return len;
+				}
+				int len = mResponseStream.read(buf, offset, length);
+				if (len > 0)
+					mLastProgress = System.nanoTime() / 1000000;
+				return len;
+			}
+		};
+
+		Connection(String host, int port) {
+			mHost = host;
+			mPort = port;
+		}
+
+		synchronized boolean isUsable(long now) {
+			if (mClosed || mRetired || mLives <= 0)
+				return false;
+
+			// the server will have closed an idle connection
+			return !(mPending.isEmpty() && mSocket != null
+					&& now - mLastRequest > RESPONSE_EXPECTED_TIMEOUT);
+		}
+
+		synchronized int pending() {
+			return mPending.size();
+		}
+
+		synchronized void send(LwHttp http, byte[] request, int length)
+				throws IOException {
+			if (mClosed)
+				throw new IOException("connection closed");
+
+			try {
+				if (mSocket == null) {
+					mSocket = new Socket();
+					mSocket.connect(new InetSocketAddress(mHost, mPort), 30000);
+					mSocket.setTcpNoDelay(true);
+					mSocket.setSoTimeout(RESPONSE_TIMEOUT);
+					mLastProgress = System.nanoTime() / 1000000;
+
+					mCommandStream = mSocket.getOutputStream();
+					mResponseStream = mSocket.getInputStream();
+				}
+				mCommandStream.write(request, 0, length);
+				mCommandStream.flush();
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+
+			mPending.add(http);
+			mLastRequest = System.nanoTime() / 1000000;
+
+			if (--mLives <= 0)
+				mRetired = true;
+		}
+
+		/**
+		 * Waits until the responses to the requests sent before the request
+		 * of 'http' were read. When the responses make no progress for
+		 * RESPONSE_TIMEOUT the connection is closed, which fails all
+		 * requests queued on it.
+		 *
+		 * @return the stream to read the response from
+		 */
+		synchronized InputStream awaitResponse(LwHttp http) throws IOException {
+			long start = System.nanoTime() / 1000000;
+
+			while (!mClosed && mPending.get(0) != http) {
+				long now = System.nanoTime() / 1000000;
+				long wait = Math.max(start, mLastProgress) + RESPONSE_TIMEOUT - now;
+				if (wait <= 0) {
+					Log.d(TAG, "response timeout " + mHost);
+					close();
+					break;
+				}
+				try {
+					wait(wait);
+				} catch (InterruptedException e) {
+					throw new IOException("interrupted");
+				}
+			}
+			if (mClosed)
+				throw new IOException("connection closed");
+
+			return mInputStream;
+		}
+
+		// called only by the LwHttp reading the current response
+		void unread(byte[] buf, int offset, int length) {
+			int left = mUnreadEnd - mUnreadPos;
+			if (mUnread.length < left + length) {
+				byte[] tmp = new byte[left + length];
+				System.arraycopy(mUnread, mUnreadPos, tmp, 0, left);
+				mUnread = tmp;
+			} else {
+				System.arraycopy(mUnread, mUnreadPos, mUnread, 0, left);
+			}
+			System.arraycopy(buf, offset, mUnread, left, length);
+			mUnreadPos = 0;
+			mUnreadEnd = left + length;
+		}
+
+		synchronized void finish(LwHttp http, boolean success) {
+			mPending.remove(http);
+			mLastRequest = System.nanoTime() / 1000000;
+			mLastProgress = mLastRequest;
+
+			if (!success || (mRetired && mPending.isEmpty()))
+				close();
+
+			notifyAll();
+		}
+
+		synchronized void retire() {
+			mRetired = true;
+			if (mPending.isEmpty())
+				close();
+		}
+
+		// must be called with lock held
+		private void close() {
+			mClosed = true;
+			mPending.clear();
+
+			if (mSocket != null) {
+				try {
+					mSocket.close();
+				} catch (IOException e) {
+					// ignore
+				}
+				mSocket = null;
+			}
+			notifyAll();
+		}
 	}
 
 	// write (positive) integer as char sequence to buffer
@@ -288,144 +532,59 @@ public class LwHttp {
 		return true;
 	}
 
-	static int decodeInt(byte[] buffer, int offset) {
-		return buffer[offset] << 24 | (buffer[offset + 1] & 0xff) << 16
-				| (buffer[offset + 2] & 0xff) << 8
-				| (buffer[offset + 3] & 0xff);
-	}
-
-	void readBuffer(int size) throws IOException {
-
-		// check if buffer already contains the request bytes
-		if (bufferPos + size < bufferFill)
-			return;
-
-		// check if inputstream is read to the end
-		if (mReadPos == mContentLenth)
-			return;
-		int maxSize = buffer.length;
-
-		if (size > maxSize) {
-			Log.d(TAG, "increase read buffer to " + size + " bytes");
-			maxSize = size;
-			byte[] tmp = new byte[maxSize];
+	private final CacheManager.TileWriter mCacheWriter = new CacheManager.TileWriter();
+	private final CacheManager.TileReader mCacheReader = new CacheManager.TileReader();
+	private boolean mCacheWrite;
+
+	/**
+	 * Prepares reading a tile from the cache. The data is read and its
+	 * checksum verified before it is passed to the decoder.
+	 *
+	 * @return the content length or -1 if the tile is not cached or could
+	 *         not be read.
+	 */
+	int cacheRead(Tile tile, CacheManager cache) {
+		CacheManager.Entry entry = cache.get(tile);
+		if (entry == null)
+			return -1;
 
-			bufferFill -= bufferPos;
-			System.arraycopy(buffer, bufferPos, tmp, 0, bufferFill);
-			bufferPos = 0;
-			buffer = tmp;
-		}
+		try {
+			if (!cache.read(entry, mCacheReader))
+				return -1;
 
-		if (bufferFill == bufferPos) {
-			bufferPos = 0;
-			bufferFill = 0;
-		} else if (bufferPos + size > maxSize) {
-			// copy bytes left to the beginning of buffer
-			bufferFill -= bufferPos;
-			System.arraycopy(buffer, bufferPos, buffer, 0, bufferFill);
-			bufferPos = 0;
+			mCacheWrite = false;
+			mDecoder.setCopyOutput(null);
+			mDecoder.setInput(mCacheReader, entry.length, 0, 0);
+		} catch (IOException e) {
+			Log.d(TAG, tile + " cache read failed: " + e.getMessage());
+			return -1;
 		}
 
-		int max = maxSize - bufferFill;
-
-		while ((bufferFill - bufferPos) < size && max > 0) {
-
-			max = maxSize - bufferFill;
-			if (max > mContentLenth - mReadPos)
-				max = (int) (mContentLenth - mReadPos);
-
-			// read until requested size is available in buffer
-			int len = mInputStream.read(buffer, bufferFill, max);
-
-			if (len < 0) {
-				// finished reading, mark end
-				buffer[bufferFill] = 0;
-				break;
-			}
-
-			mReadPos += len;
-
-			//			if (mCacheFile != null)
-			//				mCacheFile.write(mReadBuffer, mBufferFill, len);
-
-			if (mReadPos == mContentLenth)
-				break;
-
-			bufferFill += len;
-		}
+		return entry.length;
 	}
 
-	private FileOutputStream mCacheFile;
-
-	boolean cacheRead(Tile tile, File f) {
-		if (f.exists() && f.length() > 0) {
-			FileInputStream in;
-
-			try {
-				in = new FileInputStream(f);
-
-				mContentLenth = f.length();
-				Log.d(TAG, tile + " - using cache: " + mContentLenth);
-				mInputStream = in;
-
-				//decode();
-				in.close();
-
-				return true;
-
-			} catch (FileNotFoundException e) {
-				e.printStackTrace();
-			} catch (Exception ex) {
-				ex.printStackTrace();
-			}
+	/**
+	 * Starts copying the content of the next response to the cache. Must
+	 * be called before readHeader().
+	 */
+	void cacheBegin(Tile tile, CacheManager cache) {
+		if (cache == null)
+			return;
 
-			f.delete();
-			return false;
-		}
+		mCacheWriter.begin(tile);
+		mCacheWriter.expires = System.currentTimeMillis() + MapDatabase.CACHE_MAX_AGE;
 
-		return false;
+		mDecoder.setCopyOutput(mCacheWriter);
+		mCacheWrite = true;
 	}
 
-	boolean cacheBegin(Tile tile, File f) {
-		if (MapDatabase.USE_CACHE) {
-			try {
-				Log.d(TAG, tile + " - writing cache");
-				mCacheFile = new FileOutputStream(f);
-
-				if (mReadPos > 0) {
-					try {
-						mCacheFile.write(buffer, bufferPos,
-								bufferFill - bufferPos);
-
-					} catch (IOException e) {
-						e.printStackTrace();
-						mCacheFile = null;
-						return false;
-					}
-				}
-			} catch (FileNotFoundException e) {
-				e.printStackTrace();
-				mCacheFile = null;
-				return false;
-			}
+	void cacheFinish(CacheManager cache, boolean success) {
+		if (mCacheWrite && success) {
+			mCacheWriter.etag = mETag;
+			cache.put(mCacheWriter);
 		}
-		return true;
-	}
 
-	void cacheFinish(Tile tile, File file, boolean success) {
-		if (MapDatabase.USE_CACHE) {
-			if (success) {
-				try {
-					mCacheFile.flush();
-					mCacheFile.close();
-					Log.d(TAG, tile + " - cache written " + file.length());
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			} else {
-				file.delete();
-			}
-		}
-		mCacheFile = null;
+		mDecoder.setCopyOutput(null);
+		mCacheWrite = false;
 	}
 }
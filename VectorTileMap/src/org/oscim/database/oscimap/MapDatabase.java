@@ -21,6 +21,8 @@ import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.util.Arrays;
 
+import org.oscim.backend.Log;
+import org.oscim.cache.CacheManager;
 import org.oscim.core.BoundingBox;
 import org.oscim.core.GeoPoint;
 import org.oscim.core.Tag;
@@ -31,11 +33,11 @@ import org.oscim.database.MapInfo;
 import org.oscim.database.MapOptions;
 import org.oscim.database.OpenResult;
 import org.oscim.database.QueryResult;
+import org.oscim.database.common.ProtobufDecoder;
+import org.oscim.database.common.StringTable;
 import org.oscim.generator.JobTile;
 
 import android.os.Environment;
-import android.os.SystemClock;
-import android.util.Log;
 
 /**
  *
@@ -53,14 +55,18 @@ public class MapDatabase implements IMapDatabase {
 
 
 	private static final String CACHE_DIRECTORY = "/Android/data/org.oscim.app/cache/";
-	private static final String CACHE_FILE = "%d-%d-%d.tile";
+	private static final String CACHE_FILE = "oscimap.cache";
+	// size budget of the tile cache
+	private static final long CACHE_MAX_SIZE = 100 * 1024 * 1024;
+	// time until cached tiles are stale
+	static final long CACHE_MAX_AGE = 7 * 24 * 60 * 60 * 1000L;
 
 
 	private final static float REF_TILE_SIZE = 4096.0f;
 
 	// 'open' state
 	private boolean mOpen = false;
-	private static File cacheDir;
+	private CacheManager mCache;
 
 	private final int MAX_TILE_TAGS = 100;
 	private Tag[] curTags = new Tag[MAX_TILE_TAGS];
@@ -75,6 +81,8 @@ public class MapDatabase implements IMapDatabase {
 	private final boolean debug = false;
 	private LwHttp lwHttp;
 
+	private final ProtobufDecoder mDecoder = new ProtobufDecoder();
+
 	@Override
 	public QueryResult executeQuery(JobTile tile, IMapDatabaseCallback mapDatabaseCallback) {
 		QueryResult result = QueryResult.SUCCESS;
@@ -86,22 +94,27 @@ public class MapDatabase implements IMapDatabase {
 		// scale coordinates to tile size
 		mScaleFactor = REF_TILE_SIZE / Tile.TILE_SIZE;
 
-		File f = null;
-
-		if (USE_CACHE) {
-			 f = new File(cacheDir, String.format(CACHE_FILE,
-					Integer.valueOf(tile.zoomLevel),
-					Integer.valueOf(tile.tileX),
-					Integer.valueOf(tile.tileY)));
-
-			if (lwHttp.cacheRead(tile, f))
+		// a tile that cannot be read from the cache is loaded from the
+		// network, a corrupt entry is removed by the cache.
+		if (mCache != null && (mContentLenth = lwHttp.cacheRead(tile, mCache)) >= 0) {
+			try {
+				decode();
 				return QueryResult.SUCCESS;
+			} catch (IOException e) {
+				// the data passed the checksum but cannot be decoded, some
+				// elements were already passed to the callback.
+				Log.d(TAG, tile + " cache decode failed: " + e.getMessage());
+				// load from network on next try
+				mCache.remove(tile);
+				return QueryResult.FAILED;
+			}
 		}
 
 		try {
 
+			lwHttp.cacheBegin(tile, mCache);
+
 			if (lwHttp.sendRequest(tile) && (mContentLenth = lwHttp.readHeader()) >= 0) {
-				lwHttp.cacheBegin(tile, f);
 				decode();
 			} else {
 				Log.d(TAG, tile + " Network Error");
@@ -121,15 +134,12 @@ public class MapDatabase implements IMapDatabase {
 			result = QueryResult.FAILED;
 		}
 
-		lwHttp.mLastRequest = SystemClock.elapsedRealtime();
+		// closes the connection when the response was not read
+		// completely
+		lwHttp.finishRequest(result == QueryResult.SUCCESS);
 
-		if (result == QueryResult.SUCCESS) {
+		lwHttp.cacheFinish(mCache, result == QueryResult.SUCCESS);
 
-			lwHttp.cacheFinish(tile, f, true);
-		} else {
-			lwHttp.cacheFinish(tile, f, false);
-			lwHttp.close();
-		}
 		return result;
 	}
 
@@ -156,20 +166,25 @@ public class MapDatabase implements IMapDatabase {
 		if (options == null || !options.containsKey("url"))
 			return new OpenResult("options missing");
 
-		lwHttp = new LwHttp();
+		lwHttp = new LwHttp(mDecoder);
 
 		if (!lwHttp.setServer(options.get("url"))){
 			return new OpenResult("invalid url: " + options.get("url"));
 		}
 
-		if (USE_CACHE) {
-			if (cacheDir == null) {
-				String externalStorageDirectory = Environment
-						.getExternalStorageDirectory()
-						.getAbsolutePath();
-				String cacheDirectoryPath = externalStorageDirectory + CACHE_DIRECTORY;
-				cacheDir = createDirectory(cacheDirectoryPath);
-			}
+		// option 'cache' overrides the default cache directory and
+		// enables the cache
+		String cacheDirectoryPath = options.get("cache");
+		if (cacheDirectoryPath == null && USE_CACHE) {
+			String externalStorageDirectory = Environment
+					.getExternalStorageDirectory()
+					.getAbsolutePath();
+			cacheDirectoryPath = externalStorageDirectory + CACHE_DIRECTORY;
+		}
+
+		if (cacheDirectoryPath != null) {
+			File cacheDir = createDirectory(cacheDirectoryPath);
+			mCache = CacheManager.open(new File(cacheDir, CACHE_FILE), CACHE_MAX_SIZE);
 		}
 
 		mOpen = true;
@@ -185,8 +200,9 @@ public class MapDatabase implements IMapDatabase {
 
 		lwHttp.close();
 
-		if (USE_CACHE) {
-			cacheDir = null;
+		if (mCache != null) {
+			mCache.release();
+			mCache = null;
 		}
 	}
 
@@ -211,19 +227,8 @@ public class MapDatabase implements IMapDatabase {
 	// /////////////// hand sewed tile protocol buffers decoder ///////////////
 	private final int MAX_WAY_COORDS = 16384;
 
-	//private final byte[] mReadBuffer = new byte[BUFFER_SIZE];
-
-	// position in buffer
-//	private int mBufferPos;
-
-	// bytes available in buffer
-//	private int mBufferFill;
-
-	// overall bytes of content processed
-	private int mBytesProcessed;
-
-	// overall bytes of content read
-//	private int mReadPos;
+	// keys and values of Tags and the tile tags seen so far
+	private static final int MAX_STRINGS = 4096;
 
 	private static final int TAG_TILE_NUM_TAGS = 1;
 	private static final int TAG_TILE_TAG_KEYS = 2;
@@ -250,6 +255,8 @@ public class MapDatabase implements IMapDatabase {
 
 	private Tag[][] mElementTags;
 
+	private StringTable mStrings;
+
 	private void initDecorder() {
 		// reusable tag set
 		Tag[][] tags = new Tag[10][];
@@ -258,6 +265,12 @@ public class MapDatabase implements IMapDatabase {
 		mElementTags = tags;
 
 		mTmpCoords = new float[MAX_WAY_COORDS];
+
+		StringTable strings = new StringTable(MAX_STRINGS);
+		strings.addAll(Tags.keys);
+		for (Tag t : Tags.tags)
+			strings.add(t.value);
+		mStrings = strings;
 	}
 
 	private boolean decode() throws IOException {
@@ -267,23 +280,23 @@ public class MapDatabase implements IMapDatabase {
 		if (debug)
 			Log.d(TAG, mTile + " Content length " + mContentLenth);
 
-		mBytesProcessed = 0;
+		ProtobufDecoder d = mDecoder;
 		int val;
 		int numTags = 0;
 
-		while (mBytesProcessed < mContentLenth && (val = decodeVarint32()) > 0) {
+		while (d.hasData() && (val = d.decodeVarint32()) > 0) {
 			// read tag and wire type
 			int tag = (val >> 3);
 
 			switch (tag) {
 				case TAG_TILE_NUM_TAGS:
-					numTags = decodeVarint32();
+					numTags = d.decodeVarint32();
 					if (numTags > curTags.length)
 						curTags = new Tag[numTags];
 					break;
 
 				case TAG_TILE_TAG_KEYS:
-					mTmpKeys = decodeShortArray(numTags, mTmpKeys);
+					mTmpKeys = d.decodeShortArray(numTags, mTmpKeys);
 					break;
 
 				case TAG_TILE_TAG_VALUES:
@@ -306,15 +319,15 @@ public class MapDatabase implements IMapDatabase {
 	}
 
 	private boolean decodeTileTags(int curTag) throws IOException {
-		String tagString = decodeString();
-
 		String key = Tags.keys[mTmpKeys[curTag]];
 		Tag tag;
 
+		// names are rarely shared, other values are looked up
+		// in the table of known strings
 		if (key == Tag.TAG_KEY_NAME)
-			tag = new Tag(key, tagString, false);
+			tag = new Tag(key, mDecoder.decodeString(), false);
 		else
-			tag = new Tag(key, tagString, true);
+			tag = Tag.interned(key, mDecoder.decodeString(mStrings));
 		if (debug)
 			Log.d(TAG, mTile + " add tag: " + curTag + " " + tag);
 		curTags[curTag] = tag;
@@ -323,9 +336,10 @@ public class MapDatabase implements IMapDatabase {
 	}
 
 	private boolean decodeTileElement(int type) throws IOException {
-		int bytes = decodeVarint32();
+		ProtobufDecoder d = mDecoder;
+		int bytes = d.decodeVarint32();
 
-		int end = mBytesProcessed + bytes;
+		int end = d.position() + bytes;
 		int indexCnt = 1;
 		int coordCnt = 0;
 		int layer = 5;
@@ -342,9 +356,9 @@ public class MapDatabase implements IMapDatabase {
 		if (type == TAG_TILE_POINT)
 			coordCnt = 2;
 
-		while (mBytesProcessed < end) {
+		while (d.position() < end) {
 			// read tag and wire type
-			int val = decodeVarint32();
+			int val = d.decodeVarint32();
 			if (val == 0)
 				break;
 
@@ -356,23 +370,20 @@ public class MapDatabase implements IMapDatabase {
 					break;
 
 				case TAG_ELEM_NUM_INDICES:
-					indexCnt = decodeVarint32();
+					indexCnt = d.decodeVarint32();
 					break;
 
 				case TAG_ELEM_INDEX:
-					index = decodeShortArray(indexCnt, mIndices);
-					if (index != null) {
-						mIndices = index;
-
-						for (int i = 0; i < indexCnt; i++) {
-							int len = index[i] * 2;
-							coordCnt += len;
-							index[i] = (short) len;
-						}
-						// set end marker
-						if (indexCnt < index.length)
-							index[indexCnt] = -1;
+					index = d.decodeShortArray(indexCnt, mIndices);
+					mIndices = index;
+
+					for (int i = 0; i < indexCnt; i++) {
+						int len = index[i] * 2;
+						coordCnt += len;
+						index[i] = (short) len;
 					}
+					// set end marker
+					index[indexCnt] = -1;
 					break;
 
 				case TAG_ELEM_COORDS:
@@ -389,11 +400,11 @@ public class MapDatabase implements IMapDatabase {
 					break;
 
 				case TAG_ELEM_LAYER:
-					layer = decodeVarint32();
+					layer = d.decodeVarint32();
 					break;
 
 				case TAG_ELEM_PRIORITY:
-					prio = decodeVarint32();
+					prio = d.decodeVarint32();
 					break;
 
 				default:
@@ -423,16 +434,17 @@ public class MapDatabase implements IMapDatabase {
 	}
 
 	private Tag[] decodeWayTags() throws IOException {
-		int bytes = decodeVarint32();
+		ProtobufDecoder d = mDecoder;
+		int bytes = d.decodeVarint32();
 
 		Tag[] tmp = mTmpTags;
 
 		int cnt = 0;
-		int end = mBytesProcessed + bytes;
+		int end = d.position() + bytes;
 		int max = mCurTagCnt;
 
-		while (mBytesProcessed < end) {
-			int tagNum = decodeVarint32();
+		while (d.position() < end) {
+			int tagNum = d.decodeVarint32();
 
 			if (tagNum < 0) {
 				Log.d(TAG, "NULL TAG: " + mTile + " invalid tag:" + tagNum + " " + cnt);
@@ -470,27 +482,12 @@ public class MapDatabase implements IMapDatabase {
 	}
 
 	private int decodeWayCoordinates(boolean skip, int nodes) throws IOException {
-		int bytes = decodeVarint32();
-
-		lwHttp.readBuffer(bytes);
-
 		if (skip) {
-			lwHttp.bufferPos += bytes;
+			mDecoder.skipField();
 			return nodes;
 		}
 
-		int pos = lwHttp.bufferPos;
-		int end = pos + bytes;
 		float[] coords = mTmpCoords;
-		byte[] buf = lwHttp.buffer;
-		int cnt = 0;
-		int result;
-
-		int lastX = 0;
-		int lastY = 0;
-		boolean even = true;
-
-		float scale = mScaleFactor;
 
 		if (nodes * 2 > coords.length) {
 			Log.d(TAG, mTile + " increase way coord buffer to " + (nodes * 2));
@@ -498,195 +495,6 @@ public class MapDatabase implements IMapDatabase {
 			mTmpCoords = coords = tmp;
 		}
 
-		// read repeated sint32
-		while (pos < end) {
-			if (buf[pos] >= 0) {
-				result = buf[pos++];
-			} else if (buf[pos + 1] >= 0) {
-				result = (buf[pos++] & 0x7f)
-						| buf[pos++] << 7;
-			} else if (buf[pos + 2] >= 0) {
-				result = (buf[pos++] & 0x7f)
-						| (buf[pos++] & 0x7f) << 7
-						| (buf[pos++]) << 14;
-			} else if (buf[pos + 3] >= 0) {
-				result = (buf[pos++] & 0x7f)
-						| (buf[pos++] & 0x7f) << 7
-						| (buf[pos++] & 0x7f) << 14
-						| (buf[pos++]) << 21;
-			} else {
-				result = (buf[pos] & 0x7f)
-						| (buf[pos + 1] & 0x7f) << 7
-						| (buf[pos + 2] & 0x7f) << 14
-						| (buf[pos + 3] & 0x7f) << 21
-						| (buf[pos + 4]) << 28;
-				pos += 4;
-				int i = 0;
-
-				while (buf[pos++] < 0 && i < 10)
-					i++;
-
-				if (i == 10)
-					throw new IOException("X malformed VarInt32 in " + mTile);
-
-			}
-
-			// zigzag decoding
-			int s = ((result >>> 1) ^ -(result & 1));
-
-			if (even) {
-				lastX = lastX + s;
-				coords[cnt++] = lastX / scale;
-				even = false;
-			} else {
-				lastY = lastY + s;
-				coords[cnt++] = lastY / scale;
-				even = true;
-			}
-		}
-
-		lwHttp.bufferPos = pos;
-		mBytesProcessed += bytes;
-
-		return cnt;
-	}
-
-	private short[] decodeShortArray(int num, short[] array) throws IOException {
-		int bytes = decodeVarint32();
-
-		short[] index = array;
-		if (index.length < num) {
-			index = new short[num];
-		}
-
-		lwHttp.readBuffer(bytes);
-
-		int cnt = 0;
-
-		int pos = lwHttp.bufferPos;
-		int end = pos + bytes;
-		byte[] buf = lwHttp.buffer;
-		int result;
-
-		while (pos < end) {
-
-			if (buf[pos] >= 0) {
-				result = buf[pos++];
-			} else if (buf[pos + 1] >= 0) {
-				result = (buf[pos] & 0x7f)
-						| buf[pos + 1] << 7;
-				pos += 2;
-			} else if (buf[pos + 2] >= 0) {
-				result = (buf[pos] & 0x7f)
-						| (buf[pos + 1] & 0x7f) << 7
-						| (buf[pos + 2]) << 14;
-				pos += 3;
-			} else if (buf[pos + 3] >= 0) {
-				result = (buf[pos] & 0x7f)
-						| (buf[pos + 1] & 0x7f) << 7
-						| (buf[pos + 2] & 0x7f) << 14
-						| (buf[pos + 3]) << 21;
-				pos += 4;
-			} else {
-				result = (buf[pos] & 0x7f)
-						| (buf[pos + 1] & 0x7f) << 7
-						| (buf[pos + 2] & 0x7f) << 14
-						| (buf[pos + 3] & 0x7f) << 21
-						| (buf[pos + 4]) << 28;
-
-				pos += 4;
-				int i = 0;
-
-				while (buf[pos++] < 0 && i < 10)
-					i++;
-
-				if (i == 10)
-					throw new IOException("X malformed VarInt32 in " + mTile);
-
-			}
-
-			index[cnt++] = (short) result;
-		}
-
-		lwHttp.bufferPos = pos;
-		mBytesProcessed += bytes;
-
-		return index;
+		return mDecoder.decodeCoordinates(coords, mScaleFactor);
 	}
-
-	private int decodeVarint32() throws IOException {
-		int pos = lwHttp.bufferPos;
-
-		if (pos + 10 > lwHttp.bufferFill) {
-			lwHttp.readBuffer(4096);
-			pos = lwHttp.bufferPos;
-		}
-
-		byte[] buf =lwHttp.buffer;
-
-		if (buf[pos] >= 0) {
-			lwHttp.bufferPos += 1;
-			mBytesProcessed += 1;
-			return buf[pos];
-		} else if (buf[pos + 1] >= 0) {
-			lwHttp.bufferPos += 2;
-			mBytesProcessed += 2;
-			return (buf[pos] & 0x7f)
-					| (buf[pos + 1]) << 7;
-
-		} else if (buf[pos + 2] >= 0) {
-			lwHttp.bufferPos += 3;
-			mBytesProcessed += 3;
-			return (buf[pos] & 0x7f)
-					| (buf[pos + 1] & 0x7f) << 7
-					| (buf[pos + 2]) << 14;
-		} else if (buf[pos + 3] >= 0) {
-			lwHttp.bufferPos += 4;
-			mBytesProcessed += 4;
-			return (buf[pos] & 0x7f)
-					| (buf[pos + 1] & 0x7f) << 7
-					| (buf[pos + 2] & 0x7f) << 14
-					| (buf[pos + 3]) << 21;
-		}
-
-		int result = (buf[pos] & 0x7f)
-				| (buf[pos + 1] & 0x7f) << 7
-				| (buf[pos + 2] & 0x7f) << 14
-				| (buf[pos + 3] & 0x7f) << 21
-				| (buf[pos + 4]) << 28;
-
-		int read = 5;
-		pos += 4;
-
-		// 'Discard upper 32 bits' - the original comment.
-		// havent found this in any document but the code provided by google.
-		while (buf[pos++] < 0 && read < 10)
-			read++;
-
-		if (read == 10)
-			throw new IOException("X malformed VarInt32 in " + mTile);
-
-		lwHttp.bufferPos += read;
-		mBytesProcessed += read;
-
-		return result;
-	}
-
-	private String decodeString() throws IOException {
-		final int size = decodeVarint32();
-		lwHttp.readBuffer(size);
-		final String result = new String(lwHttp.buffer, lwHttp.bufferPos, size, "UTF-8");
-
-		lwHttp.bufferPos += size;
-		mBytesProcessed += size;
-		return result;
-
-	}
-
-	static int decodeInt(byte[] buffer, int offset) {
-		return buffer[offset] << 24 | (buffer[offset + 1] & 0xff) << 16
-				| (buffer[offset + 2] & 0xff) << 8
-				| (buffer[offset + 3] & 0xff);
-	}
-
 }
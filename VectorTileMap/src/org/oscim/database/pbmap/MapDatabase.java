@@ -16,9 +16,6 @@ package org.oscim.database.pbmap;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -34,6 +31,8 @@ import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
+import org.oscim.backend.Log;
+import org.oscim.cache.CacheManager;
 import org.oscim.core.BoundingBox;
 import org.oscim.core.GeoPoint;
 import org.oscim.core.Tag;
@@ -44,11 +43,10 @@ import org.oscim.database.MapInfo;
 import org.oscim.database.MapOptions;
 import org.oscim.database.OpenResult;
 import org.oscim.database.QueryResult;
+import org.oscim.database.common.ProtobufDecoder;
 import org.oscim.generator.JobTile;
 
 import android.os.Environment;
-import android.os.SystemClock;
-import android.util.Log;
 
 /**
  *
@@ -70,7 +68,11 @@ public class MapDatabase implements IMapDatabase {
 	//	private static final boolean USE_LW_HTTP = true;
 
 	private static final String CACHE_DIRECTORY = "/Android/data/org.oscim.app/cache/";
-	private static final String CACHE_FILE = "%d-%d-%d.tile";
+	private static final String CACHE_FILE = "pbmap.cache";
+	// size budget of the tile cache
+	private static final long CACHE_MAX_SIZE = 100 * 1024 * 1024;
+	// time until cached tiles are stale
+	private static final long CACHE_MAX_AGE = 7 * 24 * 60 * 60 * 1000L;
 
 	//	private static final String SERVER_ADDR = "city.informatik.uni-bremen.de";
 	// private static final String URL =
@@ -95,12 +97,14 @@ public class MapDatabase implements IMapDatabase {
 	private IMapDatabaseCallback mMapGenerator;
 	private float mScaleFactor;
 	private JobTile mTile;
-	private FileOutputStream mCacheFile;
+	private CacheManager mCache;
+	private final CacheManager.TileWriter mCacheWriter = new CacheManager.TileWriter();
+	private final CacheManager.TileReader mCacheReader = new CacheManager.TileReader();
+	private boolean mCacheWrite;
 
 	private String mHost;
 	private int mPort;
 	private long mContentLenth;
-	private InputStream mInputStream;
 
 	private static final int MAX_TAGS_CACHE = 100;
 
@@ -121,8 +125,6 @@ public class MapDatabase implements IMapDatabase {
 	@Override
 	public QueryResult executeQuery(JobTile tile, IMapDatabaseCallback mapDatabaseCallback) {
 		QueryResult result = QueryResult.SUCCESS;
-		mCacheFile = null;
-
 		mTile = tile;
 
 		mMapGenerator = mapDatabaseCallback;
@@ -131,20 +133,13 @@ public class MapDatabase implements IMapDatabase {
 		// scale coordinates to tile size
 		mScaleFactor = REF_TILE_SIZE / Tile.TILE_SIZE;
 
-		File f = null;
-
-		mBufferSize = 0;
-		mBufferPos = 0;
-		mReadPos = 0;
-
-		if (USE_CACHE) {
-			f = new File(cacheDir, String.format(CACHE_FILE,
-					Integer.valueOf(tile.zoomLevel),
-					Integer.valueOf(tile.tileX),
-					Integer.valueOf(tile.tileY)));
-
-			if (cacheRead(tile, f))
-				return QueryResult.SUCCESS;
+		if (mCache != null) {
+			CacheManager.Entry entry = mCache.get(tile);
+			if (entry != null) {
+				QueryResult cached = cacheRead(tile, entry);
+				if (cached != null)
+					return cached;
+			}
 		}
 
 		//		String url = null;
@@ -164,8 +159,9 @@ public class MapDatabase implements IMapDatabase {
 
 		try {
 			//			if (USE_LW_HTTP) {
+			cacheBegin(tile);
+
 			if (lwHttpSendRequest(tile) && lwHttpReadHeader() > 0) {
-				cacheBegin(tile, f);
 				decode();
 			} else {
 				result = QueryResult.FAILED;
@@ -231,18 +227,16 @@ public class MapDatabase implements IMapDatabase {
 			result = QueryResult.FAILED;
 		}
 
-		mLastRequest = SystemClock.elapsedRealtime();
+		mLastRequest = System.nanoTime() / 1000000;
 
 		//		if (USE_APACHE_HTTP)
 		//			mRequest = null;
 
-		cacheFinish(tile, f, result == QueryResult.SUCCESS);
+		cacheFinish(result == QueryResult.SUCCESS);
 
 		return result;
 	}
 
-	private static File cacheDir;
-
 	@Override
 	public String getMapProjection() {
 		return null;
@@ -326,14 +320,19 @@ public class MapDatabase implements IMapDatabase {
 		System.arraycopy(REQUEST_GET_START, 0,
 				mRequestBuffer, 0, REQUEST_GET_START.length);
 
-		if (USE_CACHE) {
-			if (cacheDir == null) {
-				String externalStorageDirectory = Environment
-						.getExternalStorageDirectory()
-						.getAbsolutePath();
-				String cacheDirectoryPath = externalStorageDirectory + CACHE_DIRECTORY;
-				cacheDir = createDirectory(cacheDirectoryPath);
-			}
+		// option 'cache' overrides the default cache directory and
+		// enables the cache
+		String cacheDirectoryPath = options.get("cache");
+		if (cacheDirectoryPath == null && USE_CACHE) {
+			String externalStorageDirectory = Environment
+					.getExternalStorageDirectory()
+					.getAbsolutePath();
+			cacheDirectoryPath = externalStorageDirectory + CACHE_DIRECTORY;
+		}
+
+		if (cacheDirectoryPath != null) {
+			File cacheDir = createDirectory(cacheDirectoryPath);
+			mCache = CacheManager.open(new File(cacheDir, CACHE_FILE), CACHE_MAX_SIZE);
 		}
 
 		mOpenFile = true;
@@ -364,8 +363,9 @@ public class MapDatabase implements IMapDatabase {
 			mSocket = null;
 		}
 		//		}
-		if (USE_CACHE) {
-			cacheDir = null;
+		if (mCache != null) {
+			mCache.release();
+			mCache = null;
 		}
 	}
 
@@ -384,16 +384,7 @@ public class MapDatabase implements IMapDatabase {
 	}
 
 	// /////////////// hand sewed tile protocol buffers decoder ////////////////
-	private static final int BUFFER_SIZE = 65536;
-
-	private final byte[] mReadBuffer = new byte[BUFFER_SIZE];
-
-	// position in read buffer
-	private int mBufferPos;
-	// bytes available in read buffer
-	private int mBufferSize;
-	// overall bytes of content processed
-	private int mBytesProcessed;
+	private final ProtobufDecoder mDecoder = new ProtobufDecoder();
 
 	private static final int TAG_TILE_TAGS = 1;
 	private static final int TAG_TILE_WAYS = 2;
@@ -414,10 +405,9 @@ public class MapDatabase implements IMapDatabase {
 	private static final int TAG_NODE_NUM_COORDS = 2;
 
 	private boolean decode() throws IOException {
-		mBytesProcessed = 0;
 		int val;
 
-		while (mBytesProcessed < mContentLenth && (val = decodeVarint32()) > 0) {
+		while (mDecoder.hasData() && (val = mDecoder.decodeVarint32()) > 0) {
 			// read tag and wire type
 			int tag = (val >> 3);
 
@@ -447,7 +437,7 @@ public class MapDatabase implements IMapDatabase {
 	}
 
 	private boolean decodeTileTags() throws IOException {
-		String tagString = decodeString();
+		String tagString = mDecoder.decodeString();
 		// Log.d(TAG, "tag>" + tagString + "<");
 
 		if (tagString == null || tagString.length() == 0) {
@@ -479,9 +469,10 @@ public class MapDatabase implements IMapDatabase {
 	}
 
 	private boolean decodeTileWays(boolean polygon) throws IOException {
-		int bytes = decodeVarint32();
+		ProtobufDecoder d = mDecoder;
+		int bytes = d.decodeVarint32();
 
-		int end = mBytesProcessed + bytes;
+		int end = d.position() + bytes;
 		int indexCnt = 0;
 		int tagCnt = 0;
 		int coordCnt = 0;
@@ -492,9 +483,9 @@ public class MapDatabase implements IMapDatabase {
 		boolean skip = false;
 		boolean fail = false;
 
-		while (mBytesProcessed < end) {
+		while (d.position() < end) {
 			// read tag and wire type
-			int val = decodeVarint32();
+			int val = d.decodeVarint32();
 			if (val == 0)
 				break;
 
@@ -522,19 +513,19 @@ public class MapDatabase implements IMapDatabase {
 					break;
 
 				case TAG_WAY_LAYER:
-					layer = decodeVarint32();
+					layer = d.decodeVarint32();
 					break;
 
 				case TAG_WAY_NUM_TAGS:
-					tagCnt = decodeVarint32();
+					tagCnt = d.decodeVarint32();
 					break;
 
 				case TAG_WAY_NUM_INDICES:
-					indexCnt = decodeVarint32();
+					indexCnt = d.decodeVarint32();
 					break;
 
 				case TAG_WAY_NUM_COORDS:
-					coordCnt = decodeVarint32();
+					coordCnt = d.decodeVarint32();
 					break;
 
 				default:
@@ -561,17 +552,18 @@ public class MapDatabase implements IMapDatabase {
 	}
 
 	private boolean decodeTileNodes() throws IOException {
-		int bytes = decodeVarint32();
+		ProtobufDecoder d = mDecoder;
+		int bytes = d.decodeVarint32();
 
-		int end = mBytesProcessed + bytes;
+		int end = d.position() + bytes;
 		int tagCnt = 0;
 		int coordCnt = 0;
 		byte layer = 0;
 		Tag[] tags = null;
 
-		while (mBytesProcessed < end) {
+		while (d.position() < end) {
 			// read tag and wire type
-			int val = decodeVarint32();
+			int val = d.decodeVarint32();
 			if (val == 0)
 				break;
 
@@ -591,15 +583,15 @@ public class MapDatabase implements IMapDatabase {
 					break;
 
 				case TAG_NODE_LAYER:
-					layer = (byte) decodeVarint32();
+					layer = (byte) d.decodeVarint32();
 					break;
 
 				case TAG_NODE_NUM_TAGS:
-					tagCnt = decodeVarint32();
+					tagCnt = d.decodeVarint32();
 					break;
 
 				case TAG_NODE_NUM_COORDS:
-					coordCnt = decodeVarint32();
+					coordCnt = d.decodeVarint32();
 					break;
 
 				default:
@@ -612,18 +604,18 @@ public class MapDatabase implements IMapDatabase {
 
 	private int decodeNodeCoordinates(int numNodes, byte layer, Tag[] tags)
 			throws IOException {
-		int bytes = decodeVarint32();
+		ProtobufDecoder d = mDecoder;
+		int bytes = d.decodeVarint32();
 
-		readBuffer(bytes);
 		int cnt = 0;
-		int end = mBytesProcessed + bytes;
+		int end = d.position() + bytes;
 		float scale = mScaleFactor;
 		// read repeated sint32
 		int lastX = 0;
 		int lastY = 0;
-		while (mBytesProcessed < end && cnt < numNodes) {
-			int lon = decodeZigZag32(decodeVarint32());
-			int lat = decodeZigZag32(decodeVarint32());
+		while (d.position() < end && cnt < numNodes) {
+			int lon = ProtobufDecoder.decodeZigZag32(d.decodeVarint32());
+			int lat = ProtobufDecoder.decodeZigZag32(d.decodeVarint32());
 			lastX = lon + lastX;
 			lastY = lat + lastY;
 
@@ -639,16 +631,17 @@ public class MapDatabase implements IMapDatabase {
 	private float[] tmpCoords = new float[MAX_WAY_COORDS];
 
 	private Tag[] decodeWayTags(int tagCnt) throws IOException {
-		int bytes = decodeVarint32();
+		ProtobufDecoder d = mDecoder;
+		int bytes = d.decodeVarint32();
 
 		Tag[] tags = new Tag[tagCnt];
 
 		int cnt = 0;
-		int end = mBytesProcessed + bytes;
+		int end = d.position() + bytes;
 		int max = mCurTagCnt;
 
-		while (mBytesProcessed < end) {
-			int tagNum = decodeVarint32();
+		while (d.position() < end) {
+			int tagNum = d.decodeVarint32();
 
 			if (tagNum < 0 || cnt == tagCnt) {
 				Log.d(TAG, "NULL TAG: " + mTile + " invalid tag:" + tagNum + " "
@@ -679,71 +672,11 @@ public class MapDatabase implements IMapDatabase {
 	private short[] mIndices = new short[10];
 
 	private short[] decodeWayIndices(int indexCnt) throws IOException {
-		int bytes = decodeVarint32();
+		short[] index = mDecoder.decodeShortArray(indexCnt, mIndices);
+		mIndices = index;
 
-		short[] index = mIndices;
-		if (index.length < indexCnt + 1) {
-			index = mIndices = new short[indexCnt + 1];
-		}
-
-		readBuffer(bytes);
-
-		int cnt = 0;
-		// int end = bytesRead + bytes;
-
-		int pos = mBufferPos;
-		int end = pos + bytes;
-		byte[] buf = mReadBuffer;
-		int result;
-
-		while (pos < end) {
-			// int val = decodeVarint32();
-
-			if (buf[pos] >= 0) {
-				result = buf[pos++];
-			} else if (buf[pos + 1] >= 0) {
-				result = (buf[pos] & 0x7f)
-						| buf[pos + 1] << 7;
-				pos += 2;
-			} else if (buf[pos + 2] >= 0) {
-				result = (buf[pos] & 0x7f)
-						| (buf[pos + 1] & 0x7f) << 7
-						| (buf[pos + 2]) << 14;
-				pos += 3;
-			} else if (buf[pos + 3] >= 0) {
-				result = (buf[pos] & 0x7f)
-						| (buf[pos + 1] & 0x7f) << 7
-						| (buf[pos + 2] & 0x7f) << 14
-						| (buf[pos + 3]) << 21;
-				pos += 4;
-			} else {
-				result = (buf[pos] & 0x7f)
-						| (buf[pos + 1] & 0x7f) << 7
-						| (buf[pos + 2] & 0x7f) << 14
-						| (buf[pos + 3] & 0x7f) << 21
-						| (buf[pos + 4]) << 28;
-
-				pos += 4;
-				int i = 0;
-
-				while (buf[pos++] < 0 && i < 10)
-					i++;
-
-				if (i == 10)
-					throw new IOException("X malformed VarInt32");
-
-			}
-
-			index[cnt++] = (short) (result * 2);
-
-			// if (cnt < indexCnt)
-			// index[cnt++] = (short) (val * 2);
-			// else DEBUG...
-
-		}
-
-		mBufferPos = pos;
-		mBytesProcessed += bytes;
+		for (int i = 0; i < indexCnt; i++)
+			index[i] = (short) (index[i] * 2);
 
 		index[indexCnt] = -1;
 
@@ -751,27 +684,12 @@ public class MapDatabase implements IMapDatabase {
 	}
 
 	private int decodeWayCoordinates(boolean skip, int nodes) throws IOException {
-		int bytes = decodeVarint32();
-
-		readBuffer(bytes);
-
 		if (skip) {
-			mBufferPos += bytes;
+			mDecoder.skipField();
 			return nodes;
 		}
 
-		int pos = mBufferPos;
-		int end = pos + bytes;
 		float[] coords = tmpCoords;
-		byte[] buf = mReadBuffer;
-		int cnt = 0;
-		int result;
-
-		int x, lastX = 0;
-		int y, lastY = 0;
-		boolean even = true;
-
-		float scale = mScaleFactor;
 
 		if (nodes * 2 > coords.length) {
 			Log.d(TAG, "increase way coord buffer " + mTile + " to " + (nodes * 2));
@@ -779,126 +697,15 @@ public class MapDatabase implements IMapDatabase {
 			tmpCoords = coords = tmp;
 		}
 
-		// read repeated sint32
-		while (pos < end) {
-
-			if (buf[pos] >= 0) {
-				result = buf[pos++];
-			} else if (buf[pos + 1] >= 0) {
-				result = (buf[pos] & 0x7f)
-						| buf[pos + 1] << 7;
-				pos += 2;
-			} else if (buf[pos + 2] >= 0) {
-				result = (buf[pos] & 0x7f)
-						| (buf[pos + 1] & 0x7f) << 7
-						| (buf[pos + 2]) << 14;
-				pos += 3;
-			} else if (buf[pos + 3] >= 0) {
-				result = (buf[pos] & 0x7f)
-						| (buf[pos + 1] & 0x7f) << 7
-						| (buf[pos + 2] & 0x7f) << 14
-						| (buf[pos + 3]) << 21;
-				pos += 4;
-			} else {
-				result = (buf[pos] & 0x7f)
-						| (buf[pos + 1] & 0x7f) << 7
-						| (buf[pos + 2] & 0x7f) << 14
-						| (buf[pos + 3] & 0x7f) << 21
-						| (buf[pos + 4]) << 28;
-
-				pos += 4;
-				int i = 0;
-
-				while (buf[pos++] < 0 && i < 10)
-					i++;
+		int cnt = mDecoder.decodeCoordinates(coords, mScaleFactor);
 
-				if (i == 10)
-					throw new IOException("X malformed VarInt32");
-
-			}
-			if (even) {
-				x = ((result >>> 1) ^ -(result & 1));
-				lastX = lastX + x;
-				coords[cnt++] = lastX / scale;
-				even = false;
-			} else {
-				y = ((result >>> 1) ^ -(result & 1));
-				lastY = lastY + y;
-				coords[cnt++] = Tile.TILE_SIZE - lastY / scale;
-				even = true;
-			}
-		}
-
-		mBufferPos = pos;
-		mBytesProcessed += bytes;
+		// flip y axis
+		for (int i = 1; i < cnt; i += 2)
+			coords[i] = Tile.TILE_SIZE - coords[i];
 
 		return cnt;
 	}
 
-	int mReadPos;
-
-	private int readBuffer(int size) throws IOException {
-		int read = 0;
-
-		if (mBufferPos + size < mBufferSize)
-			return mBufferSize - mBufferPos;
-
-		if (mReadPos == mContentLenth)
-			return mBufferSize - mBufferPos;
-
-		if (size > BUFFER_SIZE) {
-			// FIXME throw exception for now, but frankly better
-			// sanitize tile data on compilation. this should only
-			// happen with strings or one ways coordinates are
-			// larger than 64kb
-			throw new IOException("X requested size too large " + mTile);
-		}
-
-		if (mBufferSize == mBufferPos) {
-			mBufferPos = 0;
-			mBufferSize = 0;
-		} else if (mBufferPos + size > BUFFER_SIZE) {
-			//Log.d(TAG, "wrap buffer" + (size - mBufferSize) + " " + mBufferPos);
-			// copy bytes left to read to the beginning of buffer
-			mBufferSize -= mBufferPos;
-			System.arraycopy(mReadBuffer, mBufferPos, mReadBuffer, 0, mBufferSize);
-			mBufferPos = 0;
-		}
-
-		int max = BUFFER_SIZE - mBufferSize;
-
-		while ((mBufferSize - mBufferPos) < size && max > 0) {
-
-			max = BUFFER_SIZE - mBufferSize;
-			if (max > mContentLenth - mReadPos)
-				max = (int) (mContentLenth - mReadPos);
-
-			// read until requested size is available in buffer
-			int len = mInputStream.read(mReadBuffer, mBufferSize, max);
-
-			if (len < 0) {
-				// finished reading, mark end
-				mReadBuffer[mBufferSize] = 0;
-				break;
-			}
-
-			read += len;
-			mReadPos += len;
-
-			if (mCacheFile != null)
-				mCacheFile.write(mReadBuffer, mBufferSize, len);
-
-			//			if (USE_LW_HTTP) {
-			if (mReadPos == mContentLenth)
-				break;
-			//			}
-
-			mBufferSize += len;
-		}
-
-		return read;
-	}
-
 	@Override
 	public void cancel() {
 		//		if (mRequest != null) {
@@ -907,64 +714,6 @@ public class MapDatabase implements IMapDatabase {
 		//		}
 	}
 
-	private int decodeVarint32() throws IOException {
-		int pos = mBufferPos;
-
-		if (pos + 10 > mBufferSize) {
-			readBuffer(4096);
-			pos = mBufferPos;
-		}
-
-		byte[] buf = mReadBuffer;
-
-		if (buf[pos] >= 0) {
-			mBufferPos += 1;
-			mBytesProcessed += 1;
-			return buf[pos];
-		} else if (buf[pos + 1] >= 0) {
-			mBufferPos += 2;
-			mBytesProcessed += 2;
-			return (buf[pos] & 0x7f)
-					| (buf[pos + 1]) << 7;
-
-		} else if (buf[pos + 2] >= 0) {
-			mBufferPos += 3;
-			mBytesProcessed += 3;
-			return (buf[pos] & 0x7f)
-					| (buf[pos + 1] & 0x7f) << 7
-					| (buf[pos + 2]) << 14;
-		} else if (buf[pos + 3] >= 0) {
-			mBufferPos += 4;
-			mBytesProcessed += 4;
-			return (buf[pos] & 0x7f)
-					| (buf[pos + 1] & 0x7f) << 7
-					| (buf[pos + 2] & 0x7f) << 14
-					| (buf[pos + 3]) << 21;
-		}
-
-		int result = (buf[pos] & 0x7f)
-				| (buf[pos + 1] & 0x7f) << 7
-				| (buf[pos + 2] & 0x7f) << 14
-				| (buf[pos + 3] & 0x7f) << 21
-				| (buf[pos + 4]) << 28;
-
-		int read = 5;
-		pos += 4;
-
-		// 'Discard upper 32 bits' - the original comment.
-		// havent found this in any document but the code provided by google.
-		while (buf[pos++] < 0 && read < 10)
-			read++;
-
-		if (read == 10)
-			throw new IOException("X malformed VarInt32");
-
-		mBufferPos += read;
-		mBytesProcessed += read;
-
-		return result;
-	}
-
 	// ///////////////////////// Lightweight HttpClient //////////////////////
 	// would have written simple tcp server/client for this...
 
@@ -991,7 +740,8 @@ public class MapDatabase implements IMapDatabase {
 	int lwHttpReadHeader() throws IOException {
 		InputStream is = mResponseStream;
 
-		byte[] buf = mReadBuffer;
+		byte[] buf = mDecoder.getBuffer();
+		int bufferSize = buf.length;
 
 		int read = 0;
 		int pos = 0;
@@ -1001,7 +751,7 @@ public class MapDatabase implements IMapDatabase {
 		boolean first = true;
 
 		for (int len = 0; pos < read
-				|| (len = is.read(buf, read, BUFFER_SIZE - read)) >= 0; len = 0) {
+				|| (len = is.read(buf, read, bufferSize - read)) >= 0; len = 0) {
 			read += len;
 
 			while (end < read && (buf[end] != '\n'))
@@ -1045,16 +795,8 @@ public class MapDatabase implements IMapDatabase {
 
 		mContentLenth = resp_len;
 
-		// start of content
-		mBufferPos = end;
-
-		// bytes of content already read into buffer
-		mReadPos = read - end;
-
-		// buffer fill
-		mBufferSize = read;
-
-		mInputStream = mResponseStream;
+		// content already read into buffer starts after the header
+		mDecoder.setInput(is, resp_len, end, read - end);
 
 		return resp_len;
 	}
@@ -1065,7 +807,7 @@ public class MapDatabase implements IMapDatabase {
 		}
 
 		if (mSocket != null && ((mMaxReq-- <= 0)
-				|| (SystemClock.elapsedRealtime() - mLastRequest
+				|| (System.nanoTime() / 1000000 - mLastRequest
 				> RESPONSE_EXPECTED_TIMEOUT))) {
 
 			try {
@@ -1088,7 +830,7 @@ public class MapDatabase implements IMapDatabase {
 			int avail = mResponseStream.available();
 			if (avail > 0) {
 				Log.d(TAG, "Consume left-over bytes: " + avail);
-				mResponseStream.read(mReadBuffer, 0, avail);
+				mResponseStream.read(mDecoder.getBuffer(), 0, avail);
 			}
 		}
 
@@ -1167,128 +909,53 @@ public class MapDatabase implements IMapDatabase {
 
 	// //////////////////////////// Tile cache ///////////////////////////////
 
-	private boolean cacheRead(Tile tile, File f) {
-		if (f.exists() && f.length() > 0) {
-			FileInputStream in;
-
-			try {
-				in = new FileInputStream(f);
-
-				mContentLenth = f.length();
-				Log.d(TAG, tile + " using cache: " + mContentLenth);
-				mInputStream = in;
-
-				decode();
-				in.close();
-
-				return true;
-
-			} catch (FileNotFoundException e) {
-				e.printStackTrace();
-			} catch (Exception ex) {
-				ex.printStackTrace();
-			}
-
-			f.delete();
-			return false;
+	// returns null when the tile could not be read from the cache and
+	// should be loaded from the network
+	private QueryResult cacheRead(Tile tile, CacheManager.Entry entry) {
+		try {
+			// a corrupt entry is removed by the cache
+			if (!mCache.read(entry, mCacheReader))
+				return null;
+		} catch (IOException ex) {
+			Log.d(TAG, tile + " cache read failed: " + ex.getMessage());
+			return null;
 		}
 
-		return false;
-	}
+		mContentLenth = entry.length;
 
-	private boolean cacheBegin(Tile tile, File f) {
-		if (USE_CACHE) {
-			try {
-				Log.d(TAG, "writing cache: " + tile);
-				mCacheFile = new FileOutputStream(f);
-
-				if (mReadPos > 0) {
-					try {
-						mCacheFile.write(mReadBuffer, mBufferPos,
-								mBufferSize - mBufferPos);
-
-					} catch (IOException e) {
-						e.printStackTrace();
-						mCacheFile = null;
-						return false;
-					}
-				}
-			} catch (FileNotFoundException e) {
-				e.printStackTrace();
-				mCacheFile = null;
-				return false;
-			}
+		try {
+			mDecoder.setCopyOutput(null);
+			mDecoder.setInput(mCacheReader, entry.length, 0, 0);
+			decode();
+			return QueryResult.SUCCESS;
+		} catch (Exception ex) {
+			// the data passed the checksum but cannot be decoded, some
+			// elements were already passed to the callback.
+			Log.d(TAG, tile + " cache decode failed: " + ex.getMessage());
 		}
-		return true;
-	}
 
-	private void cacheFinish(Tile tile, File file, boolean success) {
-		if (USE_CACHE) {
-			if (success) {
-				try {
-					mCacheFile.flush();
-					mCacheFile.close();
-					Log.d(TAG, tile + " cache written " + file.length());
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			} else {
-				file.delete();
-			}
-		}
-		mCacheFile = null;
+		// load from network on next try
+		mCache.remove(tile);
+		return QueryResult.FAILED;
 	}
 
-	/*
-	 * All code below is taken from or based on Google's Protocol Buffers
-	 * implementation:
-	 */
+	private void cacheBegin(Tile tile) {
+		if (mCache == null)
+			return;
 
-	// Protocol Buffers - Google's data interchange format
-	// Copyright 2008 Google Inc. All rights reserved.
-	// http://code.google.com/p/protobuf/
-	//
-	// Redistribution and use in source and binary forms, with or without
-	// modification, are permitted provided that the following conditions are
-	// met:
-	//
-	// * Redistributions of source code must retain the above copyright
-	// notice, this list of conditions and the following disclaimer.
-	// * Redistributions in binary form must reproduce the above
-	// copyright notice, this list of conditions and the following disclaimer
-	// in the documentation and/or other materials provided with the
-	// distribution.
-	// * Neither the name of Google Inc. nor the names of its
-	// contributors may be used to endorse or promote products derived from
-	// this software without specific prior written permission.
-	//
-	// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
-	// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
-	// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
-	// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
-	// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
-	// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
-	// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
-	// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
-	// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
-	// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
-	// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
-
-	private String decodeString() throws IOException {
-		final int size = decodeVarint32();
-
-		readBuffer(size);
-
-		final String result = new String(mReadBuffer, mBufferPos, size, "UTF-8");
-
-		mBufferPos += size;
-		mBytesProcessed += size;
-		return result;
+		mCacheWriter.begin(tile);
+		mCacheWriter.expires = System.currentTimeMillis() + CACHE_MAX_AGE;
 
+		// copy the content of the next response
+		mDecoder.setCopyOutput(mCacheWriter);
+		mCacheWrite = true;
 	}
 
-	private static int decodeZigZag32(final int n) {
-		return (n >>> 1) ^ -(n & 1);
-	}
+	private void cacheFinish(boolean success) {
+		if (mCacheWrite && success)
+			mCache.put(mCacheWriter);
 
+		mDecoder.setCopyOutput(null);
+		mCacheWrite = false;
+	}
 }
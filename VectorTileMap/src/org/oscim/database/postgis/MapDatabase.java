@@ -23,6 +23,7 @@ import java.util.HashMap;
 import java.util.Map.Entry;
 import java.util.Properties;
 
+import org.oscim.backend.Log;
 import org.oscim.core.BoundingBox;
 import org.oscim.core.GeoPoint;
 import org.oscim.core.Tag;
@@ -36,8 +37,6 @@ import org.oscim.database.QueryResult;
 import org.oscim.generator.JobTile;
 import org.postgresql.PGConnection;
 
-import android.util.Log;
-
 /**
  *
  *
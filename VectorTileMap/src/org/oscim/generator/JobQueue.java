@@ -18,71 +18,174 @@ package org.oscim.generator;
 import static org.oscim.generator.JobTile.STATE_LOADING;
 import static org.oscim.generator.JobTile.STATE_NONE;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * A JobQueue keeps the list of pending jobs for a MapView and prioritizes them.
+ * Each MapWorker has its own queue of jobs sorted by JobTile.distance, a worker
+ * without jobs steals the most important job of another worker.
  */
 public class JobQueue {
 
-	private int mCurrentJob = 0;
-	private JobTile[] mJobs;
+	static final class JobDeque {
+		JobTile[] jobs = new JobTile[16];
+		int head;
+		int tail;
+
+		// must be called with lock held
+		void add(JobTile t) {
+			if (tail == jobs.length) {
+				if (head > 0) {
+					System.arraycopy(jobs, head, jobs, 0, tail - head);
+				} else {
+					JobTile[] tmp = new JobTile[jobs.length * 2];
+					System.arraycopy(jobs, 0, tmp, 0, tail);
+					jobs = tmp;
+				}
+				tail -= head;
+				head = 0;
+			}
+			jobs[tail++] = t;
+		}
+
+		// must be called with lock held
+		JobTile poll() {
+			if (head == tail)
+				return null;
+
+			JobTile t = jobs[head];
+			jobs[head++] = null;
+
+			if (head == tail)
+				head = tail = 0;
+
+			return t;
+		}
+	}
+
+	private final JobDeque[] mDeques;
+	private final AtomicInteger mJobCount = new AtomicInteger();
+
+	// deque that receives the most important of the next added jobs
+	private int mNextDeque;
+
+	/**
+	 * @param workers
+	 *            number of MapWorkers polling this queue.
+	 */
+	public JobQueue(int workers) {
+		mDeques = new JobDeque[workers];
+		for (int i = 0; i < workers; i++)
+			mDeques[i] = new JobDeque();
+	}
 
 	/**
+	 * Adds jobs to this queue and reprioritizes the pending jobs by their
+	 * current 'distance'. Pending jobs that were canceled are removed, jobs
+	 * already taken by a MapWorker are not affected.
+	 *
 	 * @param tiles
-	 *            the jobs to be added to this queue.
+	 *            the jobs to be added to this queue, may be empty to only
+	 *            reprioritize.
 	 */
-	public synchronized void setJobs(JobTile[] tiles) {
-		for (JobTile t : tiles)
-			t.state = STATE_LOADING;
+	public void addJobs(JobTile[] tiles) {
+		int numJobs = tiles.length;
+
+		for (int i = 0; i < numJobs; i++) {
+			tiles[i].state = STATE_LOADING;
+			tiles[i].canceled = false;
+		}
 
-		mJobs = tiles;
-		mCurrentJob = 0;
+		if (numJobs > 1)
+			TileDistanceSort.sort(tiles, 0, numJobs);
+
+		// distribute jobs round-robin so that each worker gets
+		// jobs of similar priority
+		int numDeques = mDeques.length;
+		int start = mNextDeque;
+		mNextDeque = (start + numJobs) % numDeques;
+
+		for (int d = 0; d < numDeques; d++) {
+			JobDeque deque = mDeques[(start + d) % numDeques];
+
+			synchronized (deque) {
+				for (int i = d; i < numJobs; i += numDeques) {
+					deque.add(tiles[i]);
+					mJobCount.incrementAndGet();
+				}
+				reprioritize(deque);
+			}
+		}
+	}
+
+	// must be called with lock held
+	private void reprioritize(JobDeque deque) {
+		JobTile[] jobs = deque.jobs;
+
+		int n = deque.head;
+		for (int i = deque.head; i < deque.tail; i++) {
+			JobTile t = jobs[i];
+			if (t.canceled) {
+				t.state = STATE_NONE;
+				mJobCount.decrementAndGet();
+			} else {
+				jobs[n++] = t;
+			}
+		}
+		for (int i = n; i < deque.tail; i++)
+			jobs[i] = null;
+
+		deque.tail = n;
+
+		// most jobs keep their order when the map moves, which
+		// makes this cheap.
+		if (n - deque.head > 1)
+			TileDistanceSort.sort(jobs, deque.head, n);
 	}
 
 	/**
 	 * Removes all jobs from this queue.
 	 */
-	public synchronized void clear() {
-		if (mJobs == null) {
-			mCurrentJob = 0;
-			return;
-		}
-		JobTile[] tiles = mJobs;
-
-		for (int i = mCurrentJob, n = mJobs.length; i < n; i++) {
-			tiles[i].state = STATE_NONE;
-			tiles[i] = null;
+	public void clear() {
+		for (JobDeque deque : mDeques) {
+			synchronized (deque) {
+				JobTile t;
+				while ((t = deque.poll()) != null) {
+					t.state = STATE_NONE;
+					mJobCount.decrementAndGet();
+				}
+			}
 		}
-		mCurrentJob = 0;
-		mJobs = null;
 	}
 
 	/**
 	 * @return true if this queue contains no jobs, false otherwise.
 	 */
-	public synchronized boolean isEmpty() {
-		return (mJobs == null);
+	public boolean isEmpty() {
+		return mJobCount.get() <= 0;
 	}
 
 	/**
-	 * @return the most important job from this queue or null, if empty.
+	 * @param worker
+	 *            id of the polling MapWorker
+	 * @return the most important job for 'worker' or null, if empty.
 	 */
-	public synchronized JobTile poll() {
-		if (mJobs == null)
-			return null;
-
-		if (mCurrentJob == 0) {
-			int len = mJobs.length;
-			if (len > 1)
-				TileDistanceSort.sort(mJobs, 0, len);
-		}
-
-		JobTile t = mJobs[mCurrentJob];
-		mJobs[mCurrentJob] = null;
+	public JobTile poll(int worker) {
+		int numDeques = mDeques.length;
 
-		if (++mCurrentJob == mJobs.length)
-			mJobs = null;
-
-		return t;
+		for (int i = 0; i < numDeques; i++) {
+			// first try own queue, then steal from others
+			JobDeque deque = mDeques[(worker + i) % numDeques];
+			JobTile t;
 
+			synchronized (deque) {
+				t = deque.poll();
+			}
+			if (t != null) {
+				mJobCount.decrementAndGet();
+				return t;
+			}
+		}
+		return null;
 	}
 }
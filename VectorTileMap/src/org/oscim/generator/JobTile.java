@@ -14,10 +14,9 @@
  */
 package org.oscim.generator;
 
+import org.oscim.backend.Log;
 import org.oscim.core.Tile;
 
-import android.util.Log;
-
 /**
  * @author Hannes Janetzek
  */
@@ -55,6 +54,12 @@ public class JobTile extends Tile {
 	 */
 	public float distance;
 
+	/**
+	 * Set by TileManager when the tile left the visible area while
+	 * loading. TileGenerator checks this to stop early.
+	 */
+	public volatile boolean canceled;
+
 	/**
 	 * @param tileX
 	 *            ...
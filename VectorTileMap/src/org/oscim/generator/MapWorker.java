@@ -15,6 +15,8 @@
 package org.oscim.generator;
 
 import org.oscim.renderer.TileManager;
+import org.oscim.renderer.layer.TextItem;
+import org.oscim.renderer.layer.VertexPool;
 import org.oscim.utils.PausableThread;
 
 /**
@@ -23,6 +25,7 @@ import org.oscim.utils.PausableThread;
  */
 public class MapWorker extends PausableThread {
 	private final String THREAD_NAME;
+	private final int mId;
 	private final JobQueue mJobQueue;
 	private final TileGenerator mMapGenerator;
 	private final TileManager mTileManager;
@@ -43,6 +46,7 @@ public class MapWorker extends PausableThread {
 		mJobQueue = jobQueue;
 		mMapGenerator = tileGenerator;
 		mTileManager = tileManager;
+		mId = id;
 
 		THREAD_NAME = "MapWorker" + id;
 	}
@@ -53,22 +57,24 @@ public class MapWorker extends PausableThread {
 
 	@Override
 	protected void afterRun() {
-		// empty
+		// return the items kept for this thread
+		VertexPool.releaseMagazine();
+		TextItem.releaseMagazine();
 	}
 
 	@Override
 	protected void doWork() {
-		JobTile tile = mJobQueue.poll();
+		JobTile tile = mJobQueue.poll(mId);
 
 		if (tile == null)
 			return;
 
 		// Log.d("...", "load: " + tile);
 
-		mMapGenerator.executeJob(tile);
+		boolean success = mMapGenerator.executeJob(tile);
 
 		if (!isInterrupted()) {
-			mTileManager.passTile(tile);
+			mTileManager.passTile(tile, success);
 		}
 	}
 
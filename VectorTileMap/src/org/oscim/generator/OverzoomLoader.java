@@ -0,0 +1,518 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.generator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.oscim.core.Tag;
+import org.oscim.core.Tile;
+import org.oscim.database.IMapDatabase;
+import org.oscim.database.IMapDatabaseCallback;
+import org.oscim.database.QueryResult;
+import org.oscim.utils.LineClipper;
+
+/**
+ * Loads tiles above the maximum zoomlevel of a MapDatabase from the
+ * elements of their ancestor tile at that zoomlevel. Ways are scaled to the
+ * tile, lines are clipped by LineClipper and the rings of polygons are
+ * clipped to the clip box by Sutherland-Hodgman, which does not change
+ * their fill within the tile.
+ * <p>
+ * The elements of recently loaded source tiles are kept, so that all tiles
+ * derived from a source tile need only one query.
+ */
+final class OverzoomLoader {
+
+	// number of source tiles kept for all TileGenerators
+	private static final int MAX_SOURCE_TILES = 16;
+
+	private static final LinkedHashMap<Long, SourceTile> sSourceTiles =
+			new LinkedHashMap<Long, SourceTile>(MAX_SOURCE_TILES, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Long, SourceTile> e) {
+					return size() > MAX_SOURCE_TILES;
+				}
+			};
+
+	/**
+	 * Elements of a tile as passed to IMapDatabaseCallback. MapDatabases
+	 * reuse their arrays and tags, so everything is copied.
+	 */
+	static final class SourceTile implements IMapDatabaseCallback {
+		final ArrayList<Element> elements = new ArrayList<Element>();
+		boolean water;
+
+		@Override
+		public void renderPointOfInterest(byte layer, Tag[] tags, float latitude,
+				float longitude) {
+			Element e = new Element(layer, tags);
+			e.coords = new float[] { longitude, latitude };
+			elements.add(e);
+		}
+
+		@Override
+		public void renderWaterBackground() {
+			water = true;
+		}
+
+		@Override
+		public void renderWay(byte layer, Tag[] tags, float[] wayNodes,
+				short[] wayLength, boolean closed, int prio) {
+			Element e = new Element(layer, tags);
+
+			int numIndices = 0;
+			int numCoords = 0;
+			while (numIndices < wayLength.length) {
+				int length = wayLength[numIndices];
+				if (length < 0)
+					break;
+				numCoords += length;
+				numIndices++;
+			}
+
+			e.indices = Arrays.copyOf(wayLength, numIndices);
+			e.coords = Arrays.copyOf(wayNodes, numCoords);
+			e.closed = closed;
+			e.prio = prio;
+			elements.add(e);
+		}
+
+		@Override
+		public boolean checkWay(Tag[] tags, boolean closed) {
+			// matching depends on the zoomlevel of the derived tile
+			return true;
+		}
+	}
+
+	static final class Element {
+		final byte layer;
+		final Tag[] tags;
+
+		float[] coords;
+		// null for points of interest
+		short[] indices;
+		boolean closed;
+		int prio;
+
+		Element(byte layer, Tag[] tags) {
+			this.layer = layer;
+			this.tags = new Tag[tags.length];
+
+			for (int i = 0; i < tags.length; i++) {
+				Tag t = tags[i];
+				// tags of the mapfile reader decode their value on request
+				if (t.getClass() != Tag.class)
+					t = new Tag(t.key, t.getValue(), false);
+				this.tags[i] = t;
+			}
+		}
+	}
+
+	private final LineClipper mClipper;
+	private final float mMin;
+	private final float mMax;
+
+	// transformed way passed to the callback
+	private float[] mCoords = new float[256];
+	private short[] mIndices = new short[8];
+
+	// scaled ring and the result of clipping it to one edge
+	private float[] mRing = new float[256];
+	private float[] mClipped = new float[256];
+
+	// tags passed to the callback, which may replace them
+	private Tag[][] mTags = new Tag[16][];
+
+	OverzoomLoader() {
+		// margin to not cut line caps at the tile border,
+		// everything is clipped to the tile when drawn.
+		int margin = Tile.TILE_SIZE / 4;
+		mMin = -margin;
+		mMax = Tile.TILE_SIZE + margin;
+		mClipper = new LineClipper(-margin, -margin,
+				Tile.TILE_SIZE + margin, Tile.TILE_SIZE + margin, true);
+	}
+
+	/**
+	 * Removes the kept source tiles, must be called when the MapDatabase
+	 * changed.
+	 */
+	static void clear() {
+		synchronized (sSourceTiles) {
+			sSourceTiles.clear();
+		}
+	}
+
+	private static Long key(int x, int y, byte zoomLevel) {
+		return Long.valueOf(((long) zoomLevel << 56) | ((long) x << 28) | y);
+	}
+
+	/**
+	 * Passes the elements of 'tile' to 'callback', derived from its
+	 * ancestor at 'sourceZoom'.
+	 *
+	 * @return the result of loading the source tile
+	 */
+	QueryResult executeQuery(IMapDatabase database, JobTile tile, byte sourceZoom,
+			IMapDatabaseCallback callback) {
+
+		int dz = tile.zoomLevel - sourceZoom;
+		int sx = tile.tileX >> dz;
+		int sy = tile.tileY >> dz;
+		Long key = key(sx, sy, sourceZoom);
+
+		SourceTile source;
+		synchronized (sSourceTiles) {
+			source = sSourceTiles.get(key);
+		}
+
+		if (source == null) {
+			// several workers may load the same source tile, which
+			// is still better than holding a lock while loading.
+			source = new SourceTile();
+			QueryResult result = database.executeQuery(new JobTile(sx, sy, sourceZoom),
+					source);
+			if (result != QueryResult.SUCCESS)
+				return result;
+
+			synchronized (sSourceTiles) {
+				sSourceTiles.put(key, source);
+			}
+		}
+
+		float scale = 1 << dz;
+		float dx = (tile.tileX - (sx << dz)) * Tile.TILE_SIZE;
+		float dy = (tile.tileY - (sy << dz)) * Tile.TILE_SIZE;
+
+		if (source.water)
+			callback.renderWaterBackground();
+
+		ArrayList<Element> elements = source.elements;
+		for (int i = 0, n = elements.size(); i < n; i++) {
+			if (tile.canceled)
+				break;
+
+			Element e = elements.get(i);
+
+			if (e.indices == null) {
+				float x = e.coords[0] * scale - dx;
+				float y = e.coords[1] * scale - dy;
+
+				// only within the tile, to not add labels twice
+				if (x < 0 || x > Tile.TILE_SIZE || y < 0 || y > Tile.TILE_SIZE)
+					continue;
+
+				callback.renderPointOfInterest(e.layer, getTags(e.tags), y, x);
+				continue;
+			}
+
+			boolean visible;
+			if (e.closed)
+				visible = clipPolygon(e, scale, dx, dy);
+			else
+				visible = clipLine(e, scale, dx, dy);
+
+			if (visible)
+				callback.renderWay(e.layer, getTags(e.tags), mCoords, mIndices,
+						e.closed, e.prio);
+		}
+
+		return QueryResult.SUCCESS;
+	}
+
+	private Tag[] getTags(Tag[] tags) {
+		int n = tags.length;
+		if (n >= mTags.length)
+			mTags = Arrays.copyOf(mTags, n + 1);
+
+		Tag[] t = mTags[n];
+		if (t == null)
+			t = mTags[n] = new Tag[n];
+
+		System.arraycopy(tags, 0, t, 0, n);
+		return t;
+	}
+
+	private void ensureCapacity(int coords, int indices) {
+		if (mCoords.length < coords)
+			mCoords = Arrays.copyOf(mCoords, coords + 64);
+
+		if (mIndices.length < indices)
+			mIndices = Arrays.copyOf(mIndices, indices + 4);
+	}
+
+	/**
+	 * Scales the rings of a closed way and clips them to the clip box.
+	 *
+	 * @return false when the outer ring does not intersect the clip box
+	 */
+	private boolean clipPolygon(Element e, float scale, float dx, float dy) {
+		float[] in = e.coords;
+		short[] index = e.indices;
+
+		int inPos = 0;
+		int outPos = 0;
+		int numRings = 0;
+
+		for (int r = 0; r < index.length; r++) {
+			int length = index[r];
+
+			if (length == 0) {
+				// keep separators of multipolygons
+				ensureCapacity(outPos, numRings + 2);
+				mIndices[numRings++] = 0;
+				continue;
+			}
+
+			if (mRing.length < length)
+				mRing = new float[length * 2];
+
+			float[] ring = mRing;
+			float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+			float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+
+			for (int i = 0; i < length; i += 2) {
+				float x = in[inPos + i] * scale - dx;
+				float y = in[inPos + i + 1] * scale - dy;
+
+				if (x < minX)
+					minX = x;
+				if (x > maxX)
+					maxX = x;
+				if (y < minY)
+					minY = y;
+				if (y > maxY)
+					maxY = y;
+
+				ring[i] = x;
+				ring[i + 1] = y;
+			}
+			inPos += length;
+
+			int size = length;
+			if (maxX < mMin || minX > mMax || maxY < mMin || minY > mMax) {
+				size = 0;
+			} else if (minX < mMin || maxX > mMax || minY < mMin || maxY > mMax) {
+				for (int edge = 0; edge < 4 && size > 0; edge++) {
+					// clipping to an edge adds at most one point per point
+					if (mClipped.length < size * 2)
+						mClipped = new float[size * 2];
+
+					size = clipRing(mRing, size, mClipped, edge);
+					float[] tmp = mRing;
+					mRing = mClipped;
+					mClipped = tmp;
+				}
+				ring = mRing;
+			}
+
+			ensureCapacity(outPos + size, numRings + 2);
+			int start = outPos;
+			float[] out = mCoords;
+
+			for (int i = 0; i < size; i += 2) {
+				float x = ring[i];
+				float y = ring[i + 1];
+
+				// skip points on the previous one
+				if (outPos > start && out[outPos - 2] == x && out[outPos - 1] == y)
+					continue;
+
+				out[outPos++] = x;
+				out[outPos++] = y;
+			}
+
+			// skip a last point on the first one
+			if (outPos - start > 2 && out[outPos - 2] == out[start]
+					&& out[outPos - 1] == out[start + 1])
+				outPos -= 2;
+
+			// drop holes outside of the tile and degenerated rings
+			if (outPos - start < 6) {
+				if (r == 0)
+					return false;
+				outPos = start;
+				continue;
+			}
+			mIndices[numRings++] = (short) (outPos - start);
+		}
+
+		if (numRings == 0)
+			return false;
+
+		mIndices[numRings] = -1;
+		return true;
+	}
+
+	/**
+	 * Clips a closed ring to one edge of the clip box.
+	 *
+	 * @param edge
+	 *            0: min x, 1: max x, 2: min y, 3: max y
+	 * @return number of coordinates in 'out'
+	 */
+	private int clipRing(float[] in, int length, float[] out, int edge) {
+		float limit = (edge & 1) == 0 ? mMin : mMax;
+		// coordinate tested against limit, 0 for x and 1 for y
+		int c = edge >> 1;
+
+		int outPos = 0;
+		float px = in[length - 2];
+		float py = in[length - 1];
+		boolean prevInside = insideEdge(in[length - 2 + c], limit, edge);
+
+		for (int i = 0; i < length; i += 2) {
+			float x = in[i];
+			float y = in[i + 1];
+			boolean inside = insideEdge(in[i + c], limit, edge);
+
+			if (inside != prevInside) {
+				// add intersection with the edge
+				if (c == 0) {
+					out[outPos++] = limit;
+					out[outPos++] = py + (y - py) * (limit - px) / (x - px);
+				} else {
+					out[outPos++] = px + (x - px) * (limit - py) / (y - py);
+					out[outPos++] = limit;
+				}
+			}
+			if (inside) {
+				out[outPos++] = x;
+				out[outPos++] = y;
+			}
+			px = x;
+			py = y;
+			prevInside = inside;
+		}
+		return outPos;
+	}
+
+	private static boolean insideEdge(float v, float limit, int edge) {
+		return (edge & 1) == 0 ? v >= limit : v <= limit;
+	}
+
+	/**
+	 * Scales the lines of a way and splits them into the parts within the
+	 * clip box.
+	 *
+	 * @return false when no part is within the clip box
+	 */
+	private boolean clipLine(Element e, float scale, float dx, float dy) {
+		float[] in = e.coords;
+		short[] index = e.indices;
+		LineClipper clipper = mClipper;
+		int[] clipped = clipper.out;
+
+		int inPos = 0;
+		int outPos = 0;
+		int numLines = 0;
+
+		for (int l = 0; l < index.length; l++) {
+			int length = index[l];
+			if (length < 4) {
+				inPos += length;
+				continue;
+			}
+
+			// start of the current part in mCoords, -1 when outside
+			int start = -1;
+
+			float x = in[inPos] * scale - dx;
+			float y = in[inPos + 1] * scale - dy;
+
+			clipper.clipStart((int) x, (int) y);
+
+			if (inside((int) x, (int) y)) {
+				ensureCapacity(outPos + 2, numLines + 2);
+				start = outPos;
+				mCoords[outPos++] = x;
+				mCoords[outPos++] = y;
+			}
+
+			for (int end = inPos + length, i = inPos + 2; i < end; i += 2) {
+				x = in[i] * scale - dx;
+				y = in[i + 1] * scale - dy;
+
+				int result = clipper.clipNext((int) x, (int) y);
+
+				// each segment adds at most two points and ends a part
+				ensureCapacity(outPos + 4, numLines + 2);
+
+				if (result == 1) {
+					mCoords[outPos++] = x;
+					mCoords[outPos++] = y;
+					continue;
+				}
+
+				if (result == -1) {
+					if (start < 0) {
+						// enters the clip box
+						start = outPos;
+						mCoords[outPos++] = clipped[0];
+						mCoords[outPos++] = clipped[1];
+					}
+					if (inside((int) x, (int) y)) {
+						mCoords[outPos++] = x;
+						mCoords[outPos++] = y;
+						continue;
+					}
+					// leaves the clip box
+					mCoords[outPos++] = clipped[2];
+					mCoords[outPos++] = clipped[3];
+				}
+
+				if (start >= 0) {
+					outPos = endLine(start, outPos, numLines);
+					if (outPos > start)
+						numLines++;
+					start = -1;
+				}
+			}
+
+			if (start >= 0) {
+				outPos = endLine(start, outPos, numLines);
+				if (outPos > start)
+					numLines++;
+			}
+
+			inPos += length;
+		}
+
+		if (numLines == 0)
+			return false;
+
+		mIndices[numLines] = -1;
+		return true;
+	}
+
+	private int endLine(int start, int end, int line) {
+		// a line needs at least two points
+		if (end - start < 4)
+			return start;
+
+		mIndices[line] = (short) (end - start);
+		return end;
+	}
+
+	// same test as LineClipper
+	private boolean inside(int x, int y) {
+		return x >= mMin && x <= mMax && y >= mMin && y <= mMax;
+	}
+}
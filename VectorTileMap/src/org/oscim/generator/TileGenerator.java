@@ -18,12 +18,15 @@ import static org.oscim.generator.JobTile.STATE_NONE;
 
 import java.util.Arrays;
 
+import org.oscim.backend.Log;
 import org.oscim.core.MercatorProjection;
 import org.oscim.core.Tag;
 import org.oscim.core.Tile;
 import org.oscim.database.IMapDatabase;
 import org.oscim.database.IMapDatabaseCallback;
 import org.oscim.database.QueryResult;
+import org.oscim.renderer.BufferObject;
+import org.oscim.renderer.GLRenderer;
 import org.oscim.renderer.MapTile;
 import org.oscim.renderer.layer.ExtrusionLayer;
 import org.oscim.renderer.layer.Layer;
@@ -35,16 +38,15 @@ import org.oscim.renderer.layer.TextItem;
 import org.oscim.theme.IRenderCallback;
 import org.oscim.theme.RenderTheme;
 import org.oscim.theme.renderinstruction.Area;
+import org.oscim.theme.renderinstruction.Circle;
 import org.oscim.theme.renderinstruction.Line;
+import org.oscim.theme.renderinstruction.LineSymbol;
 import org.oscim.theme.renderinstruction.RenderInstruction;
+import org.oscim.theme.renderinstruction.Symbol;
 import org.oscim.theme.renderinstruction.Text;
 import org.oscim.utils.LineClipper;
+import org.oscim.utils.LineSimplifier;
 import org.oscim.view.DebugSettings;
-import org.oscim.view.MapView;
-
-import android.graphics.Bitmap;
-import android.graphics.Paint;
-import android.util.Log;
 
 /**
  * @author Hannes Janetzek
@@ -56,6 +58,10 @@ import android.util.Log;
  *       4. these callbacks then call RenderTheme to get the matching style.
  *       5. RenderTheme calls IRenderCallback functions with style information
  *       6. Styled items become added to MapTile.layers... roughly
+ *
+ *       TileGenerator does not depend on MapView or a GL context, it can
+ *       also generate tiles headless on a plain JVM, see
+ *       org.oscim.backend.Platform.
  */
 public class TileGenerator implements IRenderCallback, IMapDatabaseCallback {
 
@@ -67,9 +73,27 @@ public class TileGenerator implements IRenderCallback, IMapDatabaseCallback {
 	public static final byte STROKE_MIN_ZOOM_LEVEL = 12;
 	public static final byte STROKE_MAX_ZOOM_LEVEL = 17;
 
+	/**
+	 * Default tolerance of the way simplification in tile pixels: four
+	 * vertex units, i.e. half a pixel. As tile pixels cover four times
+	 * the area on each zoom level, lower zoom levels are simplified more.
+	 */
+	public static final float SIMPLIFY_TOLERANCE = 4 / GLRenderer.COORD_SCALE;
+
+	/**
+	 * Tiles above this zoom level are not simplified by default. With
+	 * SIMPLIFY_TOLERANCE building the layers of a tile takes about a
+	 * third more time on any zoom level. It removes about 45% of the
+	 * vertex data on zoom 11 and 23% on zoom 12, but only 12% on zoom 13
+	 * and 6% on zoom 14 (see SimplifyBenchmark).
+	 */
+	public static final byte SIMPLIFY_MAX_ZOOM = 12;
+
 	private static RenderTheme renderTheme;
 	private static int renderLevels;
 	private static DebugSettings debug;
+	private static float simplifyTolerance = SIMPLIFY_TOLERANCE;
+	private static byte simplifyMaxZoom = SIMPLIFY_MAX_ZOOM;
 
 	// current MapDatabase used by this TileGenerator
 	private IMapDatabase mMapDatabase;
@@ -95,8 +119,6 @@ public class TileGenerator implements IRenderCallback, IMapDatabaseCallback {
 
 	private RenderInstruction[] mRenderInstructions = null;
 
-	//private final MapView mMapView;
-
 	private final Tag[] debugTagBox = { new Tag("debug", "box") };
 	private final Tag[] debugTagWay = { new Tag("debug", "way") };
 	private final Tag[] debugTagArea = { new Tag("debug", "area") };
@@ -119,6 +141,11 @@ public class TileGenerator implements IRenderCallback, IMapDatabaseCallback {
 	boolean mDebugDrawUnmatched;
 
 	private final LineClipper mClipper;
+	private final LineSimplifier mSimplifier;
+
+	// tiles above this zoomlevel are derived from their ancestor
+	private byte mSourceMaxZoom = Byte.MAX_VALUE;
+	private final OverzoomLoader mOverzoom;
 
 	public static void setRenderTheme(RenderTheme theme) {
 		renderTheme = theme;
@@ -130,12 +157,23 @@ public class TileGenerator implements IRenderCallback, IMapDatabaseCallback {
 	}
 
 	/**
-	 * @param mapView
-	 *            the MapView
+	 * @param tolerance
+	 *            maximal distance in tile pixels of points removed from
+	 *            ways before building layers, 0 disables the
+	 *            simplification. Default is SIMPLIFY_TOLERANCE.
+	 * @param maxZoom
+	 *            tiles above this zoom level are not simplified. Default
+	 *            is SIMPLIFY_MAX_ZOOM.
 	 */
-	public TileGenerator(MapView mapView) {
-		//	mMapView = mapView;
+	public static void setSimplifyTolerance(float tolerance, byte maxZoom) {
+		simplifyTolerance = tolerance;
+		simplifyMaxZoom = maxZoom;
+	}
+
+	public TileGenerator() {
 		mClipper = new LineClipper(0, 0, Tile.TILE_SIZE, Tile.TILE_SIZE, true);
+		mSimplifier = new LineSimplifier(0);
+		mOverzoom = new OverzoomLoader();
 	}
 
 	public void cleanup() {
@@ -144,29 +182,55 @@ public class TileGenerator implements IRenderCallback, IMapDatabaseCallback {
 	public boolean executeJob(JobTile jobTile) {
 		MapTile tile;
 
-		if (mMapDatabase == null)
+		tile = (MapTile) jobTile;
+
+		if (mMapDatabase == null) {
+			tile.state = STATE_NONE;
+			return false;
+		}
+
+		// tile left the visible area before it was started
+		if (tile.canceled)
 			return false;
 
-		tile = mTile = (MapTile) jobTile;
+		mTile = tile;
 
 		mDebugDrawPolygons = !debug.disablePolygons;
 		mDebugDrawUnmatched = debug.debugTheme;
 
 		if (tile.layers != null) {
-			// should be fixed now.
+			// should be fixed now. drop the layers of the earlier load
+			// and load the tile again: returning them would pass stale
+			// layers as new data, and returning false like before makes
+			// passTile() queue the tile again, forever.
 			Log.d(TAG, "BUG tile already loaded " + tile + " " + tile.state);
-			return false;
+			if (tile.layers.vbo != null) {
+				BufferObject.release(tile.layers.vbo);
+				tile.layers.vbo = null;
+			}
+			tile.layers.clear();
+			tile.layers = null;
+			TextItem.release(tile.labels);
+			tile.setLabels(null);
 		}
 
 		setScaleStrokeWidth(tile.zoomLevel);
+		mSimplifier.setTolerance(tile.zoomLevel <= simplifyMaxZoom ? simplifyTolerance : 0);
 
 		// account for area changes with latitude
 		mProjectionScaleFactor = 0.5f + 0.5f * (
 				(float) Math.sin(Math.abs(MercatorProjection
 						.pixelYToLatitude(tile.pixelY, tile.zoomLevel)) * (Math.PI / 180)));
 
+		QueryResult result;
 		mLayers = new Layers();
-		if (mMapDatabase.executeQuery(tile, this) != QueryResult.SUCCESS) {
+
+		if (tile.zoomLevel > mSourceMaxZoom)
+			result = mOverzoom.executeQuery(mMapDatabase, tile, mSourceMaxZoom, this);
+		else
+			result = mMapDatabase.executeQuery(tile, this);
+
+		if (result != QueryResult.SUCCESS) {
 			//Log.d(TAG, "Failed loading: " + tile);
 			mLayers.clear();
 			mLayers = null;
@@ -178,6 +242,15 @@ public class TileGenerator implements IRenderCallback, IMapDatabaseCallback {
 			return false;
 		}
 
+		if (tile.canceled) {
+			// drop what was loaded so far, TileManager resets the state
+			mLayers.clear();
+			mLayers = null;
+			TextItem.release(mLabels);
+			mLabels = null;
+			return false;
+		}
+
 		if (debug.drawTileFrames) {
 			mTagName = new Tag("name", tile.toString(), false);
 			mPoiX = Tile.TILE_SIZE >> 1;
@@ -185,18 +258,19 @@ public class TileGenerator implements IRenderCallback, IMapDatabaseCallback {
 			TileGenerator.renderTheme.matchNode(this, debugTagWay, (byte) 0);
 
 			mIndices = debugBoxIndex;
-			if (MapView.enableClosePolygons)
+			if (Layers.enableClosePolygons)
 				mIndices[0] = 8;
 			else
 				mIndices[0] = 10;
 
 			mCoords = debugBoxCoords;
+			mSimplified = true;
 			mDrawingLayer = 10 * renderLevels;
 			TileGenerator.renderTheme.matchWay(this, debugTagBox, (byte) 0, false, true);
 		}
 
 		tile.layers = mLayers;
-		tile.labels = mLabels;
+		tile.setLabels(mLabels);
 		mLayers = null;
 		mLabels = null;
 
@@ -232,6 +306,21 @@ public class TileGenerator implements IRenderCallback, IMapDatabaseCallback {
 
 		mMapDatabase = mapDatabase;
 		//mMapProjection = mMapDatabase.getMapProjection();
+
+		// source tiles of the previous MapDatabase
+		OverzoomLoader.clear();
+	}
+
+	/**
+	 * Set the maximum zoomlevel of the MapDatabase. Tiles above are derived
+	 * from their ancestor at this zoomlevel by scaling and clipping its
+	 * elements, without querying the MapDatabase again.
+	 *
+	 * @param zoomLevel
+	 *            the maximum zoomlevel, Byte.MAX_VALUE to always query
+	 */
+	public void setSourceMaxZoom(byte zoomLevel) {
+		mSourceMaxZoom = zoomLevel;
 	}
 
 	public IMapDatabase getMapDatabase() {
@@ -251,12 +340,14 @@ public class TileGenerator implements IRenderCallback, IMapDatabaseCallback {
 		for (int i = 0; i < tags.length; i++) {
 			String key = tags[i].key;
 			if (tags[i].key == Tag.TAG_KEY_NAME) {
-				if (tags[i].value != null) {
+				// the value of name tags may be decoded on request,
+				// only check that the tag was not replaced already
+				if (tags[i] != mTagEmptyName) {
 					mTagName = tags[i];
 					tags[i] = mTagEmptyName;
 				}
 			} else if (tags[i].key == Tag.TAG_KEY_HOUSE_NUMBER) {
-				if (tags[i].value != null) {
+				if (tags[i] != mTagEmptyHouseNr) {
 					mTagHouseNr = tags[i];
 					tags[i] = mTagEmptyHouseNr;
 				}
@@ -275,6 +366,9 @@ public class TileGenerator implements IRenderCallback, IMapDatabaseCallback {
 	public void renderPointOfInterest(byte layer, Tag[] tags,
 			float latitude, float longitude) {
 
+		if (mTile.canceled)
+			return;
+
 		// reset state
 		mTagName = null;
 		mTagHouseNr = null;
@@ -290,10 +384,16 @@ public class TileGenerator implements IRenderCallback, IMapDatabaseCallback {
 
 	private boolean mClosed;
 
+	// the current way was simplified
+	private boolean mSimplified;
+
 	@Override
 	public void renderWay(byte layer, Tag[] tags, float[] coords, short[] indices,
 			boolean closed, int prio) {
 
+		if (mTile.canceled)
+			return;
+
 		// reset state
 		mTagName = null;
 		mTagHouseNr = null;
@@ -301,6 +401,7 @@ public class TileGenerator implements IRenderCallback, IMapDatabaseCallback {
 
 		mPriority = prio;
 		mClosed = closed;
+		mSimplified = false;
 
 		// replace tags that should not be cached in Rendertheme (e.g. name)
 		if (!filterTags(tags))
@@ -345,10 +446,23 @@ public class TileGenerator implements IRenderCallback, IMapDatabaseCallback {
 		return mRenderInstructions != null;
 	}
 
+	/**
+	 * Drop points of the current way that would not be visible at tile
+	 * resolution. Only done for ways that add vertices, once per way.
+	 */
+	private void simplify() {
+		if (mSimplified)
+			return;
+
+		mSimplifier.simplify(mCoords, mIndices, mClosed);
+		mSimplified = true;
+	}
+
 	// ----------------- RenderThemeCallback -----------------
 	@Override
 	public void renderWay(Line line, int level) {
 		// TODO projectToTile();
+		simplify();
 
 		int numLayer = (mDrawingLayer * 2) + level;
 
@@ -409,6 +523,8 @@ public class TileGenerator implements IRenderCallback, IMapDatabaseCallback {
 	public void renderArea(Area area, int level) {
 		int numLayer = mDrawingLayer + level;
 
+		simplify();
+
 		if (mRenderBuildingModel) {
 			//Log.d(TAG, "add buildings: " + mTile + " " + mPriority);
 			if (mLayers.extrusionLayers == null)
@@ -440,18 +556,20 @@ public class TileGenerator implements IRenderCallback, IMapDatabaseCallback {
 		// Log.d(TAG, "renderAreaCaption: " + mTagName);
 
 		if (text.textKey == Tag.TAG_KEY_NAME) {
-			if (mTagName == null)
+			String name = (mTagName == null ? null : mTagName.getValue());
+			if (name == null)
 				return;
 
-			TextItem t = TextItem.get().set(mCoords[0], mCoords[1], mTagName.value, text);
+			TextItem t = TextItem.get().set(mCoords[0], mCoords[1], name, text);
 			t.next = mLabels;
 			mLabels = t;
 		}
 		else if (text.textKey == Tag.TAG_KEY_HOUSE_NUMBER) {
-			if (mTagHouseNr == null)
+			String houseNr = (mTagHouseNr == null ? null : mTagHouseNr.getValue());
+			if (houseNr == null)
 				return;
 
-			TextItem t = TextItem.get().set(mCoords[0], mCoords[1], mTagHouseNr.value, text);
+			TextItem t = TextItem.get().set(mCoords[0], mCoords[1], houseNr, text);
 			t.next = mLabels;
 			mLabels = t;
 		}
@@ -466,7 +584,11 @@ public class TileGenerator implements IRenderCallback, IMapDatabaseCallback {
 			return;
 
 		if (text.textKey == mTagEmptyName.key) {
-			TextItem t = TextItem.get().set(mPoiX, mPoiY, mTagName.value, text);
+			String name = mTagName.getValue();
+			if (name == null)
+				return;
+
+			TextItem t = TextItem.get().set(mPoiX, mPoiY, name, text);
 			// TextItem t = new TextItem(mPoiX, mPoiY, mTagName.value, text);
 			t.next = mLabels;
 			mLabels = t;
@@ -480,13 +602,17 @@ public class TileGenerator implements IRenderCallback, IMapDatabaseCallback {
 		if (mTagName == null)
 			return;
 
-		if (text.textKey == mTagEmptyName.key && mTagName.value != null) {
+		if (text.textKey != mTagEmptyName.key)
+			return;
+
+		String name = mTagName.getValue();
+		if (name != null) {
 			int offset = 0;
 			for (int i = 0, n = mIndices.length; i < n; i++) {
 				int length = mIndices[i];
 				if (length < 4)
 					break;
-				mLabels = WayDecorator.renderText(mClipper, mCoords, mTagName.value, text,
+				mLabels = WayDecorator.renderText(mClipper, mCoords, name, text,
 						offset, length, mLabels);
 				offset += length;
 			}
@@ -494,11 +620,11 @@ public class TileGenerator implements IRenderCallback, IMapDatabaseCallback {
 	}
 
 	@Override
-	public void renderPointOfInterestCircle(float radius, Paint fill, int level) {
+	public void renderPointOfInterestCircle(Circle circle, int level) {
 	}
 
 	@Override
-	public void renderPointOfInterestSymbol(Bitmap bitmap) {
+	public void renderPointOfInterestSymbol(Symbol symbol) {
 		// Log.d(TAG, "add symbol");
 
 		//		if (mLayers.textureLayers == null)
@@ -509,18 +635,18 @@ public class TileGenerator implements IRenderCallback, IMapDatabaseCallback {
 		//		SymbolItem it = SymbolItem.get();
 		//		it.x = mPoiX;
 		//		it.y = mPoiY;
-		//		it.bitmap = bitmap;
+		//		it.bitmap = symbol.bitmap;
 		//		it.billboard = true;
 		//
 		//		sl.addSymbol(it);
 	}
 
 	@Override
-	public void renderAreaSymbol(Bitmap symbol) {
+	public void renderAreaSymbol(Symbol symbol) {
 	}
 
 	@Override
-	public void renderWaySymbol(Bitmap symbol, boolean alignCenter, boolean repeat) {
+	public void renderWaySymbol(LineSymbol symbol) {
 
 	}
 }
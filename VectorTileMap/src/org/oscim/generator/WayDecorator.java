@@ -171,14 +171,14 @@ public final class WayDecorator {
 				}
 
 				if (wayNameWidth < 0) {
-					wayNameWidth = text.paint.measureText(string);
+					wayNameWidth = text.measureText(string);
 				}
 
 				if (segmentLength < wayNameWidth * 0.50) {
 					continue;
 				}
 			} else if (wayNameWidth < 0) {
-				wayNameWidth = text.paint.measureText(string);
+				wayNameWidth = text.measureText(string);
 			}
 
 			float x1, y1, x2, y2;
@@ -14,12 +14,12 @@
  */
 package org.oscim.overlay;
 
+import org.oscim.backend.Log;
 import org.oscim.core.MapPosition;
 import org.oscim.renderer.overlays.ExtrusionOverlay;
 import org.oscim.view.MapView;
 
 import android.os.CountDownTimer;
-import android.util.Log;
 import android.view.MotionEvent;
 
 /**
@@ -18,6 +18,7 @@ package org.oscim.overlay;
 import java.util.List;
 
 import org.oscim.app.R;
+import org.oscim.backend.Log;
 import org.oscim.core.MercatorProjection;
 import org.oscim.view.MapView;
 import org.oscim.view.MapViewPosition;
@@ -25,7 +26,6 @@ import org.oscim.view.MapViewPosition;
 import android.content.Context;
 import android.graphics.Point;
 import android.graphics.drawable.Drawable;
-import android.util.Log;
 import android.view.MotionEvent;
 
 public class ItemizedIconOverlay<Item extends OverlayItem> extends ItemizedOverlay<Item> {
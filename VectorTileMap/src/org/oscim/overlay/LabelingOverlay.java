@@ -14,10 +14,10 @@
  */
 package org.oscim.overlay;
 
+import org.oscim.backend.Log;
 import org.oscim.renderer.overlays.TextOverlay;
 import org.oscim.view.MapView;
 
-import android.util.Log;
 import android.view.MotionEvent;
 
 /**
@@ -15,8 +15,9 @@
 
 package org.oscim.renderer;
 
+import org.oscim.backend.Log;
+
 import android.opengl.GLES20;
-import android.util.Log;
 
 public final class BufferObject {
 	private final static String TAG = BufferObject.class.getName();
@@ -116,6 +117,8 @@ public final class BufferObject {
 			counter -= removed;
 		}
 
+		MemoryBudget.add(MemoryBudget.BUFFERS, -freed);
+
 		return freed;
 	}
 
@@ -131,6 +134,9 @@ public final class BufferObject {
 	}
 
 	static synchronized void init(int num) {
+		// buffers of the previous context are gone
+		MemoryBudget.reset(MemoryBudget.BUFFERS);
+
 		pool = null;
 		createBuffers(num);
 		counter = num;
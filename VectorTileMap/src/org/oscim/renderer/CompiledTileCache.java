@@ -0,0 +1,242 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.renderer;
+
+import static org.oscim.generator.JobTile.STATE_NEW_DATA;
+import static org.oscim.generator.JobTile.STATE_READY;
+
+import java.nio.ShortBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.oscim.renderer.layer.Layers;
+import org.oscim.renderer.layer.TextItem;
+
+/**
+ * Second-level cache for tiles removed by TileManager.limitCache().
+ * <p>
+ * Keeps the vertex data of a tile as compiled by Layers.compile(), the
+ * Layers without vertex data and the labels, so that a tile coming back
+ * into view only needs to be uploaded to GL again instead of being loaded
+ * by TileGenerator.
+ * <p>
+ * GLES 2.0 cannot read back buffer objects and the vertex items are
+ * released after compilation, so GLRenderer keeps a copy of the compiled
+ * data in MapTile.compiled when the cache is enabled. These copies, held by
+ * tiles or by this cache, are counted as MemoryBudget.COMPILED and are not
+ * made while the budget is exceeded.
+ * <p>
+ * Only used by TileManager with its lock held.
+ */
+final class CompiledTileCache {
+
+	// estimate for the Layers, Layer and TextItem objects of an entry
+	private static final int ENTRY_OVERHEAD = 1024;
+
+	private static final class Entry {
+		final short[] data;
+		final Layers layers;
+		final TextItem labels;
+		final int size;
+
+		Entry(short[] data, Layers layers, TextItem labels) {
+			this.data = data;
+			this.layers = layers;
+			this.labels = labels;
+			this.size = ENTRY_OVERHEAD + (data == null ? 0 : data.length * 2);
+		}
+
+		void clear() {
+			if (layers != null)
+				layers.clear();
+
+			TextItem.release(labels);
+			release(data);
+		}
+	}
+
+	private final LinkedHashMap<Long, Entry> mEntries =
+			new LinkedHashMap<Long, Entry>(256, 0.75f, true);
+
+	private int mMaxSize;
+	private int mSize;
+
+	// statistics since the last clear()
+	private int mHits;
+	private int mMisses;
+	private long mBytesSaved;
+
+	CompiledTileCache(int maxSize) {
+		mMaxSize = maxSize;
+	}
+
+	/**
+	 * @return true when GLRenderer should keep a copy of compiled tiles
+	 */
+	boolean isEnabled() {
+		return mMaxSize > 0;
+	}
+
+	void setMaxSize(int maxSize) {
+		mMaxSize = maxSize;
+		trim();
+	}
+
+	private static Long key(MapTile tile) {
+		return Long.valueOf(((long) tile.zoomLevel << 56)
+				| ((long) tile.tileX << 28) | tile.tileY);
+	}
+
+	/**
+	 * Moves the data of a tile that is about to be removed from the
+	 * TileManager cache into this cache. The tile keeps its data when it
+	 * cannot be cached.
+	 *
+	 * @param tile
+	 *            the tile to be removed
+	 * @return true if the data of tile is owned by this cache now
+	 */
+	boolean put(MapTile tile) {
+		if (mMaxSize <= 0)
+			return false;
+
+		// restored tiles may be removed again before upload
+		if (tile.state != STATE_READY && tile.state != STATE_NEW_DATA)
+			return false;
+
+		Layers layers = tile.layers;
+		if (layers != null) {
+			// extrusion layers are compiled by ExtrusionOverlay
+			if (layers.extrusionLayers != null)
+				return false;
+
+			// the copy is missing when the cache was enabled after upload
+			// or when the memory budget was exceeded
+			if (tile.compiled == null && layers.getSize() > 0)
+				return false;
+
+			if (layers.vbo != null) {
+				BufferObject.release(layers.vbo);
+				layers.vbo = null;
+			}
+		}
+
+		Entry e = new Entry(tile.compiled, layers, tile.labels);
+
+		tile.compiled = null;
+		tile.layers = null;
+		tile.setLabels(null);
+
+		Entry old = mEntries.put(key(tile), e);
+		if (old != null) {
+			mSize -= old.size;
+			old.clear();
+		}
+		mSize += e.size;
+
+		trim();
+		return true;
+	}
+
+	/**
+	 * Restores the data of a tile. The tile is set to STATE_NEW_DATA, to be
+	 * uploaded by GLRenderer.
+	 *
+	 * @param tile
+	 *            a tile without data
+	 * @return true if tile was restored, false when it needs to be loaded
+	 */
+	boolean get(MapTile tile) {
+		if (mMaxSize <= 0)
+			return false;
+
+		Entry e = mEntries.remove(key(tile));
+		if (e == null) {
+			mMisses++;
+			return false;
+		}
+
+		mHits++;
+		mSize -= e.size;
+
+		tile.compiled = e.data;
+		tile.layers = e.layers;
+		tile.setLabels(e.labels);
+		tile.state = STATE_NEW_DATA;
+
+		if (e.data != null)
+			mBytesSaved += e.data.length * 2;
+
+		return true;
+	}
+
+	/**
+	 * Removes all entries, e.g. when the theme or MapDatabase changed.
+	 */
+	void clear() {
+		for (Entry e : mEntries.values())
+			e.clear();
+
+		mEntries.clear();
+		mSize = 0;
+
+		mHits = 0;
+		mMisses = 0;
+		mBytesSaved = 0;
+	}
+
+	private void trim() {
+		Iterator<Entry> it = mEntries.values().iterator();
+		while (mSize > mMaxSize && it.hasNext()) {
+			Entry e = it.next();
+			it.remove();
+			mSize -= e.size;
+			e.clear();
+		}
+	}
+
+	/**
+	 * Copies the compiled tile data from 'sbuf', from position 0 to its
+	 * limit.
+	 */
+	static short[] copy(ShortBuffer sbuf) {
+		short[] data = new short[sbuf.limit()];
+		sbuf.position(0);
+		sbuf.get(data);
+		sbuf.position(0);
+
+		MemoryBudget.add(MemoryBudget.COMPILED, data.length * 2);
+		return data;
+	}
+
+	/**
+	 * Must be called when a copy made by copy() is dropped.
+	 */
+	static void release(short[] data) {
+		if (data != null)
+			MemoryBudget.add(MemoryBudget.COMPILED, -data.length * 2);
+	}
+
+	@Override
+	public String toString() {
+		int requests = mHits + mMisses;
+		int rate = requests == 0 ? 0 : mHits * 100 / requests;
+
+		return "compiled tiles: " + mEntries.size()
+				+ " " + (mSize >> 10) + "kB"
+				+ ", hits " + rate + "% of " + requests
+				+ ", saved " + (mBytesSaved >> 10) + "kB";
+	}
+}
@@ -30,6 +30,7 @@ import java.util.concurrent.locks.ReentrantLock;
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
+import org.oscim.backend.Log;
 import org.oscim.core.MapPosition;
 import org.oscim.core.Tile;
 import org.oscim.renderer.layer.Layers;
@@ -44,7 +45,6 @@ import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.opengl.Matrix;
 import android.os.SystemClock;
-import android.util.Log;
 
 /**
  * @author Hannes Janetzek
@@ -55,12 +55,12 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 
 	private static final int MB = 1024 * 1024;
 	private static final int SHORT_BYTES = 2;
-	private static final int CACHE_TILES_MAX = 250;
-	private static final int LIMIT_BUFFERS = 16 * MB;
 
 	public static final float COORD_SCALE = 8.0f;
 
-	static int CACHE_TILES = CACHE_TILES_MAX;
+	// maximum number of tiles kept by TileManager, the actual number
+	// is limited by MemoryBudget
+	static final int CACHE_TILES = 250;
 
 	private static MapView mMapView;
 	static int mWidth, mHeight;
@@ -71,8 +71,8 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 	private static ShortBuffer shortBuffer;
 	private static short[] mFillCoords;
 
-	// bytes currently loaded in VBOs
-	private static int mBufferMemoryUsage;
+	// keep a copy of uploaded tile data, set by TileManager
+	static boolean keepCompiled;
 
 	private static float[] mTileCoords = new float[8];
 	private static float[] mDebugCoords = new float[8];
@@ -210,27 +210,28 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 
 	private static int uploadCnt = 0;
 
-	public static boolean uploadLayers(Layers layers, int newSize,
-			boolean addFill) {
-
-		GLES20.glBindBuffer(GL_ARRAY_BUFFER, layers.vbo.id);
-
-		// add fill coordinates
-		if (addFill)
-			newSize += 8;
-
+	private static ShortBuffer getBuffer(int size) {
 		ShortBuffer sbuf = shortBuffer;
 
-		if (sbuf.capacity() < newSize) {
+		if (sbuf.capacity() < size) {
 			shortBuffer = sbuf = ByteBuffer
-					.allocateDirect(newSize * SHORT_BYTES)
+					.allocateDirect(size * SHORT_BYTES)
 					.order(ByteOrder.nativeOrder())
 					.asShortBuffer();
 		} else {
 			sbuf.clear();
-			// if (addFill)
-			// sbuf.position(8);
 		}
+		return sbuf;
+	}
+
+	public static boolean uploadLayers(Layers layers, int newSize,
+			boolean addFill) {
+
+		// add fill coordinates
+		if (addFill)
+			newSize += 8;
+
+		ShortBuffer sbuf = getBuffer(newSize);
 
 		if (addFill)
 			sbuf.put(mFillCoords, 0, 8);
@@ -246,20 +247,24 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 					+ " buffer fill: " + sbuf.remaining());
 			return false;
 		}
-		newSize *= SHORT_BYTES;
+
+		uploadBuffer(layers.vbo, sbuf, newSize * SHORT_BYTES);
+		return true;
+	}
+
+	private static void uploadBuffer(BufferObject vbo, ShortBuffer sbuf, int newSize) {
+		GLES20.glBindBuffer(GL_ARRAY_BUFFER, vbo.id);
 
 		// reuse memory allocated for vbo when possible and allocated
 		// memory is less then four times the new data
-		if (layers.vbo.size > newSize && layers.vbo.size < newSize * 4
-				&& mBufferMemoryUsage < LIMIT_BUFFERS) {
+		if (vbo.size > newSize && vbo.size < newSize * 4
+				&& !MemoryBudget.isExceeded()) {
 			GLES20.glBufferSubData(GL_ARRAY_BUFFER, 0, newSize, sbuf);
 		} else {
-			mBufferMemoryUsage += newSize - layers.vbo.size;
-			layers.vbo.size = newSize;
-			GLES20.glBufferData(GL_ARRAY_BUFFER, layers.vbo.size, sbuf, GL_DYNAMIC_DRAW);
+			MemoryBudget.add(MemoryBudget.BUFFERS, newSize - vbo.size);
+			vbo.size = newSize;
+			GLES20.glBufferData(GL_ARRAY_BUFFER, vbo.size, sbuf, GL_DYNAMIC_DRAW);
 		}
-
-		return true;
 	}
 
 	private static void uploadTileData(MapTile tile) {
@@ -268,6 +273,19 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 		if (tile.layers == null)
 			return;
 
+		if (tile.compiled != null) {
+			// restored by CompiledTileCache, already compiled
+			short[] data = tile.compiled;
+			if (tile.layers.vbo == null)
+				tile.layers.vbo = BufferObject.get(data.length);
+
+			ShortBuffer sbuf = getBuffer(data.length);
+			sbuf.put(data);
+			sbuf.flip();
+			uploadBuffer(tile.layers.vbo, sbuf, data.length * SHORT_BYTES);
+			return;
+		}
+
 		int newSize = tile.layers.getSize();
 		if (newSize > 0) {
 
@@ -281,27 +299,31 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 				tile.layers.vbo = null;
 				tile.layers.clear();
 				tile.layers = null;
+			} else if (keepCompiled && !MemoryBudget.isExceeded()) {
+				tile.compiled = CompiledTileCache.copy(shortBuffer);
 			}
 		}
 	}
 
 	private static void checkBufferUsage(boolean force) {
-		// try to clear some unused vbo when exceding limit
+		// try to clear some unused vbo and textures when exceding limit
+		int excess = MemoryBudget.getExcess();
 
-		if (!force && mBufferMemoryUsage < LIMIT_BUFFERS) {
-			if (CACHE_TILES < CACHE_TILES_MAX)
-				CACHE_TILES += 50;
+		if (force)
+			excess = Math.max(excess, 2 * MB);
+		else if (excess <= 0)
 			return;
-		}
 
-		Log.d(TAG, "buffer object usage: " + mBufferMemoryUsage / MB + "MB");
+		Log.d(TAG, MemoryBudget.getStats());
 
-		mBufferMemoryUsage -= BufferObject.limitUsage(2 * MB);
+		int freed = BufferObject.limitUsage(excess);
+		if (freed < excess)
+			TextureObject.limitUsage(excess - freed);
 
-		Log.d(TAG, "now: " + mBufferMemoryUsage / MB + "MB");
+		Log.d(TAG, "now: " + MemoryBudget.getStats());
 
-		if (mBufferMemoryUsage > LIMIT_BUFFERS && CACHE_TILES > 100)
-			CACHE_TILES -= 50;
+		// TileManager removes distant tiles when buffers of
+		// tiles still exceed the limit
 	}
 
 	private long lastDraw = 0;
@@ -486,6 +508,8 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 		if (MapView.debugFrameTime) {
 			GLES20.glFinish();
 			Log.d(TAG, "draw took " + (SystemClock.uptimeMillis() - start));
+			Log.d(TAG, mMapView.getTileManager().getCompiledCacheStats());
+			Log.d(TAG, MemoryBudget.getStats());
 		}
 
 		if (debugView) {
@@ -515,7 +539,6 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 
 		if (GlUtils.checkGlOutOfMemory("finish")) {
 			checkBufferUsage(true);
-			// TODO also throw out some textures etc
 		}
 	}
 
@@ -598,7 +621,6 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 		}
 
 		mNewSurface = false;
-		mBufferMemoryUsage = 0;
 		mDrawTiles = null;
 
 		int numTiles = (mWidth / (Tile.TILE_SIZE / 2) + 2)
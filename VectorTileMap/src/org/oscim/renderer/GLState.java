@@ -14,8 +14,9 @@
  */
 package org.oscim.renderer;
 
+import org.oscim.backend.Log;
+
 import android.opengl.GLES20;
-import android.util.Log;
 
 public class GLState {
 	private final static String TAG = GLState.class.getName();
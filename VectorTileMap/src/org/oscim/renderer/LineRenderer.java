@@ -24,6 +24,7 @@ import static android.opengl.GLES20.glUniform4fv;
 import static android.opengl.GLES20.glUniformMatrix4fv;
 import static android.opengl.GLES20.glVertexAttribPointer;
 
+import org.oscim.backend.Log;
 import org.oscim.core.MapPosition;
 import org.oscim.generator.TileGenerator;
 import org.oscim.renderer.layer.Layer;
@@ -33,7 +34,6 @@ import org.oscim.theme.renderinstruction.Line;
 import org.oscim.utils.GlUtils;
 
 import android.opengl.GLES20;
-import android.util.Log;
 
 public final class LineRenderer {
 	private final static String TAG = LineRenderer.class.getName();
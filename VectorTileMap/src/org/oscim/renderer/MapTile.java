@@ -30,6 +30,18 @@ public final class MapTile extends JobTile {
 	public TextItem labels;
 	public Layers layers;
 
+	/**
+	 * Incremented by setLabels(), to find out whether the labels changed.
+	 * TextItems are pooled, so they cannot be compared by reference.
+	 */
+	public int labelSerial;
+
+	/**
+	 * Copy of the compiled layers, kept by GLRenderer for
+	 * CompiledTileCache.
+	 */
+	short[] compiled;
+
 	/**
 	 * Tile is in view region. Set by GLRenderer.
 	 */
@@ -42,6 +54,11 @@ public final class MapTile extends JobTile {
 
 	int lastDraw = 0;
 
+	/**
+	 * Serial of the last TileManager update that requested this tile.
+	 */
+	int scanSerial;
+
 	// keep track which tiles are locked as proxy for this tile
 	public final static int PROXY_CHILD1 = 1 << 0;
 	public final static int PROXY_CHILD2 = 1 << 1;
@@ -71,10 +88,19 @@ public final class MapTile extends JobTile {
 	// e.g. x:-1,y:0,z:1 for x:1,y:0
 	MapTile holder;
 
-	MapTile(int tileX, int tileY, byte zoomLevel) {
+	/**
+	 * Tiles of the map are created by TileManager, other tiles can be
+	 * loaded by a TileGenerator, e.g. when generating tiles headless.
+	 */
+	public MapTile(int tileX, int tileY, byte zoomLevel) {
 		super(tileX, tileY, zoomLevel);
 	}
 
+	public void setLabels(TextItem labels) {
+		this.labels = labels;
+		labelSerial++;
+	}
+
 	/**
 	 * @return true if tile could be referenced by another thread
 	 */
@@ -82,6 +108,17 @@ public final class MapTile extends JobTile {
 		return locked > 0 || refs > 0;
 	}
 
+	/**
+	 * @return bytes allocated for the buffer object of this tile
+	 */
+	public int getMemoryUsage() {
+		Layers l = layers;
+		if (l == null || l.vbo == null)
+			return 0;
+
+		return l.vbo.size;
+	}
+
 	void lock() {
 		if (locked++ > 0)
 			return;
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.renderer;
+
+/**
+ * Shared memory limit for buffer objects, textures, vertex pool items and
+ * compiled tile data.
+ * <p>
+ * The pools report the bytes they allocate and free. When the sum exceeds
+ * the limit, GLRenderer deletes unused buffer objects and textures and
+ * stops keeping copies of compiled tiles, VertexPool stops keeping released
+ * items and TileManager removes the tiles farthest from the current
+ * position until the buffer objects of the remaining tiles fit into what
+ * is left by the other categories.
+ */
+public final class MemoryBudget {
+
+	/** bytes allocated for buffer objects, used or pooled */
+	public static final int BUFFERS = 0;
+	/** bytes allocated for textures, used or pooled */
+	public static final int TEXTURES = 1;
+	/** bytes allocated for vertex pool items, used or pooled */
+	public static final int VERTICES = 2;
+	/** bytes of compiled tile data kept for CompiledTileCache */
+	public static final int COMPILED = 3;
+
+	private static final int CATEGORIES = 4;
+
+	private static final int MB = 1024 * 1024;
+
+	// default limit, the former 16MB for buffer objects plus textures
+	private static final int DEFAULT_LIMIT = 24 * MB;
+
+	private static final int[] mUsage = new int[CATEGORIES];
+	private static final int[] mMaxUsage = new int[CATEGORIES];
+
+	private static int mLimit = DEFAULT_LIMIT;
+
+	private MemoryBudget() {
+	}
+
+	/**
+	 * Set the number of bytes that may be allocated by all categories.
+	 * Should be chosen from the memory class of the device, e.g. a quarter
+	 * of ActivityManager.getMemoryClass().
+	 *
+	 * @param bytes
+	 *            the limit
+	 */
+	public static synchronized void setLimit(int bytes) {
+		mLimit = bytes;
+	}
+
+	public static synchronized int getLimit() {
+		return mLimit;
+	}
+
+	/**
+	 * @param category
+	 *            one of BUFFERS, TEXTURES, VERTICES or COMPILED
+	 * @return bytes currently allocated by category
+	 */
+	public static synchronized int getUsage(int category) {
+		return mUsage[category];
+	}
+
+	/**
+	 * @return bytes currently allocated by all categories
+	 */
+	public static synchronized int getUsage() {
+		int sum = 0;
+		for (int i = 0; i < CATEGORIES; i++)
+			sum += mUsage[i];
+
+		return sum;
+	}
+
+	/**
+	 * @return number of bytes by which the limit is exceeded, or a value
+	 *         less than or equal to 0 when within the limit
+	 */
+	public static synchronized int getExcess() {
+		int sum = 0;
+		for (int i = 0; i < CATEGORIES; i++)
+			sum += mUsage[i];
+
+		return sum - mLimit;
+	}
+
+	/**
+	 * @return true when the limit is exceeded
+	 */
+	public static boolean isExceeded() {
+		return getExcess() > 0;
+	}
+
+	/**
+	 * @return bytes that the buffer objects of all tiles may use, i.e. the
+	 *         limit minus allocated textures, vertices and compiled data
+	 */
+	static synchronized int getTileLimit() {
+		return mLimit - mUsage[TEXTURES] - mUsage[VERTICES] - mUsage[COMPILED];
+	}
+
+	/**
+	 * Called by the pools when allocating (bytes > 0) or freeing
+	 * (bytes < 0) memory.
+	 */
+	public static synchronized void add(int category, int bytes) {
+		int usage = mUsage[category] += bytes;
+		if (usage > mMaxUsage[category])
+			mMaxUsage[category] = usage;
+	}
+
+	/**
+	 * Reset category, e.g. when the GL context was lost.
+	 */
+	static synchronized void reset(int category) {
+		mUsage[category] = 0;
+	}
+
+	/**
+	 * @return usage of all categories, for debugging
+	 */
+	public static synchronized String getStats() {
+		return "memory: " + (getUsage() / MB) + "/" + (mLimit / MB) + "MB"
+				+ " buffers " + (mUsage[BUFFERS] >> 10)
+				+ "kB (max " + (mMaxUsage[BUFFERS] >> 10) + ")"
+				+ " textures " + (mUsage[TEXTURES] >> 10)
+				+ "kB (max " + (mMaxUsage[TEXTURES] >> 10) + ")"
+				+ " vertices " + (mUsage[VERTICES] >> 10)
+				+ "kB (max " + (mMaxUsage[VERTICES] >> 10) + ")"
+				+ " compiled " + (mUsage[COMPILED] >> 10)
+				+ "kB (max " + (mMaxUsage[COMPILED] >> 10) + ")";
+	}
+}
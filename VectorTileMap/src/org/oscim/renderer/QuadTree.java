@@ -14,7 +14,7 @@
  */
 package org.oscim.renderer;
 
-import android.util.Log;
+import org.oscim.backend.Log;
 
 public class QuadTree {
 	private static String TAG = QuadTree.class.getName();
@@ -0,0 +1,386 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.renderer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.oscim.backend.Log;
+import org.oscim.theme.renderinstruction.Text;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.opengl.GLES20;
+
+/**
+ * Label bitmaps kept across relabel passes, so that TextLayer only needs
+ * to draw strings that were not drawn before.
+ * <p>
+ * Labels are packed in rows into pages of TEXTURE_WIDTH * TEXTURE_HEIGHT.
+ * When no page has room left, the least recently used page is cleared.
+ * Pages used by the current or the previous pass are not cleared, as the
+ * previous pass might still be rendered, a new page is added instead.
+ * <p>
+ * Pages keep their Bitmap to add labels and to upload them again when the
+ * GL context was lost. GLRenderer uploads changed pages in
+ * TextureLayer.compile().
+ * <p>
+ * Bitmaps and textures of the pages are counted as MemoryBudget.TEXTURES.
+ * begin() releases the pages not used by the previous pass, except for
+ * MAX_UNUSED_PAGES to be reused, or all of them while the budget is
+ * exceeded.
+ * <p>
+ * Labels larger than a page are not drawn.
+ */
+public final class TextureAtlas {
+	private final static String TAG = TextureAtlas.class.getName();
+
+	private final static int WIDTH = TextureObject.TEXTURE_WIDTH;
+	private final static int HEIGHT = TextureObject.TEXTURE_HEIGHT;
+
+	private final static int PAGE_BYTES = WIDTH * HEIGHT * 4;
+
+	private final static int FONT_PAD_X = 1;
+
+	// pages not used by the current or previous pass that are kept
+	private final static int MAX_UNUSED_PAGES = 2;
+
+	/**
+	 * A label drawn to a page.
+	 */
+	public static final class Entry {
+		String string;
+		Text text;
+		float fontHeight;
+
+		Page page;
+
+		/** position and size of the label in its page */
+		public float x, y, width, height;
+
+		@Override
+		public int hashCode() {
+			return string.hashCode() * 31 + text.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			Entry e = (Entry) obj;
+			return text == e.text && string.equals(e.string);
+		}
+
+		/**
+		 * @return the page containing this label
+		 */
+		public Page getPage() {
+			return page;
+		}
+	}
+
+	/**
+	 * A texture of the atlas.
+	 */
+	public static final class Page {
+		final TextureAtlas atlas;
+
+		final TextureObject texture;
+		// null when released
+		Bitmap bitmap;
+
+		final ArrayList<Entry> entries = new ArrayList<Entry>();
+
+		// serial of the last pass using this page
+		int serial;
+
+		// bitmap changed since last upload
+		boolean dirty;
+
+		// TextureObject.contextSerial when uploaded
+		int context = -1;
+
+		// next free position
+		float x, y;
+		int rowHeight;
+
+		Page(TextureAtlas atlas) {
+			this.atlas = atlas;
+			texture = new TextureObject(-1);
+			bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+			bitmap.eraseColor(Color.TRANSPARENT);
+			MemoryBudget.add(MemoryBudget.TEXTURES, PAGE_BYTES);
+		}
+
+		/**
+		 * @return a TextureObject to add to TextureLayer.textures, which
+		 *         draws from this page.
+		 */
+		public TextureObject newTexture() {
+			TextureObject to = new TextureObject(-1);
+			to.page = this;
+			return to;
+		}
+
+		boolean fits(float width, int height) {
+			if (x + width <= WIDTH && y + height <= HEIGHT)
+				return true;
+
+			// next row
+			return y + rowHeight + height <= HEIGHT;
+		}
+
+		void clear() {
+			bitmap.eraseColor(Color.TRANSPARENT);
+			entries.clear();
+			x = 0;
+			y = 0;
+			rowHeight = 0;
+			dirty = true;
+		}
+
+		/**
+		 * Recycles the bitmap and passes the texture to the TextureObject
+		 * pool, to be deleted by TextureObject.limitUsage().
+		 */
+		void release() {
+			bitmap.recycle();
+			bitmap = null;
+			entries.clear();
+			MemoryBudget.add(MemoryBudget.TEXTURES, -PAGE_BYTES);
+
+			if (texture.id >= 0 && context == TextureObject.contextSerial)
+				TextureObject.release(texture);
+		}
+
+		// GL-Thread only
+		void upload(TextureObject to) {
+			synchronized (atlas) {
+				if (bitmap == null) {
+					// released, not used by the rendered passes
+					to.id = -1;
+					return;
+				}
+				if (context != TextureObject.contextSerial) {
+					// texture of previous context is gone
+					texture.id = -1;
+					texture.width = 0;
+					texture.height = 0;
+					context = TextureObject.contextSerial;
+					dirty = true;
+				}
+				if (texture.id < 0) {
+					int[] textureIds = new int[1];
+					GLES20.glGenTextures(1, textureIds, 0);
+					texture.id = textureIds[0];
+					TextureObject.initTexture(texture.id);
+				}
+				if (dirty) {
+					TextureObject.uploadTexture(texture, bitmap,
+							TextureObject.mBitmapFormat, TextureObject.mBitmapType,
+							WIDTH, HEIGHT);
+					dirty = false;
+					atlas.mUploads++;
+				}
+				to.id = texture.id;
+			}
+		}
+	}
+
+	private final HashMap<Entry, Entry> mEntries = new HashMap<Entry, Entry>(512);
+	private final ArrayList<Page> mPages = new ArrayList<Page>();
+
+	// page to add new labels
+	private Page mCurrent;
+
+	private final Canvas mCanvas = new Canvas();
+
+	// serial of the current pass
+	private int mSerial;
+
+	// key for lookups
+	private final Entry mKey = new Entry();
+
+	// statistics
+	private int mHits;
+	private int mMisses;
+	private int mUploads;
+	private int mSkipped;
+
+	/**
+	 * Start a new pass. Pages used in the previous pass will be kept until
+	 * the next pass.
+	 */
+	public synchronized void begin() {
+		mSerial++;
+
+		int keep = MemoryBudget.isExceeded() ? 0 : MAX_UNUSED_PAGES;
+
+		while (true) {
+			Page lru = getUnusedPage(keep);
+			if (lru == null)
+				break;
+
+			removeEntries(lru);
+			lru.release();
+			mPages.remove(lru);
+
+			if (lru == mCurrent)
+				mCurrent = null;
+		}
+	}
+
+	/**
+	 * @return the least recently used page that is not used by the current
+	 *         or the previous pass, or null when there are not more than
+	 *         'keep' of them
+	 */
+	private Page getUnusedPage(int keep) {
+		Page lru = null;
+		int unused = 0;
+		for (int i = 0, n = mPages.size(); i < n; i++) {
+			Page p = mPages.get(i);
+			if (p.serial >= mSerial - 1)
+				continue;
+
+			unused++;
+			if (lru == null || p.serial < lru.serial)
+				lru = p;
+		}
+		return unused > keep ? lru : null;
+	}
+
+	private void removeEntries(Page p) {
+		for (int i = 0, n = p.entries.size(); i < n; i++) {
+			Entry e = p.entries.get(i);
+			// might have been replaced after scaling the text size
+			if (mEntries.get(e) == e)
+				mEntries.remove(e);
+		}
+	}
+
+	/**
+	 * Get the label for string in style text, draw it when it is not in
+	 * the atlas.
+	 *
+	 * @param string
+	 *            the label
+	 * @param text
+	 *            the style
+	 * @param width
+	 *            width of the string, as measured by text
+	 * @return the entry with position of the label in its page, or null
+	 *         when the label is larger than a page
+	 */
+	public synchronized Entry get(String string, Text text, float width) {
+		Entry key = mKey;
+		key.string = string;
+		key.text = text;
+
+		Entry e = mEntries.get(key);
+		key.string = null;
+		key.text = null;
+
+		// the text size might have been scaled
+		if (e != null && e.fontHeight == text.fontHeight) {
+			mHits++;
+			e.page.serial = mSerial;
+			return e;
+		}
+		mMisses++;
+
+		float entryWidth = width + 2 * FONT_PAD_X;
+		float entryHeight = (int) (text.fontHeight) + 0.5f;
+		int height = (int) (entryHeight + 0.5f);
+
+		// would be cut off, the shader expects pages of WIDTH * HEIGHT
+		if (entryWidth > WIDTH || height > HEIGHT) {
+			mSkipped++;
+			return null;
+		}
+
+		e = new Entry();
+		e.string = string;
+		e.text = text;
+		e.fontHeight = text.fontHeight;
+		e.width = entryWidth;
+		e.height = entryHeight;
+
+		Page p = getPage(e.width, height);
+
+		if (p.x + e.width > WIDTH) {
+			p.x = 0;
+			p.y += p.rowHeight;
+			p.rowHeight = 0;
+		}
+		if (height > p.rowHeight)
+			p.rowHeight = height;
+
+		e.page = p;
+		e.x = p.x;
+		e.y = p.y;
+		p.x += e.width;
+
+		float yy = e.y + e.height - text.fontDescent;
+
+		mCanvas.setBitmap(p.bitmap);
+		if (text.stroke != null)
+			mCanvas.drawText(string, e.x + width / 2, yy, text.stroke);
+
+		mCanvas.drawText(string, e.x + width / 2, yy, text.paint);
+
+		p.entries.add(e);
+		p.dirty = true;
+		p.serial = mSerial;
+
+		mEntries.put(e, e);
+
+		return e;
+	}
+
+	private Page getPage(float width, int height) {
+		if (mCurrent != null && mCurrent.fits(width, height))
+			return mCurrent;
+
+		// least recently used page that is not used by the current
+		// or the previous pass
+		Page lru = getUnusedPage(0);
+
+		if (lru != null) {
+			removeEntries(lru);
+			lru.clear();
+			mCurrent = lru;
+		} else {
+			mCurrent = new Page(this);
+			mPages.add(mCurrent);
+
+			if (TextureRenderer.debug)
+				Log.d(TAG, "pages: " + mPages.size());
+		}
+
+		return mCurrent;
+	}
+
+	@Override
+	public synchronized String toString() {
+		int requests = mHits + mMisses;
+		int rate = requests == 0 ? 0 : mHits * 100 / requests;
+
+		return "label atlas: " + mEntries.size() + " labels, "
+				+ mPages.size() + " pages"
+				+ ", hits " + rate + "% of " + requests
+				+ ", uploads " + mUploads
+				+ ", skipped " + mSkipped;
+	}
+}
@@ -16,11 +16,12 @@ package org.oscim.renderer;
 
 import java.util.ArrayList;
 
+import org.oscim.backend.Log;
+
 import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.opengl.GLES20;
 import android.opengl.GLUtils;
-import android.util.Log;
 
 /**
  * @author Hannes Janetzek
@@ -36,8 +37,17 @@ public class TextureObject {
 	public final static int TEXTURE_WIDTH = 256;
 	public final static int TEXTURE_HEIGHT = 256;
 
-	private static int mBitmapFormat;
-	private static int mBitmapType;
+	// bytes of an ARGB_8888 bitmap and texture
+	private final static int TEXTURE_BYTES = TEXTURE_WIDTH * TEXTURE_HEIGHT * 4;
+
+	// number of bitmaps to keep when limiting usage
+	private final static int MIN_BITMAPS = 4;
+
+	static int mBitmapFormat;
+	static int mBitmapType;
+
+	// incremented for each GL context, see TextureAtlas
+	static int contextSerial;
 
 	/**
 	 * Get a TextureObject with Bitmap to draw to.
@@ -81,9 +91,11 @@ public class TextureObject {
 				to.bitmap = null;
 			}
 
-			to.next = pool;
-			pool = to;
-
+			// textures of atlas pages are owned by TextureAtlas
+			if (to.page == null) {
+				to.next = pool;
+				pool = to;
+			}
 			to = next;
 		}
 	}
@@ -96,6 +108,11 @@ public class TextureObject {
 	public static synchronized void uploadTexture(TextureObject to) {
 		// FIXME what needs synchronized ?
 
+		if (to.page != null) {
+			to.page.upload(to);
+			return;
+		}
+
 		if (TextureRenderer.debug)
 			Log.d(TAG, "upload texture " + to.id);
 
@@ -127,11 +144,62 @@ public class TextureObject {
 			GLUtils.texSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, bitmap, format, type);
 		else {
 			GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, format, bitmap, type, 0);
+			MemoryBudget.add(MemoryBudget.TEXTURES,
+					(w * h - to.width * to.height) * 4);
 			to.width = w;
 			to.height = h;
 		}
 	}
 
+	/**
+	 * Delete unused textures and recycle unused bitmaps of the pool.
+	 * This function may only be used in GLRenderer Thread.
+	 *
+	 * @param reduce
+	 *            number of bytes to free
+	 * @return number of bytes freed
+	 */
+	static synchronized int limitUsage(int reduce) {
+		int freed = 0;
+
+		while (freed < reduce && mBitmaps.size() > MIN_BITMAPS) {
+			mBitmaps.remove(mBitmaps.size() - 1).recycle();
+			freed += TEXTURE_BYTES;
+		}
+
+		int[] textureIds = new int[10];
+		int removed = 0;
+
+		TextureObject prev = null;
+		for (TextureObject to = pool; to != null && freed < reduce;) {
+			if (to.id >= 0 && to.width > 0) {
+				freed += to.width * to.height * 4;
+				textureIds[removed++] = to.id;
+
+				if (prev == null)
+					pool = to.next;
+				else
+					prev.next = to.next;
+
+				poolCount--;
+				to = to.next;
+
+				if (removed == 10)
+					break;
+			} else {
+				prev = to;
+				to = to.next;
+			}
+		}
+
+		if (removed > 0)
+			GLES20.glDeleteTextures(removed, textureIds, 0);
+
+		MemoryBudget.add(MemoryBudget.TEXTURES, -freed);
+
+		return freed;
+	}
+
 	static void initTexture(int id) {
 		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, id);
 
@@ -146,6 +214,7 @@ public class TextureObject {
 	}
 
 	static void init(int num) {
+		contextSerial++;
 		pool = null;
 		poolCount = num;
 
@@ -162,12 +231,16 @@ public class TextureObject {
 
 		mBitmaps = new ArrayList<Bitmap>(10);
 
-		for (int i = 0; i < 4; i++) {
+		// textures of the previous context are gone
+		MemoryBudget.reset(MemoryBudget.TEXTURES);
+
+		for (int i = 0; i < MIN_BITMAPS; i++) {
 			Bitmap bitmap = Bitmap.createBitmap(
 					TEXTURE_WIDTH, TEXTURE_HEIGHT,
 					Bitmap.Config.ARGB_8888);
 
 			mBitmaps.add(bitmap);
+			MemoryBudget.add(MemoryBudget.TEXTURES, TEXTURE_BYTES);
 		}
 
 		mBitmapFormat = GLUtils.getInternalFormat(mBitmaps.get(0));
@@ -181,6 +254,8 @@ public class TextureObject {
 					TEXTURE_WIDTH, TEXTURE_HEIGHT,
 					Bitmap.Config.ARGB_8888);
 
+			MemoryBudget.add(MemoryBudget.TEXTURES, TEXTURE_BYTES);
+
 			if (TextureRenderer.debug)
 				Log.d(TAG, "alloc bitmap: " +
 						android.os.Debug.getNativeHeapAllocatedSize() / (1024 * 1024));
@@ -206,6 +281,9 @@ public class TextureObject {
 	// temporary Bitmap
 	public Bitmap bitmap;
 
+	// page drawn from, when obtained by TextureAtlas.Page.newTexture()
+	TextureAtlas.Page page;
+
 	TextureObject(int id) {
 		this.id = id;
 	}
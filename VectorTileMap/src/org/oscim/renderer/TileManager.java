@@ -22,6 +22,7 @@ import static org.oscim.generator.JobTile.STATE_NONE;
 import java.util.ArrayList;
 import java.util.Arrays;
 
+import org.oscim.backend.Log;
 import org.oscim.core.MapPosition;
 import org.oscim.core.Tile;
 import org.oscim.generator.JobTile;
@@ -31,12 +32,11 @@ import org.oscim.renderer.layer.VertexPool;
 import org.oscim.view.MapView;
 import org.oscim.view.MapViewPosition;
 
-import android.util.Log;
-
 /**
  * @author Hannes Janetzek
  * @TODO
  *       - prefetching to cache file
+ *       - prefetch along rotation and tilt
  *       - this class should probably not be in 'renderer' -> tilemap?
  *       - make it general for reuse in tile-overlays
  */
@@ -48,6 +48,19 @@ public class TileManager {
 	private static final int MAX_TILES_IN_QUEUE = 40;
 	// cache limit threshold
 	private static final int CACHE_THRESHOLD = 30;
+	// bytes to free in addition when tiles exceed MemoryBudget
+	private static final int MEMORY_THRESHOLD = 1 << 20;
+
+	// limit number of tiles loaded ahead of a fling, animation or zoom
+	private static final int MAX_PREFETCH = 16;
+	// number of positions along the predicted path to prefetch
+	private static final int PREFETCH_STEPS = 4;
+	// added to the distance of prefetched tiles so that MapWorkers load
+	// all visible tiles first
+	private static final float PREFETCH_DISTANCE = 1 << 24;
+
+	// default size of CompiledTileCache in bytes
+	private static final int COMPILED_CACHE_SIZE = 8 << 20;
 
 	private final MapView mMapView;
 	private final MapViewPosition mMapViewPosition;
@@ -69,9 +82,18 @@ public class TileManager {
 	// new tile jobs for MapWorkers
 	private final ArrayList<JobTile> mJobs;
 
+	// compiled data of tiles removed from mTiles
+	private final CompiledTileCache mCompiledTiles;
+
+	// number of tiles restored from mCompiledTiles by the current update
+	private int mRestored;
+
 	// counter to check whether current TileSet has changed
 	private static int mUpdateSerial;
 
+	// counter to mark tiles that are requested by the current update
+	private int mScanSerial;
+
 	// lock for TileSets while updating MapTile locks
 	private final Object mTilelock = new Object();
 
@@ -80,12 +102,23 @@ public class TileManager {
 
 	private final float[] mTileCoords = new float[8];
 
+	// tiles requested by the current prefetch
+	private final MapTile[] mPrefetch = new MapTile[MAX_PREFETCH];
+	private int mPrefetchCnt;
+
+	private final float[] mPrefetchCoords = new float[8];
+	private final double[] mPredictedPos = new double[2];
+	private boolean mPredictedMove;
+
 	public TileManager(MapView mapView) {
 		mMapView = mapView;
 		mMapViewPosition = mapView.getMapViewPosition();
 		mJobs = new ArrayList<JobTile>();
 		mTiles = new MapTile[GLRenderer.CACHE_TILES];
 
+		mCompiledTiles = new CompiledTileCache(COMPILED_CACHE_SIZE);
+		GLRenderer.keepCompiled = mCompiledTiles.isEnabled();
+
 		mTilesSize = 0;
 		mTilesForUpload = 0;
 
@@ -99,6 +132,26 @@ public class TileManager {
 		// ... free static pools
 	}
 
+	/**
+	 * Set the size of the cache for compiled data of tiles removed from the
+	 * tile cache. Tiles that come back into view are uploaded from this
+	 * cache instead of being loaded again.
+	 *
+	 * @param bytes
+	 *            size limit, 0 to disable the cache
+	 */
+	public synchronized void setCompiledCacheSize(int bytes) {
+		mCompiledTiles.setMaxSize(bytes);
+		GLRenderer.keepCompiled = mCompiledTiles.isEnabled();
+	}
+
+	/**
+	 * @return hit rate and size of the compiled tile cache, for debugging
+	 */
+	public String getCompiledCacheStats() {
+		return mCompiledTiles.toString();
+	}
+
 	public synchronized void init(int width, int height) {
 
 		// sync with GLRender thread
@@ -118,6 +171,9 @@ public class TileManager {
 		// clear cache index
 		QuadTree.init();
 
+		// data may be from the previous theme or MapDatabase
+		mCompiledTiles.clear();
+
 		// clear references to cached MapTiles
 		Arrays.fill(mTiles, null);
 		mTilesSize = 0;
@@ -176,8 +232,10 @@ public class TileManager {
 		float px = (float) mapPosition.x;
 		float py = (float) mapPosition.y;
 
-		// TODO hint whether to prefetch parent / children
-		int zdir = 0;
+		// prefetch parent or children when zooming
+		int zdir = mMapViewPosition.getPredictedZoom();
+		mPredictedMove = mMapViewPosition.getPredictedMove(mapPosition.zoomLevel,
+				mPredictedPos);
 
 		for (int i = 0; i < 8; i += 2) {
 			coords[i + 0] = (px + coords[i + 0] / scale) / Tile.TILE_SIZE;
@@ -191,10 +249,15 @@ public class TileManager {
 
 			int remove = mTilesCount - GLRenderer.CACHE_TILES;
 
-			if (remove > CACHE_THRESHOLD ||
+			// size the cache by the memory left by textures and vertices
+			int reduce = getMemoryUsage() - MemoryBudget.getTileLimit();
+			if (reduce > 0)
+				reduce += MEMORY_THRESHOLD;
+
+			if (remove > CACHE_THRESHOLD || reduce > 0 ||
 					mTilesForUpload > MAX_TILES_IN_QUEUE)
 
-				limitCache(mapPosition, remove);
+				limitCache(mapPosition, remove, reduce);
 		}
 	}
 
@@ -258,13 +321,11 @@ public class TileManager {
 	 * @return true if new tiles were loaded
 	 */
 	private boolean updateVisibleList(MapPosition mapPosition, int zdir) {
-		// clear JobQueue and set tiles to state == NONE.
-		// one could also append new tiles and sort in JobQueue
-		// but this has the nice side-effect that MapWorkers dont
-		// start with old jobs while new jobs are calculated, which
-		// should increase the chance that they are free when new
-		// jobs come in.
-		mMapView.addJobs(null);
+		// pending jobs are kept in JobQueue, tiles that are not
+		// requested anymore are canceled below and new jobs are
+		// added with the updated priorities.
+		mScanSerial++;
+		mRestored = 0;
 
 		mNewTiles.cnt = 0;
 		mScanBox.scan(mTileCoords, mapPosition.zoomLevel);
@@ -300,19 +361,99 @@ public class TileManager {
 				mUpdateSerial++;
 			}
 		}
+
+		prefetch(mapPosition, zdir);
+
+		// cancel loading tiles that left the visible area. the queue
+		// drops pending ones, TileGenerator stops working on them.
+		MapTile[] tiles = mTiles;
+		for (int i = 0, n = mTilesSize; i < n; i++) {
+			MapTile t = tiles[i];
+			if (t != null && t.state == STATE_LOADING)
+				t.canceled = (t.scanSerial != mScanSerial);
+		}
+
+		// update priorities of new and pending jobs
+		updateTileDistances(tiles, mTilesSize, mapPosition);
+
+		for (int i = 0; i < mPrefetchCnt; i++) {
+			mPrefetch[i].distance += PREFETCH_DISTANCE;
+			mPrefetch[i] = null;
+		}
+
 		//Log.d(TAG, "tiles: " + mCurrentTiles.cnt + " added: " + mJobs.size());
-		if (mJobs.size() > 0) {
+		int numJobs = mJobs.size();
 
-			JobTile[] jobs = new JobTile[mJobs.size()];
-			jobs = mJobs.toArray(jobs);
-			updateTileDistances(jobs, jobs.length, mapPosition);
+		JobTile[] jobs = new JobTile[numJobs];
+		jobs = mJobs.toArray(jobs);
+		mJobs.clear();
 
-			// sets tiles to state == LOADING
-			mMapView.addJobs(jobs);
-			mJobs.clear();
-			return true;
+		// sets tiles to state == LOADING
+		mMapView.addJobs(jobs);
+
+		if (mRestored > 0)
+			mTilesForUpload += mRestored;
+
+		return numJobs > 0 || mRestored > 0;
+	}
+
+	/**
+	 * Add jobs for tiles that are not visible yet but will be soon: along
+	 * the path to where the current fling or animation ends and at the
+	 * next zoomlevel when zooming. Tiles that are not requested by the
+	 * next prefetch anymore are canceled like tiles that left the visible
+	 * area.
+	 *
+	 * @param mapPosition
+	 *            the current MapPosition
+	 * @param zdir
+	 *            zoom direction
+	 */
+	private void prefetch(MapPosition mapPosition, int zdir) {
+		mPrefetchCnt = 0;
+
+		// loaded tiles are waiting for upload
+		if (mTilesForUpload > MAX_TILES_IN_QUEUE)
+			return;
+
+		float[] box = mTileCoords;
+		float[] coords = mPrefetchCoords;
+		byte zoom = mapPosition.zoomLevel;
+
+		if (mPredictedMove) {
+			// move of the visible box in tile coordinates
+			float dx = (float) ((mPredictedPos[0] - mapPosition.x) / Tile.TILE_SIZE);
+			float dy = (float) ((mPredictedPos[1] - mapPosition.y) / Tile.TILE_SIZE);
+
+			// from near to far, so that the budget is spent on tiles
+			// that are shown first
+			for (int s = 1; s <= PREFETCH_STEPS; s++) {
+				float f = (float) s / PREFETCH_STEPS;
+				for (int i = 0; i < 8; i += 2) {
+					coords[i + 0] = box[i + 0] + dx * f;
+					coords[i + 1] = box[i + 1] + dy * f;
+				}
+				mPrefetchBox.scan(coords, zoom);
+			}
 		}
-		return false;
+
+		int z = zoom + zdir;
+		if (zdir == 0 || z < MapViewPosition.MIN_ZOOMLEVEL
+				|| z > MapViewPosition.MAX_ZOOMLEVEL)
+			return;
+
+		// visible box after zooming by one level around the center,
+		// in tile coordinates of the next zoomlevel
+		float cx = (float) (mapPosition.x / Tile.TILE_SIZE);
+		float cy = (float) (mapPosition.y / Tile.TILE_SIZE);
+		float scale = zdir > 0 ? 0.5f : 2;
+		float next = zdir > 0 ? 2 : 0.5f;
+
+		for (int i = 0; i < 8; i += 2) {
+			coords[i + 0] = (cx + (box[i + 0] - cx) * scale) * next;
+			coords[i + 1] = (cy + (box[i + 1] - cy) * scale) * next;
+		}
+		mPrefetchBox.scan(coords, (byte) z);
 	}
 
 	/**
@@ -335,12 +476,13 @@ public class TileManager {
 		if (tile == null) {
 			tile = new MapTile(x, y, zoomLevel);
 			QuadTree.add(tile);
-			mJobs.add(tile);
+			addJob(tile);
 			addToCache(tile);
 
 		} else if (!tile.isActive()) {
-			mJobs.add(tile);
+			addJob(tile);
 		}
+		tile.scanSerial = mScanSerial;
 
 		if (zoomLevel > 0) {
 			// prefetch parent
@@ -350,17 +492,28 @@ public class TileManager {
 				p = new MapTile(x >> 1, y >> 1, (byte) (zoomLevel - 1));
 				QuadTree.add(p);
 				p.state = STATE_LOADING;
-				mJobs.add(p);
+				addJob(p);
 				addToCache(p);
 			} else if (!p.isActive()) {
 				p.state = STATE_LOADING;
-				mJobs.add(p);
+				addJob(p);
 			}
+			p.scanSerial = mScanSerial;
 		}
 
 		return tile;
 	}
 
+	/**
+	 * Restore tile from CompiledTileCache or add a job to load it.
+	 */
+	private void addJob(MapTile tile) {
+		if (mCompiledTiles.get(tile))
+			mRestored++;
+		else
+			mJobs.add(tile);
+	}
+
 	private void addToCache(MapTile tile) {
 
 		if (mTilesSize == mTiles.length) {
@@ -382,6 +535,15 @@ public class TileManager {
 		mTilesCount++;
 	}
 
+	/**
+	 * Remove tile from the cache, keeping its data in CompiledTileCache
+	 * when possible.
+	 */
+	private void evictTile(MapTile t) {
+		mCompiledTiles.put(t);
+		clearTile(t);
+	}
+
 	private void clearTile(MapTile t) {
 		if (t == null)
 			return;
@@ -398,6 +560,9 @@ public class TileManager {
 		}
 
 		TextItem.release(t.labels);
+		t.setLabels(null);
+		CompiledTileCache.release(t.compiled);
+		t.compiled = null;
 
 		QuadTree.remove(t);
 		t.state = STATE_NONE;
@@ -459,7 +624,28 @@ public class TileManager {
 		}
 	}
 
-	private void limitCache(MapPosition mapPosition, int remove) {
+	/**
+	 * @return bytes allocated for buffer objects of all cached tiles
+	 */
+	public synchronized int getMemoryUsage() {
+		int bytes = 0;
+		for (int i = 0, n = mTilesSize; i < n; i++) {
+			MapTile t = mTiles[i];
+			if (t != null)
+				bytes += t.getMemoryUsage();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Remove tiles farthest from mapPosition.
+	 *
+	 * @param remove
+	 *            number of tiles to remove
+	 * @param reduce
+	 *            number of bytes to free
+	 */
+	private void limitCache(MapPosition mapPosition, int remove, int reduce) {
 		MapTile[] tiles = mTiles;
 		int size = mTilesSize;
 
@@ -485,7 +671,7 @@ public class TileManager {
 			remove--;
 		}
 
-		if (remove > 10 || newTileCnt > MAX_TILES_IN_QUEUE) {
+		if (remove > 10 || reduce > 0 || newTileCnt > MAX_TILES_IN_QUEUE) {
 			updateTileDistances(tiles, size, mapPosition);
 
 			TileDistanceSort.sort(tiles, 0, size);
@@ -497,7 +683,7 @@ public class TileManager {
 			//boolean locked = false;
 			//int r = remove;
 
-			for (int i = size - 1; i >= 0 && remove > 0; i--) {
+			for (int i = size - 1; i >= 0 && (remove > 0 || reduce > 0); i--) {
 				MapTile t = tiles[i];
 				if (t.isLocked()) {
 					// dont remove tile used by GLRenderer, or somewhere else
@@ -516,7 +702,8 @@ public class TileManager {
 						newTileCnt--;
 
 					remove--;
-					clearTile(t);
+					reduce -= t.getMemoryUsage();
+					evictTile(t);
 					tiles[i] = null;
 				}
 			}
@@ -539,7 +726,7 @@ public class TileManager {
 				MapTile t = tiles[i];
 				if (t != null && t.state == STATE_NEW_DATA) {
 					if (!t.isLocked()) {
-						clearTile(t);
+						evictTile(t);
 						tiles[i] = null;
 						remove--;
 						newTileCnt--;
@@ -559,9 +746,20 @@ public class TileManager {
 	 *            Tile ready for upload to GL
 	 * @return ... caller does not care
 	 */
-	public synchronized boolean passTile(JobTile jobTile) {
+	public synchronized boolean passTile(JobTile jobTile, boolean success) {
 		MapTile tile = (MapTile) jobTile;
 
+		if (!success && tile.state == STATE_LOADING) {
+			// TileGenerator stopped because the tile was canceled
+			if (tile.canceled) {
+				tile.state = STATE_NONE;
+			} else {
+				// the tile was requested again in the meantime
+				mMapView.addJobs(new JobTile[] { tile });
+			}
+			return true;
+		}
+
 		if (tile.state != STATE_LOADING) {
 			// - should rather be STATE_FAILED
 			// no one should be able to use this tile now, TileGenerator passed
@@ -632,4 +830,54 @@ public class TileManager {
 			mNewTiles.cnt = cnt;
 		}
 	};
+
+	private final ScanBox mPrefetchBox = new ScanBox() {
+		@Override
+		public void setVisible(int y, int x1, int x2) {
+			int xmax = 1 << mZoom;
+
+			for (int x = x1; x < x2; x++) {
+				if (mPrefetchCnt == MAX_PREFETCH)
+					return;
+
+				int xx = x;
+
+				if (x < 0 || x >= xmax) {
+					// flip-around date line
+					if (x < 0)
+						xx = xmax + x;
+					else
+						xx = x - xmax;
+
+					if (xx < 0 || xx >= xmax)
+						continue;
+				}
+
+				MapTile tile = QuadTree.getTile(xx, y, mZoom);
+
+				// visible or already requested
+				if (tile != null && tile.scanSerial == mScanSerial)
+					continue;
+
+				if (tile == null) {
+					tile = new MapTile(xx, y, mZoom);
+					QuadTree.add(tile);
+					addToCache(tile);
+				}
+
+				if (!tile.isActive()) {
+					addJob(tile);
+					// restored from CompiledTileCache
+					if (tile.state == STATE_NEW_DATA)
+						continue;
+				} else if (tile.state != STATE_LOADING) {
+					// already loaded
+					continue;
+				}
+
+				tile.scanSerial = mScanSerial;
+				mPrefetch[mPrefetchCnt++] = tile;
+			}
+		}
+	};
 }
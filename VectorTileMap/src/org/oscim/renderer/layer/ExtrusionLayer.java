@@ -19,15 +19,15 @@ import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.ShortBuffer;
 
+import org.oscim.backend.Log;
 import org.oscim.core.Tile;
 import org.oscim.jni.TriangleJNI;
 import org.oscim.renderer.BufferObject;
 import org.oscim.renderer.GLRenderer;
+import org.oscim.renderer.MemoryBudget;
 import org.oscim.utils.LineClipper;
-import org.oscim.view.MapView;
 
 import android.opengl.GLES20;
-import android.util.Log;
 
 /**
  * @author Hannes Janetzek
@@ -107,7 +107,7 @@ public class ExtrusionLayer extends Layer {
 
 			// check: drop last point from explicitly closed rings
 			int len = length;
-			if (!MapView.enableClosePolygons) {
+			if (!Layers.enableClosePolygons) {
 				len -= 2;
 			} else if (points[ppos] == points[ppos + len - 2]
 					&& points[ppos + 1] == points[ppos + len - 1]) {
@@ -368,7 +368,7 @@ public class ExtrusionLayer extends Layer {
 		}
 
 		sbuf.flip();
-		mIndiceBO.size = mNumIndices * 2;
+		setSize(mIndiceBO, mNumIndices * 2);
 		GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mIndicesBufferID);
 		GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER,
 				mIndiceBO.size, sbuf, GLES20.GL_DYNAMIC_DRAW);
@@ -379,7 +379,7 @@ public class ExtrusionLayer extends Layer {
 			sbuf.put(vi.vertices, 0, vi.used);
 
 		sbuf.flip();
-		mVertexBO.size = mNumVertices * 4 * 2;
+		setSize(mVertexBO, mNumVertices * 4 * 2);
 		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBufferID);
 		GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER,
 				mVertexBO.size, sbuf, GLES20.GL_DYNAMIC_DRAW);
@@ -397,6 +397,13 @@ public class ExtrusionLayer extends Layer {
 		compiled = true;
 	}
 
+	// the buffer object might have been allocated before, see
+	// GLRenderer.uploadBuffer()
+	private static void setSize(BufferObject bo, int size) {
+		MemoryBudget.add(MemoryBudget.BUFFERS, size - bo.size);
+		bo.size = size;
+	}
+
 	@Override
 	protected void clear() {
 		if (compiled) {
@@ -16,13 +16,19 @@ package org.oscim.renderer.layer;
 
 import java.nio.ShortBuffer;
 
+import org.oscim.backend.Log;
 import org.oscim.renderer.BufferObject;
 
-import android.util.Log;
-
 public class Layers {
 	private final static String TAG = Layers.class.getName();
 
+	/**
+	 * Close polygons of ways, set when the MapDatabase does not repeat the
+	 * first point of closed ways.
+	 */
+	// FIXME: keep until old pbmap reader is removed
+	public static boolean enableClosePolygons = false;
+
 	// mixed Polygon- and LineLayer
 	public Layer baseLayers;
 	public Layer textureLayers;
@@ -20,7 +20,6 @@ import org.oscim.core.Tile;
 import org.oscim.renderer.GLRenderer;
 import org.oscim.theme.renderinstruction.Line;
 import org.oscim.utils.FastMath;
-import org.oscim.view.MapView;
 
 import android.graphics.Paint.Cap;
 
@@ -93,7 +92,7 @@ public final class LineLayer extends Layer {
 		int opos = si.used;
 
 		// FIXME: remove this when switching to oscimap MapDatabase
-		if (!MapView.enableClosePolygons)
+		if (!Layers.enableClosePolygons)
 			closed = false;
 
 		// Note: just a hack to save some vertices, when there are more than 200 lines
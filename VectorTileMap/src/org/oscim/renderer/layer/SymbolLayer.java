@@ -14,13 +14,13 @@
  */
 package org.oscim.renderer.layer;
 
+import org.oscim.backend.Log;
 import org.oscim.renderer.TextureObject;
 import org.oscim.renderer.TextureRenderer;
 
 import android.graphics.Canvas;
 import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
-import android.util.Log;
 
 // TODO share one static texture for all poi map symabols
 
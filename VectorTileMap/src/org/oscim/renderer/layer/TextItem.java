@@ -14,60 +14,112 @@
  */
 package org.oscim.renderer.layer;
 
-import org.oscim.theme.renderinstruction.Text;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 
-import android.util.Log;
+import org.oscim.backend.Log;
+import org.oscim.theme.renderinstruction.Text;
 
 public class TextItem {
 	private final static String TAG = TextItem.class.getName();
 	private final static int MAX_POOL = 250;
 
+	// number of items moved between a magazine and the shared pool
+	private final static int MAGAZINE_SIZE = 32;
+
+	// per-thread cache of items, see VertexPool. counters are only
+	// written by the owning thread, for debugging
+	static final class Magazine {
+		final WeakReference<Thread> owner =
+				new WeakReference<Thread>(Thread.currentThread());
+
+		TextItem items;
+		int count;
+
+		int hits;
+		int refills;
+		int misses;
+	}
+
 	private static Object lock = new Object();
 	private static TextItem pool;
 	private static int count = 0;
 	private static int inPool = 0;
 
-	public static TextItem get() {
-		synchronized (lock) {
-			if (pool == null) {
-				count++;
-				return new TextItem();
+	// magazines of all threads, to reclaim the items of exited threads
+	private static final ArrayList<Magazine> mMagazines = new ArrayList<Magazine>();
+
+	private static final ThreadLocal<Magazine> mMagazine = new ThreadLocal<Magazine>() {
+		@Override
+		protected Magazine initialValue() {
+			Magazine m = new Magazine();
+			synchronized (lock) {
+				mMagazines.add(m);
 			}
+			return m;
+		}
+	};
 
-			inPool--;
-			TextItem ti = pool;
-			pool = pool.next;
+	/**
+	 * Pass the items of the magazine of the current thread to the shared
+	 * pool, see VertexPool.releaseMagazine().
+	 */
+	public static void releaseMagazine() {
+		Magazine m = mMagazine.get();
+		if (m.count > 0)
+			flush(m, m.count);
 
-			ti.next = null;
-			//ti.active = 0;
-			return ti;
+		synchronized (lock) {
+			mMagazines.remove(m);
 		}
+		mMagazine.remove();
 	}
 
-	public static TextItem copy(TextItem orig) {
-		synchronized (lock) {
-			TextItem ti = pool;
+	// pass the items of magazines of exited threads to the shared pool,
+	// called with lock held
+	private static void releaseDeadMagazines() {
+		for (int i = mMagazines.size() - 1; i >= 0; i--) {
+			Magazine m = mMagazines.get(i);
+			Thread t = m.owner.get();
+			if (t != null && t.isAlive())
+				continue;
 
-			if (ti == null) {
-				count++;
-				ti = new TextItem();
-			} else {
-				inPool--;
-				pool = pool.next;
-			}
+			if (m.count > 0)
+				flush(m, m.count);
+
+			mMagazines.remove(i);
+		}
+	}
+
+	public static TextItem get() {
+		Magazine m = mMagazine.get();
 
-			ti.next = null;
+		if (m.items == null)
+			refill(m);
+		else
+			m.hits++;
 
-			ti.x = orig.x;
-			ti.y = orig.y;
+		TextItem ti = m.items;
+		m.items = ti.next;
+		m.count--;
 
-			ti.x1 = orig.x1;
-			ti.y1 = orig.y1;
-			ti.x2 = orig.x2;
-			ti.y2 = orig.y2;
+		ti.next = null;
+		//ti.active = 0;
+		return ti;
+	}
 
-			return ti;
-		}
+	public static TextItem copy(TextItem orig) {
+		TextItem ti = get();
+
+		ti.x = orig.x;
+		ti.y = orig.y;
+
+		ti.x1 = orig.x1;
+		ti.y1 = orig.y1;
+		ti.x2 = orig.x2;
+		ti.y2 = orig.y2;
+
+		return ti;
 	}
 
 	//	public static void append(TextItem ti, TextItem in) {
@@ -90,42 +142,101 @@ public class TextItem {
 		if (ti == null)
 			return;
 
-		if (inPool > MAX_POOL) {
-			while (ti != null) {
-				TextItem next = ti.next;
-
-				// drop references
-				ti.string = null;
-				ti.text = null;
-				ti.n1 = null;
-				ti.n2 = null;
-				ti = next;
-				count--;
-			}
+		Magazine m = mMagazine.get();
+
+		while (ti != null) {
+			TextItem next = ti.next;
+			ti.next = m.items;
+
+			// drop references
+			ti.string = null;
+			ti.text = null;
+			ti.n1 = null;
+			ti.n2 = null;
+
+			m.items = ti;
+			m.count++;
+
+			ti = next;
 		}
 
+		if (m.count > 2 * MAGAZINE_SIZE)
+			flush(m, m.count - MAGAZINE_SIZE);
+	}
+
+	// take up to MAGAZINE_SIZE items from the shared pool
+	private static void refill(Magazine m) {
+		m.refills++;
+
 		synchronized (lock) {
-			while (ti != null) {
-				TextItem next = ti.next;
-				ti.next = pool;
+			if (pool == null)
+				releaseDeadMagazines();
 
-				// drop references
-				ti.string = null;
-				ti.text = null;
-				ti.n1 = null;
-				ti.n2 = null;
+			if (pool == null) {
+				m.misses++;
+				count++;
+				m.items = new TextItem();
+				m.count++;
+				return;
+			}
+
+			TextItem last = pool;
+			int cnt = 1;
+			while (cnt < MAGAZINE_SIZE && last.next != null) {
+				last = last.next;
+				cnt++;
+			}
+
+			m.items = pool;
+			pool = last.next;
+			last.next = null;
+
+			m.count += cnt;
+			inPool -= cnt;
+		}
+	}
 
-				pool = ti;
+	// pass 'cnt' items of the magazine to the shared pool
+	private static void flush(Magazine m, int cnt) {
+		TextItem items = m.items;
+		TextItem last = items;
+		for (int i = 1; i < cnt; i++)
+			last = last.next;
 
-				ti = next;
+		m.items = last.next;
+		m.count -= cnt;
 
-				inPool++;
+		synchronized (lock) {
+			if (inPool > MAX_POOL) {
+				// pass to GC
+				last.next = null;
+				count -= cnt;
+				return;
 			}
+			last.next = pool;
+			pool = items;
+			inPool += cnt;
 		}
 	}
 
 	public static void printPool() {
-		Log.d(TAG, "in pool " + inPool + " / " + count);
+		synchronized (lock) {
+			releaseDeadMagazines();
+
+			int hits = 0, refills = 0, misses = 0, inMagazines = 0;
+			for (int i = 0, n = mMagazines.size(); i < n; i++) {
+				Magazine m = mMagazines.get(i);
+				hits += m.hits;
+				refills += m.refills;
+				misses += m.misses;
+				inMagazines += m.count;
+			}
+			Log.d(TAG, "in pool " + inPool + " / " + count
+					+ ", in magazines " + inMagazines
+					+ ", hits " + hits
+					+ ", refills " + refills
+					+ ", misses " + misses);
+		}
 	}
 
 	public TextItem set(float x, float y, String string, Text text) {
@@ -133,7 +244,7 @@ public class TextItem {
 		this.y = y;
 		this.string = string;
 		this.text = text;
-		this.width = text.paint.measureText(string);
+		this.width = text.measureText(string);
 		return this;
 	}
 
@@ -14,11 +14,14 @@
  */
 package org.oscim.renderer.layer;
 
+import java.util.ArrayList;
+
+import org.oscim.backend.Log;
+import org.oscim.renderer.TextureAtlas;
 import org.oscim.renderer.TextureObject;
 import org.oscim.renderer.TextureRenderer;
 
 import android.graphics.Canvas;
-import android.util.Log;
 
 public final class TextLayer extends TextureLayer {
 
@@ -35,14 +38,36 @@ public final class TextLayer extends TextureLayer {
 	public TextItem labels;
 	private final Canvas mCanvas;
 
+	// labels kept across prepare() passes, might be null
+	private final TextureAtlas mAtlas;
+
+	// state of prepare()
+	private VertexPoolItem mVertices;
+	private short mNumIndices;
+
+	// temporary lists of prepareAtlas()
+	private final ArrayList<TextItem> mGroups = new ArrayList<TextItem>();
+	private final ArrayList<TextureAtlas.Entry> mEntries = new ArrayList<TextureAtlas.Entry>();
+	private final ArrayList<TextureAtlas.Page> mPages = new ArrayList<TextureAtlas.Page>();
+
 	public TextItem getLabels() {
 		return labels;
 	}
 
 	public TextLayer() {
+		this(null);
+	}
+
+	/**
+	 * @param atlas
+	 *            to keep labels across calls of prepare(), might be shared
+	 *            by TextLayers that are not prepared at the same time
+	 */
+	public TextLayer(TextureAtlas atlas) {
 		type = Layer.SYMBOL;
 		mCanvas = new Canvas();
 		fixed = true;
+		mAtlas = atlas;
 	}
 
 	public boolean removeText(TextItem item) {
@@ -105,13 +130,13 @@ public final class TextLayer extends TextureLayer {
 		if (TextureRenderer.debug)
 			Log.d("...", "prepare");
 
-		short numIndices = 0;
-		short offsetIndices = 0;
+		if (mAtlas != null)
+			return prepareAtlas();
 
-		VertexPoolItem vi = pool = VertexPool.get();
-		int pos = vi.used; // 0
-		short buf[] = vi.vertices;
+		short offsetIndices = 0;
 
+		mVertices = pool = VertexPool.get();
+		mNumIndices = 0;
 		verticesCnt = 0;
 
 		int advanceY = 0;
@@ -138,8 +163,8 @@ public final class TextLayer extends TextureLayer {
 
 				if (y + height > TEXTURE_HEIGHT) {
 					to.offset = offsetIndices;
-					to.vertices = (short) (numIndices - offsetIndices);
-					offsetIndices = numIndices;
+					to.vertices = (short) (mNumIndices - offsetIndices);
+					offsetIndices = mNumIndices;
 
 					to.next = TextureObject.get();
 					to = to.next;
@@ -164,130 +189,212 @@ public final class TextLayer extends TextureLayer {
 			if (width > TEXTURE_WIDTH)
 				width = TEXTURE_WIDTH;
 
-			float hw = width / 2.0f;
-			float hh = height / 2.0f;
+			it = addSprites(it, x, y, width, height);
+
+			x += width;
+		}
+
+		to.offset = offsetIndices;
+		to.vertices = (short) (mNumIndices - offsetIndices);
+
+		return true;
+	}
+
+	/**
+	 * Like prepare(), using labels kept in TextureAtlas. Only labels not
+	 * in the atlas are drawn.
+	 */
+	private boolean prepareAtlas() {
+		ArrayList<TextItem> groups = mGroups;
+		ArrayList<TextureAtlas.Entry> entries = mEntries;
+		ArrayList<TextureAtlas.Page> pages = mPages;
+
+		mAtlas.begin();
+
+		// get the atlas entry for each group of labels with the same
+		// text and string, see addText()
+		TextItem group = null;
+		for (TextItem it = labels; it != null; it = it.next) {
+			if (group != null && it.text == group.text && it.string == group.string)
+				continue;
+
+			group = it;
+
+			TextureAtlas.Entry e = mAtlas.get(it.string, it.text, it.width);
+			// too large for the atlas
+			if (e == null)
+				continue;
+
+			groups.add(it);
+			entries.add(e);
+
+			if (!pages.contains(e.getPage()))
+				pages.add(e.getPage());
+		}
+
+		mVertices = pool = VertexPool.get();
+		mNumIndices = 0;
+		verticesCnt = 0;
+
+		TextureObject to = null;
+
+		// vertices of one page need to be consecutive
+		for (int p = 0, np = pages.size(); p < np; p++) {
+			TextureAtlas.Page page = pages.get(p);
+
+			if (to == null)
+				to = textures = page.newTexture();
+			else
+				to = to.next = page.newTexture();
+
+			to.offset = mNumIndices;
 
-			float hh2 = 0;
-			if (!it.text.caption) {
-				// displace by baseline
-				float desc = it.text.fontDescent / 2;
-				hh2 = hh + desc;
-				hh =  hh - desc;
+			for (int i = 0, n = groups.size(); i < n; i++) {
+				TextureAtlas.Entry e = entries.get(i);
+				if (e.getPage() == page)
+					addSprites(groups.get(i), e.x, e.y, e.width, e.height);
 			}
 
-			// texture coordinates
-			short u1 = (short) (SCALE * x);
-			short v1 = (short) (SCALE * y);
-			short u2 = (short) (SCALE * (x + width));
-			short v2 = (short) (SCALE * (y + height));
-
-			while (it != null) {
-
-				short x1, x2, x3, x4, y1, y3, y2, y4;
-
-				if (it.text.caption) {
-					//if (it.origin == 0) {
-					x1 = x3 = (short) (SCALE * -hw);
-					x2 = x4 = (short) (SCALE * hw);
-					y1 = y2 = (short) (SCALE * hh);
-					y3 = y4 = (short) (SCALE * -hh);
-					//} else {
-					//	x1 = x3 = (short) (SCALE * 0);
-					//	x2 = x4 = (short) (SCALE * width);
-					//	y1 = y2 = (short) (SCALE * 0);
-					//	y3 = y4 = (short) (SCALE * -height);
-					//}
-				} else {
-					float vx = it.x1 - it.x2;
-					float vy = it.y1 - it.y2;
-					float a = (float) Math.sqrt(vx * vx + vy * vy);
-					vx = vx / a;
-					vy = vy / a;
-
-					float ux = -vy * hh;
-					float uy = vx * hh;
-
-					float ux2 = -vy * hh2;
-					float uy2 = vx * hh2;
-
-					vx *= hw;
-					vy *= hw;
-
-					// top-left
-					x1 = (short) (SCALE * (vx - ux));
-					y1 = (short) (SCALE * (vy - uy));
-					// top-right
-					x2 = (short) (SCALE * (-vx - ux));
-					y2 = (short) (SCALE * (-vy - uy));
-					// bot-right
-					x4 = (short) (SCALE * (-vx + ux2));
-					y4 = (short) (SCALE * (-vy + uy2));
-					// bot-left
-					x3 = (short) (SCALE * (vx + ux2));
-					y3 = (short) (SCALE * (vy + uy2));
-				}
+			to.vertices = (short) (mNumIndices - to.offset);
+		}
 
-				// add vertices
-				int tmp = (int) (SCALE * it.x) & LBIT_MASK;
-				short tx = (short) (tmp | (it.text.caption ? 1 : 0));
-				short ty = (short) (SCALE * it.y);
+		groups.clear();
+		entries.clear();
+		pages.clear();
 
-				if (pos == VertexPoolItem.SIZE) {
-					vi.used = VertexPoolItem.SIZE;
-					vi = vi.next = VertexPool.get();
-					buf = vi.vertices;
-					pos = 0;
-				}
+		return true;
+	}
+
+	/**
+	 * Add sprites for 'it' and the following items with the same text
+	 * and string, drawn at x,y with width and height in the texture.
+	 *
+	 * @return the item after the group
+	 */
+	private TextItem addSprites(TextItem it, float x, float y, float width, float height) {
+		VertexPoolItem vi = mVertices;
+		int pos = vi.used;
+		short buf[] = vi.vertices;
+
+		float hw = width / 2.0f;
+		float hh = height / 2.0f;
+
+		float hh2 = 0;
+		if (!it.text.caption) {
+			// displace by baseline
+			float desc = it.text.fontDescent / 2;
+			hh2 = hh + desc;
+			hh =  hh - desc;
+		}
+
+		// texture coordinates
+		short u1 = (short) (SCALE * x);
+		short v1 = (short) (SCALE * y);
+		short u2 = (short) (SCALE * (x + width));
+		short v2 = (short) (SCALE * (y + height));
+
+		while (it != null) {
+
+			short x1, x2, x3, x4, y1, y3, y2, y4;
+
+			if (it.text.caption) {
+				//if (it.origin == 0) {
+				x1 = x3 = (short) (SCALE * -hw);
+				x2 = x4 = (short) (SCALE * hw);
+				y1 = y2 = (short) (SCALE * hh);
+				y3 = y4 = (short) (SCALE * -hh);
+				//} else {
+				//	x1 = x3 = (short) (SCALE * 0);
+				//	x2 = x4 = (short) (SCALE * width);
+				//	y1 = y2 = (short) (SCALE * 0);
+				//	y3 = y4 = (short) (SCALE * -height);
+				//}
+			} else {
+				float vx = it.x1 - it.x2;
+				float vy = it.y1 - it.y2;
+				float a = (float) Math.sqrt(vx * vx + vy * vy);
+				vx = vx / a;
+				vy = vy / a;
+
+				float ux = -vy * hh;
+				float uy = vx * hh;
+
+				float ux2 = -vy * hh2;
+				float uy2 = vx * hh2;
+
+				vx *= hw;
+				vy *= hw;
 
 				// top-left
-				buf[pos++] = tx;
-				buf[pos++] = ty;
-				buf[pos++] = x1;
-				buf[pos++] = y1;
-				buf[pos++] = u1;
-				buf[pos++] = v2;
+				x1 = (short) (SCALE * (vx - ux));
+				y1 = (short) (SCALE * (vy - uy));
 				// top-right
-				buf[pos++] = tx;
-				buf[pos++] = ty;
-				buf[pos++] = x2;
-				buf[pos++] = y2;
-				buf[pos++] = u2;
-				buf[pos++] = v2;
+				x2 = (short) (SCALE * (-vx - ux));
+				y2 = (short) (SCALE * (-vy - uy));
 				// bot-right
-				buf[pos++] = tx;
-				buf[pos++] = ty;
-				buf[pos++] = x4;
-				buf[pos++] = y4;
-				buf[pos++] = u2;
-				buf[pos++] = v1;
+				x4 = (short) (SCALE * (-vx + ux2));
+				y4 = (short) (SCALE * (-vy + uy2));
 				// bot-left
-				buf[pos++] = tx;
-				buf[pos++] = ty;
-				buf[pos++] = x3;
-				buf[pos++] = y3;
-				buf[pos++] = u1;
-				buf[pos++] = v1;
-
-				// six indices to draw the four vertices
-				numIndices += TextureRenderer.INDICES_PER_SPRITE;
-				verticesCnt += 4;
-
-				if (it.next == null || (it.next.text != it.text) || (it.next.string != it.string)) {
-					it = it.next;
-					break;
-				}
-				it = it.next;
+				x3 = (short) (SCALE * (vx + ux2));
+				y3 = (short) (SCALE * (vy + uy2));
+			}
+
+			// add vertices
+			int tmp = (int) (SCALE * it.x) & LBIT_MASK;
+			short tx = (short) (tmp | (it.text.caption ? 1 : 0));
+			short ty = (short) (SCALE * it.y);
 
+			if (pos == VertexPoolItem.SIZE) {
+				vi.used = VertexPoolItem.SIZE;
+				vi = vi.next = VertexPool.get();
+				buf = vi.vertices;
+				pos = 0;
 			}
-			x += width;
+
+			// top-left
+			buf[pos++] = tx;
+			buf[pos++] = ty;
+			buf[pos++] = x1;
+			buf[pos++] = y1;
+			buf[pos++] = u1;
+			buf[pos++] = v2;
+			// top-right
+			buf[pos++] = tx;
+			buf[pos++] = ty;
+			buf[pos++] = x2;
+			buf[pos++] = y2;
+			buf[pos++] = u2;
+			buf[pos++] = v2;
+			// bot-right
+			buf[pos++] = tx;
+			buf[pos++] = ty;
+			buf[pos++] = x4;
+			buf[pos++] = y4;
+			buf[pos++] = u2;
+			buf[pos++] = v1;
+			// bot-left
+			buf[pos++] = tx;
+			buf[pos++] = ty;
+			buf[pos++] = x3;
+			buf[pos++] = y3;
+			buf[pos++] = u1;
+			buf[pos++] = v1;
+
+			// six indices to draw the four vertices
+			mNumIndices += TextureRenderer.INDICES_PER_SPRITE;
+			verticesCnt += 4;
+
+			if (it.next == null || (it.next.text != it.text) || (it.next.string != it.string)) {
+				it = it.next;
+				break;
+			}
+			it = it.next;
 		}
 
 		vi.used = pos;
+		mVertices = vi;
 
-		to.offset = offsetIndices;
-		to.vertices = (short) (numIndices - offsetIndices);
-
-		return true;
+		return it;
 	}
 
 	@Override
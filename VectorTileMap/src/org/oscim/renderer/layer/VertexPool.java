@@ -14,21 +14,109 @@
  */
 package org.oscim.renderer.layer;
 
-import android.util.Log;
-
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+
+import org.oscim.backend.Log;
+import org.oscim.renderer.MemoryBudget;
+
+/**
+ * Pool of VertexPoolItems.
+ * <p>
+ * Each thread gets and releases items from its own magazine without
+ * locking. Only when a magazine runs empty or overflows, MAGAZINE_SIZE
+ * items are moved at once from or to the shared pool.
+ * <p>
+ * Threads should call releaseMagazine() before they exit. Magazines of
+ * threads that exited without are passed to the shared pool when it runs
+ * empty.
+ */
 public class VertexPool {
+	private final static String TAG = VertexPool.class.getName();
+
 	private static final int POOL_LIMIT = 5000;
 
+	// number of items moved between a magazine and the shared pool
+	private static final int MAGAZINE_SIZE = 64;
+
+	// estimated bytes of one item, including object headers
+	private static final int ITEM_BYTES = VertexPoolItem.SIZE * 2 + 32;
+
+	// counters are only written by the owning thread and read
+	// unsynchronized by printPool(), for debugging
+	static final class Magazine {
+		final WeakReference<Thread> owner =
+				new WeakReference<Thread>(Thread.currentThread());
+
+		VertexPoolItem items;
+		int count;
+
+		// items taken from the magazine
+		int hits;
+		// refills from the shared pool
+		int refills;
+		// refills that allocated items as the shared pool was empty
+		int misses;
+	}
+
+	// the shared pool, guarded by VertexPool.class
 	static private VertexPoolItem pool = null;
 	static private int count = 0;
 	static private int countAll = 0;
 
+	// magazines of all threads, to reclaim the items of exited threads
+	static private final ArrayList<Magazine> mMagazines = new ArrayList<Magazine>();
+
+	private static final ThreadLocal<Magazine> mMagazine = new ThreadLocal<Magazine>() {
+		@Override
+		protected Magazine initialValue() {
+			Magazine m = new Magazine();
+			synchronized (VertexPool.class) {
+				mMagazines.add(m);
+			}
+			return m;
+		}
+	};
+
+	/**
+	 * Drop the items of the shared pool. Items kept in magazines of
+	 * threads remain valid.
+	 */
 	public static synchronized void init() {
+		MemoryBudget.add(MemoryBudget.VERTICES, -count * ITEM_BYTES);
+		countAll -= count;
 		count = 0;
-		countAll = 0;
 		pool = null;
 	}
 
+	/**
+	 * Pass the items of the magazine of the current thread to the shared
+	 * pool, must be called by threads using the pool before they exit.
+	 */
+	public static synchronized void releaseMagazine() {
+		Magazine m = mMagazine.get();
+		if (m.count > 0)
+			flush(m, m.count);
+
+		mMagazines.remove(m);
+		mMagazine.remove();
+	}
+
+	// pass the items of magazines of exited threads to the shared pool
+	private static synchronized void releaseDeadMagazines() {
+		for (int i = mMagazines.size() - 1; i >= 0; i--) {
+			Magazine m = mMagazines.get(i);
+			Thread t = m.owner.get();
+			if (t != null && t.isAlive())
+				continue;
+
+			if (m.count > 0)
+				flush(m, m.count);
+
+			mMagazines.remove(i);
+		}
+	}
+
 	public static VertexPoolItem getNext(VertexPoolItem prev) {
 		VertexPoolItem it = get();
 		if (prev != null) {
@@ -38,66 +126,119 @@ public class VertexPool {
 		return it;
 	}
 
-	public static synchronized VertexPoolItem get() {
+	public static VertexPoolItem get() {
+		Magazine m = mMagazine.get();
 
-		if (pool == null && count > 0) {
-			Log.d("VertexPool", "BUG wrong count: " + count);
-		}
-		if (pool == null) {
-			countAll++;
-			return new VertexPoolItem();
-		}
+		if (m.items == null)
+			refill(m);
+		else
+			m.hits++;
 
-		count--;
+		VertexPoolItem it = m.items;
+		m.items = it.next;
+		m.count--;
 
-		if (count < 0) {
-			int c = 0;
-
-			for (VertexPoolItem tmp = pool; tmp != null; tmp = tmp.next)
-				c++;
-
-			Log.d("VertexPool", "BUG wrong count: " + count + " left" + c);
-			return new VertexPoolItem();
-		}
-
-		VertexPoolItem it = pool;
-		pool = pool.next;
 		it.used = 0;
 		it.next = null;
 		return it;
 	}
 
-	public static synchronized void release(VertexPoolItem items) {
+	public static void release(VertexPoolItem items) {
 		if (items == null)
 			return;
 
-		// limit pool items
-		if (countAll < POOL_LIMIT) {
+		Magazine m = mMagazine.get();
 
-			VertexPoolItem last = items;
+		VertexPoolItem last = items;
+		int cnt = 1;
+		while (last.next != null) {
+			last = last.next;
+			cnt++;
+		}
 
-			while (true) {
-				count++;
+		last.next = m.items;
+		m.items = items;
+		m.count += cnt;
 
-				if (last.next == null)
-					break;
+		if (m.count > 2 * MAGAZINE_SIZE)
+			flush(m, m.count - MAGAZINE_SIZE);
+	}
 
-				last = last.next;
+	// take up to MAGAZINE_SIZE items from the shared pool, allocate new
+	// items when it is empty
+	private static synchronized void refill(Magazine m) {
+		m.refills++;
+
+		if (pool == null)
+			releaseDeadMagazines();
+
+		if (pool == null) {
+			m.misses++;
+			int cnt = MAGAZINE_SIZE / 4;
+			for (int i = 0; i < cnt; i++) {
+				VertexPoolItem it = new VertexPoolItem();
+				it.next = m.items;
+				m.items = it;
 			}
+			m.count += cnt;
+			countAll += cnt;
+			MemoryBudget.add(MemoryBudget.VERTICES, cnt * ITEM_BYTES);
+			return;
+		}
 
+		VertexPoolItem last = pool;
+		int cnt = 1;
+		while (cnt < MAGAZINE_SIZE && last.next != null) {
+			last = last.next;
+			cnt++;
+		}
+
+		m.items = pool;
+		pool = last.next;
+		last.next = null;
+
+		m.count += cnt;
+		count -= cnt;
+	}
+
+	// pass 'cnt' items of the magazine to the shared pool
+	private static synchronized void flush(Magazine m, int cnt) {
+		VertexPoolItem items = m.items;
+		VertexPoolItem last = items;
+		for (int i = 1; i < cnt; i++)
+			last = last.next;
+
+		m.items = last.next;
+		m.count -= cnt;
+
+		// limit pool items, pass them to GC when memory is needed
+		// for buffer objects and textures
+		if (countAll < POOL_LIMIT && !MemoryBudget.isExceeded()) {
 			last.next = pool;
 			pool = items;
-
+			count += cnt;
 		} else {
-			VertexPoolItem prev, tmp = items;
-			while (tmp != null) {
-				prev = tmp;
-				tmp = tmp.next;
+			last.next = null;
+			countAll -= cnt;
+			MemoryBudget.add(MemoryBudget.VERTICES, -cnt * ITEM_BYTES);
+		}
+	}
 
-				countAll--;
-				prev.next = null;
+	public static synchronized void printPool() {
+		releaseDeadMagazines();
 
-			}
+		int hits = 0, refills = 0, misses = 0, inMagazines = 0;
+		for (int i = 0, n = mMagazines.size(); i < n; i++) {
+			Magazine m = mMagazines.get(i);
+			hits += m.hits;
+			refills += m.refills;
+			misses += m.misses;
+			inMagazines += m.count;
 		}
+		Log.d(TAG, "in pool " + count + " / " + countAll
+				+ ", in magazines " + inMagazines
+				+ ", hits " + hits
+				+ ", refills " + refills
+				+ ", misses " + misses);
 	}
 }
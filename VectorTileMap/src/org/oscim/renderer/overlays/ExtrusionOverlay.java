@@ -18,6 +18,7 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.ShortBuffer;
 
+import org.oscim.backend.Log;
 import org.oscim.core.MapPosition;
 import org.oscim.generator.JobTile;
 import org.oscim.renderer.GLRenderer;
@@ -32,7 +33,6 @@ import org.oscim.view.MapView;
 
 import android.opengl.GLES20;
 import android.opengl.Matrix;
-import android.util.Log;
 
 /**
  * @author Hannes Janetzek
@@ -23,9 +23,12 @@ package org.oscim.renderer.overlays;
 // 2.2 handle collisions
 // 3 join segments that belong to one feature
 // 4 handle zoom-level changes
-// 5 R-Tree might be handy
 //
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.oscim.backend.Log;
 import org.oscim.core.MapPosition;
 import org.oscim.core.Tile;
 import org.oscim.renderer.BufferObject;
@@ -35,6 +38,7 @@ import org.oscim.renderer.GLState;
 import org.oscim.renderer.LineRenderer;
 import org.oscim.renderer.MapTile;
 import org.oscim.renderer.PolygonRenderer;
+import org.oscim.renderer.TextureAtlas;
 import org.oscim.renderer.TextureRenderer;
 import org.oscim.renderer.TileSet;
 import org.oscim.renderer.layer.Layer;
@@ -47,6 +51,7 @@ import org.oscim.utils.FastMath;
 import org.oscim.utils.GlUtils;
 import org.oscim.utils.OBB2D;
 import org.oscim.utils.PausableThread;
+import org.oscim.utils.SpatialGrid;
 import org.oscim.view.MapView;
 import org.oscim.view.MapViewPosition;
 
@@ -76,6 +81,20 @@ public class TextOverlay extends BasicOverlay {
 
 	private final float[] mTmpCoords = new float[8];
 
+	// rendered labels, kept across updateLabels()
+	private final TextureAtlas mAtlas;
+
+	// placed labels of the TextLayer that is updating
+	private final SpatialGrid<Label> mGrid = new SpatialGrid<Label>(64);
+
+	// margin around way labels to find labels with the same text
+	private final static float SAME_LABEL_DISTANCE = 150;
+
+	// items rejected in an incremental pass are only tried again when a
+	// label near them was removed. a full pass after this many
+	// incremental passes places the remaining ones.
+	private final static int MAX_INCREMENTAL_PASSES = 10;
+
 	//private HashMap<MapTile, Label> mItemMap;
 	//private Label mNewLabels;
 	//private final HashMap<MapTile, Link> mActiveTiles;
@@ -93,6 +112,31 @@ public class TextOverlay extends BasicOverlay {
 		public byte origin;
 		public int active;
 		public OBB2D bbox;
+
+		// box of the label in mGrid
+		float gx1, gy1, gx2, gy2;
+
+		void setGridBox(boolean caption) {
+			float[] c = bbox.corner;
+			float xmin = c[0], xmax = c[0], ymin = c[1], ymax = c[1];
+			for (int i = 2; i < 8; i += 2) {
+				xmin = Math.min(xmin, c[i]);
+				xmax = Math.max(xmax, c[i]);
+				ymin = Math.min(ymin, c[i + 1]);
+				ymax = Math.max(ymax, c[i + 1]);
+			}
+			if (!caption) {
+				// include the line endpoints used by checkOverlap
+				xmin = Math.min(xmin, Math.min(x1, x2));
+				xmax = Math.max(xmax, Math.max(x1, x2));
+				ymin = Math.min(ymin, Math.min(y1, y2));
+				ymax = Math.max(ymax, Math.max(y1, y2));
+			}
+			gx1 = xmin;
+			gy1 = ymin;
+			gx2 = xmax;
+			gy2 = ymax;
+		}
 	}
 
 	//	class Link {
@@ -140,12 +184,34 @@ public class TextOverlay extends BasicOverlay {
 	private float mSquareRadius;
 	private int mRelabelCnt;
 
+	// state of the previous updateLabels(). when only the position
+	// changed, labels of the previous pass are kept and only labels
+	// that were not visible before are added.
+	private boolean mHasPrevPass;
+	private final MapPosition mPrevPos = new MapPosition();
+	private float mPrevRadius;
+	private MapTile[] mPrevTiles = new MapTile[0];
+	private int[] mPrevTileSerials = new int[0];
+	private int mPrevTileCnt;
+	private int mIncrementalCnt;
+
+	// boxes (x1, y1, x2, y2) around labels that were removed in the
+	// current pass
+	private float[] mFreed = new float[64];
+	private int mFreedCnt;
+
+	// to test the visibility of TextItems in the previous pass
+	private final TextItem mTmpItem = new TextItem();
+
 	public TextOverlay(MapView mapView) {
 		super(mapView);
 		mMapViewPosition = mapView.getMapViewPosition();
 
-		layers.textureLayers = new TextLayer();
-		mTmpLayer = new TextLayer();
+		// both TextLayers draw from one atlas, only one is prepared at
+		// a time
+		mAtlas = new TextureAtlas();
+		layers.textureLayers = new TextLayer(mAtlas);
+		mTmpLayer = new TextLayer(mAtlas);
 		//mActiveTiles = new HashMap<MapTile, Link>();
 		mTmpPos = new MapPosition();
 		mThread = new LabelThread();
@@ -154,28 +220,37 @@ public class TextOverlay extends BasicOverlay {
 		mRelabelCnt = 0;
 	}
 
-	private Label removeLabel(TextLayer tl, Label l) {
-		Label tmp = l;
-		l = (Label) l.next;
-
-		TextItem.release(tmp.item);
-		tl.removeText(tmp);
+	private void removeLabel(TextLayer tl, Label l) {
+		TextItem.release(l.item);
+		tl.removeText(l);
+		mGrid.remove(l, l.gx1, l.gy1, l.gx2, l.gy2);
+		addFreed(l);
 
-		tmp.next = mPool;
-		mPool = tmp;
+		l.next = mPool;
+		mPool = l;
+	}
 
-		return l;
+	private void addLabel(TextLayer tl, Label l) {
+		tl.addText(l);
+		l.setGridBox(l.text.caption);
+		mGrid.insert(l, l.gx1, l.gy1, l.gx2, l.gy2);
 	}
 
 	private byte checkOverlap(TextLayer tl, Label ti) {
+		float d = SAME_LABEL_DISTANCE;
+
+		// candidates within the distance to the line of ti. the result
+		// list is not affected by removeLabel()
+		ArrayList<Label> labels = mGrid.query(
+				Math.min(ti.x1, ti.x2) - d, Math.min(ti.y1, ti.y2) - d,
+				Math.max(ti.x1, ti.x2) + d, Math.max(ti.y1, ti.y2) + d);
 
-		for (Label lp = (Label) tl.labels; lp != null;) {
+		for (int i = 0, n = labels.size(); i < n; i++) {
+			Label lp = labels.get(i);
 
 			// check bounding box
-			if (!TextItem.bboxOverlaps(ti, lp, 150)) {
-				lp = (Label) lp.next;
+			if (!TextItem.bboxOverlaps(ti, lp, d))
 				continue;
-			}
 
 			if (lp.text == ti.text && (lp.string == ti.string || lp.string.equals(ti.string))) {
 
@@ -188,7 +263,7 @@ public class TextOverlay extends BasicOverlay {
 
 				// keep the label with longer segment
 				if (lp.length < ti.length) {
-					lp = removeLabel(tl, lp);
+					removeLabel(tl, lp);
 					continue;
 				}
 
@@ -208,17 +283,32 @@ public class TextOverlay extends BasicOverlay {
 				if (!lp.text.caption
 						&& (lp.text.priority > ti.text.priority || lp.length < ti.length)) {
 
-					lp = removeLabel(tl, lp);
+					removeLabel(tl, lp);
 					continue;
 				}
 
 				return 1;
 			}
-			lp = (Label) lp.next;
 		}
 		return 0;
 	}
 
+	private boolean captionOverlaps(Label l) {
+		l.setGridBox(true);
+		ArrayList<Label> labels = mGrid.query(l.gx1, l.gy1, l.gx2, l.gy2);
+
+		for (int j = 0, m = labels.size(); j < m; j++) {
+			Label lp = labels.get(j);
+
+			if (l.bbox.overlaps(lp.bbox)) {
+				//Log.d(TAG, "overlap > " + ti2.string + " " + lp.string);
+				//if (TextItem.bboxOverlaps(ti2, lp, 4)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	private boolean nodeIsVisible(TextItem ti) {
 		// rough filter
 		float dist = ti.x * ti.x + ti.y * ti.y;
@@ -245,6 +335,103 @@ public class TextOverlay extends BasicOverlay {
 		return false;
 	}
 
+	private static boolean containsTile(MapTile[] tiles, int cnt, MapTile t) {
+		for (int i = 0; i < cnt; i++)
+			if (tiles[i] == t)
+				return true;
+
+		return false;
+	}
+
+	/**
+	 * @return true if tile t was labeled by the previous pass and its
+	 *         labels did not change since then.
+	 */
+	private boolean wasLabeled(MapTile t) {
+		for (int i = 0; i < mPrevTileCnt; i++)
+			if (mPrevTiles[i] == t)
+				return mPrevTileSerials[i] == t.labelSerial;
+
+		return false;
+	}
+
+	/**
+	 * Remember the area where label l was removed, items that were
+	 * rejected there by the previous pass may fit now. The area is
+	 * extended by SAME_LABEL_DISTANCE as l may also have blocked labels
+	 * with the same text.
+	 */
+	private void addFreed(Label l) {
+		if (mFreedCnt == mFreed.length)
+			mFreed = Arrays.copyOf(mFreed, mFreedCnt * 2);
+
+		float d = SAME_LABEL_DISTANCE + (l.width + l.text.fontHeight) / 2;
+		float[] f = mFreed;
+		int i = mFreedCnt;
+
+		if (l.text.caption) {
+			f[i + 0] = l.x - d;
+			f[i + 1] = l.y - d;
+			f[i + 2] = l.x + d;
+			f[i + 3] = l.y + d;
+		} else {
+			f[i + 0] = Math.min(l.x1, l.x2) - d;
+			f[i + 1] = Math.min(l.y1, l.y2) - d;
+			f[i + 2] = Math.max(l.x1, l.x2) + d;
+			f[i + 3] = Math.max(l.y1, l.y2) + d;
+		}
+		mFreedCnt += 4;
+	}
+
+	/**
+	 * @return true if label l, at its current position, intersects the
+	 *         area of a label removed in this pass.
+	 */
+	private boolean wasFreed(Label l) {
+		float d = (l.width + l.text.fontHeight) / 2;
+		float x1, y1, x2, y2;
+
+		if (l.text.caption) {
+			x1 = l.x - d;
+			y1 = l.y - d;
+			x2 = l.x + d;
+			y2 = l.y + d;
+		} else {
+			x1 = Math.min(l.x1, l.x2) - d;
+			y1 = Math.min(l.y1, l.y2) - d;
+			x2 = Math.max(l.x1, l.x2) + d;
+			y2 = Math.max(l.y1, l.y2) + d;
+		}
+
+		float[] f = mFreed;
+		for (int i = 0; i < mFreedCnt; i += 4)
+			if (x1 < f[i + 2] && x2 > f[i] && y1 < f[i + 3] && y2 > f[i + 1])
+				return true;
+
+		return false;
+	}
+
+	/**
+	 * @return true if ti at offset dx,dy was within the view of the
+	 *         previous pass, i.e. it was either placed then or rejected.
+	 */
+	private boolean wasVisible(TextItem ti, float dx, float dy, float scale) {
+		TextItem tmp = mTmpItem;
+		tmp.move(ti, dx, dy, scale);
+
+		if (ti.text.caption)
+			return nodeIsVisible(tmp);
+
+		float width = (ti.x2 - ti.x1) / 2f;
+		float height = (ti.y2 - ti.y1) / 2f;
+		tmp.x1 = (tmp.x - width);
+		tmp.y1 = (tmp.y - height);
+		tmp.x2 = (tmp.x + width);
+		tmp.y2 = (tmp.y + height);
+
+		return wayIsVisible(tmp);
+	}
+
 	private Layers mDebugLayer;
 	private final static float[] mDebugPoints = new float[4];
 	private final float[] mMVP = new float[16];
@@ -253,6 +440,12 @@ public class TextOverlay extends BasicOverlay {
 
 	}
 
+	// drop a label of the previous pass
+	private Label dropLabel(Label l) {
+		addFreed(l);
+		return addToPool(l);
+	}
+
 	private Label addToPool(Label l) {
 		TextItem.release(l.item);
 		l.item = null;
@@ -311,6 +504,9 @@ public class TextOverlay extends BasicOverlay {
 		int mh = (mMapView.getHeight() + Tile.TILE_SIZE) / 2;
 		mSquareRadius = mw * mw + mh * mh;
 
+		float radius = (float) Math.sqrt(mSquareRadius);
+		mGrid.init(-radius, -radius, radius, radius);
+
 		// mTiles might be from another zoomlevel than the current:
 		// this scales MapPosition to the zoomlevel of mTiles...
 		// TODO create a helper function in MapPosition
@@ -325,6 +521,28 @@ public class TextOverlay extends BasicOverlay {
 
 		int maxx = Tile.TILE_SIZE << (pos.zoomLevel - 1);
 
+		// when only the position changed since the previous pass, keep
+		// its placement and add labels that came into view. any change
+		// of zoom, rotation or view size requires a full pass.
+		boolean incremental = mHasPrevPass && dbg == null
+				&& mPrevPos.zoomLevel == pos.zoomLevel
+				&& mPrevPos.scale == pos.scale
+				&& mPrevPos.angle == pos.angle
+				&& mPrevRadius == mSquareRadius
+				&& mPrevTiles[0].zoomLevel == tiles[0].zoomLevel
+				&& mIncrementalCnt < MAX_INCREMENTAL_PASSES;
+
+		if (incremental)
+			mIncrementalCnt++;
+		else
+			mIncrementalCnt = 0;
+
+		mFreedCnt = 0;
+
+		// offset to the previous position
+		double prevDx = pos.x - mPrevPos.x;
+		double prevDy = pos.y - mPrevPos.y;
+
 		Label l = null;
 
 		if (dbg != null)
@@ -334,6 +552,9 @@ public class TextOverlay extends BasicOverlay {
 
 		for (l = mPrevLabels; l != null;) {
 
+			// labels of tiles that are gone
+			boolean gone = incremental && !containsTile(tiles, mTileSet.cnt, l.tile);
+
 			// transform screen coordinates to tile coordinates
 			float s = FastMath.pow(l.tile.zoomLevel - pos.zoomLevel);
 			float sscale = pos.scale / s;
@@ -366,8 +587,8 @@ public class TextOverlay extends BasicOverlay {
 				l.y2 = (l.y + height);
 				l.y1 = (l.y - height);
 
-				if (!wayIsVisible(l)) {
-					l = addToPool(l);
+				if (gone || !wayIsVisible(l)) {
+					l = dropLabel(l);
 					continue;
 				}
 
@@ -386,12 +607,26 @@ public class TextOverlay extends BasicOverlay {
 					l = (Label) l.next;
 
 					tmp.next = null;
-					tl.addText(tmp);
+					addLabel(tl, tmp);
+					continue;
+				}
+			} else if (incremental && !gone && nodeIsVisible(l)) {
+				// keep caption, the full pass adds captions after
+				// all way labels
+				l.bbox.setNormalized(l.x, l.y, cos, -sin, l.width + 6,
+						l.text.fontHeight + 6);
+
+				if (!captionOverlaps(l)) {
+					Label tmp = l;
+					l = (Label) l.next;
+
+					tmp.next = null;
+					addLabel(tl, tmp);
 					continue;
 				}
 			}
 
-			l = addToPool(l);
+			l = dropLabel(l);
 		}
 
 		/* add way labels */
@@ -408,11 +643,26 @@ public class TextOverlay extends BasicOverlay {
 			else if (dx < -maxx)
 				dx = dx + maxx * 2;
 
+			// labels of unchanged tiles that were visible in the previous
+			// pass were handled by it, unless a label near them was
+			// removed
+			boolean known = incremental && wasLabeled(t);
+			float pdx = (float) (dx + prevDx);
+			float pdy = (float) (dy + prevDy);
+			if (pdx > maxx)
+				pdx = pdx - maxx * 2;
+			else if (pdx < -maxx)
+				pdx = pdx + maxx * 2;
+
 			for (TextItem ti = t.labels; ti != null; ti = ti.next) {
 
 				if (ti.text.caption)
 					continue;
 
+				boolean handled = known && wasVisible(ti, pdx, pdy, scale);
+				if (handled && mFreedCnt == 0)
+					continue;
+
 				// acquire a TextItem to add to TextLayer
 				if (l == null)
 					l = getLabel();
@@ -428,7 +678,6 @@ public class TextOverlay extends BasicOverlay {
 				// check intersections with label from other tiles
 				float width = (ti.x2 - ti.x1) / 2f;
 				float height = (ti.y2 - ti.y1) / 2f;
-				l.bbox = null;
 				l.x1 = (l.x - width);
 				l.y1 = (l.y - height);
 				l.x2 = (l.x + width);
@@ -437,6 +686,9 @@ public class TextOverlay extends BasicOverlay {
 				if (!wayIsVisible(l))
 					continue;
 
+				if (handled && !wasFreed(l))
+					continue;
+
 				byte overlaps = -1;
 
 				if (l.bbox == null)
@@ -451,7 +703,7 @@ public class TextOverlay extends BasicOverlay {
 					addDebugBox(dbg, l, ti, overlaps, false, scale);
 
 				if (overlaps == 0) {
-					tl.addText(l);
+					addLabel(tl, l);
 					l.item = TextItem.copy(ti);
 					l.tile = t;
 					l.active = mRelabelCnt;
@@ -474,10 +726,22 @@ public class TextOverlay extends BasicOverlay {
 			else if (dx < -maxx)
 				dx = dx + maxx * 2;
 
+			boolean known = incremental && wasLabeled(t);
+			float pdx = (float) (dx + prevDx);
+			float pdy = (float) (dy + prevDy);
+			if (pdx > maxx)
+				pdx = pdx - maxx * 2;
+			else if (pdx < -maxx)
+				pdx = pdx + maxx * 2;
+
 			for (TextItem ti = t.labels; ti != null; ti = ti.next) {
 				if (!ti.text.caption)
 					continue;
 
+				boolean handled = known && wasVisible(ti, pdx, pdy, scale);
+				if (handled && mFreedCnt == 0)
+					continue;
+
 				// acquire a TextItem to add to TextLayer
 				if (l == null)
 					l = getLabel();
@@ -487,6 +751,9 @@ public class TextOverlay extends BasicOverlay {
 				if (!nodeIsVisible(l))
 					continue;
 
+				if (handled && !wasFreed(l))
+					continue;
+
 				//l.setAxisAlignedBBox();
 
 				if (l.bbox == null)
@@ -495,18 +762,8 @@ public class TextOverlay extends BasicOverlay {
 				l.bbox.setNormalized(l.x, l.y, cos, -sin, l.width + 6,
 						l.text.fontHeight + 6);
 
-				boolean overlaps = false;
-				for (Label lp = (Label) tl.labels; lp != null; lp = (Label) lp.next) {
-
-					if (l.bbox.overlaps(lp.bbox)) {
-						//Log.d(TAG, "overlap > " + ti2.string + " " + lp.string);
-						//if (TextItem.bboxOverlaps(ti2, lp, 4)) {
-						overlaps = true;
-						break;
-					}
-				}
-				if (!overlaps) {
-					tl.addText(l);
+				if (!captionOverlaps(l)) {
+					addLabel(tl, l);
 					l.item = TextItem.copy(ti);
 					l.tile = t;
 					l.active = mRelabelCnt;
@@ -538,13 +795,37 @@ public class TextOverlay extends BasicOverlay {
 			mPool = l;
 		}
 
-		// draw text to bitmaps and create vertices
+		// draw new text to the atlas and create vertices
 		tl.prepare();
 
+		if (TextureRenderer.debug)
+			Log.d(TAG, mAtlas.toString());
+
 		// after 'prepare' TextLayer does not need TextItems any longer
 		mPrevLabels = (Label) tl.labels;
 		tl.labels = null;
 
+		// remember what was labeled for the next pass
+		if (mPrevTiles.length < mTileSet.cnt) {
+			mPrevTiles = new MapTile[tiles.length];
+			mPrevTileSerials = new int[tiles.length];
+		}
+		for (int i = 0, n = mTileSet.cnt; i < n; i++) {
+			mPrevTiles[i] = tiles[i];
+			mPrevTileSerials[i] = tiles[i].labelSerial;
+		}
+		for (int i = mTileSet.cnt; i < mPrevTileCnt; i++)
+			mPrevTiles[i] = null;
+
+		mPrevTileCnt = mTileSet.cnt;
+		mPrevPos.x = pos.x;
+		mPrevPos.y = pos.y;
+		mPrevPos.zoomLevel = pos.zoomLevel;
+		mPrevPos.scale = pos.scale;
+		mPrevPos.angle = pos.angle;
+		mPrevRadius = mSquareRadius;
+		mHasPrevPass = dbg == null;
+
 		// remove tile locks
 		GLRenderer.releaseTiles(mTileSet);
 
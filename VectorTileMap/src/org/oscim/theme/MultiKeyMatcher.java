@@ -19,7 +19,7 @@ import java.util.List;
 import org.oscim.core.Tag;
 
 class MultiKeyMatcher implements AttributeMatcher {
-	private final String[] mKeys;
+	final String[] mKeys;
 
 	MultiKeyMatcher(List<String> keys) {
 		mKeys = new String[keys.size()];
@@ -15,15 +15,16 @@
 package org.oscim.theme;
 
 import java.util.ArrayList;
-import java.util.List;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.oscim.backend.Color;
 import org.oscim.core.Tag;
 import org.oscim.theme.renderinstruction.RenderInstruction;
-import org.oscim.utils.LRUCache;
 import org.xml.sax.Attributes;
 
-import android.graphics.Color;
-
 /**
  * A RenderTheme defines how ways and nodes are drawn.
  */
@@ -31,6 +32,7 @@ public class RenderTheme {
 	private final static String TAG = RenderTheme.class.getName();
 
 	private static final int MATCHING_CACHE_SIZE = 512;
+	private static final int CACHE_CONCURRENCY = 8;
 	private static final int RENDER_THEME_VERSION = 1;
 
 	private static void validate(String elementName, Integer version,
@@ -83,28 +85,115 @@ public class RenderTheme {
 	private int mLevels;
 	private final int mMapBackground;
 	private final ArrayList<Rule> mRulesList;
+	private RuleDispatch mRuleDispatch;
+
+	private final MatchingCache mNodesCache;
+	private final MatchingCache mWayCache;
+	private final MatchingCache mAreaCache;
+
+	// matching state of the current MapWorker, keeps the previous item
+	// shortcut and temporary lists out of the shared caches.
+	private final ThreadLocal<MatchingState> mMatchingState = new ThreadLocal<MatchingState>() {
+		@Override
+		protected MatchingState initialValue() {
+			return new MatchingState();
+		}
+	};
 
-	private final LRUCache<MatchingCacheKey, RenderInstructionItem> mNodesCache;
-	private final LRUCache<MatchingCacheKey, RenderInstructionItem> mWayCache;
-	private final LRUCache<MatchingCacheKey, RenderInstructionItem> mAreaCache;
+	/**
+	 * Cached result of matching a set of tags. Items for the same tags but
+	 * different instructions per zoomlevel are chained by 'next'. Items are
+	 * never modified once they were put into a cache, updates replace the
+	 * whole chain (copy-on-write) so that readers do not need to lock.
+	 */
+	static final class RenderInstructionItem {
+		final RenderInstructionItem next;
+		final int zoom;
+		final RenderInstruction[] list;
+		final MatchingCacheKey key;
+
+		RenderInstructionItem(RenderInstructionItem next, int zoom,
+				RenderInstruction[] list, MatchingCacheKey key) {
+			this.next = next;
+			this.zoom = zoom;
+			this.list = list;
+			this.key = key;
+		}
+	}
 
-	private MatchingCacheKey mAreaCacheKey = new MatchingCacheKey();
-	private MatchingCacheKey mWayCacheKey = new MatchingCacheKey();
-	private MatchingCacheKey mNodeCacheKey = new MatchingCacheKey();
+	static final class MatchingState {
+		final MatchingCacheKey nodeKey = new MatchingCacheKey();
+		final MatchingCacheKey wayKey = new MatchingCacheKey();
+		final MatchingCacheKey areaKey = new MatchingCacheKey();
 
-	private ArrayList<RenderInstruction> mWayInstructionList = new ArrayList<RenderInstruction>(4);
-	private ArrayList<RenderInstruction> mAreaInstructionList = new ArrayList<RenderInstruction>(4);
-	private ArrayList<RenderInstruction> mNodeInstructionList = new ArrayList<RenderInstruction>(4);
+		final ArrayList<RenderInstruction> matches = new ArrayList<RenderInstruction>(4);
 
-	private RenderInstructionItem mPrevAreaItem;
-	private RenderInstructionItem mPrevWayItem;
-	private RenderInstructionItem mPrevNodeItem;
+		RenderInstructionItem prevNode;
+		RenderInstructionItem prevWay;
+		RenderInstructionItem prevArea;
+	}
+
+	/**
+	 * Concurrent cache of RenderInstructionItem chains. Lookups do not lock,
+	 * when the cache grows beyond its capacity one thread evicts arbitrary
+	 * entries until it is back at 3/4 of the capacity.
+	 */
+	static final class MatchingCache {
+		private final ConcurrentHashMap<MatchingCacheKey, RenderInstructionItem> mMap;
+		private final AtomicInteger mSize = new AtomicInteger();
+		private final AtomicBoolean mTrimming = new AtomicBoolean();
+		private final int mCapacity;
+
+		MatchingCache(int capacity, int concurrency) {
+			mCapacity = capacity;
+			mMap = new ConcurrentHashMap<MatchingCacheKey, RenderInstructionItem>(
+					capacity, 0.75f, concurrency);
+		}
 
-	class RenderInstructionItem {
-		RenderInstructionItem next;
-		int zoom;
-		RenderInstruction[] list;
-		MatchingCacheKey key;
+		RenderInstructionItem get(MatchingCacheKey key) {
+			return mMap.get(key);
+		}
+
+		/**
+		 * Replace the chain 'prev' for 'key' by 'item'. Nothing happens when
+		 * another thread changed the chain in the meantime: the result will
+		 * simply be matched again.
+		 */
+		void put(MatchingCacheKey key, RenderInstructionItem prev,
+				RenderInstructionItem item) {
+			if (prev != null) {
+				mMap.replace(key, prev, item);
+				return;
+			}
+
+			if (mMap.putIfAbsent(key, item) != null)
+				return;
+
+			if (mSize.incrementAndGet() > mCapacity)
+				trim();
+		}
+
+		private void trim() {
+			if (!mTrimming.compareAndSet(false, true))
+				return;
+
+			int limit = mCapacity - mCapacity / 4;
+			try {
+				Iterator<MatchingCacheKey> it = mMap.keySet().iterator();
+				while (mSize.get() > limit && it.hasNext()) {
+					it.next();
+					it.remove();
+					mSize.decrementAndGet();
+				}
+			} finally {
+				mTrimming.set(false);
+			}
+		}
+
+		void clear() {
+			mMap.clear();
+			mSize.set(0);
+		}
 	}
 
 	RenderTheme(int mapBackground, float baseStrokeWidth, float baseTextSize) {
@@ -113,12 +202,9 @@ public class RenderTheme {
 		mBaseTextSize = baseTextSize;
 		mRulesList = new ArrayList<Rule>();
 
-		mNodesCache = new LRUCache<MatchingCacheKey, RenderInstructionItem>(
-				MATCHING_CACHE_SIZE);
-		mWayCache = new LRUCache<MatchingCacheKey, RenderInstructionItem>(
-				MATCHING_CACHE_SIZE);
-		mAreaCache = new LRUCache<MatchingCacheKey, RenderInstructionItem>(
-				MATCHING_CACHE_SIZE);
+		mNodesCache = new MatchingCache(MATCHING_CACHE_SIZE, CACHE_CONCURRENCY);
+		mWayCache = new MatchingCache(MATCHING_CACHE_SIZE, CACHE_CONCURRENCY);
+		mAreaCache = new MatchingCache(MATCHING_CACHE_SIZE, CACHE_CONCURRENCY);
 	}
 
 	/**
@@ -169,111 +255,20 @@ public class RenderTheme {
 	public RenderInstruction[] matchNode(IRenderCallback renderCallback,
 			Tag[] tags, byte zoomLevel) {
 
-		// list of renderinsctruction items in cache
-		RenderInstructionItem ris = null;
-
-		// the item matching tags and zoomlevel
-		RenderInstructionItem ri = null;
-
-		synchronized (mNodesCache) {
-			int zoomMask = 1 << zoomLevel;
-
-			MatchingCacheKey cacheKey = mNodeCacheKey;
-			if (mPrevNodeItem == null || (mPrevNodeItem.zoom & zoomMask) == 0) {
-				// previous instructions zoom does not match
-				cacheKey.set(tags, null);
-			} else {
-				// compare if tags match previous instructions
-				if (cacheKey.set(tags, mPrevNodeItem.key))
-					ri = mPrevNodeItem;
-			}
-
-			if (ri == null) {
-				boolean found = mNodesCache.containsKey(cacheKey);
-
-				if (found) {
-					ris = mNodesCache.get(cacheKey);
+		MatchingState state = mMatchingState.get();
 
-					for (ri = ris; ri != null; ri = ri.next)
-						if ((ri.zoom & zoomMask) != 0)
-							// cache hit
-							break;
-				}
-			}
+		RenderInstructionItem ri = match(renderCallback, tags, zoomLevel,
+				Closed.ANY, mNodesCache, state.nodeKey, state.prevNode,
+				state.matches);
 
-			if (ri == null) {
-				// cache miss
-				List<RenderInstruction> matches = mNodeInstructionList;
-				matches.clear();
-				for (int i = 0, n = mRulesList.size(); i < n; ++i)
-					mRulesList.get(i).matchNode(renderCallback, tags, zoomLevel, matches);
-
-				int size = matches.size();
-
-				// check if same instructions are used in another level
-				for (ri = ris; ri != null; ri = ri.next) {
-					if (size == 0) {
-						if (ri.list != null)
-							continue;
-
-						// both matchinglists are empty
-						break;
-					}
-
-					if (ri.list == null)
-						continue;
-
-					if (ri.list.length != size)
-						continue;
-
-					int i = 0;
-					for (RenderInstruction r : ri.list) {
-						if (r != matches.get(i))
-							break;
-						i++;
-					}
-					if (i == size)
-						// both matching lists contain the same items
-						break;
-				}
-
-				if (ri != null) {
-					// we found a same matchting list on another zoomlevel
-					ri.zoom |= zoomMask;
-				} else {
-
-					ri = new RenderInstructionItem();
-					ri.zoom = zoomMask;
-
-					if (size > 0) {
-						ri.list = new RenderInstruction[size];
-						matches.toArray(ri.list);
-					}
-					// attach this list to the one found for MatchingKey
-					if (ris != null) {
-						ri.next = ris.next;
-						ri.key = ris.key;
-						ris.next = ri;
-					} else {
-						ri.key = new MatchingCacheKey(cacheKey);
-						mNodesCache.put(ri.key, ri);
-					}
-				}
-			}
-		}
+		state.prevNode = ri;
 
 		if (ri.list != null)
 			render(renderCallback, ri.list, tags);
 
-		mPrevNodeItem = ri;
-
 		return ri.list;
-
 	}
 
-	//private int missCnt = 0;
-	//private int hitCnt = 0;
-
 	/**
 	 * Matches a way with the given parameters against this RenderTheme.
 	 *
@@ -293,140 +288,128 @@ public class RenderTheme {
 	public RenderInstruction[] matchWay(IRenderCallback renderCallback,
 			Tag[] tags, byte zoomLevel, boolean closed, boolean render) {
 
-		// list of renderinsctruction items in cache
-		RenderInstructionItem ris = null;
+		MatchingState state = mMatchingState.get();
+		RenderInstructionItem ri;
+
+		if (closed) {
+			ri = match(renderCallback, tags, zoomLevel, Closed.YES, mAreaCache,
+					state.areaKey, state.prevArea, state.matches);
+			state.prevArea = ri;
+		} else {
+			ri = match(renderCallback, tags, zoomLevel, Closed.NO, mWayCache,
+					state.wayKey, state.prevWay, state.matches);
+			state.prevWay = ri;
+		}
+
+		if (render && ri.list != null) {
+			for (int i = 0, n = ri.list.length; i < n; i++)
+				ri.list[i].renderWay(renderCallback, tags);
+		}
+
+		return ri.list;
+	}
 
-		RenderInstructionItem prevInstructions = null;
+	/**
+	 * @param closed
+	 *            Closed.YES or Closed.NO for ways, Closed.ANY for nodes
+	 * @return the item matching tags at zoomLevel
+	 */
+	private RenderInstructionItem match(IRenderCallback renderCallback,
+			Tag[] tags, byte zoomLevel, int closed, MatchingCache matchingCache,
+			MatchingCacheKey cacheKey, RenderInstructionItem prevInstructions,
+			ArrayList<RenderInstruction> matches) {
+
+		int zoomMask = 1 << zoomLevel;
 
-		// the item matching tags and zoomlevel
-		RenderInstructionItem ri = null;
+		if (prevInstructions == null || (prevInstructions.zoom & zoomMask) == 0) {
+			// previous instructions zoom does not match
+			cacheKey.set(tags, null);
+		} else {
+			// compare if tags match previous instructions
+			if (cacheKey.set(tags, prevInstructions.key))
+				return prevInstructions;
+		}
 
-		// temporary matching instructions list
-		List<RenderInstruction> matches;
+		// list of renderinsctruction items in cache
+		RenderInstructionItem ris = matchingCache.get(cacheKey);
 
-		LRUCache<MatchingCacheKey, RenderInstructionItem> matchingCache;
-		MatchingCacheKey cacheKey;
+		for (RenderInstructionItem ri = ris; ri != null; ri = ri.next)
+			if ((ri.zoom & zoomMask) != 0)
+				// cache hit
+				return ri;
 
-		if (closed)
-			matchingCache = mAreaCache;
+		// cache miss
+		matches.clear();
+		if (closed == Closed.ANY)
+			mRuleDispatch.matchNode(renderCallback, tags, zoomLevel, matches);
 		else
-			matchingCache = mWayCache;
+			mRuleDispatch.matchWay(renderCallback, tags, zoomLevel, closed, matches);
 
-		int zoomMask = 1 << zoomLevel;
 
-		synchronized (matchingCache) {
-			if (closed) {
-				cacheKey = mAreaCacheKey;
-				matches = mAreaInstructionList;
-				prevInstructions = mPrevAreaItem;
-			} else {
-				cacheKey = mWayCacheKey;
-				matches = mWayInstructionList;
-				prevInstructions = mPrevWayItem;
+		// check if same instructions are used in another level
+		RenderInstructionItem same = null;
+		for (RenderInstructionItem ri = ris; ri != null; ri = ri.next) {
+			if (sameInstructions(ri.list, matches)) {
+				same = ri;
+				break;
 			}
+		}
 
-			if (prevInstructions == null || (prevInstructions.zoom & zoomMask) == 0) {
-				// previous instructions zoom does not match
-				cacheKey.set(tags, null);
-			} else {
-				// compare if tags match previous instructions
-				if (cacheKey.set(tags, prevInstructions.key)) {
-					//Log.d(TAG, "same as previous " + Arrays.deepToString(tags));
-					ri = prevInstructions;
-				}
+		RenderInstructionItem result;
+		RenderInstructionItem chain;
+
+		if (same != null) {
+			// we found a same matchting list on another zoomlevel,
+			// copy the chain with the zoomlevel added to this item.
+			chain = copyChain(ris, same, zoomMask);
+			result = chain;
+			while (result.list != same.list)
+				result = result.next;
+		} else {
+			RenderInstruction[] list = null;
+			int size = matches.size();
+			if (size > 0) {
+				list = new RenderInstruction[size];
+				matches.toArray(list);
 			}
 
-			if (ri == null) {
-				ris = matchingCache.get(cacheKey);
+			// attach this list to the one found for MatchingKey
+			MatchingCacheKey key = (ris != null ? ris.key : new MatchingCacheKey(cacheKey));
+			result = new RenderInstructionItem(ris, zoomMask, list, key);
+			chain = result;
+		}
 
-				for (ri = ris; ri != null; ri = ri.next)
-					if ((ri.zoom & zoomMask) != 0)
-						// cache hit
-						break;
-			}
+		matchingCache.put(result.key, ris, chain);
 
-			if (ri == null) {
-				// cache miss
-				//Log.d(TAG, missCnt++ + " / " + hitCnt + " Cache Miss");
-
-				int c = (closed ? Closed.YES : Closed.NO);
-				//List<RenderInstruction> matches = mMatchingList;
-				matches.clear();
-
-				for (int i = 0, n = mRulesList.size(); i < n; ++i)
-					mRulesList.get(i).matchWay(renderCallback, tags, zoomLevel, c, matches);
-
-				int size = matches.size();
-				// check if same instructions are used in another level
-				for (ri = ris; ri != null; ri = ri.next) {
-					if (size == 0) {
-						if (ri.list != null)
-							continue;
-
-						// both matchinglists are empty
-						break;
-					}
-
-					if (ri.list == null)
-						continue;
-
-					if (ri.list.length != size)
-						continue;
-
-					int i = 0;
-					for (RenderInstruction r : ri.list) {
-						if (r != matches.get(i))
-							break;
-						i++;
-					}
-					if (i == size)
-						// both matching lists contain the same items
-						break;
-				}
+		return result;
+	}
 
-				if (ri != null) {
-					// we found a same matchting list on another zoomlevel
-					ri.zoom |= zoomMask;
-					//Log.d(TAG,
-					//		zoomLevel + " same instructions " + size + " "
-					//				+ Arrays.deepToString(tags));
-
-				} else {
-					//Log.d(TAG,
-					//		zoomLevel + " new instructions " + size + " "
-					//				+ Arrays.deepToString(tags));
-
-					ri = new RenderInstructionItem();
-					ri.zoom = zoomMask;
-
-					if (size > 0) {
-						ri.list = new RenderInstruction[size];
-						matches.toArray(ri.list);
-					}
-
-					// attach this list to the one found for MatchingKey
-					if (ris != null) {
-						ri.next = ris.next;
-						ri.key = ris.key;
-						ris.next = ri;
-					} else {
-						ri.key = new MatchingCacheKey(cacheKey);
-						matchingCache.put(ri.key, ri);
-					}
-				}
-			}
-			if (closed)
-				mPrevAreaItem = ri;
-			else
-				mPrevWayItem = ri;
-		}
+	private static boolean sameInstructions(RenderInstruction[] list,
+			ArrayList<RenderInstruction> matches) {
+		int size = matches.size();
 
-		if (render && ri.list != null) {
-			for (int i = 0, n = ri.list.length; i < n; i++)
-				ri.list[i].renderWay(renderCallback, tags);
-		}
+		if (list == null)
+			// both matchinglists are empty
+			return size == 0;
 
-		return ri.list;
+		if (list.length != size)
+			return false;
+
+		for (int i = 0; i < size; i++)
+			if (list[i] != matches.get(i))
+				return false;
+
+		return true;
+	}
+
+	private static RenderInstructionItem copyChain(RenderInstructionItem ri,
+			RenderInstructionItem update, int zoomMask) {
+		if (ri == update)
+			return new RenderInstructionItem(ri.next, ri.zoom | zoomMask,
+					ri.list, ri.key);
+
+		return new RenderInstructionItem(copyChain(ri.next, update, zoomMask),
+				ri.zoom, ri.list, ri.key);
 	}
 
 	void addRule(Rule rule) {
@@ -439,6 +422,9 @@ public class RenderTheme {
 			mRulesList.get(i).onComplete();
 		}
 
+		Rule[] rules = new Rule[mRulesList.size()];
+		mRuleDispatch = new RuleDispatch(mRulesList.toArray(rules));
+
 	}
 
 	/**
@@ -23,6 +23,7 @@ import java.util.Stack;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParserFactory;
 
+import org.oscim.backend.Log;
 import org.oscim.theme.renderinstruction.Area;
 import org.oscim.theme.renderinstruction.AreaLevel;
 import org.oscim.theme.renderinstruction.Circle;
@@ -38,8 +39,6 @@ import org.xml.sax.SAXParseException;
 import org.xml.sax.XMLReader;
 import org.xml.sax.helpers.DefaultHandler;
 
-import android.util.Log;
-
 /**
  * SAX2 handler to parse XML render theme files.
  */
@@ -78,8 +77,11 @@ public class RenderThemeHandler extends DefaultHandler {
 			throws SAXException,
 			ParserConfigurationException, IOException {
 		RenderThemeHandler renderThemeHandler = new RenderThemeHandler();
-		XMLReader xmlReader = SAXParserFactory.newInstance().newSAXParser()
-				.getXMLReader();
+		// elements are matched by their local name, which only
+		// namespace aware parsers of the JVM pass
+		SAXParserFactory factory = SAXParserFactory.newInstance();
+		factory.setNamespaceAware(true);
+		XMLReader xmlReader = factory.newSAXParser().getXMLReader();
 		xmlReader.setContentHandler(renderThemeHandler);
 		xmlReader.parse(new InputSource(inputStream));
 		return renderThemeHandler.mRenderTheme;
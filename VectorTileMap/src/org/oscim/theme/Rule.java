@@ -166,6 +166,7 @@ abstract class Rule {
 	private ArrayList<Rule> mSubRules;
 
 	private Rule[] mSubRuleArray;
+	private RuleDispatch mSubRuleDispatch;
 	private RenderInstruction[] mRenderInstructionArray;
 
 	final byte mZoomMax;
@@ -206,8 +207,7 @@ abstract class Rule {
 			for (int i = 0, n = mRenderInstructionArray.length; i < n; i++)
 				matchingList.add(mRenderInstructionArray[i]);
 
-			for (int i = 0, n = mSubRuleArray.length; i < n; i++)
-				mSubRuleArray[i].matchNode(renderCallback, tags, zoomLevel, matchingList);
+			mSubRuleDispatch.matchNode(renderCallback, tags, zoomLevel, matchingList);
 
 		}
 	}
@@ -226,9 +226,8 @@ abstract class Rule {
 				matchingList.add(mRenderInstructionArray[i]);
 
 			// check subrules
-			for (int i = 0, n = mSubRuleArray.length; i < n; i++)
-				mSubRuleArray[i].matchWay(renderCallback, tags, zoomLevel, closed,
-						matchingList);
+			mSubRuleDispatch.matchWay(renderCallback, tags, zoomLevel, closed,
+					matchingList);
 
 		}
 	}
@@ -251,6 +250,7 @@ abstract class Rule {
 		for (int i = 0, n = mSubRuleArray.length; i < n; i++)
 			mSubRuleArray[i].onComplete();
 
+		mSubRuleDispatch = new RuleDispatch(mSubRuleArray);
 	}
 
 	void onDestroy() {
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.theme;
+
+import java.util.HashMap;
+import java.util.List;
+
+import org.oscim.core.Tag;
+import org.oscim.theme.renderinstruction.RenderInstruction;
+
+/**
+ * Precompiled selection of the rules on one level of the rule tree.
+ * Each rule is assigned a bit, rules are indexed by the keys (or values)
+ * they require and by zoomlevel and element type. Matching a way or node
+ * then only evaluates rules which may actually match one of its tags, in
+ * the original order of the rules.
+ * <p>
+ * Matching is done concurrently by the MapWorkers, the candidates of
+ * levels with more than 64 rules are collected in an array per thread.
+ */
+final class RuleDispatch {
+	// zoomlevels with precomputed rule masks
+	private static final int ZOOM_LEVELS = 32;
+
+	private final Rule[] mRules;
+	private final int mWords;
+
+	// rules requiring one of the keys or values
+	private final HashMap<String, long[]> mKeyRules;
+	private final HashMap<String, long[]> mValueRules;
+
+	// rules that need to be checked for all tags
+	private final long[] mAnyRules;
+
+	private final long[][] mZoomRules;
+	private final long[] mAllRules;
+
+	private final long[] mNodeRules;
+	private final long[] mWayRules;
+	private final long[] mAreaRules;
+
+	// candidates of the current match, when there is more than one word.
+	// each level of the rule tree has its own as the rules of this level
+	// are evaluated while sub-rules use theirs.
+	private final ThreadLocal<long[]> mCandidates = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[mWords];
+		}
+	};
+
+	RuleDispatch(Rule[] rules) {
+		mRules = rules;
+		mWords = (rules.length + 63) >> 6;
+
+		mKeyRules = new HashMap<String, long[]>();
+		mValueRules = new HashMap<String, long[]>();
+		mAnyRules = new long[mWords];
+		mAllRules = new long[mWords];
+		mNodeRules = new long[mWords];
+		mWayRules = new long[mWords];
+		mAreaRules = new long[mWords];
+		mZoomRules = new long[ZOOM_LEVELS][mWords];
+
+		for (int i = 0; i < rules.length; i++) {
+			Rule r = rules[i];
+			int word = i >> 6;
+			long bit = 1L << (i & 63);
+
+			mAllRules[word] |= bit;
+
+			if (r.mElement != Element.WAY)
+				mNodeRules[word] |= bit;
+
+			if (r.mElement != Element.NODE) {
+				if (r.mClosed != Closed.YES)
+					mWayRules[word] |= bit;
+				if (r.mClosed != Closed.NO)
+					mAreaRules[word] |= bit;
+			}
+
+			for (int z = r.mZoomMin; z <= r.mZoomMax && z < ZOOM_LEVELS; z++)
+				mZoomRules[z][word] |= bit;
+
+			String[] keys = null;
+			String[] values = null;
+
+			if (r instanceof PositiveRule) {
+				PositiveRule pr = (PositiveRule) r;
+				keys = getStrings(pr.mKeyMatcher, true);
+				if (keys == null)
+					values = getStrings(pr.mValueMatcher, false);
+			}
+
+			if (keys != null)
+				add(mKeyRules, keys, word, bit);
+			else if (values != null)
+				add(mValueRules, values, word, bit);
+			else
+				mAnyRules[word] |= bit;
+		}
+	}
+
+	private static String[] getStrings(AttributeMatcher matcher, boolean key) {
+		if (key) {
+			if (matcher instanceof SingleKeyMatcher)
+				return new String[] { ((SingleKeyMatcher) matcher).mKey };
+			if (matcher instanceof MultiKeyMatcher)
+				return ((MultiKeyMatcher) matcher).mKeys;
+		} else {
+			if (matcher instanceof SingleValueMatcher)
+				return new String[] { ((SingleValueMatcher) matcher).mValue };
+			if (matcher instanceof MultiValueMatcher)
+				return ((MultiValueMatcher) matcher).mValues;
+		}
+		return null;
+	}
+
+	private void add(HashMap<String, long[]> map, String[] strings, int word, long bit) {
+		for (String s : strings) {
+			long[] rules = map.get(s);
+			if (rules == null) {
+				rules = new long[mWords];
+				map.put(s, rules);
+			}
+			rules[word] |= bit;
+		}
+	}
+
+	void matchNode(IRenderCallback renderCallback, Tag[] tags, byte zoomLevel,
+			List<RenderInstruction> matchingList) {
+		if (mWords == 0)
+			return;
+
+		long[] zoomRules = (zoomLevel < ZOOM_LEVELS ? mZoomRules[zoomLevel] : mAllRules);
+
+		if (mWords == 1) {
+			long set = candidates(tags) & zoomRules[0] & mNodeRules[0];
+			while (set != 0) {
+				mRules[Long.numberOfTrailingZeros(set)]
+						.matchNode(renderCallback, tags, zoomLevel, matchingList);
+				set &= set - 1;
+			}
+			return;
+		}
+
+		long[] candidates = candidates(tags, mCandidates.get());
+
+		for (int w = 0; w < mWords; w++) {
+			long set = candidates[w] & zoomRules[w] & mNodeRules[w];
+			while (set != 0) {
+				mRules[(w << 6) + Long.numberOfTrailingZeros(set)]
+						.matchNode(renderCallback, tags, zoomLevel, matchingList);
+				set &= set - 1;
+			}
+		}
+	}
+
+	void matchWay(IRenderCallback renderCallback, Tag[] tags, byte zoomLevel,
+			int closed, List<RenderInstruction> matchingList) {
+		if (mWords == 0)
+			return;
+
+		long[] zoomRules = (zoomLevel < ZOOM_LEVELS ? mZoomRules[zoomLevel] : mAllRules);
+		long[] typeRules = (closed == Closed.YES ? mAreaRules : mWayRules);
+
+		if (mWords == 1) {
+			long set = candidates(tags) & zoomRules[0] & typeRules[0];
+			while (set != 0) {
+				mRules[Long.numberOfTrailingZeros(set)]
+						.matchWay(renderCallback, tags, zoomLevel, closed, matchingList);
+				set &= set - 1;
+			}
+			return;
+		}
+
+		long[] candidates = candidates(tags, mCandidates.get());
+
+		for (int w = 0; w < mWords; w++) {
+			long set = candidates[w] & zoomRules[w] & typeRules[w];
+			while (set != 0) {
+				mRules[(w << 6) + Long.numberOfTrailingZeros(set)]
+						.matchWay(renderCallback, tags, zoomLevel, closed, matchingList);
+				set &= set - 1;
+			}
+		}
+	}
+
+	private long candidates(Tag[] tags) {
+		long set = mAnyRules[0];
+
+		for (int i = 0, n = tags.length; i < n; i++) {
+			long[] rules = mKeyRules.get(tags[i].key);
+			if (rules != null)
+				set |= rules[0];
+
+			rules = mValueRules.get(tags[i].value);
+			if (rules != null)
+				set |= rules[0];
+		}
+		return set;
+	}
+
+	private long[] candidates(Tag[] tags, long[] set) {
+		System.arraycopy(mAnyRules, 0, set, 0, mWords);
+
+		for (int i = 0, n = tags.length; i < n; i++) {
+			long[] rules = mKeyRules.get(tags[i].key);
+			if (rules != null)
+				for (int w = 0; w < mWords; w++)
+					set[w] |= rules[w];
+
+			rules = mValueRules.get(tags[i].value);
+			if (rules != null)
+				for (int w = 0; w < mWords; w++)
+					set[w] |= rules[w];
+		}
+		return set;
+	}
+}
@@ -17,7 +17,7 @@ package org.oscim.theme;
 import org.oscim.core.Tag;
 
 class SingleKeyMatcher implements AttributeMatcher {
-	private final String mKey;
+	final String mKey;
 
 	SingleKeyMatcher(String key) {
 		mKey = key.intern();
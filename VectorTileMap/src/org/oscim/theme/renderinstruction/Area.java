@@ -14,14 +14,13 @@
  */
 package org.oscim.theme.renderinstruction;
 
+import org.oscim.backend.Color;
 import org.oscim.core.Tag;
 import org.oscim.theme.IRenderCallback;
 import org.oscim.theme.RenderThemeHandler;
 import org.oscim.utils.GlUtils;
 import org.xml.sax.Attributes;
 
-import android.graphics.Color;
-
 /**
  * Represents a closed polygon on the map.
  */
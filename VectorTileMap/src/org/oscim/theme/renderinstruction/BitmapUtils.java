@@ -20,8 +20,9 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 
+import org.oscim.backend.CanvasAdapter;
+
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.BitmapShader;
 import android.graphics.Shader.TileMode;
 
@@ -59,9 +60,11 @@ public final class BitmapUtils {
 		}
 
 		InputStream inputStream = createInputStream(src);
-		Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
-		inputStream.close();
-		return bitmap;
+		try {
+			return CanvasAdapter.get().decodeBitmap(inputStream);
+		} finally {
+			inputStream.close();
+		}
 	}
 
 	static BitmapShader createBitmapShader(String src) throws IOException {
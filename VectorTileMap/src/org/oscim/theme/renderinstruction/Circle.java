@@ -14,15 +14,12 @@
  */
 package org.oscim.theme.renderinstruction;
 
+import org.oscim.backend.Color;
 import org.oscim.core.Tag;
 import org.oscim.theme.IRenderCallback;
 import org.oscim.theme.RenderThemeHandler;
 import org.xml.sax.Attributes;
 
-import android.graphics.Color;
-import android.graphics.Paint;
-import android.graphics.Paint.Style;
-
 /**
  * Represents a round area on the map.
  */
@@ -78,11 +75,24 @@ public final class Circle extends RenderInstruction {
 		}
 	}
 
-	private final Paint mFill;
+	/**
+	 * Fill color, Color.TRANSPARENT for none.
+	 */
+	public final int fill;
+
+	/**
+	 * Outline color, Color.TRANSPARENT for none.
+	 */
+	public final int stroke;
+
+	/**
+	 * Radius and outline width at the current scale.
+	 */
+	public float radius;
+	public float strokeWidth;
+
 	private final int mLevel;
-	private final Paint mOutline;
 	private final float mRadius;
-	private float mRenderRadius;
 	private final boolean mScaleRadius;
 	private final float mStrokeWidth;
 
@@ -93,50 +103,29 @@ public final class Circle extends RenderInstruction {
 		mRadius = radius.floatValue();
 		mScaleRadius = scaleRadius;
 
-		if (fill == Color.TRANSPARENT) {
-			mFill = null;
-		} else {
-			mFill = new Paint(Paint.ANTI_ALIAS_FLAG);
-			mFill.setStyle(Style.FILL);
-			mFill.setColor(fill);
-		}
-
-		if (stroke == Color.TRANSPARENT) {
-			mOutline = null;
-		} else {
-			mOutline = new Paint(Paint.ANTI_ALIAS_FLAG);
-			mOutline.setStyle(Style.STROKE);
-			mOutline.setColor(stroke);
-		}
+		this.fill = fill;
+		this.stroke = stroke;
 
 		mStrokeWidth = strokeWidth;
 		mLevel = level;
 
 		if (!mScaleRadius) {
-			mRenderRadius = mRadius;
-			if (mOutline != null) {
-				mOutline.setStrokeWidth(mStrokeWidth);
-			}
+			this.radius = mRadius;
+			this.strokeWidth = mStrokeWidth;
 		}
 	}
 
 	@Override
 	public void renderNode(IRenderCallback renderCallback, Tag[] tags) {
-		if (mOutline != null) {
-			renderCallback.renderPointOfInterestCircle(mRenderRadius, mOutline, mLevel);
-		}
-		if (mFill != null) {
-			renderCallback.renderPointOfInterestCircle(mRenderRadius, mFill, mLevel);
-		}
+		if (fill != Color.TRANSPARENT || stroke != Color.TRANSPARENT)
+			renderCallback.renderPointOfInterestCircle(this, mLevel);
 	}
 
 	@Override
 	public void scaleStrokeWidth(float scaleFactor) {
 		if (mScaleRadius) {
-			mRenderRadius = mRadius * scaleFactor;
-			if (mOutline != null) {
-				mOutline.setStrokeWidth(mStrokeWidth * scaleFactor);
-			}
+			radius = mRadius * scaleFactor;
+			strokeWidth = mStrokeWidth * scaleFactor;
 		}
 	}
 }
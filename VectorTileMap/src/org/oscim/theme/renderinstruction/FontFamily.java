@@ -16,7 +16,7 @@ package org.oscim.theme.renderinstruction;
 
 import android.graphics.Typeface;
 
-enum FontFamily {
+public enum FontFamily {
 	DEFAULT, DEFAULT_BOLD, MONOSPACE, SANS_SERIF, SERIF;
 
 	/**
@@ -24,7 +24,7 @@ enum FontFamily {
 	 * @see <a
 	 *      href="http://developer.android.com/reference/android/graphics/Typeface.html">Typeface</a>
 	 */
-	Typeface toTypeface() {
+	public Typeface toTypeface() {
 		switch (this) {
 			case DEFAULT:
 				return Typeface.DEFAULT;
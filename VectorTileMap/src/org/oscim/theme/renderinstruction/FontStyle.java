@@ -14,7 +14,7 @@
  */
 package org.oscim.theme.renderinstruction;
 
-enum FontStyle {
+public enum FontStyle {
 	BOLD, BOLD_ITALIC, ITALIC, NORMAL;
 
 	/**
@@ -22,7 +22,7 @@ enum FontStyle {
 	 * @see <a
 	 *      href="http://developer.android.com/reference/android/graphics/Typeface.html">Typeface</a>
 	 */
-	int toInt() {
+	public int toInt() {
 		switch (this) {
 			case BOLD:
 				return 1;
@@ -17,13 +17,13 @@ package org.oscim.theme.renderinstruction;
 import java.util.Locale;
 import java.util.regex.Pattern;
 
+import org.oscim.backend.Color;
 import org.oscim.core.Tag;
 import org.oscim.theme.IRenderCallback;
 import org.oscim.theme.RenderThemeHandler;
 import org.oscim.utils.GlUtils;
 import org.xml.sax.Attributes;
 
-import android.graphics.Color;
 import android.graphics.Paint.Cap;
 
 /**
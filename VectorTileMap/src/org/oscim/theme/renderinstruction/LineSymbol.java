@@ -68,26 +68,31 @@ public final class LineSymbol extends RenderInstruction {
 		}
 	}
 
-	private final boolean mAlignCenter;
-	private final Bitmap mBitmap;
-	private final boolean mRepeat;
+	public final boolean alignCenter;
+
+	/**
+	 * The icon, null when generating tiles headless.
+	 */
+	public final Bitmap bitmap;
+	public final boolean repeat;
 
 	private LineSymbol(String src, boolean alignCenter, boolean repeat)
 			throws IOException {
 		super();
 
-		mBitmap = BitmapUtils.createBitmap(src);
-		mAlignCenter = alignCenter;
-		mRepeat = repeat;
+		this.bitmap = BitmapUtils.createBitmap(src);
+		this.alignCenter = alignCenter;
+		this.repeat = repeat;
 	}
 
 	@Override
 	public void destroy() {
-		mBitmap.recycle();
+		if (bitmap != null)
+			bitmap.recycle();
 	}
 
 	@Override
 	public void renderWay(IRenderCallback renderCallback, Tag[] tags) {
-		renderCallback.renderWaySymbol(mBitmap, mAlignCenter, mRepeat);
+		renderCallback.renderWaySymbol(this);
 	}
 }
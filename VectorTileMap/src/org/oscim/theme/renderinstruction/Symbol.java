@@ -62,6 +62,9 @@ public final class Symbol extends RenderInstruction {
 		}
 	}
 
+	/**
+	 * The icon, null when generating tiles headless.
+	 */
 	public final Bitmap bitmap;
 
 	public Symbol(String src) throws IOException {
@@ -72,16 +75,17 @@ public final class Symbol extends RenderInstruction {
 
 	@Override
 	public void destroy() {
-		bitmap.recycle();
+		if (bitmap != null)
+			bitmap.recycle();
 	}
 
 	@Override
 	public void renderNode(IRenderCallback renderCallback, Tag[] tags) {
-		renderCallback.renderPointOfInterestSymbol(bitmap);
+		renderCallback.renderPointOfInterestSymbol(this);
 	}
 
 	@Override
 	public void renderWay(IRenderCallback renderCallback, Tag[] tags) {
-		renderCallback.renderAreaSymbol(bitmap);
+		renderCallback.renderAreaSymbol(this);
 	}
 }
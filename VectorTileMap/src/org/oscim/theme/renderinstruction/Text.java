@@ -16,17 +16,14 @@ package org.oscim.theme.renderinstruction;
 
 import java.util.Locale;
 
+import org.oscim.backend.CanvasAdapter;
+import org.oscim.backend.Color;
 import org.oscim.core.Tag;
 import org.oscim.theme.IRenderCallback;
 import org.oscim.theme.RenderThemeHandler;
 import org.xml.sax.Attributes;
 
-import android.graphics.Color;
 import android.graphics.Paint;
-import android.graphics.Paint.Align;
-import android.graphics.Paint.FontMetrics;
-import android.graphics.Paint.Style;
-import android.graphics.Typeface;
 
 /**
  * Represents a text along a polyline on the map.
@@ -85,26 +82,10 @@ public final class Text extends RenderInstruction {
 
 		validate(elementName, textKey, fontSize, strokeWidth);
 
-		Typeface typeface = null;
-		if (fontFamily == FontFamily.DEFAULT) {
-			if (fontStyle == FontStyle.NORMAL)
-				typeface = typefaceNormal;
-			else if (fontStyle == FontStyle.BOLD)
-				typeface = typefaceBold;
-		}
-
-		if (typeface == null)
-			typeface = Typeface.create(fontFamily.toTypeface(), fontStyle.toInt());
-
-		return new Text(style, textKey, typeface, fontSize, fill, stroke, strokeWidth, dy, caption, priority);
+		return new Text(style, textKey, fontFamily, fontStyle, fontSize, fill, stroke,
+				strokeWidth, dy, caption, priority);
 	}
 
-	private static Typeface typefaceNormal = Typeface.create(FontFamily.DEFAULT.toTypeface(),
-			FontStyle.NORMAL.toInt());
-
-	private static Typeface typefaceBold = Typeface.create(FontFamily.DEFAULT.toTypeface(),
-			FontStyle.BOLD.toInt());
-
 	private static void validate(String elementName, String textKey, float fontSize,
 			float strokeWidth) {
 		if (textKey == null) {
@@ -120,6 +101,10 @@ public final class Text extends RenderInstruction {
 	}
 
 	public final float fontSize;
+
+	/**
+	 * Paints for drawing the text, null when generating tiles headless.
+	 */
 	public final Paint paint;
 	public Paint stroke;
 	public String textKey;
@@ -131,14 +116,20 @@ public final class Text extends RenderInstruction {
 
 	public float fontHeight;
 	public float fontDescent;
+
+	// current text size
+	private float mTextSize;
+
 	public static Text createText(float fontSize, float strokeWidth, int fill, int outline,
 			boolean billboard) {
 
-		return new Text("", "", typefaceNormal, fontSize, fill, outline, strokeWidth, 0, billboard, Integer.MAX_VALUE);
+		return new Text("", "", FontFamily.DEFAULT, FontStyle.NORMAL, fontSize, fill,
+				outline, strokeWidth, 0, billboard, Integer.MAX_VALUE);
 	}
 
-	private Text(String style, String textKey, Typeface typeface, float fontSize,
-			int fill, int outline, float strokeWidth, float dy, boolean caption, int priority) {
+	private Text(String style, String textKey, FontFamily fontFamily, FontStyle fontStyle,
+			float fontSize, int fill, int outline, float strokeWidth, float dy,
+			boolean caption, int priority) {
 
 		this.style = style;
 		this.textKey = textKey;
@@ -146,29 +137,41 @@ public final class Text extends RenderInstruction {
 		this.dy = dy;
 		this.priority = priority;
 
-		paint = new Paint(Paint.ANTI_ALIAS_FLAG);
-		paint.setTextAlign(Align.CENTER);
-		paint.setTypeface(typeface);
-		paint.setColor(fill);
-		paint.setTextSize(fontSize);
-
-		if (strokeWidth > 0) {
-			stroke = new Paint(Paint.ANTI_ALIAS_FLAG);
-			stroke.setStyle(Style.STROKE);
-			stroke.setTextAlign(Align.CENTER);
-			stroke.setTypeface(typeface);
-			stroke.setColor(outline);
-			stroke.setStrokeWidth(strokeWidth);
-			stroke.setTextSize(fontSize);
-		} else
+		CanvasAdapter canvas = CanvasAdapter.get();
+
+		paint = canvas.getTextPaint(fontFamily, fontStyle, fontSize, fill, 0);
+
+		if (strokeWidth > 0)
+			stroke = canvas.getTextPaint(fontFamily, fontStyle, fontSize, outline,
+					strokeWidth);
+		else
 			stroke = null;
 
 		this.fontSize = fontSize;
 
-		FontMetrics fm = paint.getFontMetrics();
-		fontHeight = (float) Math.ceil(Math.abs(fm.bottom) + Math.abs(fm.top));
-		//fontDescent = (float) Math.ceil(Math.abs(fm.descent));
-		fontDescent = Math.abs(fm.bottom);
+		setTextSize(fontSize);
+	}
+
+	private void setTextSize(float textSize) {
+		if (paint != null)
+			paint.setTextSize(textSize);
+		if (stroke != null)
+			stroke.setTextSize(textSize);
+
+		mTextSize = textSize;
+
+		CanvasAdapter canvas = CanvasAdapter.get();
+		fontHeight = canvas.getFontHeight(paint, textSize);
+		fontDescent = canvas.getFontDescent(paint, textSize);
+	}
+
+	/**
+	 * @param text
+	 *            the text
+	 * @return the width of text drawn in this style
+	 */
+	public float measureText(String text) {
+		return CanvasAdapter.get().measureText(paint, mTextSize, text);
 	}
 
 	@Override
@@ -187,12 +190,6 @@ public final class Text extends RenderInstruction {
 
 	@Override
 	public void scaleTextSize(float scaleFactor) {
-		paint.setTextSize(fontSize * scaleFactor);
-		if (stroke != null)
-			stroke.setTextSize(fontSize * scaleFactor);
-
-		FontMetrics fm = paint.getFontMetrics();
-		fontHeight = (float) Math.ceil(Math.abs(fm.bottom) + Math.abs(fm.top));
-		fontDescent = (float) Math.ceil(Math.abs(fm.descent));
+		setTextSize(fontSize * scaleFactor);
 	}
 }
@@ -4,8 +4,9 @@ import javax.microedition.khronos.egl.EGL10;
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.egl.EGLDisplay;
 
+import org.oscim.backend.Log;
+
 import android.opengl.GLSurfaceView;
-import android.util.Log;
 
 /**
  *
@@ -17,12 +17,12 @@ package org.oscim.utils;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
+import org.oscim.backend.Log;
 import org.oscim.renderer.GLRenderer;
 
 import android.graphics.Bitmap;
 import android.opengl.GLES20;
 import android.opengl.GLUtils;
-import android.util.Log;
 
 /**
  * Utility functions
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.utils;
+
+/**
+ * Douglas-Peucker simplification of lines and polygons, in place.
+ * from http://en.wikipedia.org/wiki/Ramer%E2%80%93Douglas%E2%80%93Peucker_algorithm
+ * <p>
+ * Points are removed when they are closer than the tolerance to the
+ * previous point, or to the line between the points that are kept.
+ * Parts with less than MIN_POINTS points are kept as they are.
+ * Not thread-safe, the stack and marker arrays are reused.
+ */
+public class LineSimplifier {
+
+	// parts with fewer points are not simplified. they are about half
+	// of the parts in a tile but hold only a few percent of the points
+	// that could be removed, checking them costs more than it saves.
+	public static final int MIN_POINTS = 8;
+
+	private float mSquareTolerance;
+
+	// points to keep of the current part
+	private boolean[] mKeep = new boolean[256];
+
+	// ranges of points to check
+	private int[] mStack = new int[64];
+
+	/**
+	 * @param tolerance
+	 *            maximal distance of removed points, 0 to disable
+	 */
+	public LineSimplifier(float tolerance) {
+		setTolerance(tolerance);
+	}
+
+	public void setTolerance(float tolerance) {
+		mSquareTolerance = tolerance * tolerance;
+	}
+
+	/**
+	 * Simplify all parts of a way.
+	 *
+	 * @param points
+	 *            array of x,y pairs, compacted in place
+	 * @param index
+	 *            length of the parts in points, a negative value marks the
+	 *            end. updated to the new lengths.
+	 * @param closed
+	 *            parts are polygons and keep at least three points
+	 * @return number of removed points
+	 */
+	public int simplify(float[] points, short[] index, boolean closed) {
+		if (mSquareTolerance == 0 || index == null)
+			return 0;
+
+		int removed = 0;
+
+		for (int i = 0, pos = 0, out = 0, n = index.length; i < n; i++) {
+			int length = index[i];
+
+			// check end-marker in indices
+			if (length < 0)
+				break;
+
+			// nothing removed yet, short parts stay in place
+			if (pos == out && length < MIN_POINTS << 1) {
+				pos += length;
+				out += length;
+				continue;
+			}
+
+			int num = simplify(points, pos, out, length >> 1, closed);
+
+			pos += length;
+			out += num << 1;
+
+			removed += (length >> 1) - num;
+			index[i] = (short) (num << 1);
+		}
+		return removed;
+	}
+
+	/**
+	 * Simplify the part at pos and write kept points to out (out <= pos).
+	 *
+	 * @return the number of kept points
+	 */
+	private int simplify(float[] points, int pos, int out, int num, boolean closed) {
+		int min = closed ? 3 : 2;
+
+		if (num < MIN_POINTS) {
+			System.arraycopy(points, pos, points, out, num << 1);
+			return num;
+		}
+
+		// drop points closer than the tolerance to the previous point
+		// and move the part to out, removes most points of densely
+		// sampled ways in one pass
+		num = radialFilter(points, pos, out, num);
+		pos = out;
+
+		if (num <= min)
+			return num;
+
+		if (mKeep.length < num)
+			mKeep = new boolean[num + (num >> 1)];
+
+		boolean[] keep = mKeep;
+		for (int i = 1; i < num - 1; i++)
+			keep[i] = false;
+
+		keep[0] = true;
+		keep[num - 1] = true;
+
+		int kept = 2;
+		int sp = 0;
+		int[] stack = mStack;
+
+		stack[sp++] = 0;
+		stack[sp++] = num - 1;
+
+		while (sp > 0) {
+			int last = stack[--sp];
+			int first = stack[--sp];
+
+			if (last - first < 2)
+				continue;
+
+			float ax = points[pos + (first << 1)];
+			float ay = points[pos + (first << 1) + 1];
+			float bx = points[pos + (last << 1)];
+			float by = points[pos + (last << 1) + 1];
+
+			float dx = bx - ax;
+			float dy = by - ay;
+			float len = dx * dx + dy * dy;
+
+			float max = -1;
+			int maxIndex = first;
+
+			if (len == 0) {
+				// degenerate segment, e.g. of a ring: distance to a
+				for (int i = first + 1; i < last; i++) {
+					float px = points[pos + (i << 1)] - ax;
+					float py = points[pos + (i << 1) + 1] - ay;
+					float d = px * px + py * py;
+					if (d > max) {
+						max = d;
+						maxIndex = i;
+					}
+				}
+			} else {
+				// squared distance to the line through a and b, times len
+				for (int i = first + 1; i < last; i++) {
+					float px = points[pos + (i << 1)] - ax;
+					float py = points[pos + (i << 1) + 1] - ay;
+					float c = px * dy - py * dx;
+					float d = c * c;
+					if (d > max) {
+						max = d;
+						maxIndex = i;
+					}
+				}
+				max /= len;
+			}
+
+			if (max <= mSquareTolerance)
+				continue;
+
+			keep[maxIndex] = true;
+			kept++;
+
+			if (sp + 4 > stack.length) {
+				int[] tmp = new int[stack.length * 2];
+				System.arraycopy(stack, 0, tmp, 0, sp);
+				stack = mStack = tmp;
+			}
+			stack[sp++] = first;
+			stack[sp++] = maxIndex;
+			stack[sp++] = maxIndex;
+			stack[sp++] = last;
+		}
+
+		// keep polygons that would collapse
+		if (kept < min || (closed && kept == min && isRing(points, pos, num)))
+			return num;
+
+		for (int i = 0; i < num; i++) {
+			if (!keep[i])
+				continue;
+
+			points[out++] = points[pos + (i << 1)];
+			points[out++] = points[pos + (i << 1) + 1];
+		}
+		return kept;
+	}
+
+	private int radialFilter(float[] points, int pos, int out, int num) {
+		float px = points[pos];
+		float py = points[pos + 1];
+		int end = pos + (num << 1);
+
+		int o = out;
+		points[o++] = px;
+		points[o++] = py;
+
+		for (int i = pos + 2; i < end - 2; i += 2) {
+			float x = points[i];
+			float y = points[i + 1];
+			float dx = x - px;
+			float dy = y - py;
+			if (dx * dx + dy * dy <= mSquareTolerance)
+				continue;
+
+			points[o++] = px = x;
+			points[o++] = py = y;
+		}
+		// always keep the last point
+		points[o++] = points[end - 2];
+		points[o++] = points[end - 1];
+
+		return (o - out) >> 1;
+	}
+
+	private static boolean isRing(float[] points, int pos, int num) {
+		int last = pos + ((num - 1) << 1);
+		return points[pos] == points[last] && points[pos + 1] == points[last + 1];
+	}
+}
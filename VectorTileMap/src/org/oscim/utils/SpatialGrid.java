@@ -0,0 +1,245 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.utils;
+
+import java.util.ArrayList;
+
+/**
+ * Uniform grid over a rectangle, to find items whose bounding boxes
+ * might intersect a query box without testing all items.
+ * <p>
+ * Items outside of the rectangle are put into the cells at its border.
+ * Entries are pooled, after the first use the grid does not allocate
+ * unless a cell or the result list needs to grow. Not thread-safe.
+ *
+ * @param <T>
+ *            item type
+ */
+public class SpatialGrid<T> {
+
+	private static final class Entry {
+		Object item;
+		// serial of the last query that returned this entry
+		int serial;
+		// link in pool
+		Entry next;
+	}
+
+	private final float mCellSize;
+
+	private float mMinX, mMinY;
+	private int mCols, mRows;
+
+	private Entry[][] mCells;
+	private int[] mCellCnt;
+
+	private Entry mPool;
+
+	private int mSerial;
+	private int mSize;
+
+	private final ArrayList<T> mResult = new ArrayList<T>();
+
+	/**
+	 * @param cellSize
+	 *            width and height of a cell
+	 */
+	public SpatialGrid(float cellSize) {
+		mCellSize = cellSize;
+	}
+
+	/**
+	 * Remove all items and set the area covered by the grid.
+	 */
+	public void init(float xmin, float ymin, float xmax, float ymax) {
+		clear();
+
+		mMinX = xmin;
+		mMinY = ymin;
+		mCols = Math.max(1, (int) Math.ceil((xmax - xmin) / mCellSize));
+		mRows = Math.max(1, (int) Math.ceil((ymax - ymin) / mCellSize));
+
+		int cells = mCols * mRows;
+		if (mCells == null || mCells.length < cells) {
+			mCells = new Entry[cells][];
+			mCellCnt = new int[cells];
+		}
+	}
+
+	/**
+	 * Remove all items.
+	 */
+	public void clear() {
+		if (mCells == null)
+			return;
+
+		for (int i = 0, n = mCols * mRows; i < n; i++) {
+			Entry[] cell = mCells[i];
+			for (int j = 0, m = mCellCnt[i]; j < m; j++) {
+				Entry e = cell[j];
+				cell[j] = null;
+				// entries in several cells are released once
+				if (e.item != null) {
+					e.item = null;
+					e.next = mPool;
+					mPool = e;
+				}
+			}
+			mCellCnt[i] = 0;
+		}
+		mSize = 0;
+	}
+
+	/**
+	 * @return number of items
+	 */
+	public int size() {
+		return mSize;
+	}
+
+	private int col(float x) {
+		int c = (int) ((x - mMinX) / mCellSize);
+		if (c < 0)
+			return 0;
+		if (c >= mCols)
+			return mCols - 1;
+		return c;
+	}
+
+	private int row(float y) {
+		int r = (int) ((y - mMinY) / mCellSize);
+		if (r < 0)
+			return 0;
+		if (r >= mRows)
+			return mRows - 1;
+		return r;
+	}
+
+	/**
+	 * Add item with bounding box x1,y1 - x2,y2 (x1 <= x2, y1 <= y2).
+	 */
+	public void insert(T item, float x1, float y1, float x2, float y2) {
+		Entry e = mPool;
+		if (e == null)
+			e = new Entry();
+		else
+			mPool = e.next;
+
+		e.item = item;
+		e.next = null;
+		e.serial = mSerial;
+
+		int c1 = col(x1), c2 = col(x2);
+		int r1 = row(y1), r2 = row(y2);
+
+		for (int r = r1; r <= r2; r++) {
+			for (int c = c1; c <= c2; c++) {
+				int i = r * mCols + c;
+				Entry[] cell = mCells[i];
+				int cnt = mCellCnt[i];
+
+				if (cell == null) {
+					cell = mCells[i] = new Entry[8];
+				} else if (cnt == cell.length) {
+					Entry[] tmp = new Entry[cnt * 2];
+					System.arraycopy(cell, 0, tmp, 0, cnt);
+					cell = mCells[i] = tmp;
+				}
+				cell[cnt] = e;
+				mCellCnt[i] = cnt + 1;
+			}
+		}
+		mSize++;
+	}
+
+	/**
+	 * Remove item that was inserted with the same bounding box.
+	 *
+	 * @return true if item was found
+	 */
+	public boolean remove(T item, float x1, float y1, float x2, float y2) {
+		int c1 = col(x1), c2 = col(x2);
+		int r1 = row(y1), r2 = row(y2);
+
+		Entry found = null;
+
+		for (int r = r1; r <= r2; r++) {
+			for (int c = c1; c <= c2; c++) {
+				int i = r * mCols + c;
+				Entry[] cell = mCells[i];
+				int cnt = mCellCnt[i];
+
+				for (int j = 0; j < cnt; j++) {
+					if (cell[j].item != item)
+						continue;
+
+					found = cell[j];
+					// order within a cell does not matter
+					cell[j] = cell[--cnt];
+					cell[cnt] = null;
+					mCellCnt[i] = cnt;
+					break;
+				}
+			}
+		}
+
+		if (found == null)
+			return false;
+
+		found.item = null;
+		found.next = mPool;
+		mPool = found;
+		mSize--;
+
+		return true;
+	}
+
+	/**
+	 * Find the items that might intersect box x1,y1 - x2,y2 (x1 <= x2,
+	 * y1 <= y2). Each item is returned once.
+	 *
+	 * @return the items, the list is reused by the next query.
+	 */
+	@SuppressWarnings("unchecked")
+	public ArrayList<T> query(float x1, float y1, float x2, float y2) {
+		ArrayList<T> result = mResult;
+		result.clear();
+
+		if (mSize == 0)
+			return result;
+
+		int serial = ++mSerial;
+
+		int c1 = col(x1), c2 = col(x2);
+		int r1 = row(y1), r2 = row(y2);
+
+		for (int r = r1; r <= r2; r++) {
+			for (int c = c1; c <= c2; c++) {
+				int i = r * mCols + c;
+				Entry[] cell = mCells[i];
+
+				for (int j = 0, cnt = mCellCnt[i]; j < cnt; j++) {
+					Entry e = cell[j];
+					if (e.serial == serial)
+						continue;
+
+					e.serial = serial;
+					result.add((T) e.item);
+				}
+			}
+		}
+		return result;
+	}
+}
@@ -23,6 +23,7 @@ import java.util.Map;
 
 import javax.xml.parsers.ParserConfigurationException;
 
+import org.oscim.backend.Log;
 import org.oscim.core.BoundingBox;
 import org.oscim.core.GeoPoint;
 import org.oscim.core.MapPosition;
@@ -44,6 +45,7 @@ import org.oscim.overlay.OverlayManager;
 import org.oscim.renderer.GLRenderer;
 import org.oscim.renderer.GLView;
 import org.oscim.renderer.TileManager;
+import org.oscim.renderer.layer.Layers;
 import org.oscim.theme.ExternalRenderTheme;
 import org.oscim.theme.InternalRenderTheme;
 import org.oscim.theme.RenderTheme;
@@ -55,7 +57,6 @@ import org.xml.sax.SAXException;
 import android.content.Context;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
-import android.util.Log;
 import android.view.MotionEvent;
 import android.widget.RelativeLayout;
 
@@ -103,9 +104,6 @@ public class MapView extends RelativeLayout {
 	private int mWidth;
 	private int mHeight;
 
-	// FIXME: keep until old pbmap reader is removed
-	public static boolean enableClosePolygons = false;
-
 	public final float dpi;
 
 	/**
@@ -156,7 +154,7 @@ public class MapView extends RelativeLayout {
 
 		mCompass = new Compass(mapActivity, this);
 
-		mJobQueue = new JobQueue();
+		mJobQueue = new JobQueue(mNumMapWorkers);
 
 		mTileManager = new TileManager(this);
 
@@ -168,7 +166,7 @@ public class MapView extends RelativeLayout {
 		TileGenerator.setDebugSettings(mDebugSettings);
 
 		for (int i = 0; i < mNumMapWorkers; i++) {
-			TileGenerator tileGenerator = new TileGenerator(this);
+			TileGenerator tileGenerator = new TileGenerator();
 			mMapWorkers[i] = new MapWorker(i, mJobQueue, tileGenerator, mTileManager);
 			mMapWorkers[i].start();
 		}
@@ -385,6 +383,16 @@ public class MapView extends RelativeLayout {
 
 		mMapDatabase = null;
 
+		// maximum zoomlevel of the data, e.g. of the tile server
+		byte sourceMaxZoom = Byte.MAX_VALUE;
+		if (options.get("maxzoom") != null) {
+			try {
+				sourceMaxZoom = Byte.parseByte(options.get("maxzoom"));
+			} catch (NumberFormatException e) {
+				Log.w(TAG, "invalid maxzoom: " + options.get("maxzoom"));
+			}
+		}
+
 		for (int i = 0; i < mNumMapWorkers; i++) {
 			MapWorker mapWorker = mMapWorkers[i];
 
@@ -399,6 +407,7 @@ public class MapView extends RelativeLayout {
 
 			TileGenerator tileGenerator = mapWorker.getTileGenerator();
 			tileGenerator.setMapDatabase(mapDatabase);
+			tileGenerator.setSourceMaxZoom(sourceMaxZoom);
 
 			// TODO this could be done in a cleaner way..
 			if (mMapDatabase == null)
@@ -407,9 +416,9 @@ public class MapView extends RelativeLayout {
 
 		if (options.db == MapDatabases.OSCIMAP_READER ||
 				options.db == MapDatabases.MAP_READER)
-			MapView.enableClosePolygons = true;
+			Layers.enableClosePolygons = true;
 		else
-			MapView.enableClosePolygons = false;
+			Layers.enableClosePolygons = false;
 
 		clearMap();
 
@@ -626,14 +635,18 @@ public class MapView extends RelativeLayout {
 	 * add jobs and remember MapWorkers that stuff needs to be done
 	 *
 	 * @param jobs
-	 *            tile jobs
+	 *            tile jobs, when empty only the pending jobs are
+	 *            reprioritized. null clears the queue.
 	 */
 	public void addJobs(JobTile[] jobs) {
 		if (jobs == null) {
 			mJobQueue.clear();
 			return;
 		}
-		mJobQueue.setJobs(jobs);
+		mJobQueue.addJobs(jobs);
+
+		if (jobs.length == 0)
+			return;
 
 		for (int i = 0; i < mNumMapWorkers; i++) {
 			MapWorker m = mMapWorkers[i];
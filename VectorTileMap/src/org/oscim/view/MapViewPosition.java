@@ -20,6 +20,7 @@ package org.oscim.view;
 
 import java.lang.ref.WeakReference;
 
+import org.oscim.backend.Log;
 import org.oscim.core.BoundingBox;
 import org.oscim.core.GeoPoint;
 import org.oscim.core.MapPosition;
@@ -34,7 +35,6 @@ import android.opengl.Matrix;
 import android.os.Handler;
 import android.os.Message;
 import android.os.SystemClock;
-import android.util.Log;
 
 /**
  * A MapPosition stores the latitude and longitude coordinate of a MapView
@@ -68,6 +68,19 @@ public class MapViewPosition {
 
 	private final AnimationHandler mHandler;
 
+	// position where the current animation or fling ends, relative to
+	// the world size, for prefetching tiles.
+	private double mPredictX;
+	private double mPredictY;
+	// uptime when the predicted move ends
+	private long mPredictMoveEnd;
+	// 1 when zooming in, -1 when zooming out
+	private int mPredictZoom;
+	private long mPredictZoomEnd;
+
+	// how long to expect zooming to continue in the same direction
+	private final static int PREDICT_ZOOM_TIME = 300;
+
 	MapViewPosition(MapView mapView) {
 		mMapView = mapView;
 		mLatitude = Double.NaN;
@@ -528,9 +541,71 @@ public class MapViewPosition {
 			moveMap(pivotX * (1.0f - scale),
 					pivotY * (1.0f - scale));
 
+		if (scale != 1) {
+			mPredictZoom = scale > 1 ? 1 : -1;
+			mPredictZoomEnd = SystemClock.uptimeMillis() + PREDICT_ZOOM_TIME;
+		}
+
 		return true;
 	}
 
+	/**
+	 * Let TileManager prefetch the tiles around the position where a fling
+	 * will end.
+	 *
+	 * @param mx the amount of pixels the map will be moved horizontally.
+	 * @param my the amount of pixels the map will be moved vertically.
+	 * @param duration of the fling in milliseconds
+	 */
+	public synchronized void predictMove(float mx, float my, int duration) {
+		Point2D p = getMove(mx, my);
+		predict(mPosX - p.x, mPosY - p.y, duration);
+	}
+
+	/**
+	 * Stop prefetching for the current fling or animation, e.g. when it was
+	 * interrupted.
+	 */
+	public synchronized void clearPrediction() {
+		mPredictMoveEnd = 0;
+		mPredictZoomEnd = 0;
+	}
+
+	private void predict(double x, double y, long duration) {
+		double size = Tile.TILE_SIZE << mZoomLevel;
+		mPredictX = x / size;
+		mPredictY = y / size;
+		mPredictMoveEnd = SystemClock.uptimeMillis() + duration;
+	}
+
+	/**
+	 * Get the map center at the end of the current animation or fling.
+	 *
+	 * @param zoomLevel the zoomlevel of the returned coordinates
+	 * @param position set to the predicted x/y in pixels
+	 * @return false when the map is not expected to move
+	 */
+	public synchronized boolean getPredictedMove(byte zoomLevel, double[] position) {
+		if (mPredictMoveEnd < SystemClock.uptimeMillis())
+			return false;
+
+		double size = Tile.TILE_SIZE << zoomLevel;
+		position[0] = mPredictX * size;
+		position[1] = mPredictY * size;
+		return true;
+	}
+
+	/**
+	 * @return 1 when the map is expected to zoom in, -1 when it is expected
+	 *         to zoom out, 0 otherwise
+	 */
+	public synchronized int getPredictedZoom() {
+		if (mPredictZoomEnd < SystemClock.uptimeMillis())
+			return 0;
+
+		return mPredictZoom;
+	}
+
 	/**
 	 * rotate map around pivot cx,cy
 	 *
@@ -639,6 +714,7 @@ public class MapViewPosition {
 		mStartY = mPosY;
 
 		mDuration = 300;
+		predict(mEndX, mEndY, (long) mDuration);
 		mHandler.start((int) mDuration);
 	}
 
@@ -651,6 +727,7 @@ public class MapViewPosition {
 		mStartY = mPosY;
 
 		mDuration = 300;
+		predict(mEndX, mEndY, (long) mDuration);
 		mHandler.start((int) mDuration);
 	}
 
@@ -664,6 +741,7 @@ public class MapViewPosition {
 		mStartY = mPosY;
 
 		mDuration = duration;
+		predict(mEndX, mEndY, (long) mDuration);
 		mHandler.start((int) mDuration);
 	}
 
@@ -22,13 +22,13 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Properties;
 
+import org.oscim.backend.Log;
 import org.oscim.core.GeoPoint;
 import org.oscim.core.MapPosition;
 import org.oscim.core.MercatorProjection;
 
 import android.os.AsyncTask;
 import android.util.FloatMath;
-import android.util.Log;
 import android.widget.Toast;
 
 public class RegionLookup {
@@ -16,12 +16,12 @@
 
 package org.oscim.view;
 
+import org.oscim.backend.Log;
 import org.oscim.core.Tile;
 import org.oscim.overlay.OverlayManager;
 
 import android.content.Context;
 import android.os.CountDownTimer;
-import android.util.Log;
 import android.view.GestureDetector;
 import android.view.GestureDetector.OnDoubleTapListener;
 import android.view.GestureDetector.OnGestureListener;
@@ -361,6 +361,8 @@ final class TouchHandler implements OnGestureListener, OnDoubleTapListener {
 				mTimer = null;
 			}
 			fling = false;
+
+			mMapPosition.clearPrediction();
 		}
 
 		return true;
@@ -437,6 +439,10 @@ final class TouchHandler implements OnGestureListener, OnDoubleTapListener {
 					Math.round(velocityY * s),
 					-w, w, -h, h);
 
+			// scroll() moves the map by the scroller offset
+			mMapPosition.predictMove(mScroller.getFinalX(), mScroller.getFinalY(),
+					mScroller.getDuration());
+
 			mTimer = new CountDownTimer(1000, 16) {
 				@Override
 				public void onTick(long tick) {
@@ -326,12 +326,13 @@ abstract class BaseTileBasedDataProcessor implements TileBasedDataProcessor, Nod
 					// merge way nodes from outer way segments
 					List<TDNode> waynodeList = new ArrayList<TDNode>();
 					for (TDWay outerSegment : outerPolygon) {
+						TDNode[] segmentNodes = outerSegment.getWayNodes();
 						if (outerSegment.isReversedInRelation()) {
-							for (int i = outerSegment.getWayNodes().length - 1; i >= 0; i--) {
-								waynodeList.add(outerSegment.getWayNodes()[i]);
+							for (int i = segmentNodes.length - 1; i >= 0; i--) {
+								waynodeList.add(segmentNodes[i]);
 							}
 						} else {
-							for (TDNode tdNode : outerSegment.getWayNodes()) {
+							for (TDNode tdNode : segmentNodes) {
 								waynodeList.add(tdNode);
 							}
 						}
@@ -416,12 +417,13 @@ abstract class BaseTileBasedDataProcessor implements TileBasedDataProcessor, Nod
 					} else {
 						List<TDNode> waynodeList = new ArrayList<TDNode>();
 						for (TDWay innerSegment : innerSegments) {
+							TDNode[] segmentNodes = innerSegment.getWayNodes();
 							if (innerSegment.isReversedInRelation()) {
-								for (int i = innerSegment.getWayNodes().length - 1; i >= 0; i--) {
-									waynodeList.add(innerSegment.getWayNodes()[i]);
+								for (int i = segmentNodes.length - 1; i >= 0; i--) {
+									waynodeList.add(segmentNodes[i]);
 								}
 							} else {
-								for (TDNode tdNode : innerSegment.getWayNodes()) {
+								for (TDNode tdNode : segmentNodes) {
 									waynodeList.add(tdNode);
 								}
 							}
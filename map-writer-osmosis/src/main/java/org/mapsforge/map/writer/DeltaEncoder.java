@@ -15,14 +15,13 @@
 package org.mapsforge.map.writer;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 
 import org.mapsforge.map.writer.model.Encoding;
 import org.mapsforge.map.writer.model.WayDataBlock;
 
 /**
- * Provides delta or double delta encoding of lists of integers.
+ * Provides delta or double delta encoding of way coordinates, latitude and longitude of each way node in turn.
  * 
  * @author bross
  */
@@ -50,15 +49,15 @@ public final class DeltaEncoder {
 			return blocks;
 		}
 
-		List<WayDataBlock> results = new ArrayList<WayDataBlock>();
+		List<WayDataBlock> results = new ArrayList<WayDataBlock>(blocks.size());
 
 		for (WayDataBlock wayDataBlock : blocks) {
-			List<Integer> outer = mEncode(wayDataBlock.getOuterWay(), encoding);
-			List<List<Integer>> inner = null;
+			int[] outer = mEncode(wayDataBlock.getOuterWay(), encoding);
+			List<int[]> inner = null;
 			if (wayDataBlock.getInnerWays() != null) {
-				inner = new ArrayList<List<Integer>>();
-				for (List<Integer> list : wayDataBlock.getInnerWays()) {
-					inner.add(mEncode(list, encoding));
+				inner = new ArrayList<int[]>(wayDataBlock.getInnerWays().size());
+				for (int[] coordinates : wayDataBlock.getInnerWays()) {
+					inner.add(mEncode(coordinates, encoding));
 				}
 			}
 			results.add(new WayDataBlock(outer, inner, encoding));
@@ -68,7 +67,29 @@ public final class DeltaEncoder {
 	}
 
 	/**
-	 * Computes the size in bytes for storing a list of WayDataBlock objects as unsigned var-bytes.
+	 * Chooses the encoding which needs fewer bytes for a list of unencoded WayDataBlock objects. The sizes of both
+	 * encodings are computed in a single pass over the coordinates, without encoding them.
+	 * 
+	 * @param blocks
+	 *            the blocks which should be encoded
+	 * @return DELTA or DOUBLE_DELTA, DELTA if both need the same number of bytes
+	 */
+	public static Encoding chooseEncoding(List<WayDataBlock> blocks) {
+		// the first way node is the same in both encodings
+		int sizeDifference = 0;
+		for (WayDataBlock wayDataBlock : blocks) {
+			sizeDifference += mSizeDifference(wayDataBlock.getOuterWay());
+			if (wayDataBlock.getInnerWays() != null) {
+				for (int[] coordinates : wayDataBlock.getInnerWays()) {
+					sizeDifference += mSizeDifference(coordinates);
+				}
+			}
+		}
+		return sizeDifference <= 0 ? Encoding.DELTA : Encoding.DOUBLE_DELTA;
+	}
+
+	/**
+	 * Computes the size in bytes for storing a list of WayDataBlock objects as signed var-bytes.
 	 * 
 	 * @param blocks
 	 *            the blocks which should be encoded
@@ -79,104 +100,101 @@ public final class DeltaEncoder {
 		for (WayDataBlock wayDataBlock : blocks) {
 			sum += mSimulateSerialization(wayDataBlock.getOuterWay());
 			if (wayDataBlock.getInnerWays() != null) {
-				for (List<Integer> list : wayDataBlock.getInnerWays()) {
-					sum += mSimulateSerialization(list);
+				for (int[] coordinates : wayDataBlock.getInnerWays()) {
+					sum += mSimulateSerialization(coordinates);
 				}
 			}
 		}
 		return sum;
 	}
 
-	private static List<Integer> mEncode(List<Integer> list, Encoding encoding) {
+	private static int[] mEncode(int[] coordinates, Encoding encoding) {
 		switch (encoding) {
 			case DELTA:
-				return deltaEncode(list);
+				return deltaEncode(coordinates);
 			case DOUBLE_DELTA:
-				return doubleDeltaEncode(list);
+				return doubleDeltaEncode(coordinates);
 			case NONE:
-				return list;
+				return coordinates;
 		}
 
 		throw new IllegalArgumentException("unknown encoding value: " + encoding);
 	}
 
-	private static int mSimulateSerialization(List<Integer> list) {
+	private static int mSimulateSerialization(int[] coordinates) {
 		int sum = 0;
-		for (Integer coordinate : list) {
-			sum += Serializer.getVariableByteSigned(coordinate.intValue()).length;
+		for (int coordinate : coordinates) {
+			sum += Serializer.getVariableByteSignedLength(coordinate);
 		}
 		return sum;
 	}
 
-	static List<Integer> deltaEncode(List<Integer> list) {
-		if (list == null) {
+	// size of the delta encoding minus size of the double delta encoding, without the first way node
+	private static int mSizeDifference(int[] coordinates) {
+		int difference = 0;
+		// latitudes and longitudes are encoded independently
+		for (int offset = 0; offset < 2; offset++) {
+			int prevDelta = 0;
+			for (int i = offset + 2; i < coordinates.length; i += 2) {
+				int delta = coordinates[i] - coordinates[i - 2];
+				difference += Serializer.getVariableByteSignedLength(delta)
+						- Serializer.getVariableByteSignedLength(delta - prevDelta);
+				prevDelta = delta;
+			}
+		}
+		return difference;
+	}
+
+	static int[] deltaEncode(int[] coordinates) {
+		if (coordinates == null) {
 			return null;
 		}
-		ArrayList<Integer> result = new ArrayList<Integer>();
+		int[] result = new int[coordinates.length];
 
-		if (list.isEmpty()) {
+		if (coordinates.length == 0) {
 			return result;
 		}
 
-		Iterator<Integer> it = list.iterator();
-		// add the first way node to the result list
-		Integer prevLat = it.next();
-		Integer prevLon = it.next();
-
-		result.add(prevLat);
-		result.add(prevLon);
-
-		while (it.hasNext()) {
-			Integer currentLat = it.next();
-			Integer currentLon = it.next();
-			result.add(Integer.valueOf(currentLat.intValue() - prevLat.intValue()));
-			result.add(Integer.valueOf(currentLon.intValue() - prevLon.intValue()));
+		// add the first way node to the result
+		result[0] = coordinates[0];
+		result[1] = coordinates[1];
 
-			prevLat = currentLat;
-			prevLon = currentLon;
+		for (int i = 2; i < coordinates.length; i++) {
+			result[i] = coordinates[i] - coordinates[i - 2];
 		}
 
 		return result;
 	}
 
-	static List<Integer> doubleDeltaEncode(List<Integer> list) {
-		if (list == null) {
+	static int[] doubleDeltaEncode(int[] coordinates) {
+		if (coordinates == null) {
 			return null;
 		}
+		int[] result = new int[coordinates.length];
 
-		ArrayList<Integer> result = new ArrayList<Integer>();
-		if (list.isEmpty()) {
+		if (coordinates.length == 0) {
 			return result;
 		}
 
-		Iterator<Integer> it = list.iterator();
-		// add the first way node to the result list
-		Integer prevLat = it.next();
-		Integer prevLon = it.next();
+		// add the first way node to the result
+		result[0] = coordinates[0];
+		result[1] = coordinates[1];
 
-		Integer prevLatDelta = Integer.valueOf(0);
-		Integer prevLonDelta = Integer.valueOf(0);
+		int prevLatDelta = 0;
+		int prevLonDelta = 0;
 
-		result.add(prevLat);
-		result.add(prevLon);
+		for (int i = 2; i < coordinates.length; i += 2) {
+			int deltaLat = coordinates[i] - coordinates[i - 2];
+			int deltaLon = coordinates[i + 1] - coordinates[i - 1];
 
-		while (it.hasNext()) {
-			Integer currentLat = it.next();
-			Integer currentLon = it.next();
-			Integer deltaLat = Integer.valueOf(currentLat.intValue() - prevLat.intValue());
-			Integer deltaLon = Integer.valueOf(currentLon.intValue() - prevLon.intValue());
+			result[i] = deltaLat - prevLatDelta;
+			result[i + 1] = deltaLon - prevLonDelta;
 
-			result.add(Integer.valueOf(deltaLat.intValue() - prevLatDelta.intValue()));
-			result.add(Integer.valueOf(deltaLon.intValue() - prevLonDelta.intValue()));
-
-			prevLat = currentLat;
-			prevLon = currentLon;
 			prevLatDelta = deltaLat;
 			prevLonDelta = deltaLon;
 		}
 
 		return result;
-
 	}
 
 }
@@ -15,17 +15,21 @@
 package org.mapsforge.map.writer;
 
 import gnu.trove.iterator.TLongIterator;
+import gnu.trove.iterator.TLongObjectIterator;
 import gnu.trove.list.array.TLongArrayList;
 import gnu.trove.map.TLongObjectMap;
 import gnu.trove.map.hash.TLongObjectHashMap;
 import gnu.trove.set.hash.TLongHashSet;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import org.mapsforge.core.model.Coordinates;
 import org.mapsforge.map.writer.model.MapWriterConfiguration;
 import org.mapsforge.map.writer.model.TDNode;
 import org.mapsforge.map.writer.model.TDRelation;
@@ -37,42 +41,37 @@ import org.openstreetmap.osmosis.core.domain.v0_6.Node;
 import org.openstreetmap.osmosis.core.domain.v0_6.Relation;
 import org.openstreetmap.osmosis.core.domain.v0_6.Way;
 import org.openstreetmap.osmosis.core.lifecycle.ReleasableIterator;
-import org.openstreetmap.osmosis.core.store.IndexedObjectStore;
-import org.openstreetmap.osmosis.core.store.IndexedObjectStoreReader;
-import org.openstreetmap.osmosis.core.store.NoSuchIndexElementException;
 import org.openstreetmap.osmosis.core.store.SimpleObjectStore;
 import org.openstreetmap.osmosis.core.store.SingleClassObjectSerializationFactory;
 
 /**
  * A TileBasedDataStore that uses the hard disk as storage device for temporary data structures.
+ * <p>
+ * The coordinates of nodes are kept in a {@link NodeCoordinateStore}. Ways are resolved when they are added and
+ * stored with the coordinates of their way nodes, POIs and ways are stored as records in {@link MappedRecordStore}s.
+ * Nodes must be added before the ways that reference them, as in OSM files.
  * 
  * @author bross
  */
 public final class HDTileBasedDataProcessor extends BaseTileBasedDataProcessor {
 
-	private final IndexedObjectStore<Node> indexedNodeStore;
-	private final IndexedObjectStore<Way> indexedWayStore;
-	private final SimpleObjectStore<Way> wayStore;
+	private final NodeCoordinateStore nodeCoordinates;
+	private final MappedRecordStore poiStore;
+	private final MappedRecordStore wayStore;
 	private final SimpleObjectStore<Relation> relationStore;
 	private final HDTileData[][][] tileData;
 
 	final TLongObjectMap<TDWay> virtualWays;
 	final TLongObjectMap<List<TDRelation>> additionalRelationTags;
 
-	private IndexedObjectStoreReader<Node> nodeIndexReader;
-	private IndexedObjectStoreReader<Way> wayIndexReader;
+	// buffer to encode records, grows with the largest record
+	private ByteBuffer recordBuffer = ByteBuffer.allocate(0x10000);
 
 	private HDTileBasedDataProcessor(MapWriterConfiguration configuration) {
 		super(configuration);
-		this.indexedNodeStore = new IndexedObjectStore<Node>(new SingleClassObjectSerializationFactory(Node.class),
-				"idxNodes");
-		this.indexedWayStore = new IndexedObjectStore<Way>(new SingleClassObjectSerializationFactory(Way.class),
-				"idxWays");
-		// indexedRelationStore = new IndexedObjectStore<Relation>(
-		// new SingleClassObjectSerializationFactory(
-		// Relation.class), "idxWays");
-		this.wayStore = new SimpleObjectStore<Way>(new SingleClassObjectSerializationFactory(Way.class), "heapWays",
-				true);
+		this.nodeCoordinates = new NodeCoordinateStore(configuration.isDenseNodeStore());
+		this.poiStore = new MappedRecordStore("pois");
+		this.wayStore = new MappedRecordStore("ways");
 		this.relationStore = new SimpleObjectStore<Relation>(new SingleClassObjectSerializationFactory(Relation.class),
 				"heapRelations", true);
 
@@ -98,16 +97,28 @@ public final class HDTileBasedDataProcessor extends BaseTileBasedDataProcessor {
 
 	@Override
 	public void addNode(Node node) {
-		this.indexedNodeStore.add(node.getId(), node);
+		this.nodeCoordinates.add(node.getId(), Coordinates.degreesToMicrodegrees(node.getLatitude()),
+				Coordinates.degreesToMicrodegrees(node.getLongitude()));
+
+		// only nodes with tags can be POIs
+		if (node.getTags().isEmpty()) {
+			return;
+		}
 		TDNode tdNode = TDNode.fromNode(node, this.preferredLanguage);
-		addPOI(tdNode);
+		if (tdNode.isPOI()) {
+			this.poiStore.add(tdNode.getId(), encodePOI(tdNode));
+			addPOI(tdNode);
+		}
 	}
 
 	@Override
 	public void addWay(Way way) {
-		this.wayStore.add(way);
-		this.indexedWayStore.add(way.getId(), way);
 		this.maxWayID = Math.max(way.getId(), this.maxWayID);
+
+		TDWay tdWay = TDWay.fromWay(way, this, this.preferredLanguage);
+		if (tdWay != null) {
+			this.wayStore.add(tdWay.getId(), encodeWay(tdWay));
+		}
 	}
 
 	@Override
@@ -116,7 +127,7 @@ public final class HDTileBasedDataProcessor extends BaseTileBasedDataProcessor {
 	}
 
 	@Override
-	public synchronized List<TDWay> getInnerWaysOfMultipolygon(long outerWayID) {
+	public List<TDWay> getInnerWaysOfMultipolygon(long outerWayID) {
 		TLongArrayList innerwayIDs = this.outerToInnerMapping.get(outerWayID);
 		if (innerwayIDs == null) {
 			return null;
@@ -130,10 +141,8 @@ public final class HDTileBasedDataProcessor extends BaseTileBasedDataProcessor {
 		}
 		List<TDWay> res = new ArrayList<TDWay>();
 		for (long id : innerWayIDs) {
-			TDWay current = null;
-			try {
-				current = TDWay.fromWay(this.wayIndexReader.get(id), this, this.preferredLanguage);
-			} catch (NoSuchIndexElementException e) {
+			TDWay current = getStoredWay(id);
+			if (current == null) {
 				current = this.virtualWays.get(id);
 				if (current == null) {
 					LOGGER.fine("multipolygon with outer way id " + id + " references non-existing inner way " + id);
@@ -147,13 +156,23 @@ public final class HDTileBasedDataProcessor extends BaseTileBasedDataProcessor {
 		return res;
 	}
 
+	// called concurrently by the tile tasks of MapFileWriter, only reads the stores and does not modify shared ways
 	@Override
 	public TileData getTile(int baseZoomIndex, int tileCoordinateX, int tileCoordinateY) {
-		HDTileData hdt = getTileImpl(baseZoomIndex, tileCoordinateX, tileCoordinateY);
-		if (hdt == null) {
+		int tileCoordinateXIndex = tileCoordinateX - this.tileGridLayouts[baseZoomIndex].getUpperLeft().getX();
+		int tileCoordinateYIndex = tileCoordinateY - this.tileGridLayouts[baseZoomIndex].getUpperLeft().getY();
+		// check for valid range
+		if (tileCoordinateXIndex < 0 || tileCoordinateYIndex < 0
+				|| this.tileData[baseZoomIndex].length <= tileCoordinateXIndex
+				|| this.tileData[baseZoomIndex][tileCoordinateXIndex].length <= tileCoordinateYIndex) {
 			return null;
 		}
 
+		HDTileData hdt = this.tileData[baseZoomIndex][tileCoordinateXIndex][tileCoordinateYIndex];
+		if (hdt == null) {
+			return new RAMTileData();
+		}
+
 		return fromHDTileData(hdt);
 	}
 
@@ -164,10 +183,6 @@ public final class HDTileBasedDataProcessor extends BaseTileBasedDataProcessor {
 		}
 		TileCoordinate correspondingOceanTile = tc.translateToZoomLevel(TileInfo.TILE_INFO_ZOOMLEVEL).get(0);
 
-		if (this.wayIndexReader == null) {
-			throw new IllegalStateException("way store not accessible, call complete() first");
-		}
-
 		TLongHashSet coastlines = this.tilesToCoastlines.get(correspondingOceanTile);
 		if (coastlines == null) {
 			return Collections.emptySet();
@@ -177,13 +192,10 @@ public final class HDTileBasedDataProcessor extends BaseTileBasedDataProcessor {
 		HashSet<TDWay> coastlinesAsTDWay = new HashSet<TDWay>(coastlines.size());
 		while (it.hasNext()) {
 			long id = it.next();
-			TDWay tdWay = null;
-			try {
-				tdWay = TDWay.fromWay(this.wayIndexReader.get(id), this, this.preferredLanguage);
-			} catch (NoSuchIndexElementException e) {
+			TDWay tdWay = getStoredWay(id);
+			if (tdWay == null) {
 				LOGGER.finer("coastline way non-existing" + id);
-			}
-			if (tdWay != null) {
+			} else {
 				coastlinesAsTDWay.add(tdWay);
 			}
 		}
@@ -193,12 +205,6 @@ public final class HDTileBasedDataProcessor extends BaseTileBasedDataProcessor {
 	// TODO add accounting of average number of tiles per way
 	@Override
 	public void complete() {
-		this.indexedNodeStore.complete();
-		this.nodeIndexReader = this.indexedNodeStore.createReader();
-
-		this.indexedWayStore.complete();
-		this.wayIndexReader = this.indexedWayStore.createReader();
-
 		// handle relations
 		ReleasableIterator<Relation> relationReader = this.relationStore.iterate();
 		RelationHandler relationHandler = new RelationHandler();
@@ -209,14 +215,9 @@ public final class HDTileBasedDataProcessor extends BaseTileBasedDataProcessor {
 		}
 
 		// handle ways
-		ReleasableIterator<Way> wayReader = this.wayStore.iterate();
 		WayHandler wayHandler = new WayHandler();
-		while (wayReader.hasNext()) {
-			Way way = wayReader.next();
-			TDWay tdWay = TDWay.fromWay(way, this, this.preferredLanguage);
-			if (tdWay == null) {
-				continue;
-			}
+		for (ByteBuffer record : this.wayStore) {
+			TDWay tdWay = decodeWay(record);
 			List<TDRelation> associatedRelations = this.additionalRelationTags.get(tdWay.getId());
 			if (associatedRelations != null) {
 				for (TDRelation tileDataRelation : associatedRelations) {
@@ -227,6 +228,13 @@ public final class HDTileBasedDataProcessor extends BaseTileBasedDataProcessor {
 			wayHandler.execute(tdWay);
 		}
 
+		// virtual ways are shared by all tiles, complete them before the tiles are read
+		TLongObjectIterator<TDWay> virtualWayIterator = this.virtualWays.iterator();
+		while (virtualWayIterator.hasNext()) {
+			virtualWayIterator.advance();
+			completeWay(virtualWayIterator.value());
+		}
+
 		OSMTagMapping.getInstance().optimizePoiOrdering(this.histogramPoiTags);
 		OSMTagMapping.getInstance().optimizeWayOrdering(this.histogramWayTags);
 	}
@@ -254,38 +262,35 @@ public final class HDTileBasedDataProcessor extends BaseTileBasedDataProcessor {
 	@Override
 	public void release() {
 
-		this.indexedNodeStore.release();
-		this.indexedWayStore.release();
+		this.nodeCoordinates.release();
+		this.poiStore.release();
 		this.wayStore.release();
 		this.relationStore.release();
 	}
 
 	@Override
 	public TDNode getNode(long id) {
-		if (this.nodeIndexReader == null) {
-			throw new IllegalStateException("node store not accessible, call complete() first");
+		ByteBuffer record = this.poiStore.get(id);
+		if (record != null) {
+			return decodePOI(id, record);
 		}
 
-		try {
-			return TDNode.fromNode(this.nodeIndexReader.get(id), this.preferredLanguage);
-		} catch (NoSuchIndexElementException e) {
+		long coordinates = this.nodeCoordinates.get(id);
+		if (coordinates == NodeCoordinateStore.NOT_FOUND) {
 			LOGGER.finer("node cannot be found in index: " + id);
 			return null;
 		}
+		return new TDNode(id, NodeCoordinateStore.latitude(coordinates), NodeCoordinateStore.longitude(coordinates),
+				(short) 0, (byte) 0, null, null);
 	}
 
 	@Override
 	public TDWay getWay(long id) {
-		if (this.wayIndexReader == null) {
-			throw new IllegalStateException("way store not accessible, call complete() first");
-		}
-
-		try {
-			return TDWay.fromWay(this.wayIndexReader.get(id), this, this.preferredLanguage);
-		} catch (NoSuchIndexElementException e) {
+		TDWay way = getStoredWay(id);
+		if (way == null) {
 			LOGGER.finer("way cannot be found in index: " + id);
-			return null;
 		}
+		return way;
 	}
 
 	@Override
@@ -311,18 +316,20 @@ public final class HDTileBasedDataProcessor extends BaseTileBasedDataProcessor {
 		final RAMTileData td = new RAMTileData();
 		TLongIterator it = hdt.getPois().iterator();
 		while (it.hasNext()) {
-			td.addPOI(TDNode.fromNode(this.nodeIndexReader.get(it.next()), this.preferredLanguage));
+			long id = it.next();
+			td.addPOI(decodePOI(id, this.poiStore.get(id)));
 		}
 
 		it = hdt.getWays().iterator();
 		while (it.hasNext()) {
-			TDWay way = null;
 			long id = it.next();
-			try {
-				way = TDWay.fromWay(this.wayIndexReader.get(id), this, this.preferredLanguage);
+			TDWay way = getStoredWay(id);
+			if (way != null) {
+				// decoded for this tile only
+				completeWay(way);
 				td.addWay(way);
-			} catch (NoSuchIndexElementException e) {
-				// is it a virtual way?
+			} else {
+				// is it a virtual way? these were completed by complete()
 				way = this.virtualWays.get(id);
 				if (way != null) {
 					td.addWay(way);
@@ -330,21 +337,120 @@ public final class HDTileBasedDataProcessor extends BaseTileBasedDataProcessor {
 					LOGGER.finer("referenced way non-existing" + id);
 				}
 			}
+		}
 
-			if (way != null) {
-				if (this.outerToInnerMapping.contains(way.getId())) {
-					way.setShape(TDWay.MULTI_POLYGON);
-				}
+		return td;
+	}
+
+	private void completeWay(TDWay way) {
+		if (this.outerToInnerMapping.contains(way.getId())) {
+			way.setShape(TDWay.MULTI_POLYGON);
+		}
 
-				List<TDRelation> associatedRelations = this.additionalRelationTags.get(id);
-				if (associatedRelations != null) {
-					for (TDRelation tileDataRelation : associatedRelations) {
-						way.mergeRelationInformation(tileDataRelation);
-					}
+		List<TDRelation> associatedRelations = this.additionalRelationTags.get(way.getId());
+		if (associatedRelations != null) {
+			for (TDRelation tileDataRelation : associatedRelations) {
+				way.mergeRelationInformation(tileDataRelation);
+			}
+		}
+	}
+
+	private TDWay getStoredWay(long id) {
+		ByteBuffer record = this.wayStore.get(id);
+		if (record == null) {
+			return null;
+		}
+		return decodeWay(record);
+	}
+
+	// ways are stored with the coordinates of their way nodes, ids and
+	// coordinates are delta encoded
+	private ByteBuffer encodeWay(TDWay way) {
+		for (;;) {
+			ByteBuffer buffer = this.recordBuffer;
+			buffer.clear();
+			try {
+				MappedRecordStore.putVarLong(buffer, way.getId());
+				buffer.put(way.getLayer());
+				buffer.put(way.getShape());
+				MappedRecordStore.putString(buffer, way.getName());
+				MappedRecordStore.putString(buffer, way.getHouseNumber());
+				MappedRecordStore.putString(buffer, way.getRef());
+				MappedRecordStore.putShorts(buffer, way.getTags());
+
+				int n = way.getWayNodeCount();
+				MappedRecordStore.putVarLong(buffer, n);
+				long id = 0;
+				int latitude = 0;
+				int longitude = 0;
+				for (int i = 0; i < n; i++) {
+					MappedRecordStore.putVarLong(buffer, way.getWayNodeId(i) - id);
+					MappedRecordStore.putVarLong(buffer, (long) way.getWayNodeLatitude(i) - latitude);
+					MappedRecordStore.putVarLong(buffer, (long) way.getWayNodeLongitude(i) - longitude);
+					id = way.getWayNodeId(i);
+					latitude = way.getWayNodeLatitude(i);
+					longitude = way.getWayNodeLongitude(i);
 				}
+				return buffer;
+			} catch (BufferOverflowException e) {
+				this.recordBuffer = ByteBuffer.allocate(buffer.capacity() * 2);
 			}
 		}
+	}
 
-		return td;
+	private static TDWay decodeWay(ByteBuffer record) {
+		long wayId = MappedRecordStore.getVarLong(record);
+		byte layer = record.get();
+		byte shape = record.get();
+		String name = MappedRecordStore.getString(record);
+		String houseNumber = MappedRecordStore.getString(record);
+		String ref = MappedRecordStore.getString(record);
+		short[] tags = MappedRecordStore.getShorts(record);
+
+		int n = (int) MappedRecordStore.getVarLong(record);
+		long[] ids = new long[n];
+		int[] coordinates = new int[n * 2];
+		long id = 0;
+		int latitude = 0;
+		int longitude = 0;
+		for (int i = 0; i < n; i++) {
+			id += MappedRecordStore.getVarLong(record);
+			latitude += (int) MappedRecordStore.getVarLong(record);
+			longitude += (int) MappedRecordStore.getVarLong(record);
+			ids[i] = id;
+			coordinates[i * 2] = latitude;
+			coordinates[i * 2 + 1] = longitude;
+		}
+		return new TDWay(wayId, layer, name, houseNumber, ref, tags, shape, ids, coordinates);
+	}
+
+	private ByteBuffer encodePOI(TDNode poi) {
+		for (;;) {
+			ByteBuffer buffer = this.recordBuffer;
+			buffer.clear();
+			try {
+				MappedRecordStore.putVarLong(buffer, poi.getLatitude());
+				MappedRecordStore.putVarLong(buffer, poi.getLongitude());
+				MappedRecordStore.putVarLong(buffer, poi.getElevation());
+				buffer.put(poi.getLayer());
+				MappedRecordStore.putString(buffer, poi.getHouseNumber());
+				MappedRecordStore.putString(buffer, poi.getName());
+				MappedRecordStore.putShorts(buffer, poi.getTags());
+				return buffer;
+			} catch (BufferOverflowException e) {
+				this.recordBuffer = ByteBuffer.allocate(buffer.capacity() * 2);
+			}
+		}
+	}
+
+	private static TDNode decodePOI(long id, ByteBuffer record) {
+		int latitude = (int) MappedRecordStore.getVarLong(record);
+		int longitude = (int) MappedRecordStore.getVarLong(record);
+		short elevation = (short) MappedRecordStore.getVarLong(record);
+		byte layer = record.get();
+		String houseNumber = MappedRecordStore.getString(record);
+		String name = MappedRecordStore.getString(record);
+		short[] tags = MappedRecordStore.getShorts(record);
+		return new TDNode(id, latitude, longitude, elevation, layer, houseNumber, name, tags);
 	}
 }
@@ -15,14 +15,15 @@
 package org.mapsforge.map.writer;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -31,6 +32,7 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -51,12 +53,15 @@ import org.mapsforge.map.writer.model.WayDataBlock;
 import org.mapsforge.map.writer.model.ZoomIntervalConfiguration;
 import org.mapsforge.map.writer.util.Constants;
 import org.mapsforge.map.writer.util.GeoUtils;
+import org.mapsforge.map.writer.util.TileClipping;
 
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.CacheStats;
 import com.google.common.cache.LoadingCache;
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.geom.LinearRing;
 import com.vividsolutions.jts.geom.Point;
@@ -139,8 +144,16 @@ public final class MapFileWriter {
 
 	private static final TileInfo TILE_INFO = TileInfo.getInstance();
 
-	private static final ExecutorService EXECUTOR_SERVICE = Executors.newFixedThreadPool(Runtime.getRuntime()
-			.availableProcessors());
+	private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+	private static final ExecutorService EXECUTOR_SERVICE = Executors.newFixedThreadPool(THREADS);
+
+	// maximum number of consecutive tiles processed by one task
+	private static final int TILES_PER_TASK = 64;
+
+	// maximum number of tasks submitted but not yet written, bounds the
+	// memory of tiles that wait for their predecessors
+	private static final int MAX_PENDING_TASKS = THREADS * 4;
 
 	// IO
 	static final int HEADER_BUFFER_SIZE = 0x100000; // 1MB
@@ -151,8 +164,17 @@ public final class MapFileWriter {
 	static final int WAY_BUFFER_SIZE = 0x100000; // 10MB
 	static final int POI_DATA_BUFFER_SIZE = 0x100000; // 1MB
 
-	static volatile int droppedWays = 0;
-	static volatile int droppedPoly = 0;
+	// incremented by the threads preprocessing ways
+	static final AtomicInteger droppedWays = new AtomicInteger();
+	static final AtomicInteger droppedPoly = new AtomicInteger();
+
+	// buffers used by processTile(), one set per thread
+	private static final ThreadLocal<TileBuffers> TILE_BUFFERS = new ThreadLocal<TileBuffers>() {
+		@Override
+		protected TileBuffers initialValue() {
+			return new TileBuffers();
+		}
+	};
 
 	/**
 	 * Writes the map file according to the given configuration using the given data processor.
@@ -208,12 +230,12 @@ public final class MapFileWriter {
 		LOGGER.info("JTS Geometry cache hit rate: " + stats.hitRate());
 		LOGGER.info("JTS Geometry total load time: " + stats.totalLoadTime() / 1000);
 
-		LOGGER.info("Finished writing file. " + droppedWays + " " + droppedPoly);
+		LOGGER.info("Finished writing file. " + droppedWays.get() + " " + droppedPoly.get());
 	}
 
 	private static void writeUTF8(String string, ByteBuffer buffer) {
 		byte[] str = string.getBytes(UTF8_CHARSET);
-		buffer.put(Serializer.getVariableByteUnsigned(str.length));
+		Serializer.putVariableByteUnsigned(buffer, str.length);
 		buffer.put(str);
 	}
 
@@ -365,11 +387,6 @@ public final class MapFileWriter {
 				+ (configuration.isDebugStrings() ? DEBUG_INDEX_START_STRING.getBytes(UTF8_CHARSET).length : 0);
 
 		final ByteBuffer indexBuffer = ByteBuffer.allocate(indexBufferSize);
-		final ByteBuffer tileBuffer = ByteBuffer.allocate(TILE_BUFFER_SIZE);
-		final ByteBuffer wayDataBuffer = ByteBuffer.allocate(WAY_DATA_BUFFER_SIZE);
-		final ByteBuffer wayBuffer = ByteBuffer.allocate(WAY_BUFFER_SIZE);
-		final ByteBuffer poiDataBuffer = ByteBuffer.allocate(POI_DATA_BUFFER_SIZE);
-
 		final ByteBuffer multipleTilesBuffer = ByteBuffer.allocate(TILES_BUFFER_SIZE);
 
 		// write debug strings for tile index segment if necessary
@@ -380,30 +397,51 @@ public final class MapFileWriter {
 		long currentSubfileOffset = indexBufferSize;
 		randomAccessFile.seek(startPositionSubfile + indexBufferSize);
 
-		for (int tileY = upperLeft.getY(); tileY < upperLeft.getY() + lengthY; tileY++) {
-			for (int tileX = upperLeft.getX(); tileX < upperLeft.getX() + lengthX; tileX++) {
-				TileCoordinate tileCoordinate = new TileCoordinate(tileX, tileY, baseZoomCurrentInterval);
+		// tiles are processed in parallel by tasks of consecutive tiles in
+		// index order. the results are written in the order the tasks were
+		// submitted.
+		final int tilesPerTask = Math.max(1, Math.min(TILES_PER_TASK, amountTiles / (THREADS * 4)));
+		final ArrayDeque<Future<byte[][]>> pendingTasks = new ArrayDeque<Future<byte[][]>>();
+		int submittedTiles = 0;
+
+		try {
+			while (processedTiles < amountTiles) {
+				while (submittedTiles < amountTiles && pendingTasks.size() < MAX_PENDING_TASKS) {
+					int end = Math.min(amountTiles, submittedTiles + tilesPerTask);
+					pendingTasks.add(EXECUTOR_SERVICE.submit(new TileProcessingCallable(configuration, dataStore,
+							jtsGeometryCache, zoomIntervalIndex, upperLeft, lengthX, submittedTiles, end)));
+					submittedTiles = end;
+				}
 
-				processIndexEntry(tileCoordinate, indexBuffer, currentSubfileOffset);
-				processTile(configuration, tileCoordinate, dataStore, jtsGeometryCache, zoomIntervalIndex, tileBuffer,
-						poiDataBuffer, wayDataBuffer, wayBuffer);
-				currentSubfileOffset += tileBuffer.position();
+				byte[][] tiles = getTiles(pendingTasks.poll());
 
-				writeTile(multipleTilesBuffer, tileBuffer, randomAccessFile);
+				for (byte[] tile : tiles) {
+					int tileX = upperLeft.getX() + processedTiles % lengthX;
+					int tileY = upperLeft.getY() + processedTiles / lengthX;
+					TileCoordinate tileCoordinate = new TileCoordinate(tileX, tileY, baseZoomCurrentInterval);
 
-				if (++processedTiles % amountOfTilesInPercentStep == 0) {
-					if (processedTiles == amountTiles) {
-						LOGGER.info("written 100% of sub file for zoom interval index " + zoomIntervalIndex);
-					} else {
-						LOGGER.info("written " + (processedTiles / amountOfTilesInPercentStep) * PROGRESS_PERCENT_STEP
-								+ "% of sub file for zoom interval index " + zoomIntervalIndex);
-					}
+					processIndexEntry(tileCoordinate, indexBuffer, currentSubfileOffset);
+					currentSubfileOffset += tile.length;
 
-				}
+					writeTile(multipleTilesBuffer, tile, randomAccessFile);
 
-				// TODO accounting for progress information
-			} // end for loop over tile columns
-		} // /end for loop over tile rows
+					if (++processedTiles % amountOfTilesInPercentStep == 0) {
+						if (processedTiles == amountTiles) {
+							LOGGER.info("written 100% of sub file for zoom interval index " + zoomIntervalIndex);
+						} else {
+							LOGGER.info("written " + (processedTiles / amountOfTilesInPercentStep)
+									* PROGRESS_PERCENT_STEP + "% of sub file for zoom interval index "
+									+ zoomIntervalIndex);
+						}
+					}
+				}
+			}
+		} finally {
+			// only left on errors
+			for (Future<byte[][]> future : pendingTasks) {
+				future.cancel(true);
+			}
+		}
 
 		// write remaining tiles
 		if (multipleTilesBuffer.position() > 0) {
@@ -418,10 +456,28 @@ public final class MapFileWriter {
 
 	}
 
-	private static void writeTile(ByteBuffer multipleTilesBuffer, ByteBuffer tileBuffer,
-			RandomAccessFile randomAccessFile) throws IOException {
+	private static byte[][] getTiles(Future<byte[][]> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while writing sub file");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException("error processing tiles", cause);
+		}
+	}
+
+	private static void writeTile(ByteBuffer multipleTilesBuffer, byte[] tile, RandomAccessFile randomAccessFile)
+			throws IOException {
 		// add tile to tiles buffer
-		multipleTilesBuffer.put(tileBuffer.array(), 0, tileBuffer.position());
+		multipleTilesBuffer.put(tile);
 
 		// if necessary, allocate new buffer
 		if (multipleTilesBuffer.remaining() < MIN_TILE_BUFFER_SIZE) {
@@ -583,9 +639,6 @@ public final class MapFileWriter {
 					continue;
 
 				for (TDWay way : ways) {
-					if (way.isInvalid())
-						continue;
-
 					String str = way.getName();
 					if (str != null && !str.isEmpty() && !strings.containsKey(str))
 						strings.put(str, null);
@@ -605,7 +658,7 @@ public final class MapFileWriter {
 				writeUTF8(entry.getKey(), wayBuffer);
 
 			}
-			wayDataBuffer.put(Serializer.getVariableByteUnsigned(wayBuffer.position()));
+			Serializer.putVariableByteUnsigned(wayDataBuffer, wayBuffer.position());
 			// write way data to way data buffer
 			wayDataBuffer.put(wayBuffer.array(), 0, wayBuffer.position());
 
@@ -618,71 +671,62 @@ public final class MapFileWriter {
 				if (ways == null)
 					continue;
 
-				List<WayPreprocessingCallable> callables = new ArrayList<MapFileWriter.WayPreprocessingCallable>();
-
 				Collections.sort(ways, waySort);
 
+				// tiles are processed in parallel, the ways of a tile are
+				// preprocessed by the same thread. A way that cannot be
+				// preprocessed is only skipped in this tile, ways are shared
+				// between tiles and not modified here.
 				for (TDWay way : ways) {
-					if (!way.isInvalid()) {
-						callables.add(new WayPreprocessingCallable(way, tileCoordinate, maxZoomCurrentInterval,
-								jtsGeometryCache, configuration));
+					WayPreprocessingResult wpr;
+					try {
+						wpr = new WayPreprocessingCallable(way, tileCoordinate, maxZoomCurrentInterval,
+								jtsGeometryCache, configuration).call();
+					} catch (RuntimeException e) {
+						LOGGER.log(Level.WARNING, "error in preprocessing of way " + way.getId(), e);
+						continue;
+					}
+					if (wpr == null) {
+						continue;
 					}
-				}
 
-				try {
-					List<Future<WayPreprocessingResult>> futures = EXECUTOR_SERVICE.invokeAll(callables);
-					for (Future<WayPreprocessingResult> wprFuture : futures) {
-						WayPreprocessingResult wpr;
-						try {
-							wpr = wprFuture.get();
-						} catch (ExecutionException e) {
-							LOGGER.log(Level.WARNING, "error in parallel preprocessing of ways", e);
-							continue;
-						}
-						if (wpr != null) {
-							wayBuffer.clear();
-							// increment count of ways on this zoom level
-							entitiesPerZoomLevel[indexEntitiesPerZoomLevelTable][1]++;
-							if (configuration.isDebugStrings()) {
-								writeWaySignature(wpr.getWay(), wayDataBuffer);
-							}
-							TDWay way = wpr.getWay();
-							short[] tags = way.getTags();
-
-							if (prevTags == null || (prevTags.length != tags.length))
-								prevTags = tags;
-							else {
-								boolean same = true;
-
-								for (int i = 0, n = tags.length; i < n; i++) {
-									if (prevTags[i] != tags[i]) {
-										same = false;
-										break;
-									}
-								}
-								prevTags = tags;
+					wayBuffer.clear();
+					// increment count of ways on this zoom level
+					entitiesPerZoomLevel[indexEntitiesPerZoomLevelTable][1]++;
+					if (configuration.isDebugStrings()) {
+						writeWaySignature(wpr.getWay(), wayDataBuffer);
+					}
+					short[] tags = way.getTags();
 
-								if (same)
-									tags = null;
-							}
+					if (prevTags == null || (prevTags.length != tags.length))
+						prevTags = tags;
+					else {
+						boolean same = true;
 
-							processWay(wpr, way, tags, strings, currentTileLat, currentTileLon, wayBuffer);
-							// write size of way to way data buffer
-							wayDataBuffer.put(Serializer.getVariableByteUnsigned(wayBuffer.position()));
-							// write way data to way data buffer
-							wayDataBuffer.put(wayBuffer.array(), 0, wayBuffer.position());
+						for (int i = 0, n = tags.length; i < n; i++) {
+							if (prevTags[i] != tags[i]) {
+								same = false;
+								break;
+							}
 						}
+						prevTags = tags;
+
+						if (same)
+							tags = null;
 					}
 
-				} catch (InterruptedException e) {
-					LOGGER.log(Level.WARNING, "error in parallel preprocessing of ways", e);
+					processWay(wpr, way, tags, strings, currentTileLat, currentTileLon, wayBuffer);
+					// write size of way to way data buffer
+					Serializer.putVariableByteUnsigned(wayDataBuffer, wayBuffer.position());
+					// write way data to way data buffer
+					wayDataBuffer.put(wayBuffer.array(), 0, wayBuffer.position());
 				}
 			}
 
 			// write zoom table
 			writeZoomLevelTable(entitiesPerZoomLevel, tileBuffer);
 			// write offset to first way in the tile header
-			tileBuffer.put(Serializer.getVariableByteUnsigned(poiDataBuffer.position()));
+			Serializer.putVariableByteUnsigned(tileBuffer, poiDataBuffer.position());
 			// write POI data to buffer
 			tileBuffer.put(poiDataBuffer.array(), 0, poiDataBuffer.position());
 			// write way data to buffer
@@ -703,8 +747,8 @@ public final class MapFileWriter {
 		// write cumulated number of POIs and ways for this tile on
 		// each zoom level
 		for (int[] entityCount : entitiesPerZoomLevel) {
-			tileBuffer.put(Serializer.getVariableByteUnsigned(entityCount[0]));
-			tileBuffer.put(Serializer.getVariableByteUnsigned(entityCount[1]));
+			Serializer.putVariableByteUnsigned(tileBuffer, entityCount[0]);
+			Serializer.putVariableByteUnsigned(tileBuffer, entityCount[1]);
 		}
 	}
 
@@ -719,8 +763,8 @@ public final class MapFileWriter {
 		}
 
 		// write poi features to the file
-		poiBuffer.put(Serializer.getVariableByteSigned(poi.getLatitude() - currentTileLat));
-		poiBuffer.put(Serializer.getVariableByteSigned(poi.getLongitude() - currentTileLon));
+		Serializer.putVariableByteSigned(poiBuffer, poi.getLatitude() - currentTileLat);
+		Serializer.putVariableByteSigned(poiBuffer, poi.getLongitude() - currentTileLon);
 
 		// write byte with layer and tag amount
 		short tagAmount = tags == null ? 0 : (short) tags.length;
@@ -736,8 +780,8 @@ public final class MapFileWriter {
 		// write tag ids
 		if (tags != null) {
 			for (short tagID : tags) {
-				poiBuffer.put(Serializer.getVariableByteUnsigned(OSMTagMapping.getInstance().getOptimizedPoiIds()
-						.get(Short.valueOf(tagID)).intValue()));
+				Serializer.putVariableByteUnsigned(poiBuffer, OSMTagMapping.getInstance().getOptimizedPoiIds()
+						.get(Short.valueOf(tagID)).intValue());
 			}
 		}
 
@@ -755,7 +799,7 @@ public final class MapFileWriter {
 		}
 
 		if (poi.getElevation() != 0) {
-			poiBuffer.put(Serializer.getVariableByteSigned(poi.getElevation()));
+			Serializer.putVariableByteSigned(poiBuffer, poi.getElevation());
 		}
 
 	}
@@ -788,7 +832,7 @@ public final class MapFileWriter {
 		// write tag ids
 		if (tags != null) {
 			for (short tagID : tags) {
-				wayBuffer.put(Serializer.getVariableByteUnsigned(mappedWayTagID(tagID)));
+				Serializer.putVariableByteUnsigned(wayBuffer, mappedWayTagID(tagID));
 			}
 		}
 
@@ -799,28 +843,28 @@ public final class MapFileWriter {
 		String str = way.getName();
 		// if the way has a name, write it to the file
 		if (str != null && !str.isEmpty()) {
-			wayBuffer.put(Serializer.getVariableByteUnsigned(strings.get(str).intValue()));
+			Serializer.putVariableByteUnsigned(wayBuffer, strings.get(str).intValue());
 		}
 		str = way.getHouseNumber();
 		if (str != null && !str.isEmpty()) {
-			wayBuffer.put(Serializer.getVariableByteUnsigned(strings.get(str).intValue()));
+			Serializer.putVariableByteUnsigned(wayBuffer, strings.get(str).intValue());
 		}
 		str = way.getRef();
 		if (str != null && !str.isEmpty()) {
-			wayBuffer.put(Serializer.getVariableByteUnsigned(strings.get(str).intValue()));
+			Serializer.putVariableByteUnsigned(wayBuffer, strings.get(str).intValue());
 		}
 
 		if (wpr.getLabelPosition() != null) {
-			int firstWayStartLat = wpr.getWayDataBlocks().get(0).getOuterWay().get(0).intValue();
-			int firstWayStartLon = wpr.getWayDataBlocks().get(0).getOuterWay().get(1).intValue();
+			int firstWayStartLat = wpr.getWayDataBlocks().get(0).getOuterWay()[0];
+			int firstWayStartLon = wpr.getWayDataBlocks().get(0).getOuterWay()[1];
 
-			wayBuffer.put(Serializer.getVariableByteSigned(wpr.getLabelPosition().latitudeE6 - firstWayStartLat));
-			wayBuffer.put(Serializer.getVariableByteSigned(wpr.getLabelPosition().longitudeE6 - firstWayStartLon));
+			Serializer.putVariableByteSigned(wayBuffer, wpr.getLabelPosition().latitudeE6 - firstWayStartLat);
+			Serializer.putVariableByteSigned(wayBuffer, wpr.getLabelPosition().longitudeE6 - firstWayStartLon);
 		}
 
 		if (wpr.getWayDataBlocks().size() > 1) {
 			// write the amount of way data blocks
-			wayBuffer.put(Serializer.getVariableByteUnsigned(wpr.getWayDataBlocks().size()));
+			Serializer.putVariableByteUnsigned(wayBuffer, wpr.getWayDataBlocks().size());
 		}
 
 		// write the way data blocks
@@ -840,10 +884,10 @@ public final class MapFileWriter {
 			if (wayDataBlock.getInnerWays() != null && !wayDataBlock.getInnerWays().isEmpty()) {
 				// multi polygon: outer way + number of
 				// inner ways
-				wayBuffer.put(Serializer.getVariableByteUnsigned(1 + wayDataBlock.getInnerWays().size()));
+				Serializer.putVariableByteUnsigned(wayBuffer, 1 + wayDataBlock.getInnerWays().size());
 			} else {
 				// simply a single way (not a multi polygon)
-				wayBuffer.put(Serializer.getVariableByteUnsigned(1));
+				Serializer.putVariableByteUnsigned(wayBuffer, 1);
 			}
 
 			// write block for (outer/simple) way
@@ -851,17 +895,17 @@ public final class MapFileWriter {
 
 			// write blocks for inner ways
 			if (wayDataBlock.getInnerWays() != null && !wayDataBlock.getInnerWays().isEmpty()) {
-				for (List<Integer> innerWayCoordinates : wayDataBlock.getInnerWays()) {
+				for (int[] innerWayCoordinates : wayDataBlock.getInnerWays()) {
 					writeWay(innerWayCoordinates, currentTileLat, currentTileLon, wayBuffer);
 				}
 			}
 		}
 	}
 
-	private static void writeWay(List<Integer> wayNodes, int currentTileLat, int currentTileLon, ByteBuffer buffer) {
+	private static void writeWay(int[] wayNodes, int currentTileLat, int currentTileLon, ByteBuffer buffer) {
 		// write the amount of way nodes to the file
 		// wayBuffer
-		buffer.put(Serializer.getVariableByteUnsigned(wayNodes.size() / 2));
+		Serializer.putVariableByteUnsigned(buffer, wayNodes.length / 2);
 
 		// write the way nodes:
 		// the first node is always stored with four bytes
@@ -870,14 +914,13 @@ public final class MapFileWriter {
 		writeWayNodes(wayNodes, currentTileLat, currentTileLon, buffer);
 	}
 
-	static void writeWayNodes(List<Integer> waynodes, int currentTileLat, int currentTileLon, ByteBuffer buffer) {
-		if (!waynodes.isEmpty() && waynodes.size() % 2 == 0) {
-			Iterator<Integer> waynodeIterator = waynodes.iterator();
-			buffer.put(Serializer.getVariableByteSigned(waynodeIterator.next().intValue() - currentTileLat));
-			buffer.put(Serializer.getVariableByteSigned(waynodeIterator.next().intValue() - currentTileLon));
+	static void writeWayNodes(int[] waynodes, int currentTileLat, int currentTileLon, ByteBuffer buffer) {
+		if (waynodes.length > 0 && waynodes.length % 2 == 0) {
+			Serializer.putVariableByteSigned(buffer, waynodes[0] - currentTileLat);
+			Serializer.putVariableByteSigned(buffer, waynodes[1] - currentTileLon);
 
-			while (waynodeIterator.hasNext()) {
-				buffer.put(Serializer.getVariableByteSigned(waynodeIterator.next().intValue()));
+			for (int i = 2; i < waynodes.length; i++) {
+				Serializer.putVariableByteSigned(buffer, waynodes[i]);
 			}
 		}
 	}
@@ -964,15 +1007,7 @@ public final class MapFileWriter {
 				blocks = DeltaEncoder.encode(blocks, Encoding.DOUBLE_DELTA);
 				break;
 			case AUTO:
-				List<WayDataBlock> blocksDelta = DeltaEncoder.encode(blocks, Encoding.DELTA);
-				List<WayDataBlock> blocksDoubleDelta = DeltaEncoder.encode(blocks, Encoding.DOUBLE_DELTA);
-				int simDelta = DeltaEncoder.simulateSerialization(blocksDelta);
-				int simDoubleDelta = DeltaEncoder.simulateSerialization(blocksDoubleDelta);
-				if (simDelta <= simDoubleDelta) {
-					blocks = blocksDelta;
-				} else {
-					blocks = blocksDoubleDelta;
-				}
+				blocks = DeltaEncoder.encode(blocks, DeltaEncoder.chooseEncoding(blocks));
 				break;
 		}
 
@@ -1068,6 +1103,86 @@ public final class MapFileWriter {
 		return infoByte;
 	}
 
+	/**
+	 * Buffers for processing one tile.
+	 */
+	private static class TileBuffers {
+		final ByteBuffer tileBuffer = ByteBuffer.allocate(TILE_BUFFER_SIZE);
+		final ByteBuffer wayDataBuffer = ByteBuffer.allocate(WAY_DATA_BUFFER_SIZE);
+		final ByteBuffer wayBuffer = ByteBuffer.allocate(WAY_BUFFER_SIZE);
+		final ByteBuffer poiDataBuffer = ByteBuffer.allocate(POI_DATA_BUFFER_SIZE);
+
+		TileBuffers() {
+			super();
+		}
+	}
+
+	/**
+	 * Processes a range of tiles of a sub file in index order.
+	 */
+	private static class TileProcessingCallable implements Callable<byte[][]> {
+
+		private final MapWriterConfiguration configuration;
+		private final TileBasedDataProcessor dataProcessor;
+		private final LoadingCache<TDWay, Geometry> jtsGeometryCache;
+		private final int zoomIntervalIndex;
+		private final TileCoordinate upperLeft;
+		private final int lengthX;
+		private final int start;
+		private final int end;
+
+		/**
+		 * @param configuration
+		 *            the {@link MapWriterConfiguration}
+		 * @param dataProcessor
+		 *            the {@link TileBasedDataProcessor}
+		 * @param jtsGeometryCache
+		 *            the {@link LoadingCache} for {@link Geometry} objects
+		 * @param zoomIntervalIndex
+		 *            the zoom interval of the sub file
+		 * @param upperLeft
+		 *            the upper left tile of the sub file
+		 * @param lengthX
+		 *            the number of tiles in a row of the sub file
+		 * @param start
+		 *            index of the first tile (inclusive)
+		 * @param end
+		 *            index of the last tile (exclusive)
+		 */
+		TileProcessingCallable(MapWriterConfiguration configuration, TileBasedDataProcessor dataProcessor,
+				LoadingCache<TDWay, Geometry> jtsGeometryCache, int zoomIntervalIndex, TileCoordinate upperLeft,
+				int lengthX, int start, int end) {
+			super();
+			this.configuration = configuration;
+			this.dataProcessor = dataProcessor;
+			this.jtsGeometryCache = jtsGeometryCache;
+			this.zoomIntervalIndex = zoomIntervalIndex;
+			this.upperLeft = upperLeft;
+			this.lengthX = lengthX;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public byte[][] call() {
+			TileBuffers buffers = TILE_BUFFERS.get();
+			byte baseZoom = this.dataProcessor.getZoomIntervalConfiguration().getBaseZoom(this.zoomIntervalIndex);
+
+			byte[][] tiles = new byte[this.end - this.start][];
+			for (int i = this.start; i < this.end; i++) {
+				int tileX = this.upperLeft.getX() + i % this.lengthX;
+				int tileY = this.upperLeft.getY() + i / this.lengthX;
+
+				processTile(this.configuration, new TileCoordinate(tileX, tileY, baseZoom), this.dataProcessor,
+						this.jtsGeometryCache, this.zoomIntervalIndex, buffers.tileBuffer, buffers.poiDataBuffer,
+						buffers.wayDataBuffer, buffers.wayBuffer);
+
+				tiles[i - this.start] = Arrays.copyOf(buffers.tileBuffer.array(), buffers.tileBuffer.position());
+			}
+			return tiles;
+		}
+	}
+
 	private static class WayPreprocessingResult {
 
 		final TDWay way;
@@ -1103,6 +1218,9 @@ public final class MapFileWriter {
 
 	private static class JTSGeometryCacheLoader extends CacheLoader<TDWay, Geometry> {
 
+		// cached for ways without a valid geometry, so that it is not created again for every tile
+		static final Geometry INVALID_GEOMETRY = new GeometryFactory().createGeometryCollection(null);
+
 		private final TileBasedDataProcessor datastore;
 
 		JTSGeometryCacheLoader(TileBasedDataProcessor datastore) {
@@ -1111,14 +1229,12 @@ public final class MapFileWriter {
 		}
 
 		@Override
-		public Geometry load(TDWay way) throws Exception {
-			if (way.isInvalid()) {
-				throw new Exception("way is known to be invalid: " + way.getId());
-			}
+		public Geometry load(TDWay way) {
 			List<TDWay> innerWaysOfMultipolygon = this.datastore.getInnerWaysOfMultipolygon(way.getId());
 			Geometry geometry = GeoUtils.toJtsGeometry(way, innerWaysOfMultipolygon);
 			if (geometry == null) {
-				throw new Exception("cannot create geometry for way with id: " + way.getId());
+				LOGGER.fine("cannot create geometry for way with id: " + way.getId());
+				return INVALID_GEOMETRY;
 			}
 			return geometry;
 		}
@@ -1171,11 +1287,13 @@ public final class MapFileWriter {
 			// polygons that represent a border must be clipped as simple ways and
 			// not as polygons
 
-			Geometry originalGeometry;
-			try {
-				originalGeometry = this.jtsGeometryCache.get(this.way);
-			} catch (ExecutionException e) {
-				this.way.setInvalid(true);
+			if (this.way.getShape() != TDWay.MULTI_POLYGON) {
+				// only polygons with holes need JTS for clipping
+				return preprocessCoordinates();
+			}
+
+			Geometry originalGeometry = this.jtsGeometryCache.getUnchecked(this.way);
+			if (originalGeometry == JTSGeometryCacheLoader.INVALID_GEOMETRY) {
 				return null;
 			}
 
@@ -1190,25 +1308,138 @@ public final class MapFileWriter {
 				}
 			}
 
+			Envelope envelope = originalGeometry.getEnvelopeInternal();
+			if (isTooSmall(originalGeometry instanceof Polygon || this.way.isPolygon(), envelope.getWidth(),
+					envelope.getHeight())) {
+				return null;
+			}
+
+			// TODO is this the right place to simplify, or is it better before clipping?
+			if (this.configuration.getSimplification() > 0
+					&& this.tile.getZoomlevel() <= Constants.MAX_SIMPLIFICATION_BASE_ZOOM) {
+				processedGeometry = GeoUtils.simplifyGeometry(this.way, processedGeometry, this.maxZoomInterval,
+						this.configuration.getSimplification());
+				if (processedGeometry == null) {
+					return null;
+				}
+			}
+
+			List<WayDataBlock> blocks = GeoUtils.toWayDataBlockList(processedGeometry);
+			if (blocks == null) {
+				return null;
+			}
+			if (blocks.isEmpty()) {
+				LOGGER.finer("empty list of way data blocks after preprocessing way: " + this.way.getId());
+				return null;
+			}
+			short subtileMask = GeoUtils.computeBitmask(processedGeometry, this.tile,
+					this.configuration.getBboxEnlargement());
+
+			GeoPoint centroidCoordinate = null;
+			if (this.configuration.isLabelPosition() && this.way.isPolygon()
+					&& !GeoUtils.coveredByTile(originalGeometry, this.tile, this.configuration.getBboxEnlargement())) {
+				centroidCoordinate = computeLabelPosition(originalGeometry);
+			}
+
+			return new WayPreprocessingResult(this.way, encode(blocks), centroidCoordinate, subtileMask);
+		}
+
+		/**
+		 * Clips and simplifies the coordinates of a way without holes, lines with the Cohen-Sutherland and polygons
+		 * with the Sutherland-Hodgman algorithm. Unlike JTS, a concave polygon is clipped to a single polygon which
+		 * runs along the tile border.
+		 */
+		private WayPreprocessingResult preprocessCoordinates() {
+			if (this.way.getWayNodeCount() < 2) {
+				LOGGER.fine("way has fewer than 2 nodes: " + this.way.getId());
+				return null;
+			}
+
+			boolean polygon = this.way.isPolygon();
+			// a closed way is rendered as an area unless its tags force it to be a line
+			boolean area = polygon && !this.way.isForcePolygonLine();
+			boolean clipping = polygon ? this.configuration.isPolygonClipping() : this.configuration
+					.isWayClipping();
+
+			int[] coordinates = TileClipping.getCoordinates(this.way);
+			double[] boundingBox = TileClipping.getBoundingBox(coordinates);
+			double[] tileBoundingBox = GeoUtils.tileToBoundingBox(this.tile, this.configuration.getBboxEnlargement());
+			boolean coveredByTile = TileClipping.covers(tileBoundingBox, boundingBox);
+
+			List<int[]> parts;
+			if (!clipping || coveredByTile) {
+				parts = Collections.singletonList(coordinates);
+			} else if (!TileClipping.intersects(tileBoundingBox, boundingBox)) {
+				return null;
+			} else if (area) {
+				int[] clippedPolygon = TileClipping.clipPolygon(coordinates, tileBoundingBox);
+				if (clippedPolygon == null) {
+					return null;
+				}
+				parts = Collections.singletonList(clippedPolygon);
+			} else {
+				parts = TileClipping.clipLine(coordinates, tileBoundingBox);
+				if (parts.isEmpty()) {
+					return null;
+				}
+			}
+
+			if (isTooSmall(polygon, Coordinates.microdegreesToDegrees((int) (boundingBox[3] - boundingBox[1])),
+					Coordinates.microdegreesToDegrees((int) (boundingBox[2] - boundingBox[0])))) {
+				return null;
+			}
+
+			if (this.configuration.getSimplification() > 0
+					&& this.tile.getZoomlevel() <= Constants.MAX_SIMPLIFICATION_BASE_ZOOM) {
+				// a closed line is no longer closed after clipping
+				parts = GeoUtils.simplifyCoordinates(parts, area || polygon && !clipping, this.maxZoomInterval,
+						this.configuration.getSimplification());
+			}
+
+			List<WayDataBlock> blocks = GeoUtils.toWayDataBlockList(parts, area);
+			short subtileMask = GeoUtils.computeBitmask(parts, area, this.tile, this.configuration.getBboxEnlargement());
+
+			GeoPoint centroidCoordinate = null;
+			if (this.configuration.isLabelPosition() && polygon && !coveredByTile) {
+				// the centroid of the unclipped polygon is the same for all tiles, it is computed once by JTS
+				Geometry originalGeometry = this.jtsGeometryCache.getUnchecked(this.way);
+				if (originalGeometry == JTSGeometryCacheLoader.INVALID_GEOMETRY) {
+					return null;
+				}
+				centroidCoordinate = computeLabelPosition(originalGeometry);
+			}
+
+			return new WayPreprocessingResult(this.way, encode(blocks), centroidCoordinate, subtileMask);
+		}
+
+		/**
+		 * @param polygon
+		 *            true, if the way is a polygon
+		 * @param width
+		 *            the width of the bounding box of the unclipped way in degrees
+		 * @param height
+		 *            the height of the bounding box of the unclipped way in degrees
+		 * @return true, if the way is too small to be rendered on the tile
+		 */
+		private boolean isTooSmall(boolean polygon, double width, double height) {
 			int x = this.tile.getX() * Tile.TILE_SIZE + Tile.TILE_SIZE / 2;
 			int y = this.tile.getY() * Tile.TILE_SIZE + Tile.TILE_SIZE / 2;
 			byte z = this.tile.getZoomlevel();
 
-			if (originalGeometry instanceof Polygon || this.way.isPolygon()) {
+			if (polygon) {
 				int min = 3;
 				double lo1 = MercatorProjection.pixelXToLongitude(x, z);
 				double lo2 = MercatorProjection.pixelXToLongitude(x + min, z);
 				double la1 = MercatorProjection.pixelYToLatitude(y, z);
 				double la2 = MercatorProjection.pixelYToLatitude(y + min, z);
 
-				double area = originalGeometry.getEnvelope().getArea();
+				double area = width * height;
 
 				double minArea = Math.abs((lo1 - lo2) * (la1 - la2));
 
 				if (area < minArea) {
-					droppedPoly++;
-					// System.out.println("way " + this.way.getName() + " " + area);
-					return null;
+					droppedPoly.incrementAndGet();
+					return true;
 				}
 			} else if (!this.way.isCoastline()) {
 				int min = 1;
@@ -1217,71 +1448,41 @@ public final class MapFileWriter {
 				double la1 = MercatorProjection.pixelYToLatitude(y, z);
 				double la2 = MercatorProjection.pixelYToLatitude(y + min, z);
 
-				double length = originalGeometry.getEnvelope().getLength();
+				// length of the envelope, its perimeter or the length of a horizontal or vertical line
+				double length = width > 0 && height > 0 ? 2 * (width + height) : Math.max(width, height);
 				if (length < Math.sqrt((lo1 - lo2) * (lo1 - lo2) + (la1 - la2) * (la1 - la2))) {
-					// System.out.println("way " + this.way.getName() + " " + area);
-					droppedWays++;
-					return null;
+					droppedWays.incrementAndGet();
+					return true;
 				}
 			}
-			// TODO is this the right place to simplify, or is it better before clipping?
-			if (this.configuration.getSimplification() > 0
-					&& this.tile.getZoomlevel() <= Constants.MAX_SIMPLIFICATION_BASE_ZOOM) {
-				processedGeometry = GeoUtils.simplifyGeometry(this.way, processedGeometry, this.maxZoomInterval,
-						this.configuration.getSimplification());
-				if (processedGeometry == null) {
-					return null;
-				}
-			}
-
-			List<WayDataBlock> blocks = GeoUtils.toWayDataBlockList(processedGeometry);
-			if (blocks == null) {
-				return null;
-			}
-			if (blocks.isEmpty()) {
-				LOGGER.finer("empty list of way data blocks after preprocessing way: " + this.way.getId());
-				return null;
-			}
-			short subtileMask = GeoUtils.computeBitmask(processedGeometry, this.tile,
-					this.configuration.getBboxEnlargement());
+			return false;
+		}
 
-			// check if the original polygon is completely contained in the current tile
-			// in that case we do not try to compute a label position
-			// this is left to the renderer for more flexibility
+		// check if the original polygon is completely contained in the current tile
+		// in that case we do not try to compute a label position
+		// this is left to the renderer for more flexibility
 
-			// in case the polygon covers multiple tiles, we compute the centroid of the unclipped polygon
-			// if the computed centroid is within the current tile, we add it as label position
-			// this way, we can make sure that a label position is attached only once to a clipped polygon
-			GeoPoint centroidCoordinate = null;
-			if (this.configuration.isLabelPosition() && this.way.isPolygon()
-					&& !GeoUtils.coveredByTile(originalGeometry, this.tile, this.configuration.getBboxEnlargement())) {
-				Point centroidPoint = originalGeometry.getCentroid();
-				if (GeoUtils.coveredByTile(centroidPoint, this.tile, this.configuration.getBboxEnlargement())) {
-					centroidCoordinate = new GeoPoint(centroidPoint.getY(), centroidPoint.getX());
-				}
+		// in case the polygon covers multiple tiles, we compute the centroid of the unclipped polygon
+		// if the computed centroid is within the current tile, we add it as label position
+		// this way, we can make sure that a label position is attached only once to a clipped polygon
+		private GeoPoint computeLabelPosition(Geometry originalGeometry) {
+			Point centroidPoint = originalGeometry.getCentroid();
+			if (GeoUtils.coveredByTile(centroidPoint, this.tile, this.configuration.getBboxEnlargement())) {
+				return new GeoPoint(centroidPoint.getY(), centroidPoint.getX());
 			}
+			return null;
+		}
 
+		private List<WayDataBlock> encode(List<WayDataBlock> blocks) {
 			switch (this.configuration.getEncodingChoice()) {
 				case SINGLE:
-					blocks = DeltaEncoder.encode(blocks, Encoding.DELTA);
-					break;
+					return DeltaEncoder.encode(blocks, Encoding.DELTA);
 				case DOUBLE:
-					blocks = DeltaEncoder.encode(blocks, Encoding.DOUBLE_DELTA);
-					break;
+					return DeltaEncoder.encode(blocks, Encoding.DOUBLE_DELTA);
 				case AUTO:
-					List<WayDataBlock> blocksDelta = DeltaEncoder.encode(blocks, Encoding.DELTA);
-					List<WayDataBlock> blocksDoubleDelta = DeltaEncoder.encode(blocks, Encoding.DOUBLE_DELTA);
-					int simDelta = DeltaEncoder.simulateSerialization(blocksDelta);
-					int simDoubleDelta = DeltaEncoder.simulateSerialization(blocksDoubleDelta);
-					if (simDelta <= simDoubleDelta) {
-						blocks = blocksDelta;
-					} else {
-						blocks = blocksDoubleDelta;
-					}
-					break;
+					return DeltaEncoder.encode(blocks, DeltaEncoder.chooseEncoding(blocks));
 			}
-
-			return new WayPreprocessingResult(this.way, blocks, centroidCoordinate, subtileMask);
+			return blocks;
 		}
 	}
 
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.writer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Maps OSM ids to long values, outside of the Java heap in memory-mapped temporary files.
+ * <p>
+ * In sparse mode the ids and the values are appended to two arrays and looked up by binary search. The arrays are
+ * sorted on the first lookup if the ids were not added in ascending order. In dense mode the values are stored at the
+ * position of their id, without storing the ids. This needs 8 bytes for every id up to the largest id but saves the
+ * ids and the search, which pays off for files that contain most ids, like the planet file.
+ * <p>
+ * Ids must be added by a single thread, lookups are thread-safe once all ids were added.
+ */
+final class MappedIdMap {
+	/**
+	 * Returned by {@link #get(long)} for unknown ids, must not be used as value.
+	 */
+	static final long NOT_FOUND = Long.MIN_VALUE;
+
+	// entries per mapped chunk, 8MB
+	private static final int CHUNK_SHIFT = 20;
+	private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private final boolean dense;
+
+	// sorted ids, sparse mode only
+	private final MappedLongArray ids;
+	private final MappedLongArray values;
+
+	private long size;
+	private long lastId = Long.MIN_VALUE;
+	private volatile boolean sorted = true;
+
+	/**
+	 * @param prefix
+	 *            prefix of the temporary files
+	 * @param dense
+	 *            true, if the values should be stored at the position of their id
+	 */
+	MappedIdMap(String prefix, boolean dense) {
+		this.dense = dense;
+		this.ids = dense ? null : new MappedLongArray(prefix + "Ids");
+		this.values = new MappedLongArray(prefix + "Values");
+	}
+
+	/**
+	 * @param id
+	 *            the OSM id, not negative in dense mode
+	 * @param value
+	 *            the value, not {@link #NOT_FOUND}
+	 */
+	void put(long id, long value) {
+		if (this.dense) {
+			if (id < 0) {
+				throw new IllegalArgumentException("dense id map does not support negative ids: " + id);
+			}
+			// 0 is a valid value, store the value xor NOT_FOUND so
+			// that ids without value read as NOT_FOUND
+			this.values.set(id, value ^ NOT_FOUND);
+		} else {
+			if (id <= this.lastId) {
+				this.sorted = false;
+			}
+			this.ids.set(this.size, id);
+			this.values.set(this.size, value);
+		}
+		this.lastId = Math.max(this.lastId, id);
+		this.size++;
+	}
+
+	/**
+	 * @param id
+	 *            the OSM id
+	 * @return the value or {@link #NOT_FOUND}
+	 */
+	long get(long id) {
+		if (this.dense) {
+			if (id < 0 || id > this.lastId) {
+				return NOT_FOUND;
+			}
+			return this.values.get(id) ^ NOT_FOUND;
+		}
+
+		if (!this.sorted) {
+			sort();
+		}
+
+		long low = 0;
+		long high = this.size - 1;
+		while (low <= high) {
+			long mid = (low + high) >>> 1;
+			long midId = this.ids.get(mid);
+			if (midId < id) {
+				low = mid + 1;
+			} else if (midId > id) {
+				high = mid - 1;
+			} else {
+				return this.values.get(mid);
+			}
+		}
+		return NOT_FOUND;
+	}
+
+	/**
+	 * @return the number of added ids
+	 */
+	long size() {
+		return this.size;
+	}
+
+	/**
+	 * Unmaps and deletes the temporary files.
+	 */
+	void release() {
+		if (this.ids != null) {
+			this.ids.release();
+		}
+		this.values.release();
+	}
+
+	// heap sort of ids and values, in place
+	private synchronized void sort() {
+		if (this.sorted) {
+			return;
+		}
+		long n = this.size;
+		for (long i = n / 2 - 1; i >= 0; i--) {
+			siftDown(i, n);
+		}
+		for (long end = n - 1; end > 0; end--) {
+			swap(0, end);
+			siftDown(0, end);
+		}
+		this.sorted = true;
+	}
+
+	private void siftDown(long start, long end) {
+		long root = start;
+		long child;
+		while ((child = 2 * root + 1) < end) {
+			if (child + 1 < end && this.ids.get(child) < this.ids.get(child + 1)) {
+				child++;
+			}
+			if (this.ids.get(root) >= this.ids.get(child)) {
+				return;
+			}
+			swap(root, child);
+			root = child;
+		}
+	}
+
+	private void swap(long a, long b) {
+		long id = this.ids.get(a);
+		this.ids.set(a, this.ids.get(b));
+		this.ids.set(b, id);
+
+		long value = this.values.get(a);
+		this.values.set(a, this.values.get(b));
+		this.values.set(b, value);
+	}
+
+	/**
+	 * An array of longs in a memory-mapped temporary file, mapped in chunks as it grows.
+	 */
+	private static final class MappedLongArray {
+		private final File file;
+		private final RandomAccessFile randomAccessFile;
+		private LongBuffer[] chunks = new LongBuffer[16];
+
+		MappedLongArray(String prefix) {
+			try {
+				this.file = File.createTempFile(prefix, null);
+				this.file.deleteOnExit();
+				this.randomAccessFile = new RandomAccessFile(this.file, "rw");
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		long get(long index) {
+			int chunk = (int) (index >>> CHUNK_SHIFT);
+			if (chunk >= this.chunks.length || this.chunks[chunk] == null) {
+				return 0;
+			}
+			return this.chunks[chunk].get((int) index & CHUNK_MASK);
+		}
+
+		void set(long index, long value) {
+			int chunk = (int) (index >>> CHUNK_SHIFT);
+			if (chunk >= this.chunks.length) {
+				this.chunks = Arrays.copyOf(this.chunks, Math.max(chunk + 1, this.chunks.length * 2));
+			}
+			if (this.chunks[chunk] == null) {
+				this.chunks[chunk] = map(chunk);
+			}
+			this.chunks[chunk].put((int) index & CHUNK_MASK, value);
+		}
+
+		private LongBuffer map(int chunk) {
+			try {
+				return this.randomAccessFile.getChannel()
+						.map(FileChannel.MapMode.READ_WRITE, (long) chunk * CHUNK_SIZE * 8, CHUNK_SIZE * 8)
+						.order(ByteOrder.nativeOrder()).asLongBuffer();
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		void release() {
+			this.chunks = new LongBuffer[0];
+			try {
+				this.randomAccessFile.close();
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			if (!this.file.delete()) {
+				this.file.deleteOnExit();
+			}
+		}
+	}
+}
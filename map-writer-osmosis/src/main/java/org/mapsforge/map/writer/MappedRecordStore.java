@@ -0,0 +1,297 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.writer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Stores byte records by OSM id in a memory-mapped temporary file.
+ * <p>
+ * Records are appended to segments of 64MB with a length prefix, a record never spans two segments. The offsets of
+ * the records are kept in a sparse {@link MappedIdMap}. {@link #iterator()} reads the records sequentially in the
+ * order they were added.
+ * <p>
+ * The static methods read and write the variable length integers and strings the records are made of.
+ * <p>
+ * Records must be added by a single thread, reading is thread-safe once all records were added.
+ */
+final class MappedRecordStore implements Iterable<ByteBuffer> {
+	private static final Charset UTF8_CHARSET = Charset.forName("UTF-8");
+
+	private static final int SEGMENT_SHIFT = 26;
+	private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+	private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+	// length prefix of a record, 0 marks the end of a segment
+	private static final int LENGTH_BYTES = 4;
+
+	private final MappedIdMap offsets;
+	private final File file;
+	private final RandomAccessFile randomAccessFile;
+	private ByteBuffer[] segments = new ByteBuffer[16];
+
+	// offset of the next record
+	private long end;
+
+	/**
+	 * @param prefix
+	 *            prefix of the temporary files
+	 */
+	MappedRecordStore(String prefix) {
+		this.offsets = new MappedIdMap(prefix, false);
+		try {
+			this.file = File.createTempFile(prefix + "Records", null);
+			this.file.deleteOnExit();
+			this.randomAccessFile = new RandomAccessFile(this.file, "rw");
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Adds a record.
+	 *
+	 * @param id
+	 *            the OSM id
+	 * @param record
+	 *            the record, from 0 to the position of the buffer
+	 */
+	void add(long id, ByteBuffer record) {
+		int length = record.position();
+		if (length == 0 || length + LENGTH_BYTES > SEGMENT_SIZE) {
+			throw new IllegalArgumentException("invalid record length " + length + " for id " + id);
+		}
+
+		int segment = (int) (this.end >>> SEGMENT_SHIFT);
+		int position = (int) this.end & SEGMENT_MASK;
+		if (position + LENGTH_BYTES + length > SEGMENT_SIZE) {
+			// the rest of the segment stays 0
+			segment++;
+			position = 0;
+			this.end = (long) segment << SEGMENT_SHIFT;
+		}
+
+		ByteBuffer buffer = getSegment(segment).duplicate();
+		buffer.putInt(position, length);
+		buffer.position(position + LENGTH_BYTES);
+		buffer.put(record.array(), 0, length);
+
+		this.offsets.put(id, this.end);
+		this.end += LENGTH_BYTES + length;
+	}
+
+	/**
+	 * @param id
+	 *            the OSM id
+	 * @return the record, from the position to the limit of the buffer, or null if there is no record with this id
+	 */
+	ByteBuffer get(long id) {
+		long offset = this.offsets.get(id);
+		if (offset == MappedIdMap.NOT_FOUND) {
+			return null;
+		}
+		return read(offset);
+	}
+
+	/**
+	 * @return the records in the order they were added
+	 */
+	@Override
+	public Iterator<ByteBuffer> iterator() {
+		return new Iterator<ByteBuffer>() {
+			private long offset;
+
+			@Override
+			public boolean hasNext() {
+				if (this.offset >= MappedRecordStore.this.end) {
+					return false;
+				}
+				int position = (int) this.offset & SEGMENT_MASK;
+				if (position + LENGTH_BYTES > SEGMENT_SIZE
+						|| MappedRecordStore.this.segments[(int) (this.offset >>> SEGMENT_SHIFT)].getInt(position) == 0) {
+					// end of segment
+					this.offset = ((this.offset >>> SEGMENT_SHIFT) + 1) << SEGMENT_SHIFT;
+				}
+				return this.offset < MappedRecordStore.this.end;
+			}
+
+			@Override
+			public ByteBuffer next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				ByteBuffer record = read(this.offset);
+				this.offset += LENGTH_BYTES + record.remaining();
+				return record;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Unmaps and deletes the temporary files.
+	 */
+	void release() {
+		this.offsets.release();
+		this.segments = new ByteBuffer[0];
+		try {
+			this.randomAccessFile.close();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		if (!this.file.delete()) {
+			this.file.deleteOnExit();
+		}
+	}
+
+	private ByteBuffer read(long offset) {
+		ByteBuffer buffer = this.segments[(int) (offset >>> SEGMENT_SHIFT)].duplicate();
+		int position = (int) offset & SEGMENT_MASK;
+		int length = buffer.getInt(position);
+		buffer.limit(position + LENGTH_BYTES + length);
+		buffer.position(position + LENGTH_BYTES);
+		return buffer;
+	}
+
+	private ByteBuffer getSegment(int segment) {
+		if (segment >= this.segments.length) {
+			this.segments = Arrays.copyOf(this.segments, Math.max(segment + 1, this.segments.length * 2));
+		}
+		if (this.segments[segment] == null) {
+			try {
+				this.segments[segment] = this.randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE,
+						(long) segment << SEGMENT_SHIFT, SEGMENT_SIZE);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		return this.segments[segment];
+	}
+
+	/**
+	 * Writes a signed variable length integer, zigzag encoded with 7 bits per byte.
+	 *
+	 * @param buffer
+	 *            the buffer
+	 * @param value
+	 *            the value
+	 */
+	static void putVarLong(ByteBuffer buffer, long value) {
+		long v = (value << 1) ^ (value >> 63);
+		while ((v & ~0x7fL) != 0) {
+			buffer.put((byte) ((v & 0x7f) | 0x80));
+			v >>>= 7;
+		}
+		buffer.put((byte) v);
+	}
+
+	/**
+	 * @param buffer
+	 *            the buffer
+	 * @return a value written by {@link #putVarLong(ByteBuffer, long)}
+	 */
+	static long getVarLong(ByteBuffer buffer) {
+		long v = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = buffer.get();
+			v |= (long) (b & 0x7f) << shift;
+			shift += 7;
+		} while (b < 0);
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	/**
+	 * Writes a string that may be null.
+	 *
+	 * @param buffer
+	 *            the buffer
+	 * @param value
+	 *            the string or null
+	 */
+	static void putString(ByteBuffer buffer, String value) {
+		if (value == null) {
+			putVarLong(buffer, 0);
+			return;
+		}
+		byte[] bytes = value.getBytes(UTF8_CHARSET);
+		putVarLong(buffer, bytes.length + 1);
+		buffer.put(bytes);
+	}
+
+	/**
+	 * @param buffer
+	 *            the buffer
+	 * @return a string written by {@link #putString(ByteBuffer, String)}
+	 */
+	static String getString(ByteBuffer buffer) {
+		int length = (int) getVarLong(buffer) - 1;
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, UTF8_CHARSET);
+	}
+
+	/**
+	 * Writes an array of shorts that may be null.
+	 *
+	 * @param buffer
+	 *            the buffer
+	 * @param values
+	 *            the values or null
+	 */
+	static void putShorts(ByteBuffer buffer, short[] values) {
+		if (values == null) {
+			putVarLong(buffer, 0);
+			return;
+		}
+		putVarLong(buffer, values.length + 1);
+		for (short value : values) {
+			putVarLong(buffer, value);
+		}
+	}
+
+	/**
+	 * @param buffer
+	 *            the buffer
+	 * @return values written by {@link #putShorts(ByteBuffer, short[])}
+	 */
+	static short[] getShorts(ByteBuffer buffer) {
+		int length = (int) getVarLong(buffer) - 1;
+		if (length < 0) {
+			return null;
+		}
+		short[] values = new short[length];
+		for (int i = 0; i < length; i++) {
+			values[i] = (short) getVarLong(buffer);
+		}
+		return values;
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.writer;
+
+/**
+ * Stores the coordinates of nodes in microdegrees by their OSM id, as latitude and longitude packed into a long in
+ * a {@link MappedIdMap}.
+ */
+final class NodeCoordinateStore {
+	/**
+	 * Returned by {@link #get(long)} for unknown ids.
+	 */
+	static final long NOT_FOUND = MappedIdMap.NOT_FOUND;
+
+	private final MappedIdMap map;
+
+	/**
+	 * @param dense
+	 *            true, if the coordinates should be stored at the position of their id
+	 */
+	NodeCoordinateStore(boolean dense) {
+		this.map = new MappedIdMap("nodeCoordinates", dense);
+	}
+
+	/**
+	 * @param coordinates
+	 *            latitude and longitude as returned by {@link #get(long)}
+	 * @return the latitude in microdegrees
+	 */
+	static int latitude(long coordinates) {
+		return (int) (coordinates >> 32);
+	}
+
+	/**
+	 * @param coordinates
+	 *            latitude and longitude as returned by {@link #get(long)}
+	 * @return the longitude in microdegrees
+	 */
+	static int longitude(long coordinates) {
+		return (int) coordinates;
+	}
+
+	/**
+	 * Adds the coordinates of a node.
+	 *
+	 * @param id
+	 *            the OSM id, not negative in dense mode
+	 * @param latitude
+	 *            the latitude in microdegrees
+	 * @param longitude
+	 *            the longitude in microdegrees
+	 */
+	void add(long id, int latitude, int longitude) {
+		// NOT_FOUND has an invalid latitude
+		this.map.put(id, ((long) latitude << 32) | (longitude & 0xffffffffL));
+	}
+
+	/**
+	 * @param id
+	 *            the OSM id
+	 * @return latitude and longitude, to be unpacked with {@link #latitude(long)} and {@link #longitude(long)}, or
+	 *         {@link #NOT_FOUND}
+	 */
+	long get(long id) {
+		return this.map.get(id);
+	}
+
+	/**
+	 * @return the number of stored nodes
+	 */
+	long size() {
+		return this.map.size();
+	}
+
+	/**
+	 * Unmaps and deletes the temporary files.
+	 */
+	void release() {
+		this.map.release();
+	}
+}
@@ -26,6 +26,7 @@ import java.util.List;
 import java.util.Set;
 
 import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.Coordinates;
 import org.mapsforge.map.writer.model.MapWriterConfiguration;
 import org.mapsforge.map.writer.model.TDNode;
 import org.mapsforge.map.writer.model.TDRelation;
@@ -40,12 +41,14 @@ import org.openstreetmap.osmosis.core.domain.v0_6.Relation;
 import org.openstreetmap.osmosis.core.domain.v0_6.Way;
 
 /**
- * A TileBasedDataStore that uses the RAM as storage device for temporary data structures.
+ * A TileBasedDataStore that uses the RAM as storage device for temporary data structures. The coordinates of nodes
+ * are kept in a {@link NodeCoordinateStore}, only POIs are kept as objects.
  * 
  * @author bross
  */
 public final class RAMTileBasedDataProcessor extends BaseTileBasedDataProcessor {
-	private final TLongObjectHashMap<TDNode> nodes;
+	private final NodeCoordinateStore nodeCoordinates;
+	private final TLongObjectHashMap<TDNode> pois;
 	final TLongObjectHashMap<TDWay> ways;
 	private final TLongObjectHashMap<TDRelation> multipolygons;
 
@@ -53,7 +56,8 @@ public final class RAMTileBasedDataProcessor extends BaseTileBasedDataProcessor
 
 	private RAMTileBasedDataProcessor(MapWriterConfiguration configuration) {
 		super(configuration);
-		this.nodes = new TLongObjectHashMap<TDNode>();
+		this.nodeCoordinates = new NodeCoordinateStore(configuration.isDenseNodeStore());
+		this.pois = new TLongObjectHashMap<TDNode>();
 		this.ways = new TLongObjectHashMap<TDWay>();
 		this.multipolygons = new TLongObjectHashMap<TDRelation>();
 		this.tileData = new RAMTileData[this.zoomIntervalConfiguration.getNumberOfZoomIntervals()][][];
@@ -77,7 +81,17 @@ public final class RAMTileBasedDataProcessor extends BaseTileBasedDataProcessor
 
 	@Override
 	public TDNode getNode(long id) {
-		return this.nodes.get(id);
+		TDNode poi = this.pois.get(id);
+		if (poi != null) {
+			return poi;
+		}
+
+		long coordinates = this.nodeCoordinates.get(id);
+		if (coordinates == NodeCoordinateStore.NOT_FOUND) {
+			return null;
+		}
+		return new TDNode(id, NodeCoordinateStore.latitude(coordinates), NodeCoordinateStore.longitude(coordinates),
+				(short) 0, (byte) 0, null, null);
 	}
 
 	@Override
@@ -97,9 +111,18 @@ public final class RAMTileBasedDataProcessor extends BaseTileBasedDataProcessor
 
 	@Override
 	public void addNode(Node node) {
+		this.nodeCoordinates.add(node.getId(), Coordinates.degreesToMicrodegrees(node.getLatitude()),
+				Coordinates.degreesToMicrodegrees(node.getLongitude()));
+
+		// only nodes with tags can be POIs
+		if (node.getTags().isEmpty()) {
+			return;
+		}
 		TDNode tdNode = TDNode.fromNode(node, this.preferredLanguage);
-		this.nodes.put(tdNode.getId(), tdNode);
-		addPOI(tdNode);
+		if (tdNode.isPOI()) {
+			this.pois.put(tdNode.getId(), tdNode);
+			addPOI(tdNode);
+		}
 	}
 
 	@Override
@@ -198,7 +221,7 @@ public final class RAMTileBasedDataProcessor extends BaseTileBasedDataProcessor
 
 	@Override
 	public void release() {
-		// nothing to do here
+		this.nodeCoordinates.release();
 	}
 
 	@Override
@@ -14,6 +14,7 @@
  */
 package org.mapsforge.map.writer;
 
+import java.nio.ByteBuffer;
 import java.security.InvalidParameterException;
 
 /**
@@ -162,6 +163,70 @@ public final class Serializer {
 		}
 	}
 
+	/**
+	 * Writes a signed int as variable length bytes, in the format of {@link #getVariableByteSigned(int)}, without
+	 * creating an intermediate array.
+	 * 
+	 * @param buffer
+	 *            the buffer to write to.
+	 * @param value
+	 *            the int value.
+	 */
+	public static void putVariableByteSigned(ByteBuffer buffer, int value) {
+		long absValue = Math.abs((long) value);
+		while (absValue >= 64) { // 2^6
+			buffer.put((byte) (absValue | 0x80));
+			absValue >>= 7;
+		}
+		if (value < 0) {
+			buffer.put((byte) (absValue | 0x40));
+		} else {
+			buffer.put((byte) absValue);
+		}
+	}
+
+	/**
+	 * Writes an unsigned int as variable length bytes, in the format of {@link #getVariableByteUnsigned(int)}, without
+	 * creating an intermediate array.
+	 * 
+	 * @param buffer
+	 *            the buffer to write to.
+	 * @param value
+	 *            the int value, must not be negative.
+	 */
+	public static void putVariableByteUnsigned(ByteBuffer buffer, int value) {
+		if (value < 0) {
+			throw new InvalidParameterException("negative value not allowed: " + value);
+		}
+		int remaining = value;
+		while (remaining >= 128) { // 2^7
+			buffer.put((byte) (remaining | 0x80));
+			remaining >>>= 7;
+		}
+		buffer.put((byte) remaining);
+	}
+
+	/**
+	 * Computes the length of a signed int as variable length bytes.
+	 * 
+	 * @param value
+	 *            the int value.
+	 * @return the number of bytes written by {@link #putVariableByteSigned(ByteBuffer, int)}, 1-5.
+	 */
+	public static int getVariableByteSignedLength(int value) {
+		long absValue = Math.abs((long) value);
+		if (absValue < 64) { // 2^6
+			return 1;
+		} else if (absValue < 8192) { // 2^13
+			return 2;
+		} else if (absValue < 1048576) { // 2^20
+			return 3;
+		} else if (absValue < 134217728) { // 2^27
+			return 4;
+		}
+		return 5;
+	}
+
 	/**
 	 * Empty private constructor to prevent object creation.
 	 */
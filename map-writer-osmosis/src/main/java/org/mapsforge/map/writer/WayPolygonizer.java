@@ -24,7 +24,6 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
-import org.mapsforge.map.writer.model.TDNode;
 import org.mapsforge.map.writer.model.TDWay;
 import org.mapsforge.map.writer.util.JTSUtils;
 
@@ -64,7 +63,7 @@ class WayPolygonizer {
 
 			// first extract all way that are closed polygons in their own right
 			if (isClosedPolygon(tdWay)) {
-				if (tdWay.getWayNodes().length < MIN_NODES_POLYGON) {
+				if (tdWay.getWayNodeCount() < MIN_NODES_POLYGON) {
 					this.illegal.add(tdWay);
 				} else {
 					Deque<TDWay> cluster = new ArrayDeque<TDWay>();
@@ -112,14 +111,14 @@ class WayPolygonizer {
 				// last way in current polygon
 				TDWay c1End = currentPolygonSegments.getLast();
 
-				long startFirst = c1Start.isReversedInRelation() ? c1Start.getWayNodes()[c1Start.getWayNodes().length - 1]
-						.getId() : c1Start.getWayNodes()[0].getId();
+				long startFirst = c1Start.isReversedInRelation() ? c1Start.getWayNodeId(c1Start.getWayNodeCount() - 1)
+						: c1Start.getWayNodeId(0);
 
-				long endLast = c1End.isReversedInRelation() ? c1End.getWayNodes()[0].getId()
-						: c1End.getWayNodes()[c1End.getWayNodes().length - 1].getId();
+				long endLast = c1End.isReversedInRelation() ? c1End.getWayNodeId(0) : c1End.getWayNodeId(c1End
+						.getWayNodeCount() - 1);
 
-				long currentFirst = current.getWayNodes()[0].getId();
-				long currentLast = current.getWayNodes()[current.getWayNodes().length - 1].getId();
+				long currentFirst = current.getWayNodeId(0);
+				long currentLast = current.getWayNodeId(current.getWayNodeCount() - 1);
 
 				// current way end connects to the start of the current polygon (correct direction)
 				if (startFirst == currentLast) {
@@ -258,18 +257,17 @@ class WayPolygonizer {
 		TDWay c1Start = currentPolygonSegments.getFirst();
 		TDWay c1End = currentPolygonSegments.getLast();
 
-		long startFirst = c1Start.isReversedInRelation() ? c1Start.getWayNodes()[c1Start.getWayNodes().length - 1]
-				.getId() : c1Start.getWayNodes()[0].getId();
+		long startFirst = c1Start.isReversedInRelation() ? c1Start.getWayNodeId(c1Start.getWayNodeCount() - 1)
+				: c1Start.getWayNodeId(0);
 
-		long endLast = c1End.isReversedInRelation() ? c1End.getWayNodes()[0].getId() : c1End.getWayNodes()[c1End
-				.getWayNodes().length - 1].getId();
+		long endLast = c1End.isReversedInRelation() ? c1End.getWayNodeId(0) : c1End.getWayNodeId(c1End
+				.getWayNodeCount() - 1);
 
 		return startFirst == endLast;
 	}
 
 	private static boolean isClosedPolygon(TDWay way) {
-		TDNode[] waynodes = way.getWayNodes();
-		return waynodes[0].getId() == waynodes[waynodes.length - 1].getId();
+		return way.getWayNodeId(0) == way.getWayNodeId(way.getWayNodeCount() - 1);
 	}
 
 	private static Coordinate[] toCoordinates(Collection<TDWay> linestrings) {
@@ -17,7 +17,7 @@ package org.mapsforge.map.writer.coastlinealgorithm;
 /**
  * Implementation of the Sutherland-Hodgman algorithm for clipping polygons.
  */
-final class SutherlandHodgmanClipping {
+public final class SutherlandHodgmanClipping {
 	private static float[] clipPolylineToEdge(float[] polyline, int[] edge) {
 		if (polyline == null) {
 			return null;
@@ -92,6 +92,99 @@ final class SutherlandHodgmanClipping {
 		throw new IllegalArgumentException();
 	}
 
+	private static int clipPolygonToEdge(double[] polygon, int length, double[] clippedPolygon, int edge,
+			double edgeValue) {
+		int clippedPolygonEntries = 0;
+
+		// the polygon is implicitly closed, start with the edge from the last to the first vertex
+		double x1 = polygon[length - 2];
+		double y1 = polygon[length - 1];
+		boolean isStartPointInside = isInside(x1, y1, edge, edgeValue);
+
+		for (int i = 0; i < length; i += 2) {
+			double x2 = polygon[i];
+			double y2 = polygon[i + 1];
+			boolean isEndPointInside = isInside(x2, y2, edge, edgeValue);
+
+			if (isStartPointInside != isEndPointInside) {
+				if (edge % 2 == 0) {
+					// vertical edge
+					clippedPolygon[clippedPolygonEntries++] = edgeValue;
+					clippedPolygon[clippedPolygonEntries++] = y1 + (edgeValue - x1) * ((y2 - y1) / (x2 - x1));
+				} else {
+					// horizontal edge
+					clippedPolygon[clippedPolygonEntries++] = x1 + (edgeValue - y1) * ((x2 - x1) / (y2 - y1));
+					clippedPolygon[clippedPolygonEntries++] = edgeValue;
+				}
+			}
+			if (isEndPointInside) {
+				clippedPolygon[clippedPolygonEntries++] = x2;
+				clippedPolygon[clippedPolygonEntries++] = y2;
+			}
+
+			x1 = x2;
+			y1 = y2;
+			isStartPointInside = isEndPointInside;
+		}
+
+		return clippedPolygonEntries;
+	}
+
+	private static boolean isInside(double x, double y, int edge, double edgeValue) {
+		switch (edge) {
+			case 0:
+				// left edge
+				return x >= edgeValue;
+			case 1:
+				// bottom edge
+				return y >= edgeValue;
+			case 2:
+				// right edge
+				return x <= edgeValue;
+			case 3:
+				// top edge
+				return y <= edgeValue;
+		}
+		throw new IllegalArgumentException();
+	}
+
+	/**
+	 * Clips a polygon to a rectangular clipping region in double precision.
+	 * <p>
+	 * Parts of the polygon which lie outside of the rectangle are replaced by segments of the rectangle border, a
+	 * concave polygon is therefore not split into several polygons.
+	 * 
+	 * @param polygon
+	 *            coordinates of the polygon, the first vertex may be repeated at the end
+	 * @param rectangle
+	 *            minimum x, minimum y, maximum x and maximum y of the rectangle
+	 * @return the coordinates of the clipped polygon without a repeated first vertex or null in case of no
+	 *         intersection
+	 */
+	public static double[] clipPolygon(double[] polygon, double[] rectangle) {
+		int length = polygon.length;
+		if (length > 2 && polygon[0] == polygon[length - 2] && polygon[1] == polygon[length - 1]) {
+			length -= 2;
+		}
+
+		// every edge at most doubles the number of vertices
+		double[] clippedPolygon = polygon;
+		for (int edge = 0; edge < 4 && length > 0; edge++) {
+			double[] result = new double[length * 2];
+			length = clipPolygonToEdge(clippedPolygon, length, result, edge, rectangle[edge]);
+			clippedPolygon = result;
+		}
+
+		// at least three vertices
+		if (length < 6) {
+			return null;
+		}
+
+		double[] retVal = new double[length];
+		System.arraycopy(clippedPolygon, 0, retVal, 0, length);
+		return retVal;
+	}
+
 	/**
 	 * Clips a polyline to a rectangular clipping region.
 	 * 
@@ -31,6 +31,7 @@ public class MapWriterConfiguration {
 	private File outputFile;
 	private OSMTagMapping tagMapping;
 	private String dataProcessorType;
+	private boolean denseNodeStore;
 
 	private BoundingBox bboxConfiguration;
 	private ZoomIntervalConfiguration zoomIntervalConfiguration;
@@ -93,6 +94,22 @@ public class MapWriterConfiguration {
 		this.dataProcessorType = dataProcessorType;
 	}
 
+	/**
+	 * @return true, if the coordinates of nodes are stored at the position of their id instead of a sorted list of
+	 *         ids, which only pays off for files with nodes of most ids, like the planet file
+	 */
+	public boolean isDenseNodeStore() {
+		return this.denseNodeStore;
+	}
+
+	/**
+	 * @param denseNodeStore
+	 *            the denseNodeStore to set
+	 */
+	public void setDenseNodeStore(boolean denseNodeStore) {
+		this.denseNodeStore = denseNodeStore;
+	}
+
 	/**
 	 * @return the bboxConfiguration
 	 */
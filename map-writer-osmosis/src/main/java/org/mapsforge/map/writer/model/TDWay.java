@@ -55,9 +55,11 @@ public class TDWay {
 	private final String houseNumber;
 	private short[] tags; // NOPMD by bross on 25.12.11 13:04
 	private byte shape;
-	private final TDNode[] wayNodes;
+	// ids and coordinates of the way nodes, TDNode objects are only
+	// created on request to save memory
+	private final long[] wayNodeIds;
+	private final int[] wayNodeCoordinates;
 	private boolean reversedInRelation;
-	private boolean invalid;
 
 	/**
 	 * Creates a new TDWay from an osmosis way entity using the given NodeResolver.
@@ -82,14 +84,20 @@ public class TDWay {
 
 			boolean validWay = true;
 			// retrieve way nodes from data store
-			TDNode[] waynodes = new TDNode[way.getWayNodes().size()];
+			int n = way.getWayNodes().size();
+			long[] ids = new long[n];
+			int[] coordinates = new int[n * 2];
 			int i = 0;
 			for (WayNode waynode : way.getWayNodes()) {
 				// TODO adjust interface to support a method getWayNodes()
-				waynodes[i] = resolver.getNode(waynode.getNodeId());
-				if (waynodes[i] == null) {
+				TDNode node = resolver.getNode(waynode.getNodeId());
+				if (node == null) {
 					validWay = false;
 					LOGGER.finer("unknown way node: " + waynode.getNodeId() + " in way " + way.getId());
+				} else {
+					ids[i] = node.getId();
+					coordinates[i * 2] = node.getLatitude();
+					coordinates[i * 2 + 1] = node.getLongitude();
 				}
 				i++;
 			}
@@ -100,8 +108,8 @@ public class TDWay {
 				// mark the way as polygon if the first and the last way node are the same
 				// and if the way has at least 4 way nodes
 				byte shape = LINE;
-				if (waynodes[0].getId() == waynodes[waynodes.length - 1].getId()) {
-					if (waynodes.length >= GeoUtils.MIN_NODES_POLYGON) {
+				if (ids[0] == ids[n - 1]) {
+					if (n >= GeoUtils.MIN_NODES_POLYGON) {
 						shape = SIMPLE_POLYGON;
 					} else {
 						LOGGER.finer("Found closed polygon with fewer than 4 way nodes. Way-id: " + way.getId());
@@ -112,7 +120,7 @@ public class TDWay {
 				java.util.Arrays.sort(knownWayTags);
 
 				return new TDWay(way.getId(), ster.getLayer(), ster.getName(), ster.getHousenumber(), ster.getRef(),
-						knownWayTags, shape, waynodes);
+						knownWayTags, shape, ids, coordinates);
 			}
 		}
 
@@ -141,7 +149,8 @@ public class TDWay {
 		this.name = name;
 		this.houseNumber = houseNumber;
 		this.ref = ref;
-		this.wayNodes = wayNodes;
+		this.wayNodeIds = toIds(wayNodes);
+		this.wayNodeCoordinates = toCoordinates(wayNodes);
 	}
 
 	/**
@@ -173,7 +182,66 @@ public class TDWay {
 		this.ref = ref;
 		this.tags = tags;
 		this.shape = shape;
-		this.wayNodes = wayNodes;
+		this.wayNodeIds = toIds(wayNodes);
+		this.wayNodeCoordinates = toCoordinates(wayNodes);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param id
+	 *            the id
+	 * @param layer
+	 *            the layer
+	 * @param name
+	 *            the name if existent
+	 * @param houseNumber
+	 *            the house number if existent
+	 * @param ref
+	 *            the ref if existent
+	 * @param tags
+	 *            the tags
+	 * @param shape
+	 *            the shape
+	 * @param wayNodeIds
+	 *            the ids of the way nodes
+	 * @param wayNodeCoordinates
+	 *            latitude and longitude of each way node in microdegrees
+	 */
+	public TDWay(long id, byte layer, String name, String houseNumber, String ref, short[] tags, byte shape,
+			long[] wayNodeIds, int[] wayNodeCoordinates) {
+		this.id = id;
+		this.layer = layer;
+		this.name = name;
+		this.houseNumber = houseNumber;
+		this.ref = ref;
+		this.tags = tags;
+		this.shape = shape;
+		this.wayNodeIds = wayNodeIds;
+		this.wayNodeCoordinates = wayNodeCoordinates;
+	}
+
+	private static long[] toIds(TDNode[] wayNodes) {
+		if (wayNodes == null) {
+			return null;
+		}
+		long[] ids = new long[wayNodes.length];
+		for (int i = 0; i < wayNodes.length; i++) {
+			ids[i] = wayNodes[i].getId();
+		}
+		return ids;
+	}
+
+	private static int[] toCoordinates(TDNode[] wayNodes) {
+		if (wayNodes == null) {
+			return null;
+		}
+		int[] coordinates = new int[wayNodes.length * 2];
+		for (int i = 0; i < wayNodes.length; i++) {
+			coordinates[i * 2] = wayNodes[i].getLatitude();
+			coordinates[i * 2 + 1] = wayNodes[i].getLongitude();
+		}
+		return coordinates;
 	}
 
 	/**
@@ -312,8 +380,8 @@ public class TDWay {
 	 * @return true, if the way has at least 4 coordinates and the first and last coordinate are equal
 	 */
 	public boolean isPolygon() {
-		return this.wayNodes != null && this.wayNodes.length >= GeoUtils.MIN_NODES_POLYGON
-				&& this.wayNodes[0].getId() == this.wayNodes[this.wayNodes.length - 1].getId();
+		return this.wayNodeIds != null && this.wayNodeIds.length >= GeoUtils.MIN_NODES_POLYGON
+				&& this.wayNodeIds[0] == this.wayNodeIds[this.wayNodeIds.length - 1];
 	}
 
 	/**
@@ -335,10 +403,55 @@ public class TDWay {
 	}
 
 	/**
+	 * Creates the way nodes, which only have an id and coordinates. Use {@link #getWayNodeCount()} and the methods
+	 * for single way nodes to avoid creating the objects.
+	 * 
 	 * @return the way nodes
 	 */
 	public TDNode[] getWayNodes() {
-		return this.wayNodes; // NOPMD by bross on 25.12.11 13:07
+		if (this.wayNodeIds == null) {
+			return null;
+		}
+		TDNode[] wayNodes = new TDNode[this.wayNodeIds.length];
+		for (int i = 0; i < wayNodes.length; i++) {
+			wayNodes[i] = new TDNode(this.wayNodeIds[i], this.wayNodeCoordinates[i * 2],
+					this.wayNodeCoordinates[i * 2 + 1], (short) 0, (byte) 0, null, null);
+		}
+		return wayNodes;
+	}
+
+	/**
+	 * @return the number of way nodes
+	 */
+	public int getWayNodeCount() {
+		return this.wayNodeIds == null ? 0 : this.wayNodeIds.length;
+	}
+
+	/**
+	 * @param index
+	 *            the index of the way node
+	 * @return the id of the way node
+	 */
+	public long getWayNodeId(int index) {
+		return this.wayNodeIds[index];
+	}
+
+	/**
+	 * @param index
+	 *            the index of the way node
+	 * @return the latitude of the way node in microdegrees
+	 */
+	public int getWayNodeLatitude(int index) {
+		return this.wayNodeCoordinates[index * 2];
+	}
+
+	/**
+	 * @param index
+	 *            the index of the way node
+	 * @return the longitude of the way node in microdegrees
+	 */
+	public int getWayNodeLongitude(int index) {
+		return this.wayNodeCoordinates[index * 2 + 1];
 	}
 
 	/**
@@ -372,21 +485,6 @@ public class TDWay {
 		return false;
 	}
 
-	/**
-	 * @return the invalid
-	 */
-	public boolean isInvalid() {
-		return this.invalid;
-	}
-
-	/**
-	 * @param invalid
-	 *            the invalid to set
-	 */
-	public void setInvalid(boolean invalid) {
-		this.invalid = invalid;
-	}
-
 	@Override
 	public int hashCode() {
 		final int prime = 31;
@@ -23,19 +23,19 @@ import java.util.List;
  * @author sahin
  */
 public class WayDataBlock {
-	private final List<Integer> outerWay;
-	private final List<List<Integer>> innerWays;
+	private final int[] outerWay;
+	private final List<int[]> innerWays;
 	private final Encoding encoding;
 
 	/**
 	 * Creates a WayDataBlock in which way coordinates are not encoded.
 	 * 
 	 * @param outerWay
-	 *            the outer way of the way data block
+	 *            the outer way of the way data block, latitude and longitude of each way node in turn
 	 * @param innerWays
 	 *            the inner ways of the way data block, or null if not existent
 	 */
-	public WayDataBlock(List<Integer> outerWay, List<List<Integer>> innerWays) {
+	public WayDataBlock(int[] outerWay, List<int[]> innerWays) {
 		this.outerWay = outerWay;
 		this.innerWays = innerWays;
 		this.encoding = Encoding.NONE;
@@ -43,13 +43,13 @@ public class WayDataBlock {
 
 	/**
 	 * @param outerWay
-	 *            the outer way of the way data block
+	 *            the outer way of the way data block, latitude and longitude of each way node in turn
 	 * @param innerWays
 	 *            the inner ways of the way data block, or null if not existent
 	 * @param encoding
 	 *            the encoding used to represent the coordinates
 	 */
-	public WayDataBlock(List<Integer> outerWay, List<List<Integer>> innerWays, Encoding encoding) {
+	public WayDataBlock(int[] outerWay, List<int[]> innerWays, Encoding encoding) {
 		super();
 		this.outerWay = outerWay;
 		this.innerWays = innerWays;
@@ -57,16 +57,16 @@ public class WayDataBlock {
 	}
 
 	/**
-	 * @return the outerWay
+	 * @return the outerWay, latitude and longitude of each way node in turn
 	 */
-	public List<Integer> getOuterWay() {
+	public int[] getOuterWay() {
 		return this.outerWay;
 	}
 
 	/**
-	 * @return the innerWays
+	 * @return the innerWays, each in the format of the outer way
 	 */
-	public List<List<Integer>> getInnerWays() {
+	public List<int[]> getInnerWays() {
 		return this.innerWays;
 	}
 
@@ -41,6 +41,7 @@ class MapFileWriterFactory extends TaskManagerFactory {
 	private static final String PARAM_WAY_CLIPPING = "way-clipping";
 	private static final String PARAM_LABEL_POSITION = "label-position";
 	private static final String PARAM_TYPE = "type";
+	private static final String PARAM_DENSE_NODE_STORE = "dense-node-store";
 	private static final String PARAM_BBOX_ENLARGEMENT = "bbox-enlargement";
 	private static final String PARAM_TAG_MAPPING_FILE = "tag-conf-file";
 	private static final String PARAM_PREFERRED_LANGUAGE = "preferred-language";
@@ -75,6 +76,7 @@ class MapFileWriterFactory extends TaskManagerFactory {
 
 		configuration.setDataProcessorType(getStringArgument(taskConfig, PARAM_TYPE,
 				Constants.DEFAULT_PARAM_TYPE));
+		configuration.setDenseNodeStore(getBooleanArgument(taskConfig, PARAM_DENSE_NODE_STORE, false));
 		configuration.setBboxEnlargement(getIntegerArgument(taskConfig, PARAM_BBOX_ENLARGEMENT,
 				Constants.DEFAULT_PARAM_BBOX_ENLARGEMENT));
 
@@ -25,7 +25,6 @@ import java.util.logging.Logger;
 import org.mapsforge.core.model.Coordinates;
 import org.mapsforge.core.model.GeoPoint;
 import org.mapsforge.core.util.MercatorProjection;
-import org.mapsforge.map.writer.model.TDNode;
 import org.mapsforge.map.writer.model.TDWay;
 import org.mapsforge.map.writer.model.TileCoordinate;
 import org.mapsforge.map.writer.model.WayDataBlock;
@@ -67,6 +66,7 @@ public final class GeoUtils {
 	public static final int MIN_COORDINATES_POLYGON = 8;
 	private static final byte SUBTILE_ZOOMLEVEL_DIFFERENCE = 2;
 	private static final double[] EPSILON_ZERO = new double[] { 0, 0 };
+	private static final double MICRODEGREES_PER_DEGREE = 1000000;
 	private static final Logger LOGGER = Logger.getLogger(GeoUtils.class.getName());
 
 	private static final int[] TILE_BITMASK_VALUES = new int[] { 32768, 16384, 8192, 4096, 2048, 1024, 512, 256, 128,
@@ -160,7 +160,7 @@ public final class GeoUtils {
 	 *            the tile coordinate
 	 * @param enlargementInMeters
 	 *            the bounding box buffer
-	 * @return the clipped geometry
+	 * @return the clipped geometry, or null if JTS cannot clip the geometry
 	 */
 	public static Geometry clipToTile(TDWay way, Geometry geometry, TileCoordinate tileCoordinate,
 			int enlargementInMeters) {
@@ -183,8 +183,7 @@ public final class GeoUtils {
 			try {
 				ret = tileBBJTS.intersection(geometry.buffer(0));
 			} catch (TopologyException ee) {
-				LOGGER.log(Level.WARNING, "JTS cannot clip way, not storing it in data file: " + way.getId(), ee);
-				way.setInvalid(true);
+				LOGGER.log(Level.WARNING, "JTS cannot clip way, not storing it in this tile: " + way.getId(), ee);
 				return null;
 			}
 		}
@@ -218,13 +217,47 @@ public final class GeoUtils {
 		} catch (TopologyException e) {
 			LOGGER.log(Level.FINE,
 					"JTS cannot simplify way due to an error, not simplifying way with id: " + way.getId(), e);
-			way.setInvalid(true);
 			return geometry;
 		}
 
 		return ret;
 	}
 
+	/**
+	 * Simplifies the coordinates of lines or polygons using the Douglas Peucker algorithm, with the same tolerance as
+	 * {@link #simplifyGeometry(TDWay, Geometry, byte, double)}.
+	 * 
+	 * @param coordinates
+	 *            the coordinates of the lines or polygons, see {@link TileClipping}
+	 * @param polygon
+	 *            true, if the coordinates describe closed polygons
+	 * @param zoomlevel
+	 *            the zoom level
+	 * @param simplificationFactor
+	 *            the simplification factor
+	 * @return the simplified coordinates
+	 */
+	public static List<int[]> simplifyCoordinates(List<int[]> coordinates, boolean polygon, byte zoomlevel,
+			double simplificationFactor) {
+		// compute maximal absolute latitude (so that we don't need to care if we
+		// are on northern or southern hemisphere)
+		int latMax = 0;
+		for (int[] part : coordinates) {
+			for (int i = 0; i < part.length; i += 2) {
+				latMax = Math.max(latMax, Math.abs(part[i]));
+			}
+		}
+		double deltaLat = MercatorProjection.deltaLat(simplificationFactor,
+				Coordinates.microdegreesToDegrees(latMax), zoomlevel);
+		double tolerance = deltaLat * MICRODEGREES_PER_DEGREE;
+
+		List<int[]> ret = new ArrayList<int[]>(coordinates.size());
+		for (int[] part : coordinates) {
+			ret.add(TileClipping.simplify(part, tolerance, polygon));
+		}
+		return ret;
+	}
+
 	/**
 	 * A tile on zoom level <i>z</i> has exactly 16 sub tiles on zoom level <i>z+2</i>. For each of these 16 sub tiles
 	 * it is analyzed if the given way needs to be included. The result is represented as a 16 bit short value. Each bit
@@ -259,6 +292,40 @@ public final class GeoUtils {
 		return bitmask;
 	}
 
+	/**
+	 * Computes the sub tile bitmask like {@link #computeBitmask(Geometry, TileCoordinate, int)} for way coordinates.
+	 * 
+	 * @param coordinates
+	 *            the coordinates of the lines or polygons, see {@link TileClipping}
+	 * @param polygon
+	 *            true, if the coordinates describe polygons whose interior belongs to the way
+	 * @param tile
+	 *            the tile which is split into 16 sub tiles
+	 * @param enlargementInMeter
+	 *            amount of pixels that is used to enlarge the bounding box of the way and the tiles in the mapping
+	 *            process
+	 * @return a 16 bit short value that represents the information which of the sub tiles needs to include the way
+	 */
+	public static short computeBitmask(final List<int[]> coordinates, boolean polygon, final TileCoordinate tile,
+			final int enlargementInMeter) {
+		List<TileCoordinate> subtiles = tile
+				.translateToZoomLevel((byte) (tile.getZoomlevel() + SUBTILE_ZOOMLEVEL_DIFFERENCE));
+
+		short bitmask = 0; // NOPMD by bross on 25.12.11 13:30
+		int tileCounter = 0;
+		for (TileCoordinate subtile : subtiles) {
+			double[] bbox = tileToBoundingBox(subtile, enlargementInMeter);
+			for (int[] part : coordinates) {
+				if (TileClipping.intersects(part, polygon, bbox)) {
+					bitmask |= TILE_BITMASK_VALUES[tileCounter];
+					break;
+				}
+			}
+			tileCounter++;
+		}
+		return bitmask;
+	}
+
 	/**
 	 * @param geometry
 	 *            a JTS {@link Geometry} object representing the OSM entity
@@ -304,8 +371,8 @@ public final class GeoUtils {
 			MultiPolygon mp = (MultiPolygon) geometry;
 			for (int i = 0; i < mp.getNumGeometries(); i++) {
 				Polygon p = (Polygon) mp.getGeometryN(i);
-				List<Integer> outer = toCoordinateList(p.getExteriorRing());
-				List<List<Integer>> inner = new ArrayList<List<Integer>>();
+				int[] outer = toCoordinateList(p.getExteriorRing());
+				List<int[]> inner = new ArrayList<int[]>();
 				for (int j = 0; j < p.getNumInteriorRing(); j++) {
 					inner.add(toCoordinateList(p.getInteriorRingN(j)));
 				}
@@ -313,8 +380,8 @@ public final class GeoUtils {
 			}
 		} else if (geometry instanceof Polygon) {
 			Polygon p = (Polygon) geometry;
-			List<Integer> outer = toCoordinateList(p.getExteriorRing());
-			List<List<Integer>> inner = new ArrayList<List<Integer>>();
+			int[] outer = toCoordinateList(p.getExteriorRing());
+			List<int[]> inner = new ArrayList<int[]>();
 			for (int i = 0; i < p.getNumInteriorRing(); i++) {
 				inner.add(toCoordinateList(p.getInteriorRingN(i)));
 			}
@@ -340,6 +407,41 @@ public final class GeoUtils {
 		return res;
 	}
 
+	/**
+	 * Convert way coordinates to a WayDataBlock list.
+	 * 
+	 * @param coordinates
+	 *            the coordinates of the lines or polygons, see {@link TileClipping}
+	 * @param polygon
+	 *            true, if the coordinates describe polygons
+	 * @return a list of WayBlocks which you can use to save the way.
+	 */
+	public static List<WayDataBlock> toWayDataBlockList(List<int[]> coordinates, boolean polygon) {
+		List<WayDataBlock> res = new ArrayList<WayDataBlock>(coordinates.size());
+		for (int[] part : coordinates) {
+			res.add(new WayDataBlock(part, polygon ? new ArrayList<int[]>() : null));
+		}
+		return res;
+	}
+
+	/**
+	 * Computes the bounding box of a tile for {@link TileClipping}.
+	 * 
+	 * @param tile
+	 *            the tile
+	 * @param enlargementInMeter
+	 *            the enlargement of the tile in meters
+	 * @return minimum latitude, minimum longitude, maximum latitude and maximum longitude of the enlarged tile in
+	 *         microdegrees
+	 */
+	public static double[] tileToBoundingBox(TileCoordinate tile, int enlargementInMeter) {
+		double[] bbox = tileToBoundingBox(tile.getX(), tile.getY(), tile.getZoomlevel(), enlargementInMeter);
+		for (int i = 0; i < bbox.length; i++) {
+			bbox[i] *= MICRODEGREES_PER_DEGREE;
+		}
+		return bbox;
+	}
+
 	// **************** JTS CONVERSIONS *********************
 
 	/**
@@ -415,16 +517,15 @@ public final class GeoUtils {
 	 * @return return Converted way as JTS object.
 	 */
 	private static Geometry toJTSGeometry(TDWay way, boolean area) {
-		if (way.getWayNodes().length < 2) {
+		if (way.getWayNodeCount() < 2) {
 			LOGGER.fine("way has fewer than 2 nodes: " + way.getId());
 			return null;
 		}
 
-		Coordinate[] coordinates = new Coordinate[way.getWayNodes().length];
+		Coordinate[] coordinates = new Coordinate[way.getWayNodeCount()];
 		for (int i = 0; i < coordinates.length; i++) {
-			TDNode currentNode = way.getWayNodes()[i];
-			coordinates[i] = new Coordinate(Coordinates.microdegreesToDegrees(currentNode.getLongitude()),
-					Coordinates.microdegreesToDegrees(currentNode.getLatitude()));
+			coordinates[i] = new Coordinate(Coordinates.microdegreesToDegrees(way.getWayNodeLongitude(i)),
+					Coordinates.microdegreesToDegrees(way.getWayNodeLatitude(i)));
 		}
 
 		Geometry res = null;
@@ -449,16 +550,16 @@ public final class GeoUtils {
 		return res;
 	}
 
-	private static List<Integer> toCoordinateList(Geometry jtsGeometry) {
+	private static int[] toCoordinateList(Geometry jtsGeometry) {
 
 		Coordinate[] jtsCoords = jtsGeometry.getCoordinates();
 
-		ArrayList<Integer> result = new ArrayList<Integer>();
+		int[] result = new int[jtsCoords.length * 2];
 
 		for (int j = 0; j < jtsCoords.length; j++) {
 			GeoPoint geoCoord = new GeoPoint(jtsCoords[j].y, jtsCoords[j].x);
-			result.add(Integer.valueOf(geoCoord.latitudeE6));
-			result.add(Integer.valueOf(geoCoord.longitudeE6));
+			result[2 * j] = geoCoord.latitudeE6;
+			result[2 * j + 1] = geoCoord.longitudeE6;
 		}
 
 		return result;
@@ -492,7 +593,7 @@ public final class GeoUtils {
 		return epsilons;
 	}
 
-	private static Geometry tileToJTSGeometry(long tileX, long tileY, byte zoom, int enlargementInMeter) {
+	private static double[] tileToBoundingBox(long tileX, long tileY, byte zoom, int enlargementInMeter) {
 		double minLat = MercatorProjection.tileYToLatitude(tileY + 1, zoom);
 		double maxLat = MercatorProjection.tileYToLatitude(tileY, zoom);
 		double minLon = MercatorProjection.tileXToLongitude(tileX, zoom);
@@ -505,19 +606,25 @@ public final class GeoUtils {
 		maxLon += epsilons[1];
 		maxLat += epsilons[0];
 
-		Coordinate bottomLeft = new Coordinate(minLon, minLat);
-		Coordinate topRight = new Coordinate(maxLon, maxLat);
+		return new double[] { minLat, minLon, maxLat, maxLon };
+	}
+
+	private static Geometry tileToJTSGeometry(long tileX, long tileY, byte zoom, int enlargementInMeter) {
+		double[] bbox = tileToBoundingBox(tileX, tileY, zoom, enlargementInMeter);
+
+		Coordinate bottomLeft = new Coordinate(bbox[1], bbox[0]);
+		Coordinate topRight = new Coordinate(bbox[3], bbox[2]);
 
 		return GEOMETRY_FACTORY.createLineString(new Coordinate[] { bottomLeft, topRight }).getEnvelope();
 	}
 
 	private static TileCoordinate[] getWayBoundingBox(final TDWay way, byte zoomlevel, int enlargementInPixel) {
 		double maxx = Double.NEGATIVE_INFINITY, maxy = Double.NEGATIVE_INFINITY, minx = Double.POSITIVE_INFINITY, miny = Double.POSITIVE_INFINITY;
-		for (TDNode coordinate : way.getWayNodes()) {
-			maxy = Math.max(maxy, Coordinates.microdegreesToDegrees(coordinate.getLatitude()));
-			miny = Math.min(miny, Coordinates.microdegreesToDegrees(coordinate.getLatitude()));
-			maxx = Math.max(maxx, Coordinates.microdegreesToDegrees(coordinate.getLongitude()));
-			minx = Math.min(minx, Coordinates.microdegreesToDegrees(coordinate.getLongitude()));
+		for (int i = 0, n = way.getWayNodeCount(); i < n; i++) {
+			maxy = Math.max(maxy, Coordinates.microdegreesToDegrees(way.getWayNodeLatitude(i)));
+			miny = Math.min(miny, Coordinates.microdegreesToDegrees(way.getWayNodeLatitude(i)));
+			maxx = Math.max(maxx, Coordinates.microdegreesToDegrees(way.getWayNodeLongitude(i)));
+			minx = Math.min(minx, Coordinates.microdegreesToDegrees(way.getWayNodeLongitude(i)));
 		}
 
 		double[] epsilonsTopLeft = computeTileEnlargement(maxy, enlargementInPixel);
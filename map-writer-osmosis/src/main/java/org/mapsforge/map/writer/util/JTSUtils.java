@@ -52,14 +52,15 @@ public final class JTSUtils {
 	 * @return the array of coordinates
 	 */
 	public static Coordinate[] toCoordinates(TDWay way) {
-		Coordinate[] coordinates = new Coordinate[way.getWayNodes().length];
+		Coordinate[] coordinates = new Coordinate[way.getWayNodeCount()];
 		if (way.isReversedInRelation()) {
 			for (int i = 0; i < coordinates.length; i++) {
-				coordinates[coordinates.length - 1 - i] = toCoordinate(way.getWayNodes()[i]);
+				coordinates[coordinates.length - 1 - i] = toCoordinate(way.getWayNodeLatitude(i),
+						way.getWayNodeLongitude(i));
 			}
 		} else {
 			for (int i = 0; i < coordinates.length; i++) {
-				coordinates[i] = toCoordinate(way.getWayNodes()[i]);
+				coordinates[i] = toCoordinate(way.getWayNodeLatitude(i), way.getWayNodeLongitude(i));
 			}
 		}
 		return coordinates;
@@ -0,0 +1,426 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.writer.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.mapsforge.map.writer.coastlinealgorithm.SutherlandHodgmanClipping;
+import org.mapsforge.map.writer.model.TDWay;
+
+/**
+ * Clips and simplifies way coordinates without creating JTS geometries.
+ * <p>
+ * Coordinates are given as latitude and longitude of each way node in turn, in microdegrees. Rectangles are given as
+ * minimum latitude, minimum longitude, maximum latitude and maximum longitude in microdegrees.
+ */
+public final class TileClipping {
+	private static final int BOTTOM = 4;
+	private static final int LEFT = 1;
+	private static final int RIGHT = 2;
+	private static final int TOP = 8;
+
+	/**
+	 * @param way
+	 *            the way
+	 * @return the coordinates of the way nodes
+	 */
+	public static int[] getCoordinates(TDWay way) {
+		int[] coordinates = new int[way.getWayNodeCount() * 2];
+		for (int i = 0; i < coordinates.length; i += 2) {
+			coordinates[i] = way.getWayNodeLatitude(i / 2);
+			coordinates[i + 1] = way.getWayNodeLongitude(i / 2);
+		}
+		return coordinates;
+	}
+
+	/**
+	 * @param coordinates
+	 *            the coordinates
+	 * @return the bounding box of the coordinates
+	 */
+	public static double[] getBoundingBox(int[] coordinates) {
+		int minLat = Integer.MAX_VALUE;
+		int minLon = Integer.MAX_VALUE;
+		int maxLat = Integer.MIN_VALUE;
+		int maxLon = Integer.MIN_VALUE;
+		for (int i = 0; i < coordinates.length; i += 2) {
+			minLat = Math.min(minLat, coordinates[i]);
+			maxLat = Math.max(maxLat, coordinates[i]);
+			minLon = Math.min(minLon, coordinates[i + 1]);
+			maxLon = Math.max(maxLon, coordinates[i + 1]);
+		}
+		return new double[] { minLat, minLon, maxLat, maxLon };
+	}
+
+	/**
+	 * @param rectangle
+	 *            the outer rectangle
+	 * @param boundingBox
+	 *            the inner rectangle
+	 * @return true, if the inner rectangle is covered completely by the outer rectangle
+	 */
+	public static boolean covers(double[] rectangle, double[] boundingBox) {
+		return boundingBox[0] >= rectangle[0] && boundingBox[1] >= rectangle[1] && boundingBox[2] <= rectangle[2]
+				&& boundingBox[3] <= rectangle[3];
+	}
+
+	/**
+	 * @param rectangle
+	 *            the first rectangle
+	 * @param boundingBox
+	 *            the second rectangle
+	 * @return true, if both rectangles have at least one point in common
+	 */
+	public static boolean intersects(double[] rectangle, double[] boundingBox) {
+		return boundingBox[0] <= rectangle[2] && boundingBox[1] <= rectangle[3] && boundingBox[2] >= rectangle[0]
+				&& boundingBox[3] >= rectangle[1];
+	}
+
+	/**
+	 * Clips a line to a rectangle with the Cohen-Sutherland algorithm.
+	 *
+	 * @param coordinates
+	 *            the coordinates of the line
+	 * @param rectangle
+	 *            the clipping rectangle
+	 * @return the parts of the line inside the rectangle, each with at least two distinct way nodes
+	 */
+	public static List<int[]> clipLine(int[] coordinates, double[] rectangle) {
+		List<int[]> parts = new ArrayList<int[]>();
+		// a part never has more way nodes than the line
+		int[] part = new int[coordinates.length];
+		int size = 0;
+		double[] segment = new double[4];
+
+		for (int i = 2; i < coordinates.length; i += 2) {
+			int startCode = outCode(coordinates[i - 2], coordinates[i - 1], rectangle);
+			int endCode = outCode(coordinates[i], coordinates[i + 1], rectangle);
+
+			if ((startCode & endCode) != 0) {
+				// both way nodes on the same outer side
+				size = addPart(parts, part, size);
+				continue;
+			}
+
+			segment[0] = coordinates[i - 2];
+			segment[1] = coordinates[i - 1];
+			segment[2] = coordinates[i];
+			segment[3] = coordinates[i + 1];
+			if ((startCode | endCode) != 0 && !clipSegment(segment, startCode, endCode, rectangle)) {
+				size = addPart(parts, part, size);
+				continue;
+			}
+
+			if (startCode != 0) {
+				// the line enters the rectangle
+				size = addPart(parts, part, size);
+			}
+			if (size == 0) {
+				size = addCoordinate(part, size, segment[0], segment[1]);
+			}
+			size = addCoordinate(part, size, segment[2], segment[3]);
+			if (endCode != 0) {
+				// the line leaves the rectangle
+				size = addPart(parts, part, size);
+			}
+		}
+		addPart(parts, part, size);
+
+		return parts;
+	}
+
+	/**
+	 * Clips a polygon to a rectangle with the Sutherland-Hodgman algorithm.
+	 *
+	 * @param coordinates
+	 *            the coordinates of the closed polygon
+	 * @param rectangle
+	 *            the clipping rectangle
+	 * @return the coordinates of the closed clipped polygon, or null if it does not cover an area inside the rectangle
+	 */
+	public static int[] clipPolygon(int[] coordinates, double[] rectangle) {
+		double[] polygon = new double[coordinates.length];
+		for (int i = 0; i < coordinates.length; i++) {
+			polygon[i] = coordinates[i];
+		}
+
+		double[] clippedPolygon = SutherlandHodgmanClipping.clipPolygon(polygon, rectangle);
+		if (clippedPolygon == null) {
+			return null;
+		}
+
+		int[] result = new int[clippedPolygon.length + 2];
+		int size = 0;
+		for (int i = 0; i < clippedPolygon.length; i += 2) {
+			size = addCoordinate(result, size, clippedPolygon[i], clippedPolygon[i + 1]);
+		}
+		if (size > 2 && result[0] == result[size - 2] && result[1] == result[size - 1]) {
+			size -= 2;
+		}
+		// at least three distinct vertices
+		if (size < 6) {
+			return null;
+		}
+
+		// close the polygon
+		result[size++] = result[0];
+		result[size++] = result[1];
+		return size == result.length ? result : Arrays.copyOf(result, size);
+	}
+
+	/**
+	 * Simplifies a line or a polygon with the Douglas-Peucker algorithm. Like the JTS TopologyPreservingSimplifier,
+	 * closed polygons keep at least four way nodes, but simplified segments are not checked for intersections.
+	 *
+	 * @param coordinates
+	 *            the coordinates of the line or the closed polygon
+	 * @param tolerance
+	 *            the distance tolerance in microdegrees
+	 * @param polygon
+	 *            true, if the coordinates describe a closed polygon
+	 * @return the simplified coordinates
+	 */
+	public static int[] simplify(int[] coordinates, double tolerance, boolean polygon) {
+		if (coordinates.length <= 4) {
+			return coordinates;
+		}
+
+		DouglasPeucker douglasPeucker = new DouglasPeucker(coordinates, tolerance, polygon ? 4 : 2);
+		douglasPeucker.simplifySection(0, coordinates.length / 2 - 1, 0);
+		return douglasPeucker.getResult();
+	}
+
+	/**
+	 * @param coordinates
+	 *            the coordinates of the line or the closed polygon
+	 * @param polygon
+	 *            true, if the coordinates describe a polygon whose interior is part of the geometry
+	 * @param rectangle
+	 *            the rectangle
+	 * @return true, if the line or the polygon has at least one point in common with the rectangle
+	 */
+	public static boolean intersects(int[] coordinates, boolean polygon, double[] rectangle) {
+		double[] segment = new double[4];
+		for (int i = 2; i < coordinates.length; i += 2) {
+			int startCode = outCode(coordinates[i - 2], coordinates[i - 1], rectangle);
+			int endCode = outCode(coordinates[i], coordinates[i + 1], rectangle);
+			if (startCode == 0 || endCode == 0) {
+				return true;
+			}
+			if ((startCode & endCode) == 0) {
+				segment[0] = coordinates[i - 2];
+				segment[1] = coordinates[i - 1];
+				segment[2] = coordinates[i];
+				segment[3] = coordinates[i + 1];
+				if (clipSegment(segment, startCode, endCode, rectangle)) {
+					return true;
+				}
+			}
+		}
+
+		// the rectangle may lie completely inside of the polygon
+		return polygon && contains(coordinates, (rectangle[0] + rectangle[2]) / 2, (rectangle[1] + rectangle[3]) / 2);
+	}
+
+	private static int addCoordinate(int[] part, int size, double latitude, double longitude) {
+		int lat = (int) Math.round(latitude);
+		int lon = (int) Math.round(longitude);
+		if (size > 0 && part[size - 2] == lat && part[size - 1] == lon) {
+			return size;
+		}
+		part[size] = lat;
+		part[size + 1] = lon;
+		return size + 2;
+	}
+
+	private static int addPart(List<int[]> parts, int[] part, int size) {
+		if (size >= 4) {
+			parts.add(Arrays.copyOf(part, size));
+		}
+		return 0;
+	}
+
+	/**
+	 * Clips a segment to a rectangle, the segment is modified in place.
+	 *
+	 * @return false, if the segment lies outside of the rectangle
+	 */
+	private static boolean clipSegment(double[] segment, int startCode, int endCode, double[] rectangle) {
+		int code0 = startCode;
+		int code1 = endCode;
+		while (true) {
+			if ((code0 | code1) == 0) {
+				return true;
+			} else if ((code0 & code1) != 0) {
+				return false;
+			}
+
+			int code = code0 != 0 ? code0 : code1;
+			double dLat = segment[2] - segment[0];
+			double dLon = segment[3] - segment[1];
+			double lat;
+			double lon;
+			if ((code & TOP) != 0) {
+				lat = rectangle[2];
+				lon = segment[1] + dLon * (lat - segment[0]) / dLat;
+			} else if ((code & BOTTOM) != 0) {
+				lat = rectangle[0];
+				lon = segment[1] + dLon * (lat - segment[0]) / dLat;
+			} else if ((code & RIGHT) != 0) {
+				lon = rectangle[3];
+				lat = segment[0] + dLat * (lon - segment[1]) / dLon;
+			} else {
+				lon = rectangle[1];
+				lat = segment[0] + dLat * (lon - segment[1]) / dLon;
+			}
+
+			if (code == code0) {
+				segment[0] = lat;
+				segment[1] = lon;
+				code0 = outCode(lat, lon, rectangle);
+			} else {
+				segment[2] = lat;
+				segment[3] = lon;
+				code1 = outCode(lat, lon, rectangle);
+			}
+		}
+	}
+
+	private static boolean contains(int[] coordinates, double latitude, double longitude) {
+		boolean inside = false;
+		for (int i = 0, j = coordinates.length - 2; i < coordinates.length; j = i, i += 2) {
+			if ((coordinates[i] > latitude) != (coordinates[j] > latitude)
+					&& longitude < (coordinates[j + 1] - coordinates[i + 1]) * (latitude - coordinates[i])
+							/ (coordinates[j] - coordinates[i]) + coordinates[i + 1]) {
+				inside = !inside;
+			}
+		}
+		return inside;
+	}
+
+	private static int outCode(double latitude, double longitude, double[] rectangle) {
+		int code = 0;
+		if (latitude < rectangle[0]) {
+			code |= BOTTOM;
+		} else if (latitude > rectangle[2]) {
+			code |= TOP;
+		}
+		if (longitude < rectangle[1]) {
+			code |= LEFT;
+		} else if (longitude > rectangle[3]) {
+			code |= RIGHT;
+		}
+		return code;
+	}
+
+	/**
+	 * Douglas-Peucker simplification in the order of the JTS TaggedLineStringSimplifier, so that the minimum number
+	 * of way nodes is kept in the same way.
+	 */
+	private static class DouglasPeucker {
+		private final int[] coordinates;
+		private final boolean[] keep;
+		private final int minimumSize;
+		private int resultSegments;
+		private final double tolerance;
+
+		DouglasPeucker(int[] coordinates, double tolerance, int minimumSize) {
+			this.coordinates = coordinates;
+			this.tolerance = tolerance;
+			this.minimumSize = minimumSize;
+			this.keep = new boolean[coordinates.length / 2];
+			this.keep[0] = true;
+		}
+
+		int[] getResult() {
+			int[] result = new int[(this.resultSegments + 1) * 2];
+			int size = 0;
+			for (int i = 0; i < this.keep.length; i++) {
+				if (this.keep[i]) {
+					result[size++] = this.coordinates[2 * i];
+					result[size++] = this.coordinates[2 * i + 1];
+				}
+			}
+			return result;
+		}
+
+		void simplifySection(int i, int j, int depth) {
+			int sectionDepth = depth + 1;
+			if (i + 1 == j) {
+				addSegment(j);
+				return;
+			}
+
+			boolean isValidToSimplify = true;
+			int resultSize = this.resultSegments == 0 ? 0 : this.resultSegments + 1;
+			if (resultSize < this.minimumSize && sectionDepth + 1 < this.minimumSize) {
+				isValidToSimplify = false;
+			}
+
+			int furthest = i;
+			double maxDistance = -1;
+			for (int k = i + 1; k < j; k++) {
+				double distance = distance(k, i, j);
+				if (distance > maxDistance) {
+					maxDistance = distance;
+					furthest = k;
+				}
+			}
+			if (maxDistance > this.tolerance) {
+				isValidToSimplify = false;
+			}
+
+			if (isValidToSimplify) {
+				addSegment(j);
+				return;
+			}
+			simplifySection(i, furthest, sectionDepth);
+			simplifySection(furthest, j, sectionDepth);
+		}
+
+		private void addSegment(int end) {
+			this.keep[end] = true;
+			this.resultSegments++;
+		}
+
+		// distance of way node k to the segment from way node i to way node j
+		private double distance(int k, int i, int j) {
+			double latK = this.coordinates[2 * k];
+			double lonK = this.coordinates[2 * k + 1];
+			double latI = this.coordinates[2 * i];
+			double lonI = this.coordinates[2 * i + 1];
+			double dLat = this.coordinates[2 * j] - latI;
+			double dLon = this.coordinates[2 * j + 1] - lonI;
+
+			double length2 = dLat * dLat + dLon * dLon;
+			if (length2 == 0) {
+				return Math.hypot(latK - latI, lonK - lonI);
+			}
+			double r = ((latK - latI) * dLat + (lonK - lonI) * dLon) / length2;
+			if (r <= 0) {
+				return Math.hypot(latK - latI, lonK - lonI);
+			} else if (r >= 1) {
+				return Math.hypot(latK - latI - dLat, lonK - lonI - dLon);
+			}
+			return Math.abs((latI - latK) * dLon - (lonI - lonK) * dLat) / Math.sqrt(length2);
+		}
+	}
+
+	private TileClipping() {
+		throw new IllegalStateException();
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.writer;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.mapsforge.map.writer.model.MapWriterConfiguration;
+import org.mapsforge.map.writer.model.TDWay;
+import org.mapsforge.map.writer.model.TileBasedDataProcessor;
+import org.mapsforge.map.writer.model.TileData;
+import org.mapsforge.map.writer.model.TileGridLayout;
+import org.openstreetmap.osmosis.core.domain.v0_6.CommonEntityData;
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.OsmUser;
+import org.openstreetmap.osmosis.core.domain.v0_6.Relation;
+import org.openstreetmap.osmosis.core.domain.v0_6.RelationMember;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+import org.openstreetmap.osmosis.core.domain.v0_6.Way;
+import org.openstreetmap.osmosis.core.domain.v0_6.WayNode;
+
+/**
+ * Measures the time a data processor needs to load an extract in .osm XML format and to return all tiles, to
+ * compare the "ram" and the "hd" processor and their implementations.
+ * <p>
+ * Usage: DataProcessorBenchmark ram|hd file.osm minLat,minLon,maxLat,maxLon [tag-mapping.xml]
+ */
+public final class DataProcessorBenchmark {
+
+	private static final Date DATE = new Date(0);
+
+	private DataProcessorBenchmark() {
+		throw new IllegalStateException();
+	}
+
+	/**
+	 * @param args
+	 *            processor type, extract, bounding box and optional tag mapping file
+	 * @throws Exception
+	 *             if the extract cannot be read
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("usage: DataProcessorBenchmark ram|hd file.osm minLat,minLon,maxLat,maxLon "
+					+ "[tag-mapping.xml]");
+			return;
+		}
+
+		MapWriterConfiguration configuration = new MapWriterConfiguration();
+		configuration.loadTagMappingFile(args.length > 3 ? args[3] : null);
+		configuration.addBboxConfiguration(args[2]);
+		configuration.addZoomIntervalConfiguration(null);
+		configuration.setDataProcessorType(args[0]);
+		configuration.validate();
+
+		// parse once to measure the share of the xml parser and to warm up
+		long start = System.nanoTime();
+		int elements = read(args[1], null);
+		long parse = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		TileBasedDataProcessor processor = "hd".equals(args[0]) ? HDTileBasedDataProcessor
+				.newInstance(configuration) : RAMTileBasedDataProcessor.newInstance(configuration);
+		read(args[1], processor);
+		long add = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		processor.complete();
+		long complete = System.nanoTime() - start;
+
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		long heap = runtime.totalMemory() - runtime.freeMemory();
+
+		start = System.nanoTime();
+		long tiles = 0;
+		long wayNodes = 0;
+		for (int i = 0; i < configuration.getZoomIntervalConfiguration().getNumberOfZoomIntervals(); i++) {
+			TileGridLayout layout = processor.getTileGridLayout(i);
+			for (int x = 0; x < layout.getAmountTilesHorizontal(); x++) {
+				for (int y = 0; y < layout.getAmountTilesVertical(); y++) {
+					TileData tile = processor.getTile(i, layout.getUpperLeft().getX() + x, layout.getUpperLeft()
+							.getY() + y);
+					if (tile == null) {
+						continue;
+					}
+					tiles++;
+					for (List<TDWay> ways : tile.waysByZoomlevel((byte) 0, Byte.MAX_VALUE).values()) {
+						for (TDWay way : ways) {
+							wayNodes += way.getWayNodes().length;
+						}
+					}
+				}
+			}
+		}
+		long read = System.nanoTime() - start;
+
+		processor.release();
+
+		System.out.println(args[0] + ": " + elements + " elements, " + tiles + " tiles, " + wayNodes
+				+ " way nodes in tiles");
+		System.out.println("parse xml      " + parse / 1000000 + " ms");
+		System.out.println("add elements   " + (add - parse) / 1000000 + " ms (without parsing)");
+		System.out.println("complete       " + complete / 1000000 + " ms");
+		System.out.println("read tiles     " + read / 1000000 + " ms");
+		System.out.println("heap           " + heap / 1024 / 1024 + " MB");
+	}
+
+	private static int read(String file, TileBasedDataProcessor processor) throws IOException, XMLStreamException {
+		InputStream inputStream = new BufferedInputStream(new FileInputStream(file));
+		XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(inputStream);
+
+		int elements = 0;
+		String element = null;
+		long id = 0;
+		double latitude = 0;
+		double longitude = 0;
+		List<Tag> tags = new ArrayList<Tag>();
+		List<WayNode> wayNodes = new ArrayList<WayNode>();
+		List<RelationMember> members = new ArrayList<RelationMember>();
+
+		try {
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					String name = reader.getLocalName();
+					if ("node".equals(name) || "way".equals(name) || "relation".equals(name)) {
+						element = name;
+						id = Long.parseLong(reader.getAttributeValue(null, "id"));
+						if ("node".equals(name)) {
+							latitude = Double.parseDouble(reader.getAttributeValue(null, "lat"));
+							longitude = Double.parseDouble(reader.getAttributeValue(null, "lon"));
+						}
+						tags = new ArrayList<Tag>();
+						wayNodes = new ArrayList<WayNode>();
+						members = new ArrayList<RelationMember>();
+					} else if ("tag".equals(name)) {
+						tags.add(new Tag(reader.getAttributeValue(null, "k"), reader.getAttributeValue(null, "v")));
+					} else if ("nd".equals(name)) {
+						wayNodes.add(new WayNode(Long.parseLong(reader.getAttributeValue(null, "ref"))));
+					} else if ("member".equals(name)) {
+						String type = reader.getAttributeValue(null, "type");
+						members.add(new RelationMember(Long.parseLong(reader.getAttributeValue(null, "ref")),
+								"way".equals(type) ? EntityType.Way : "node".equals(type) ? EntityType.Node
+										: EntityType.Relation, reader.getAttributeValue(null, "role")));
+					}
+				} else if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals(element)) {
+					elements++;
+					if (processor != null) {
+						CommonEntityData data = new CommonEntityData(id, 1, DATE, OsmUser.NONE, 0, tags);
+						if ("node".equals(element)) {
+							processor.addNode(new Node(data, latitude, longitude));
+						} else if ("way".equals(element)) {
+							processor.addWay(new Way(data, wayNodes));
+						} else {
+							processor.addRelation(new Relation(data, members));
+						}
+					}
+					element = null;
+				}
+			}
+		} finally {
+			reader.close();
+			inputStream.close();
+		}
+		return elements;
+	}
+}
@@ -15,43 +15,30 @@
 package org.mapsforge.map.writer;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import junit.framework.Assert;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mapsforge.map.writer.model.Encoding;
+import org.mapsforge.map.writer.model.WayDataBlock;
 
 /**
  * @author bross
  */
 public class DeltaEncoderTest {
 
-	private List<Integer> mockCoordinates;
+	private int[] mockCoordinates;
 
 	/**
+	 * 
 	 */
 	@Before
 	public void setUp() {
-		this.mockCoordinates = new ArrayList<Integer>();
-
-		this.mockCoordinates.add(Integer.valueOf(52000000));
-		this.mockCoordinates.add(Integer.valueOf(13000000));
-
-		this.mockCoordinates.add(Integer.valueOf(52000100));
-		this.mockCoordinates.add(Integer.valueOf(13000100));
-
-		this.mockCoordinates.add(Integer.valueOf(52000500));
-		this.mockCoordinates.add(Integer.valueOf(13000500));
-
-		this.mockCoordinates.add(Integer.valueOf(52000400));
-		this.mockCoordinates.add(Integer.valueOf(13000400));
-
-		this.mockCoordinates.add(Integer.valueOf(52000800));
-		this.mockCoordinates.add(Integer.valueOf(13000800));
-
-		this.mockCoordinates.add(Integer.valueOf(52001000));
-		this.mockCoordinates.add(Integer.valueOf(13001000));
+		this.mockCoordinates = new int[] { 52000000, 13000000, 52000100, 13000100, 52000500, 13000500, 52000400,
+				13000400, 52000800, 13000800, 52001000, 13001000 };
 	}
 
 	/**
@@ -59,19 +46,19 @@ public class DeltaEncoderTest {
 	 */
 	@Test
 	public void testDeltaEncode() {
-		List<Integer> deltaEncoded = DeltaEncoder.deltaEncode(this.mockCoordinates);
-		Assert.assertEquals(Integer.valueOf(52000000), deltaEncoded.get(0));
-		Assert.assertEquals(Integer.valueOf(13000000), deltaEncoded.get(1));
-		Assert.assertEquals(Integer.valueOf(100), deltaEncoded.get(2));
-		Assert.assertEquals(Integer.valueOf(100), deltaEncoded.get(3));
-		Assert.assertEquals(Integer.valueOf(400), deltaEncoded.get(4));
-		Assert.assertEquals(Integer.valueOf(400), deltaEncoded.get(5));
-		Assert.assertEquals(Integer.valueOf(-100), deltaEncoded.get(6));
-		Assert.assertEquals(Integer.valueOf(-100), deltaEncoded.get(7));
-		Assert.assertEquals(Integer.valueOf(400), deltaEncoded.get(8));
-		Assert.assertEquals(Integer.valueOf(400), deltaEncoded.get(9));
-		Assert.assertEquals(Integer.valueOf(200), deltaEncoded.get(10));
-		Assert.assertEquals(Integer.valueOf(200), deltaEncoded.get(11));
+		int[] deltaEncoded = DeltaEncoder.deltaEncode(this.mockCoordinates);
+		Assert.assertEquals(52000000, deltaEncoded[0]);
+		Assert.assertEquals(13000000, deltaEncoded[1]);
+		Assert.assertEquals(100, deltaEncoded[2]);
+		Assert.assertEquals(100, deltaEncoded[3]);
+		Assert.assertEquals(400, deltaEncoded[4]);
+		Assert.assertEquals(400, deltaEncoded[5]);
+		Assert.assertEquals(-100, deltaEncoded[6]);
+		Assert.assertEquals(-100, deltaEncoded[7]);
+		Assert.assertEquals(400, deltaEncoded[8]);
+		Assert.assertEquals(400, deltaEncoded[9]);
+		Assert.assertEquals(200, deltaEncoded[10]);
+		Assert.assertEquals(200, deltaEncoded[11]);
 	}
 
 	/**
@@ -79,19 +66,47 @@ public class DeltaEncoderTest {
 	 */
 	@Test
 	public void testDoubleDeltaEncode() {
-		List<Integer> ddeltaEncoded = DeltaEncoder.doubleDeltaEncode(this.mockCoordinates);
-		Assert.assertEquals(Integer.valueOf(52000000), ddeltaEncoded.get(0));
-		Assert.assertEquals(Integer.valueOf(13000000), ddeltaEncoded.get(1));
-		Assert.assertEquals(Integer.valueOf(100), ddeltaEncoded.get(2));
-		Assert.assertEquals(Integer.valueOf(100), ddeltaEncoded.get(3));
-		Assert.assertEquals(Integer.valueOf(300), ddeltaEncoded.get(4));
-		Assert.assertEquals(Integer.valueOf(300), ddeltaEncoded.get(5));
-		Assert.assertEquals(Integer.valueOf(-500), ddeltaEncoded.get(6));
-		Assert.assertEquals(Integer.valueOf(-500), ddeltaEncoded.get(7));
-		Assert.assertEquals(Integer.valueOf(500), ddeltaEncoded.get(8));
-		Assert.assertEquals(Integer.valueOf(500), ddeltaEncoded.get(9));
-		Assert.assertEquals(Integer.valueOf(-200), ddeltaEncoded.get(10));
-		Assert.assertEquals(Integer.valueOf(-200), ddeltaEncoded.get(11));
+		int[] ddeltaEncoded = DeltaEncoder.doubleDeltaEncode(this.mockCoordinates);
+		Assert.assertEquals(52000000, ddeltaEncoded[0]);
+		Assert.assertEquals(13000000, ddeltaEncoded[1]);
+		Assert.assertEquals(100, ddeltaEncoded[2]);
+		Assert.assertEquals(100, ddeltaEncoded[3]);
+		Assert.assertEquals(300, ddeltaEncoded[4]);
+		Assert.assertEquals(300, ddeltaEncoded[5]);
+		Assert.assertEquals(-500, ddeltaEncoded[6]);
+		Assert.assertEquals(-500, ddeltaEncoded[7]);
+		Assert.assertEquals(500, ddeltaEncoded[8]);
+		Assert.assertEquals(500, ddeltaEncoded[9]);
+		Assert.assertEquals(-200, ddeltaEncoded[10]);
+		Assert.assertEquals(-200, ddeltaEncoded[11]);
+	}
+
+	/**
+	 * Tests that {@link DeltaEncoder#chooseEncoding(List)} picks the encoding with the smaller simulated size.
+	 */
+	@Test
+	public void testChooseEncoding() {
+		List<WayDataBlock> blocks = Collections.singletonList(new WayDataBlock(this.mockCoordinates, null));
+		assertChosenEncoding(blocks);
+
+		// a straight line with equal steps favors double delta encoding
+		int[] line = new int[20];
+		for (int i = 0; i < line.length; i += 2) {
+			line[i] = 52000000 + i * 1000;
+			line[i + 1] = 13000000 + i * 1000;
+		}
+		List<int[]> inner = new ArrayList<int[]>();
+		inner.add(line);
+		blocks = Collections.singletonList(new WayDataBlock(this.mockCoordinates, inner));
+		Assert.assertEquals(Encoding.DOUBLE_DELTA, DeltaEncoder.chooseEncoding(blocks));
+		assertChosenEncoding(blocks);
+	}
+
+	private static void assertChosenEncoding(List<WayDataBlock> blocks) {
+		int simDelta = DeltaEncoder.simulateSerialization(DeltaEncoder.encode(blocks, Encoding.DELTA));
+		int simDoubleDelta = DeltaEncoder.simulateSerialization(DeltaEncoder.encode(blocks, Encoding.DOUBLE_DELTA));
+		Assert.assertEquals(simDelta <= simDoubleDelta ? Encoding.DELTA : Encoding.DOUBLE_DELTA,
+				DeltaEncoder.chooseEncoding(blocks));
 	}
 
 }
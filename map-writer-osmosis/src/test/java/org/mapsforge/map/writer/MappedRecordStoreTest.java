@@ -0,0 +1,95 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.writer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link MappedRecordStore}.
+ */
+public class MappedRecordStoreTest {
+
+	private static final long[] VALUES = { 0, 1, -1, 63, -64, 64, 90000000, -180000000, Integer.MAX_VALUE,
+			Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE };
+
+	/**
+	 * Writes and reads back variable length integers, strings and shorts.
+	 */
+	@Test
+	public void testEncoding() {
+		ByteBuffer buffer = ByteBuffer.allocate(1024);
+		for (long value : VALUES) {
+			MappedRecordStore.putVarLong(buffer, value);
+		}
+		MappedRecordStore.putString(buffer, null);
+		MappedRecordStore.putString(buffer, "");
+		MappedRecordStore.putString(buffer, "Stra\u00dfe");
+		MappedRecordStore.putShorts(buffer, null);
+		MappedRecordStore.putShorts(buffer, new short[] { 0, 1, Short.MAX_VALUE, Short.MIN_VALUE });
+
+		buffer.flip();
+		for (long value : VALUES) {
+			Assert.assertEquals(value, MappedRecordStore.getVarLong(buffer));
+		}
+		Assert.assertNull(MappedRecordStore.getString(buffer));
+		Assert.assertEquals("", MappedRecordStore.getString(buffer));
+		Assert.assertEquals("Stra\u00dfe", MappedRecordStore.getString(buffer));
+		Assert.assertNull(MappedRecordStore.getShorts(buffer));
+		Assert.assertTrue(Arrays.equals(new short[] { 0, 1, Short.MAX_VALUE, Short.MIN_VALUE },
+				MappedRecordStore.getShorts(buffer)));
+		Assert.assertFalse(buffer.hasRemaining());
+	}
+
+	/**
+	 * Adds records with ids out of order, reads them by id and in the order they were added.
+	 */
+	@Test
+	public void testRecords() {
+		long[] ids = { 5, 2, 100, -3 };
+		MappedRecordStore store = new MappedRecordStore("test");
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(64);
+			for (long id : ids) {
+				buffer.clear();
+				MappedRecordStore.putVarLong(buffer, id);
+				MappedRecordStore.putString(buffer, "record " + id);
+				store.add(id, buffer);
+			}
+
+			for (long id : ids) {
+				ByteBuffer record = store.get(id);
+				Assert.assertEquals(id, MappedRecordStore.getVarLong(record));
+				Assert.assertEquals("record " + id, MappedRecordStore.getString(record));
+				Assert.assertFalse(record.hasRemaining());
+			}
+			Assert.assertNull(store.get(3));
+
+			Iterator<ByteBuffer> iterator = store.iterator();
+			for (long id : ids) {
+				Assert.assertTrue(iterator.hasNext());
+				Assert.assertEquals(id, MappedRecordStore.getVarLong(iterator.next()));
+			}
+			Assert.assertFalse(iterator.hasNext());
+		} finally {
+			store.release();
+		}
+	}
+}
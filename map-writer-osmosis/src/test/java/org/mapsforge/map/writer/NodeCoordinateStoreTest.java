@@ -0,0 +1,68 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.writer;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Tests the sparse and the dense mode of {@link NodeCoordinateStore}.
+ */
+public class NodeCoordinateStoreTest {
+
+	private static final long[] IDS = { 7, 3, 2000000, 0, 1048576, 42, 1048575 };
+	private static final int[] LATITUDES = { 52000000, -1, 0, 90000000, -85000000, 0, 12 };
+	private static final int[] LONGITUDES = { 13000000, -1, 0, -180000000, 180000000, 5, -12 };
+
+	/**
+	 * Ids added in random order, some in different chunks.
+	 */
+	@Test
+	public void testSparse() {
+		testStore(new NodeCoordinateStore(false));
+	}
+
+	/**
+	 * Ids added in random order, some in chunks that were never mapped.
+	 */
+	@Test
+	public void testDense() {
+		testStore(new NodeCoordinateStore(true));
+	}
+
+	private static void testStore(NodeCoordinateStore store) {
+		try {
+			for (int i = 0; i < IDS.length; i++) {
+				store.add(IDS[i], LATITUDES[i], LONGITUDES[i]);
+			}
+			Assert.assertEquals(IDS.length, store.size());
+
+			for (int i = 0; i < IDS.length; i++) {
+				long coordinates = store.get(IDS[i]);
+				Assert.assertTrue(coordinates != NodeCoordinateStore.NOT_FOUND);
+				Assert.assertEquals(LATITUDES[i], NodeCoordinateStore.latitude(coordinates));
+				Assert.assertEquals(LONGITUDES[i], NodeCoordinateStore.longitude(coordinates));
+			}
+
+			Assert.assertEquals(NodeCoordinateStore.NOT_FOUND, store.get(1));
+			Assert.assertEquals(NodeCoordinateStore.NOT_FOUND, store.get(-1));
+			Assert.assertEquals(NodeCoordinateStore.NOT_FOUND, store.get(5000000));
+			Assert.assertEquals(NodeCoordinateStore.NOT_FOUND, store.get(Long.MAX_VALUE));
+		} finally {
+			store.release();
+		}
+	}
+}
@@ -14,6 +14,9 @@
  */
 package org.mapsforge.map.writer;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -32,4 +35,30 @@ public class SerializerTest {
 		fiveBytes = Serializer.getFiveBytes(5);
 		Assert.assertArrayEquals(new byte[] { 0, 0, 0, 0, 5 }, fiveBytes);
 	}
+
+	/**
+	 * Tests that {@link Serializer#putVariableByteSigned(ByteBuffer, int)} and
+	 * {@link Serializer#putVariableByteUnsigned(ByteBuffer, int)} write the same bytes as the methods returning
+	 * arrays.
+	 */
+	@Test
+	public void putVariableByteTest() {
+		int[] values = { 0, 1, 63, 64, 127, 128, 8191, 8192, 16383, 16384, 1048575, 1048576, 2097151, 2097152,
+				134217727, 134217728, 268435455, 268435456, Integer.MAX_VALUE };
+		ByteBuffer buffer = ByteBuffer.allocate(5);
+		for (int value : values) {
+			for (int signedValue : new int[] { value, -value, -value - 1 }) {
+				buffer.clear();
+				Serializer.putVariableByteSigned(buffer, signedValue);
+				byte[] expected = Serializer.getVariableByteSigned(signedValue);
+				Assert.assertArrayEquals(expected, Arrays.copyOf(buffer.array(), buffer.position()));
+				Assert.assertEquals(expected.length, Serializer.getVariableByteSignedLength(signedValue));
+			}
+
+			buffer.clear();
+			Serializer.putVariableByteUnsigned(buffer, value);
+			Assert.assertArrayEquals(Serializer.getVariableByteUnsigned(value),
+					Arrays.copyOf(buffer.array(), buffer.position()));
+		}
+	}
 }
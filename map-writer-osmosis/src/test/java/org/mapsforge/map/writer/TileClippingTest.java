@@ -0,0 +1,106 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.writer;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.mapsforge.map.writer.util.TileClipping;
+
+/**
+ * Tests {@link TileClipping}.
+ */
+public class TileClippingTest {
+
+	private static final double[] RECTANGLE = { 52000000, 13000000, 52001000, 13001000 };
+
+	/**
+	 * Clips a line that leaves and re-enters the rectangle.
+	 */
+	@Test
+	public void testClipLine() {
+		int[] line = { 51999500, 13000500, 52000500, 13000500, 52000500, 13001500, 52000800, 13001500, 52000800,
+				13000800 };
+		List<int[]> parts = TileClipping.clipLine(line, RECTANGLE);
+		Assert.assertEquals(2, parts.size());
+		Assert.assertTrue(Arrays.equals(new int[] { 52000000, 13000500, 52000500, 13000500, 52000500, 13001000 },
+				parts.get(0)));
+		Assert.assertTrue(Arrays.equals(new int[] { 52000800, 13001000, 52000800, 13000800 }, parts.get(1)));
+
+		int[] outside = { 51999000, 13000000, 51999000, 13001000 };
+		Assert.assertTrue(TileClipping.clipLine(outside, RECTANGLE).isEmpty());
+	}
+
+	/**
+	 * Clips a polygon that overlaps the rectangle and one that contains it.
+	 */
+	@Test
+	public void testClipPolygon() {
+		int[] polygon = { 52000500, 12999500, 52000500, 13000500, 51999500, 13000500, 51999500, 12999500, 52000500,
+				12999500 };
+		int[] clipped = TileClipping.clipPolygon(polygon, RECTANGLE);
+		Assert.assertEquals(10, clipped.length);
+		Assert.assertEquals(clipped[0], clipped[8]);
+		Assert.assertEquals(clipped[1], clipped[9]);
+		Assert.assertEquals(250000d, area(clipped));
+
+		int[] covering = { 53000000, 12000000, 53000000, 14000000, 51000000, 14000000, 51000000, 12000000, 53000000,
+				12000000 };
+		Assert.assertEquals(1000000d, area(TileClipping.clipPolygon(covering, RECTANGLE)));
+
+		int[] outside = { 53000000, 12000000, 53000000, 12000100, 52999900, 12000100, 53000000, 12000000 };
+		Assert.assertNull(TileClipping.clipPolygon(outside, RECTANGLE));
+	}
+
+	/**
+	 * Simplifies a line and a ring.
+	 */
+	@Test
+	public void testSimplify() {
+		int[] line = { 52000000, 13000000, 52000001, 13000500, 52000000, 13001000, 52000500, 13001000 };
+		Assert.assertTrue(Arrays.equals(new int[] { 52000000, 13000000, 52000000, 13001000, 52000500, 13001000 },
+				TileClipping.simplify(line, 10, false)));
+
+		// a ring keeps at least four points
+		int[] ring = { 52000000, 13000000, 52000000, 13001000, 52000001, 13002000, 52000000, 13000000 };
+		Assert.assertEquals(8, TileClipping.simplify(ring, 10, true).length);
+	}
+
+	/**
+	 * Tests lines and polygons against a rectangle inside their bounding box.
+	 */
+	@Test
+	public void testIntersects() {
+		double[] rectangle = { 52000400, 13000400, 52000600, 13000600 };
+		int[] ring = { 51999000, 12999000, 51999000, 13002000, 52002000, 13002000, 52002000, 12999000, 51999000,
+				12999000 };
+		Assert.assertTrue(TileClipping.intersects(ring, true, rectangle));
+		Assert.assertFalse(TileClipping.intersects(ring, false, rectangle));
+
+		int[] diagonal = { 51999000, 12999000, 52002000, 13002000 };
+		Assert.assertTrue(TileClipping.intersects(diagonal, false, rectangle));
+	}
+
+	private static double area(int[] ring) {
+		double area = 0;
+		for (int i = 0; i < ring.length - 2; i += 2) {
+			area += (double) ring[i] * ring[i + 3] - (double) ring[i + 2] * ring[i + 1];
+		}
+		return Math.abs(area / 2);
+	}
+}